@@ -0,0 +1,107 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment;
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment.Word;
+
+/**
+ * Synthetic input data shared by the benchmarks
+ */
+final class BenchmarkData {
+    /**
+     * Average duration of a segment of {@link #transcript(int)} in seconds
+     */
+    static final double SEGMENT_SECONDS = 3.74;
+
+    private BenchmarkData() {
+
+    }
+
+    /**
+     * @param minutes Duration of the speech
+     * @return Number of segments of {@link #transcript(int)} for the duration
+     */
+    static int segments(int minutes) {
+        return (int) Math.ceil(minutes * 60 / SEGMENT_SECONDS);
+    }
+
+    /**
+     * Creates a transcript with 12 words per segment and two speakers, word
+     * segments repeating the words like WhisperX does
+     */
+    static WhisperXOutput transcript(int segmentCount) {
+        final List<Segment> segments = new ArrayList<>(segmentCount);
+        final List<Word> wordSegments = new ArrayList<>(segmentCount * 12);
+        double time = 0.031;
+        for (int i = 0; i < segmentCount; i++) {
+            final String speaker = "SPEAKER_0" + (i / 3 % 2);
+            final List<Word> words = new ArrayList<>(12);
+            final StringBuilder text = new StringBuilder();
+            final double start = time;
+            for (int w = 0; w < 12; w++) {
+                final String word = w == 11 ? "end." : "word" + (i * 7 + w) % 1000;
+                final double end = Math.round((time + 0.2 + w % 3 * 0.05) * 1000) / 1000.0;
+                final double score = Math.round((0.5 + (i + w) % 50 / 100.0) * 1000) / 1000.0;
+                words.add(new Word(word, time, end, score, speaker));
+                text.append(' ').append(word);
+                time = Math.round((end + 0.02) * 1000) / 1000.0;
+            }
+            segments.add(new Segment(start, time, text.toString(), words, speaker));
+            wordSegments.addAll(words);
+            time = Math.round((time + 0.5) * 1000) / 1000.0;
+        }
+        return new WhisperXOutput(segments, wordSegments, "en");
+    }
+
+    /**
+     * Creates a 16 bit PCM WAV file with the given interleaved samples
+     */
+    static byte[] wav(short[] samples, int channels, int sampleRate) {
+        final ByteBuffer header = WavHeader.createPcmHeader(channels, sampleRate, 16, samples.length * 2L);
+        final ByteBuffer buffer = ByteBuffer.allocate(header.remaining() + samples.length * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(header);
+        buffer.asShortBuffer().put(samples);
+        return buffer.array();
+    }
+
+    /**
+     * Creates interleaved samples of a sine tone, the same on all channels
+     */
+    static short[] sine(double frequency, int sampleRate, int frames, int channels, double amplitude) {
+        final short[] samples = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            final short value = (short) Math.round(Math.sin(2 * Math.PI * frequency * i / sampleRate) * amplitude * 32768);
+            for (int c = 0; c < channels; c++) {
+                samples[i * channels + c] = value;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Creates output like WhisperX prints it with --print_progress: the stage,
+     * then log lines terminated by \n, each followed by progress updates
+     * terminated by \r
+     *
+     * @param lines Number of log lines
+     */
+    static byte[] processOutput(int lines) {
+        final StringBuilder output = new StringBuilder(">>Performing transcription...\n");
+        for (int i = 0; i < lines; i++) {
+            output.append(String.format(Locale.ROOT,
+                    "[00:%02d:%02d.%03d --> 00:%02d:%02d.%03d]  Transcribed text of segment %d with some words%n",
+                    i / 60 % 60, i % 60, i % 1000, i / 60 % 60, (i + 3) % 60, i % 1000, i));
+            for (int p = 0; p < 4; p++) {
+                output.append(String.format(Locale.ROOT, "Progress: %.2f%%...\r", (i * 4 + p) * 100.0 / (lines * 4)));
+            }
+        }
+        return output.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
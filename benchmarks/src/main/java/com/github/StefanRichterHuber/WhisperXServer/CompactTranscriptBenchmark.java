@@ -0,0 +1,134 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares {@link WhisperXOutput} with {@link CompactTranscript} for a
+ * synthetic, aligned and diarized transcript: loading it (from JSON resp. the
+ * binary format) and rendering subtitles. Run with
+ * {@code java -jar target/benchmarks.jar CompactTranscriptBenchmark -prof gc}
+ * to include the allocations, or the main method, which prints the retained
+ * heap of both representations first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompactTranscriptBenchmark {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * About 1 resp. 10 hours of speech
+     */
+    @Param({ "1000", "10000" })
+    int segments;
+
+    private byte[] json;
+    private byte[] binary;
+    private WhisperXOutput output;
+    private CompactTranscript compact;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        output = BenchmarkData.transcript(segments);
+        json = MAPPER.writeValueAsBytes(output);
+        compact = CompactTranscript.of(output);
+        binary = compact.toBytes();
+        System.out.printf("%nJSON: %d bytes, binary: %d bytes%n", json.length, binary.length);
+    }
+
+    @Benchmark
+    public WhisperXOutput readJson() throws IOException {
+        return MAPPER.readValue(json, WhisperXOutput.class);
+    }
+
+    @Benchmark
+    public CompactTranscript readBinary() {
+        return CompactTranscript.fromBytes(binary);
+    }
+
+    @Benchmark
+    public byte[] writeBinary() {
+        return compact.toBytes();
+    }
+
+    @Benchmark
+    public String renderSrtFromOutput() {
+        return output.toFormat("srt");
+    }
+
+    @Benchmark
+    public String renderSrtFromCompact() throws IOException {
+        final StringWriter out = new StringWriter(compact.getSegmentCount() * 128);
+        compact.render(WhisperXOutputWriter.create("srt", out));
+        return out.toString();
+    }
+
+    @Benchmark
+    public String renderJsonFromCompact() throws IOException {
+        final StringWriter out = new StringWriter(compact.getSegmentCount() * 128);
+        compact.render(WhisperXOutputWriter.create("json", out));
+        return out.toString();
+    }
+
+    /**
+     * Estimates the heap retained by an object from the heap used before and
+     * after creating a few of them
+     */
+    private static long retained(Supplier<Object> factory) {
+        final Object[] copies = new Object[8];
+        final long before = usedHeap();
+        for (int i = 0; i < copies.length; i++) {
+            copies[i] = factory.get();
+        }
+        final long after = usedHeap();
+        return copies[copies.length - 1] != null ? (after - before) / copies.length : 0;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        for (int segments : new int[] { 1000, 10000 }) {
+            final byte[] json = MAPPER.writeValueAsBytes(BenchmarkData.transcript(segments));
+            final byte[] binary = CompactTranscript.of(BenchmarkData.transcript(segments)).toBytes();
+            System.out.printf("%d segments: WhisperXOutput %,d bytes, CompactTranscript %,d bytes retained%n",
+                    segments, retained(() -> {
+                        try {
+                            return MAPPER.readValue(json, WhisperXOutput.class);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }), retained(() -> CompactTranscript.fromBytes(binary)));
+        }
+        new Runner(new OptionsBuilder().include(CompactTranscriptBenchmark.class.getSimpleName()).build()).run();
+    }
+}
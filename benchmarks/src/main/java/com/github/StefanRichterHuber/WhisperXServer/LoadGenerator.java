@@ -0,0 +1,215 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Load test against a running server: uploads audio from a number of
+ * concurrent clients, each long-polling the status of its job afterwards, and
+ * reports the thread count and memory usage of the server from its metrics
+ * while doing so. Start the server with a queue large enough for all clients,
+ * see the README.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.StefanRichterHuber.WhisperXServer.LoadGenerator [url] [clients] [audio file]
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final Pattern JOB_ID = Pattern.compile("\"id\"\\s*:\\s*\"([^\"]+)\"");
+
+    private static final Pattern METRIC = Pattern.compile("^(\\w+)(\\{[^}]*\\})? ([0-9.Ee+-]+)$");
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(30)).build();
+    private final URI base;
+    private final byte[] audio;
+
+    private final Map<Integer, LongAdder> uploadStatus = new ConcurrentHashMap<>();
+    private final Map<Integer, LongAdder> resultStatus = new ConcurrentHashMap<>();
+    private final List<Long> uploadMillis = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> totalMillis = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger polls = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+
+    private double maxThreads;
+    private double maxHeap;
+    private double maxNonHeap;
+
+    public LoadGenerator(URI base, byte[] audio) {
+        this.base = base;
+        this.audio = audio;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final URI base = URI.create(args.length > 0 ? args[0] : "http://localhost:8080");
+        final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final byte[] audio = args.length > 2 ? Files.readAllBytes(Paths.get(args[2])) : silence(5);
+        new LoadGenerator(base, audio).run(clients);
+    }
+
+    /**
+     * Starts all clients at once and waits for them to finish
+     */
+    public void run(int clients) throws Exception {
+        System.out.printf("Baseline: %s%n", sample());
+        final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        final long start = System.nanoTime();
+        monitor.scheduleAtFixedRate(() -> System.out.printf("%5ds %4d/%d done, %d polls, %s%n",
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), done.get(), clients, polls.get(),
+                sample()), 1, 1, TimeUnit.SECONDS);
+
+        final List<CompletableFuture<Void>> all = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            all.add(runClient("load-" + i));
+        }
+        CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).join();
+        monitor.shutdownNow();
+
+        System.out.printf("%nFinished %d clients in %d s%n", clients,
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        System.out.printf("Upload status: %s%n", counts(uploadStatus));
+        System.out.printf("Result status: %s%n", counts(resultStatus));
+        System.out.printf("Upload latency: %s%n", percentiles(uploadMillis));
+        System.out.printf("Time to result: %s%n", percentiles(totalMillis));
+        System.out.printf("Status polls: %d%n", polls.get());
+        System.out.printf("Server peak: %.0f live threads, %.1f MiB heap, %.1f MiB non-heap%n", maxThreads,
+                maxHeap / 1024 / 1024, maxNonHeap / 1024 / 1024);
+    }
+
+    /**
+     * Uploads the audio and long-polls the status until the result is there
+     */
+    private CompletableFuture<Void> runClient(String clientId) {
+        final long start = System.nanoTime();
+        final HttpRequest upload = HttpRequest.newBuilder(base.resolve("/transcribe"))
+                .header("Content-Type", "audio/wav").header("Accept", "text/plain")
+                .header("X-Client-Id", clientId).timeout(Duration.ofMinutes(10))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(audio)).build();
+        return client.sendAsync(upload, HttpResponse.BodyHandlers.ofString()).thenCompose(response -> {
+            uploadMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            count(uploadStatus, response.statusCode());
+            final Matcher m = JOB_ID.matcher(response.body());
+            if (response.statusCode() != 202 || !m.find()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return poll(m.group(1)).thenAccept(status -> {
+                count(resultStatus, status);
+                totalMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            });
+        }).exceptionally(e -> {
+            count(uploadStatus, -1);
+            return null;
+        }).whenComplete((v, e) -> done.incrementAndGet());
+    }
+
+    private CompletableFuture<Integer> poll(String jobId) {
+        polls.incrementAndGet();
+        final HttpRequest status = HttpRequest
+                .newBuilder(base.resolve("/transcription-status?wait=30&job-id=" + jobId))
+                .timeout(Duration.ofMinutes(2)).GET().build();
+        return client.sendAsync(status, HttpResponse.BodyHandlers.discarding())
+                .thenCompose(response -> response.statusCode() == 202 ? poll(jobId)
+                        : CompletableFuture.completedFuture(response.statusCode()));
+    }
+
+    /**
+     * Reads thread count and memory usage from the metrics of the server
+     */
+    private String sample() {
+        double threads = 0;
+        double heap = 0;
+        double nonHeap = 0;
+        try {
+            final HttpResponse<String> response = client.send(
+                    HttpRequest.newBuilder(base.resolve("/q/metrics")).timeout(Duration.ofSeconds(10)).build(),
+                    HttpResponse.BodyHandlers.ofString());
+            for (String line : response.body().split("\n")) {
+                final Matcher m = METRIC.matcher(line);
+                if (!m.matches()) {
+                    continue;
+                }
+                final String labels = m.group(2) != null ? m.group(2) : "";
+                final double value = Double.parseDouble(m.group(3));
+                if (m.group(1).equals("jvm_threads_live_threads")) {
+                    threads = value;
+                } else if (m.group(1).equals("jvm_memory_used_bytes")) {
+                    if (labels.contains("area=\"heap\"")) {
+                        heap += value;
+                    } else {
+                        nonHeap += value;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return "metrics not available: " + e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return "interrupted";
+        }
+        synchronized (this) {
+            maxThreads = Math.max(maxThreads, threads);
+            maxHeap = Math.max(maxHeap, heap);
+            maxNonHeap = Math.max(maxNonHeap, nonHeap);
+        }
+        return String.format("%.0f live threads, %.1f MiB heap, %.1f MiB non-heap", threads, heap / 1024 / 1024,
+                nonHeap / 1024 / 1024);
+    }
+
+    private static void count(Map<Integer, LongAdder> counts, int status) {
+        counts.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    private static Map<Integer, Long> counts(Map<Integer, LongAdder> counts) {
+        final Map<Integer, Long> result = new TreeMap<>();
+        counts.forEach((status, count) -> result.put(status, count.sum()));
+        return result;
+    }
+
+    private static String percentiles(List<Long> millis) {
+        final List<Long> sorted;
+        synchronized (millis) {
+            sorted = new ArrayList<>(millis);
+        }
+        if (sorted.isEmpty()) {
+            return "-";
+        }
+        Collections.sort(sorted);
+        return String.format("p50 %d ms, p90 %d ms, p99 %d ms, max %d ms", sorted.get(sorted.size() / 2),
+                sorted.get(sorted.size() * 9 / 10), sorted.get(sorted.size() * 99 / 100),
+                sorted.get(sorted.size() - 1));
+    }
+
+    /**
+     * @return WAV file with the given seconds of silence in the format required by
+     *         WhisperX, so the server does not need to convert it
+     */
+    private static byte[] silence(int seconds) {
+        final int dataSize = seconds * WavHeader.TARGET_SAMPLE_RATE * 2;
+        final ByteBuffer header = WavHeader.createPcmHeader(1, WavHeader.TARGET_SAMPLE_RATE, 16, dataSize);
+        final ByteBuffer wav = ByteBuffer.allocate(header.remaining() + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        wav.put(header);
+        return wav.array();
+    }
+}
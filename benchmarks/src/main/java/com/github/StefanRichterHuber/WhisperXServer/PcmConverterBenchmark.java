@@ -0,0 +1,97 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Compares the conversion of one minute of uncompressed audio in Java with
+ * starting ffmpeg (which must be on the path). Run with
+ * {@code java -jar target/benchmarks.jar PcmConverterBenchmark}
+ * or the main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PcmConverterBenchmark {
+
+    @Param({ "44100", "48000", "16000" })
+    int sampleRate;
+
+    @Param({ "2" })
+    int channels;
+
+    private AudioConverterService converter;
+    private Path directory;
+    private Path source;
+    private Path target;
+    private WavHeader header;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        converter = new AudioConverterService();
+        converter.logger = Logger.getLogger(AudioConverterService.class);
+        converter.registry = new SimpleMeterRegistry();
+        converter.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        converter.maxConcurrent = 1;
+        converter.timeout = Duration.ofMinutes(1);
+        converter.init();
+        directory = Files.createTempDirectory("pcm-benchmark");
+        source = directory.resolve("source.wav");
+        target = directory.resolve("target.wav");
+        Files.write(source, BenchmarkData
+                .wav(BenchmarkData.sine(440, sampleRate, 60 * sampleRate, channels, 0.5), channels, sampleRate));
+        header = WavHeader.read(source).orElseThrow();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        converter.shutdown();
+        converter.scheduledExecutorService.shutdown();
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public long java() throws IOException {
+        converter.convertWavFileToTargetFormat(source, header, target);
+        return Files.size(target);
+    }
+
+    @Benchmark
+    public long ffmpeg() throws IOException, InterruptedException {
+        converter.convertAudioFileToTargetFormat(source, target);
+        return Files.size(target);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PcmConverterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
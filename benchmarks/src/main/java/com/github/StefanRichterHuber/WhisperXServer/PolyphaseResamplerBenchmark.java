@@ -0,0 +1,65 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Resampling one minute of mono audio to 16 kHz, in blocks like
+ * {@link PcmConverter} does, without any I/O. Run with
+ * {@code java -jar target/benchmarks.jar PolyphaseResamplerBenchmark}
+ * or the main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PolyphaseResamplerBenchmark {
+    private static final int BLOCK_SIZE = 4096;
+
+    @Param({ "8000", "44100", "48000" })
+    int sampleRate;
+
+    private float[] input;
+    private short[] output;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final short[] samples = BenchmarkData.sine(440, sampleRate, 60 * sampleRate, 1, 0.5);
+        input = new float[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            input[i] = samples[i] / 32768f;
+        }
+        output = new short[new PolyphaseResampler(sampleRate, 16000).maxOutput(BLOCK_SIZE)];
+    }
+
+    @Benchmark
+    public long resample() {
+        final PolyphaseResampler resampler = new PolyphaseResampler(sampleRate, 16000);
+        long produced = 0;
+        for (int offset = 0; offset < input.length; offset += BLOCK_SIZE) {
+            produced += resampler.process(input, offset, Math.min(BLOCK_SIZE, input.length - offset), output);
+        }
+        return produced + resampler.flush(output);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PolyphaseResamplerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
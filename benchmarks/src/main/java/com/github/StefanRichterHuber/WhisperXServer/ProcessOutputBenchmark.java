@@ -0,0 +1,72 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Splitting the output of WhisperX into lines, directly and through the
+ * asynchronous pump of {@link ProcessUtils}, and parsing the progress from
+ * them. Run with
+ * {@code java -jar target/benchmarks.jar ProcessOutputBenchmark}
+ * or the main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessOutputBenchmark {
+
+    /**
+     * Number of log lines, each followed by 4 progress updates
+     */
+    @Param({ "1000", "100000" })
+    int lines;
+
+    private byte[] output;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        output = BenchmarkData.processOutput(lines);
+    }
+
+    @Benchmark
+    public void pump(Blackhole blackhole) throws IOException {
+        ProcessUtils.pump(new ByteArrayInputStream(output), blackhole::consume);
+    }
+
+    @Benchmark
+    public void handleProcessOutput(Blackhole blackhole) {
+        ProcessUtils.handleProcessOutput(new ByteArrayInputStream(output), blackhole::consume).join();
+    }
+
+    @Benchmark
+    public double progress() throws IOException {
+        final WhisperXProgress progress = new WhisperXProgress(false);
+        ProcessUtils.pump(new ByteArrayInputStream(output), progress::onOutput);
+        return progress.getPercent();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ProcessOutputBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Parsing WAV headers, from the first bytes of an upload and from a file.
+ * Headers written by most tools contain a LIST chunk with metadata before the
+ * data chunk, which must be skipped. Run with
+ * {@code java -jar target/benchmarks.jar WavHeaderBenchmark}
+ * or the main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WavHeaderBenchmark {
+
+    private ByteBuffer pcm;
+    private ByteBuffer withMetadata;
+    private Path directory;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final byte[] wav = BenchmarkData.wav(BenchmarkData.sine(440, 16000, 16000, 1, 0.5), 1, 16000);
+        pcm = ByteBuffer.wrap(wav, 0, 4096).slice();
+        withMetadata = withListChunk(wav, 200).slice();
+        directory = Files.createTempDirectory("wav-header-benchmark");
+        file = directory.resolve("audio.wav");
+        Files.write(file, wav);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public Optional<WavHeader> prefix() throws IOException {
+        return WavHeader.read(pcm.duplicate());
+    }
+
+    @Benchmark
+    public Optional<WavHeader> prefixWithMetadata() throws IOException {
+        return WavHeader.read(withMetadata.duplicate());
+    }
+
+    @Benchmark
+    public Optional<WavHeader> file() throws IOException {
+        return WavHeader.read(file);
+    }
+
+    /**
+     * Inserts a LIST chunk of the given size between the fmt and the data chunk
+     * and returns the first 4 KiB
+     */
+    private static ByteBuffer withListChunk(byte[] wav, int size) {
+        final ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        // RIFF header and fmt chunk
+        buffer.put(wav, 0, 36);
+        buffer.putInt(0x5453494c /* LIST */).putInt(size);
+        buffer.put(new byte[size]);
+        buffer.put(wav, 36, buffer.remaining());
+        buffer.putInt(4, buffer.getInt(4) + 8 + size);
+        return buffer.flip();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WavHeaderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
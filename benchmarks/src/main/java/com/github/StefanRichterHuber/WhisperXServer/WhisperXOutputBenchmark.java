@@ -0,0 +1,92 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reading the JSON output of WhisperX and rendering it in all supported output
+ * formats, for transcripts of one minute up to ten hours of speech. Run with
+ * {@code java -jar target/benchmarks.jar WhisperXOutputBenchmark -prof gc}
+ * to include the allocations, or the main method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WhisperXOutputBenchmark {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Minutes of speech
+     */
+    @Param({ "1", "60", "600" })
+    int minutes;
+
+    private byte[] json;
+    private WhisperXOutput output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        output = BenchmarkData.transcript(BenchmarkData.segments(minutes));
+        json = MAPPER.writeValueAsBytes(output);
+    }
+
+    @Benchmark
+    public WhisperXOutput readJson() throws IOException {
+        return MAPPER.readValue(json, WhisperXOutput.class);
+    }
+
+    @Benchmark
+    public String json() {
+        return output.toFormat("json");
+    }
+
+    @Benchmark
+    public String srt() {
+        return output.toFormat("srt");
+    }
+
+    @Benchmark
+    public String vtt() {
+        return output.toFormat("vtt");
+    }
+
+    @Benchmark
+    public String txt() {
+        return output.toFormat("txt");
+    }
+
+    @Benchmark
+    public String tsv() {
+        return output.toFormat("tsv");
+    }
+
+    @Benchmark
+    public String aud() {
+        return output.toFormat("aud");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WhisperXOutputBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -1,13 +1,48 @@
 package com.github.StefanRichterHuber.WhisperXServer;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.DoubleConsumer;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
@@ -57,65 +92,438 @@ import jakarta.inject.Inject;
 
 @ApplicationScoped
 public class AudioConverterService {
+	private static final String MODE_FILE = "file";
+	private static final String MODE_STREAM = "stream";
+	private static final String CONVERTER_FFMPEG = "ffmpeg";
+	private static final String CONVERTER_JAVA = "java";
+
+	/**
+	 * Time ffmpeg gets to terminate before it is killed
+	 */
+	private static final Duration PROCESS_DESTROY_GRACE = Duration.ofSeconds(1);
+
 	@Inject
 	Logger logger;
 
+	@Inject
+	MeterRegistry registry;
+
+	@Inject
+	ScheduledExecutorService scheduledExecutorService;
+
+	/**
+	 * Maximum number of conversions running in parallel. Further conversions are
+	 * queued.
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.conversion.max-concurrent", defaultValue = "2")
+	int maxConcurrent;
+
+	/**
+	 * Conversions taking longer are killed
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.conversion.timeout", defaultValue = "30m")
+	Duration timeout;
+
+	/**
+	 * Number of threads per ffmpeg process, 0 lets ffmpeg decide
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.conversion.threads", defaultValue = "1")
+	int threads;
+
+	/**
+	 * Niceness of the ffmpeg processes, so they yield the CPU to WhisperX. 0 keeps
+	 * the priority of the server.
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.conversion.nice", defaultValue = "10")
+	int nice;
+
+	/**
+	 * Runs the conversions. Never use the common pool for this: conversions block
+	 * for a long time.
+	 */
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Pipes the input of streamed conversions into ffmpeg
+	 */
+	private ExecutorService inputExecutor;
+
+	private boolean niceAvailable;
+
+	@PostConstruct
+	void init() {
+		this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 1, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<>(), VirtualThreads.factory("audio-conversion"));
+		this.executor.allowCoreThreadTimeOut(true);
+		this.inputExecutor = VirtualThreads.newExecutor("audio-conversion-input");
+		this.niceAvailable = nice > 0 && isOnPath("nice");
+
+		Gauge.builder("whisperx.conversion.active", executor, ThreadPoolExecutor::getActiveCount)
+				.description("Conversions running").register(registry);
+		Gauge.builder("whisperx.conversion.queue.size", executor, e -> e.getQueue().size())
+				.description("Conversions waiting for a free slot").register(registry);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdownNow();
+		inputExecutor.shutdownNow();
+	}
+
+	/**
+	 * Ensures the given audio or video file is in the format required by WhisperX.
+	 * If the file is already a 16 kHz mono PCM wav file, it is used as is.
+	 * Otherwise it is converted into a wav file next to it: uncompressed wav files
+	 * in Java, everything else by ffmpeg. The conversion is queued, cancelling the
+	 * returned future stops it.
+	 * 
+	 * @param source Uploaded audio or video file. Kept untouched, so a job can be
+	 *               restarted from it.
+	 * @return source itself or the converted wav file next to it
+	 */
+	public Future<Path> prepareForTranscription(Path source) {
+		return prepareForTranscription(source, duration -> {
+		});
+	}
+
+	/**
+	 * Same as {@link #prepareForTranscription(Path)}, additionally reporting the
+	 * exact duration of the audio once converted. The duration of wav files
+	 * already in the target format is known from their header up front and not
+	 * reported.
+	 * 
+	 * @param source           Uploaded audio or video file
+	 * @param durationListener Receives the duration (in seconds) of the converted
+	 *                         audio
+	 * @return source itself or the converted wav file next to it
+	 */
+	public Future<Path> prepareForTranscription(Path source, DoubleConsumer durationListener) {
+		final Optional<WavHeader> header;
+		try {
+			header = WavHeader.read(source);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		if (header.isPresent() && header.get().isWhisperXCompatible()) {
+			logger.debugf("File %s is already in the target format (%s), skipping conversion", source, header.get());
+			Counter.builder("whisperx.conversion.skipped")
+					.description("Files already in the target format, not converted").register(registry).increment();
+			return CompletableFuture.completedFuture(source);
+		}
+		return submit(() -> {
+			final Path converted = convertForTranscription(source, header);
+			// The header of the written file holds the exact byte count of the converted audio
+			WavHeader.read(converted).ifPresent(h -> durationListener.accept(h.getDurationSeconds()));
+			return converted;
+		});
+	}
+
+	private Path convertForTranscription(Path source, Optional<WavHeader> header)
+			throws IOException, InterruptedException {
+		final String fileName = source.getFileName().toString();
+		final String stem = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+		final Path target = source.resolveSibling(stem + ".wav");
+		final Path converted = source.equals(target) ? source.resolveSibling(stem + ".converted.wav") : target;
+		try {
+			if (header.isPresent() && PcmConverter.isSupported(header.get())) {
+				convertWavFileToTargetFormat(source, header.get(), converted);
+			} else {
+				convertAudioFileToTargetFormat(source, converted);
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedException("Conversion of " + source + " cancelled");
+			}
+		} catch (IOException | InterruptedException e) {
+			Files.deleteIfExists(converted);
+			throw e;
+		}
+		return converted;
+	}
+
+	/**
+	 * Converts an uncompressed wav file into the required target format for
+	 * whisperX in Java, which is much faster than starting ffmpeg. Runs in the
+	 * calling thread.
+	 * 
+	 * @param source File containing the source audio
+	 * @param header Header of the source, supported by {@link PcmConverter}
+	 * @param target File to write the converted audio to
+	 * @throws IOException
+	 */
+	public void convertWavFileToTargetFormat(Path source, WavHeader header, Path target) throws IOException {
+		logger.infof("Converting %s (%s) to wav format", source, header);
+		final long start = System.nanoTime();
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			in.position(header.getDataOffset());
+			final long written = PcmConverter.convert(in, header, out);
+			recordConversion(CONVERTER_JAVA, MODE_FILE, start, 0, in.size(), written);
+		}
+	}
+
+	/**
+	 * Invokes a local ffmpeg to convert an audio or video file into the required
+	 * target format for wisperX. Reading from a file instead of a pipe allows
+	 * ffmpeg to seek, which is required for some container formats (e.g. mp4).
+	 * Runs in the calling thread, ffmpeg is killed if it is interrupted.
+	 * 
+	 * @param source File containing the source audio
+	 * @param target File to write the converted audio to
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void convertAudioFileToTargetFormat(Path source, Path target) throws IOException, InterruptedException {
+		logger.infof("Converting %s to wav format", source);
+		final long start = System.nanoTime();
+		final Process process = startFfmpeg(source.toString(), //
+				"-y", // Overwrite target file
+				"-vn", // Ignore any video stream
+				target.toString() //
+		).redirectOutput(Redirect.DISCARD).start();
+
+		final int status;
+		try (Watchdog watchdog = new Watchdog(process, source.toString())) {
+			ProcessUtils.handleProcessOutput(process.getErrorStream(), line -> logger.debug(line));
+			status = watchdog.waitFor();
+		}
+		logger.infof("Finalized conversion of %s to target format with status %d", source, status);
+		recordConversion(CONVERTER_FFMPEG, MODE_FILE, start, status, Files.size(source),
+				status == 0 ? Files.size(target) : 0);
+		if (status != 0) {
+			throw new IOException("Failed to invoke ffmepg. Status code " + status);
+		}
+	}
+
 	/**
 	 * Invokes a local ffmpeg to convert an audio InputStream into the required
-	 * target format for wisperX
+	 * target format for wisperX, writing the result to the given file.
 	 * 
 	 * @param sourceData InputStream containing the source audio
-	 * @return Byte array with the target data format
+	 * @param target     File to write the converted audio to
+	 * @return Number of bytes written
 	 * @throws IOException
 	 * @throws InterruptedException
 	 * @throws ExecutionException
 	 */
+	public long convertAudioToTargetFormat(InputStream sourceData, Path target)
+			throws IOException, InterruptedException, ExecutionException {
+		try (FileChannel fc = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			return convertAudioToTargetFormat(sourceData, fc);
+		}
+	}
 
-	public byte[] convertAudioToTargetFormat(InputStream sourceData)
+	/**
+	 * Converts an audio InputStream into the required target format for wisperX.
+	 * Uncompressed wav audio is converted in Java, everything else is streamed
+	 * through ffmpeg. Both use fixed size buffers, so memory usage does not depend
+	 * on the file size. The conversion is queued with all other conversions, the
+	 * calling thread waits for it.
+	 * 
+	 * @param sourceData InputStream containing the source audio
+	 * @param target     Channel to write the converted audio to. Not closed.
+	 * @return Number of bytes written
+	 * @throws IOException
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public long convertAudioToTargetFormat(InputStream sourceData, WritableByteChannel target)
+			throws IOException, InterruptedException, ExecutionException {
+		final Future<Long> conversion = submit(() -> convertStream(sourceData, target));
+		try {
+			return conversion.get();
+		} catch (InterruptedException e) {
+			conversion.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private long convertStream(InputStream sourceData, WritableByteChannel target)
+			throws IOException, InterruptedException, ExecutionException {
+		// The header is at the beginning, no need to store the whole file to check it
+		final byte[] prefix = sourceData.readNBytes(StreamUtils.BUFFER_SIZE);
+		final ByteBuffer buffer = ByteBuffer.wrap(prefix);
+		final Optional<WavHeader> header = WavHeader.read(buffer);
+		if (header.isPresent() && PcmConverter.isSupported(header.get())) {
+			logger.infof("Received %s to convert to wav format", header.get());
+			final long start = System.nanoTime();
+			try (ReadableByteChannel source = Channels.newChannel(new SequenceInputStream(
+					new ByteArrayInputStream(prefix, buffer.position(), buffer.remaining()), sourceData))) {
+				final long written = PcmConverter.convert(source, header.get(), target);
+				recordConversion(CONVERTER_JAVA, MODE_STREAM, start, 0,
+						Math.max(header.get().getDataOffset() + header.get().getDataSize(), prefix.length), written);
+				return written;
+			}
+		}
+		return convertWithFfmpeg(new SequenceInputStream(new ByteArrayInputStream(prefix), sourceData), target);
+	}
+
+	/**
+	 * Invokes a local ffmpeg to convert an audio InputStream into the required
+	 * target format for wisperX. The data is streamed through ffmpeg with fixed
+	 * size buffers, so memory usage does not depend on the file size.
+	 */
+	private long convertWithFfmpeg(InputStream sourceData, WritableByteChannel target)
 			throws IOException, InterruptedException, ExecutionException {
 		// ffmpeg -i 111.mp3 -acodec pcm_ s16le -ac 1 -ar 16000 out.wav
 		/// cat podcast.mpga | ffmpeg -i pipe: -acodec pcm_s16le -ac 1 -ar 16000 -f wav
 		// -
 
 		logger.infof("Received file to convert to wav format");
-		final Process process = new ProcessBuilder("ffmpeg", //
-				"-i", "pipe:", //
+		final long start = System.nanoTime();
+		final Process process = startFfmpeg("pipe:", //
+				"-" // Output to stdout
+		).start();
+
+		final long written;
+		final int status;
+		final long read;
+		try (Watchdog watchdog = new Watchdog(process, "stream")) {
+			// If loglevel is not quiet, lots of information is collected here. Fetch it,
+			// otherwise the stream blocks
+			ProcessUtils.handleProcessOutput(process.getErrorStream(), line -> logger.debug(line));
+
+			// We have to pipe the source data async because otherwise the stdout of ffmpeg
+			// blocks
+			final CompletableFuture<Long> piped = CompletableFuture.supplyAsync(() -> {
+				try (ReadableByteChannel is = Channels.newChannel(sourceData);
+						WritableByteChannel os = Channels.newChannel(process.getOutputStream())) {
+					return StreamUtils.transfer(is, os);
+				} catch (IOException e) {
+					// ffmpeg might have stopped reading, the exit code tells the reason
+					logger.debugf(e, "Failed to pipe audio data to ffmpeg");
+					return -1L;
+				}
+			}, inputExecutor);
+
+			// Target is gone: the watchdog kills ffmpeg, no need to continue the
+			// conversion
+			try (ReadableByteChannel stdout = Channels.newChannel(process.getInputStream())) {
+				written = StreamUtils.transfer(stdout, target);
+			}
+			status = watchdog.waitFor();
+			read = piped.get();
+		}
+		logger.infof("Finalized conversion of %d bytes of audio input file to %d bytes in target format with status %d",
+				read, written, status);
+		recordConversion(CONVERTER_FFMPEG, MODE_STREAM, start, status, Math.max(read, 0), written);
+
+		if (status != 0) {
+			throw new IOException("Failed to invoke ffmepg. Status code " + status);
+		}
+		return written;
+	}
+
+	/**
+	 * Prepares an ffmpeg invocation converting into the target format, limited
+	 * to the configured threads and priority
+	 * 
+	 * @param input  Input file or pipe
+	 * @param output Output options and file
+	 */
+	private ProcessBuilder startFfmpeg(String input, String... output) {
+		final List<String> command = new ArrayList<>();
+		if (niceAvailable) {
+			command.addAll(Arrays.asList("nice", "-n", String.valueOf(nice)));
+		}
+		command.addAll(Arrays.asList("ffmpeg", //
+				"-nostdin", //
+				"-threads", String.valueOf(threads), //
+				"-i", input, //
 				"-loglevel", "quiet", //
 				"-acodec", "pcm_s16le", //
 				"-ac", "1", //
 				"-ar", "16000", //
-				"-f", "wav", // Output as wav file
-				"-" // Output to stdout
-		).start();
+				"-f", "wav" // Output as wav file
+		));
+		command.addAll(Arrays.asList(output));
+		return new ProcessBuilder(command);
+	}
 
-		// If loglevel is not quiet, lots of information is collected here. Fetch it,
-		// otherwise the stream blocks
-		ProcessUtils.handleProcessOutput(process.getErrorStream(), line -> logger.debug(line));
+	/**
+	 * Kills an ffmpeg process if it takes too long, or if the conversion is left
+	 * early (e.g. cancelled or failed)
+	 */
+	private class Watchdog implements AutoCloseable {
+		private final Process process;
+		private final String description;
+		private final AtomicBoolean timedOut = new AtomicBoolean();
+		private final ScheduledFuture<?> timer;
+
+		Watchdog(Process process, String description) {
+			this.process = process;
+			this.description = description;
+			this.timer = scheduledExecutorService.schedule(() -> {
+				timedOut.set(true);
+				logger.warnf("Conversion of %s timed out after %s, killing ffmpeg", description, timeout);
+				kill();
+			}, timeout.toMillis(), TimeUnit.MILLISECONDS);
+		}
 
-		// We have to collect the result data async because otherwise the stdin
-		// outputstream blocks
-		final CompletableFuture<byte[]> convertedAudio = CompletableFuture.supplyAsync(() -> {
-			try (InputStream stdout = process.getInputStream()) {
-				final byte[] result = stdout.readAllBytes();
+		/**
+		 * @return Exit code of the process
+		 * @throws IOException if the process timed out
+		 */
+		int waitFor() throws IOException, InterruptedException {
+			final int status = ProcessUtils.waitFor(process);
+			if (timedOut.get()) {
+				throw new IOException("Conversion of " + description + " timed out after " + timeout);
+			}
+			return status;
+		}
 
-				final int status = process.waitFor();
-				logger.infof("Finalized conversion of audio input file to target format with status %d", status);
+		private void kill() {
+			ProcessUtils.destroyTree(process, PROCESS_DESTROY_GRACE);
+		}
 
-				if (status == 0) {
-					return result;
-				} else {
-					throw new IOException("Failed to invoke ffmepg. Status code " + status);
-				}
-			} catch (IOException | InterruptedException e) {
-				throw new RuntimeException(e);
+		@Override
+		public void close() {
+			timer.cancel(false);
+			if (process.isAlive()) {
+				logger.infof("Killing ffmpeg converting %s", description);
+				kill();
 			}
+		}
+	}
+
+	private <T> Future<T> submit(Callable<T> conversion) {
+		final long queued = System.nanoTime();
+		return executor.submit(() -> {
+			Timer.builder("whisperx.conversion.queue.wait").description("Time conversions waited for a free slot")
+					.register(registry).record(System.nanoTime() - queued, TimeUnit.NANOSECONDS);
+			return conversion.call();
 		});
+	}
 
-		// Pipe source data to stdin
-		try (InputStream is = sourceData; OutputStream os = process.getOutputStream()) {
-			is.transferTo(os);
-		}
+	private static boolean isOnPath(String executable) {
+		final String path = System.getenv("PATH");
+		return path != null && Arrays.stream(path.split(File.pathSeparator))
+				.anyMatch(dir -> !dir.isEmpty() && Files.isExecutable(Paths.get(dir, executable)));
+	}
 
-		return convertedAudio.get();
+	/**
+	 * Records duration and throughput of a finished conversion
+	 */
+	private void recordConversion(String converter, String mode, long start, int status, long inputBytes,
+			long outputBytes) {
+		Timer.builder("whisperx.conversion").description("Duration of audio conversions")
+				.tag("converter", converter).tag("mode", mode).tag("exit.code", String.valueOf(status))
+				.register(registry).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		Counter.builder("whisperx.conversion.input").description("Bytes of audio read by the converter")
+				.baseUnit(BaseUnits.BYTES).tag("converter", converter).tag("mode", mode).register(registry)
+				.increment(inputBytes);
+		Counter.builder("whisperx.conversion.output").description("Bytes of audio written by the converter")
+				.baseUnit(BaseUnits.BYTES).tag("converter", converter).tag("mode", mode).register(registry)
+				.increment(outputBytes);
 	}
 }
@@ -0,0 +1,93 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Identifies the callers of the server and assigns their priority class.
+ * Clients configured with an API key are identified by it and get the
+ * configured class, all other callers are identified by their remote address
+ * and get the default class. Callers can neither raise their own priority nor
+ * switch identities to get around the fair share and the per-client limits.
+ */
+@ApplicationScoped
+public class ClientRegistry {
+
+    /**
+     * Caller of a request
+     *
+     * @param id       Identifies the client for the fair share and the
+     *                 per-client limits
+     * @param priority Highest priority class of the jobs of the client
+     */
+    public record Client(String id, Priority priority) {
+    }
+
+    /**
+     * Clients with an API key, each as name:priority:api-key
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.clients")
+    Optional<List<String>> clients;
+
+    /**
+     * Priority class of callers without an API key
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.clients.default-priority", defaultValue = "normal")
+    Priority defaultPriority;
+
+    private final Map<String, Client> byKey = new HashMap<>();
+
+    @PostConstruct
+    void init() {
+        for (String entry : clients.orElse(List.of())) {
+            final String[] fields = entry.split(":", 3);
+            if (fields.length != 3 || fields[0].isBlank() || fields[2].isBlank()) {
+                throw new IllegalArgumentException(
+                        "Invalid client " + fields[0] + " in whisperx.clients, expected name:priority:api-key");
+            }
+            byKey.put(fields[2].trim(), new Client(fields[0].trim(), Priority.parse(fields[1])));
+        }
+    }
+
+    /**
+     * Identifies the caller of a request
+     *
+     * @param apiKey        API key sent by the caller, null if none
+     * @param remoteAddress Remote address of the caller
+     * @return Client, empty if the API key is unknown
+     */
+    public Optional<Client> identify(String apiKey, String remoteAddress) {
+        if (apiKey == null || apiKey.isBlank()) {
+            return Optional.of(new Client(remoteAddress, defaultPriority));
+        }
+        return Optional.ofNullable(byKey.get(apiKey.trim()));
+    }
+
+    /**
+     * @param client    Client submitting a job
+     * @param requested Requested priority class (high, normal, low), null for
+     *                  the class of the client
+     * @return Requested priority class, but never higher than the class of the
+     *         client
+     * @throws IllegalArgumentException if the requested class is unknown
+     */
+    public static Priority priority(Client client, String requested) {
+        if (requested == null || requested.isBlank()) {
+            return client.priority();
+        }
+        final Priority priority = Priority.parse(requested);
+        return priority.compareTo(client.priority()) > 0 ? priority : client.priority();
+    }
+}
@@ -0,0 +1,427 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment;
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment.Word;
+
+/**
+ * Columnar representation of a WhisperX output: timestamps, scores and speakers
+ * of all segments and words are kept in primitive arrays, all texts in a single
+ * string. Speakers are stored once and referenced by index. The word segments
+ * of WhisperX usually repeat the words of the segments, in that case they are
+ * not stored at all.
+ * <p>
+ * Timestamps are stored in units of 0.1 ms (WhisperX rounds them to 1 ms),
+ * scores as floats with six decimals. Transcripts of up to 59 hours are
+ * supported.
+ */
+public final class CompactTranscript {
+    /**
+     * "WXC1" at the start of the binary format
+     */
+    private static final int MAGIC = 0x57584331;
+
+    private static final double TICKS_PER_SECOND = 10_000.0;
+
+    /**
+     * Missing timestamp of words which could not be aligned
+     */
+    private static final int NO_TIME = Integer.MIN_VALUE;
+
+    private static final int NO_SPEAKER = -1;
+
+    private final String language;
+    private final String[] speakers;
+    /**
+     * Texts of all segments, followed by the texts of all words
+     */
+    private final String text;
+    /**
+     * End offsets of the texts in {@link #text}, segments first
+     */
+    private final int[] textEnd;
+
+    private final int[] segmentStart;
+    private final int[] segmentEnd;
+    private final int[] segmentSpeaker;
+    /**
+     * End index of the words of each segment, exclusive
+     */
+    private final int[] segmentWordsEnd;
+    /**
+     * Segments without aligned words (null instead of an empty list)
+     */
+    private final BitSet unaligned;
+
+    private final int[] wordStart;
+    private final int[] wordEnd;
+    private final float[] wordScore;
+    private final int[] wordSpeaker;
+    /**
+     * Indexes of the word segments, null if they are the words of all segments
+     */
+    private final int[] wordSegments;
+
+    private CompactTranscript(String language, String[] speakers, String text, int[] textEnd, int[] segmentStart,
+            int[] segmentEnd, int[] segmentSpeaker, int[] segmentWordsEnd, BitSet unaligned, int[] wordStart,
+            int[] wordEnd, float[] wordScore, int[] wordSpeaker, int[] wordSegments) {
+        this.language = language;
+        this.speakers = speakers;
+        this.text = text;
+        this.textEnd = textEnd;
+        this.segmentStart = segmentStart;
+        this.segmentEnd = segmentEnd;
+        this.segmentSpeaker = segmentSpeaker;
+        this.segmentWordsEnd = segmentWordsEnd;
+        this.unaligned = unaligned;
+        this.wordStart = wordStart;
+        this.wordEnd = wordEnd;
+        this.wordScore = wordScore;
+        this.wordSpeaker = wordSpeaker;
+        this.wordSegments = wordSegments;
+    }
+
+    /**
+     * Creates the compact representation of a WhisperX output
+     */
+    public static CompactTranscript of(WhisperXOutput output) {
+        final List<Segment> segments = output.getSegments() != null ? output.getSegments() : List.of();
+        final List<Word> words = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.getWords() != null) {
+                words.addAll(segment.getWords());
+            }
+        }
+        int[] wordSegments = null;
+        if (output.getWordSegments() != null && !sameWords(words, output.getWordSegments())) {
+            wordSegments = new int[output.getWordSegments().size()];
+            for (int i = 0; i < wordSegments.length; i++) {
+                wordSegments[i] = words.size();
+                words.add(output.getWordSegments().get(i));
+            }
+        } else if (output.getWordSegments() == null) {
+            wordSegments = new int[0];
+        }
+
+        final Map<String, Integer> speakerIndex = new HashMap<>();
+        final StringBuilder text = new StringBuilder(segments.size() * 64);
+        final int[] textEnd = new int[segments.size() + words.size()];
+        final int n = segments.size();
+        final int[] segmentStart = new int[n];
+        final int[] segmentEnd = new int[n];
+        final int[] segmentSpeaker = new int[n];
+        final int[] segmentWordsEnd = new int[n];
+        final BitSet unaligned = new BitSet();
+        int wordCount = 0;
+        for (int i = 0; i < n; i++) {
+            final Segment segment = segments.get(i);
+            segmentStart[i] = ticks(segment.getStart());
+            segmentEnd[i] = ticks(segment.getEnd());
+            segmentSpeaker[i] = speaker(speakerIndex, segment.getSpeaker());
+            if (segment.getWords() != null) {
+                wordCount += segment.getWords().size();
+            } else {
+                unaligned.set(i);
+            }
+            segmentWordsEnd[i] = wordCount;
+            textEnd[i] = append(text, segment.getText());
+        }
+        final int m = words.size();
+        final int[] wordStart = new int[m];
+        final int[] wordEnd = new int[m];
+        final float[] wordScore = new float[m];
+        final int[] wordSpeaker = new int[m];
+        for (int i = 0; i < m; i++) {
+            final Word word = words.get(i);
+            wordStart[i] = word.getStart() != null ? ticks(word.getStart()) : NO_TIME;
+            wordEnd[i] = word.getEnd() != null ? ticks(word.getEnd()) : NO_TIME;
+            wordScore[i] = word.getScore() != null ? word.getScore().floatValue() : Float.NaN;
+            wordSpeaker[i] = speaker(speakerIndex, word.getSpeaker());
+            textEnd[n + i] = append(text, word.getWord());
+        }
+        final String[] speakers = new String[speakerIndex.size()];
+        speakerIndex.forEach((speaker, index) -> speakers[index] = speaker);
+        return new CompactTranscript(output.getLanguage(), speakers, text.toString(), textEnd, segmentStart,
+                segmentEnd, segmentSpeaker, segmentWordsEnd, unaligned, wordStart, wordEnd, wordScore, wordSpeaker,
+                wordSegments);
+    }
+
+    /**
+     * Converts back to the WhisperX output
+     */
+    public WhisperXOutput toOutput() {
+        final List<Segment> segments = new ArrayList<>(segmentStart.length);
+        for (int i = 0; i < segmentStart.length; i++) {
+            segments.add(getSegment(i));
+        }
+        final List<Word> words = new ArrayList<>(getWordSegmentCount());
+        for (int i = 0; i < getWordSegmentCount(); i++) {
+            words.add(getWordSegment(i));
+        }
+        return new WhisperXOutput(segments, words, language);
+    }
+
+    /**
+     * Renders this transcript with the writer, creating the objects of a single
+     * segment at a time
+     */
+    public void render(WhisperXOutputWriter writer) throws IOException {
+        writer.language(language);
+        for (int i = 0; i < segmentStart.length; i++) {
+            writer.segment(getSegment(i));
+        }
+        for (int i = 0; i < getWordSegmentCount(); i++) {
+            writer.wordSegment(getWordSegment(i));
+        }
+        writer.finish();
+    }
+
+    /**
+     * @return Number of segments
+     */
+    public int getSegmentCount() {
+        return segmentStart.length;
+    }
+
+    /**
+     * @return Number of distinct words stored, including word segments not
+     *         part of any segment
+     */
+    public int getWordCount() {
+        return wordStart.length;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    /**
+     * Creates the segment with the given index, including its words
+     */
+    public Segment getSegment(int index) {
+        List<Word> words = null;
+        if (!unaligned.get(index)) {
+            final int from = index > 0 ? segmentWordsEnd[index - 1] : 0;
+            final Word[] array = new Word[segmentWordsEnd[index] - from];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = getWord(from + i);
+            }
+            words = Arrays.asList(array);
+        }
+        return new Segment(seconds(segmentStart[index]), seconds(segmentEnd[index]), text(index), words,
+                speaker(segmentSpeaker[index]));
+    }
+
+    private Word getWord(int index) {
+        return new Word(text(segmentStart.length + index),
+                wordStart[index] != NO_TIME ? seconds(wordStart[index]) : null,
+                wordEnd[index] != NO_TIME ? seconds(wordEnd[index]) : null,
+                Float.isNaN(wordScore[index]) ? null : score(wordScore[index]), speaker(wordSpeaker[index]));
+    }
+
+    /**
+     * @return Number of word segments
+     */
+    private int getWordSegmentCount() {
+        if (wordSegments != null) {
+            return wordSegments.length;
+        }
+        return segmentWordsEnd.length > 0 ? segmentWordsEnd[segmentWordsEnd.length - 1] : 0;
+    }
+
+    /**
+     * @return Word segment with the given index
+     */
+    private Word getWordSegment(int index) {
+        return getWord(wordSegments != null ? wordSegments[index] : index);
+    }
+
+    /**
+     * Serializes this transcript into its binary format
+     */
+    public byte[] toBytes() {
+        final byte[] languageBytes = language != null ? language.getBytes(StandardCharsets.UTF_8) : null;
+        final byte[][] speakerBytes = new byte[speakers.length][];
+        int size = 4 + 4 + (languageBytes != null ? languageBytes.length : 0) + 4;
+        for (int i = 0; i < speakers.length; i++) {
+            speakerBytes[i] = speakers[i].getBytes(StandardCharsets.UTF_8);
+            size += 4 + speakerBytes[i].length;
+        }
+        final byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        final long[] unalignedBits = unaligned.toLongArray();
+        size += 4 + textBytes.length + 4 + 4 * textEnd.length;
+        size += 4 + 16 * segmentStart.length + 4 + 8 * unalignedBits.length;
+        size += 4 + 16 * wordStart.length;
+        size += 4 + (wordSegments != null ? 4 * wordSegments.length : 0);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC);
+        putBytes(buffer, languageBytes);
+        buffer.putInt(speakers.length);
+        for (byte[] speaker : speakerBytes) {
+            putBytes(buffer, speaker);
+        }
+        putBytes(buffer, textBytes);
+        putInts(buffer, textEnd);
+        buffer.putInt(segmentStart.length);
+        putColumns(buffer, segmentStart, segmentEnd, segmentSpeaker, segmentWordsEnd);
+        buffer.putInt(unalignedBits.length);
+        buffer.asLongBuffer().put(unalignedBits);
+        buffer.position(buffer.position() + 8 * unalignedBits.length);
+        buffer.putInt(wordStart.length);
+        putColumns(buffer, wordStart, wordEnd, wordSpeaker);
+        buffer.asFloatBuffer().put(wordScore);
+        buffer.position(buffer.position() + 4 * wordScore.length);
+        if (wordSegments != null) {
+            putInts(buffer, wordSegments);
+        } else {
+            buffer.putInt(-1);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads a transcript from its binary format
+     *
+     * @throws IllegalArgumentException if the data is not a valid transcript
+     */
+    public static CompactTranscript fromBytes(byte[] data) {
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not a compact transcript");
+            }
+            final String language = getString(buffer);
+            final String[] speakers = new String[buffer.getInt()];
+            for (int i = 0; i < speakers.length; i++) {
+                speakers[i] = getString(buffer);
+            }
+            final String text = getString(buffer);
+            final int[] textEnd = getInts(buffer, buffer.getInt());
+            final int n = buffer.getInt();
+            final int[] segmentStart = getInts(buffer, n);
+            final int[] segmentEnd = getInts(buffer, n);
+            final int[] segmentSpeaker = getInts(buffer, n);
+            final int[] segmentWordsEnd = getInts(buffer, n);
+            final long[] unalignedBits = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(unalignedBits);
+            buffer.position(buffer.position() + 8 * unalignedBits.length);
+            final int m = buffer.getInt();
+            final int[] wordStart = getInts(buffer, m);
+            final int[] wordEnd = getInts(buffer, m);
+            final int[] wordSpeaker = getInts(buffer, m);
+            final float[] wordScore = new float[m];
+            buffer.asFloatBuffer().get(wordScore);
+            buffer.position(buffer.position() + 4 * m);
+            final int wordSegmentCount = buffer.getInt();
+            final int[] wordSegments = wordSegmentCount >= 0 ? getInts(buffer, wordSegmentCount) : null;
+            if (textEnd.length != n + m || buffer.hasRemaining()) {
+                throw new IllegalArgumentException("Corrupt compact transcript");
+            }
+            return new CompactTranscript(language, speakers, text, textEnd, segmentStart, segmentEnd,
+                    segmentSpeaker, segmentWordsEnd, BitSet.valueOf(unalignedBits), wordStart, wordEnd, wordScore,
+                    wordSpeaker, wordSegments);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Corrupt compact transcript", e);
+        }
+    }
+
+    private String text(int index) {
+        return text.substring(index > 0 ? textEnd[index - 1] : 0, textEnd[index]);
+    }
+
+    private String speaker(int index) {
+        return index != NO_SPEAKER ? speakers[index] : null;
+    }
+
+    private static int speaker(Map<String, Integer> speakerIndex, String speaker) {
+        return speaker != null ? speakerIndex.computeIfAbsent(speaker, s -> speakerIndex.size()) : NO_SPEAKER;
+    }
+
+    private static int append(StringBuilder text, String value) {
+        if (value != null) {
+            text.append(value);
+        }
+        return text.length();
+    }
+
+    private static boolean sameWords(List<Word> words, List<Word> wordSegments) {
+        if (words.size() != wordSegments.size()) {
+            return false;
+        }
+        for (int i = 0; i < words.size(); i++) {
+            final Word a = words.get(i);
+            final Word b = wordSegments.get(i);
+            if (!Objects.equals(a.getWord(), b.getWord()) || !Objects.equals(a.getStart(), b.getStart())
+                    || !Objects.equals(a.getEnd(), b.getEnd()) || !Objects.equals(a.getScore(), b.getScore())
+                    || !Objects.equals(a.getSpeaker(), b.getSpeaker())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int ticks(double seconds) {
+        return Math.toIntExact(Math.round(seconds * TICKS_PER_SECOND));
+    }
+
+    private static double seconds(int ticks) {
+        return ticks / TICKS_PER_SECOND;
+    }
+
+    private static double score(float score) {
+        return Math.round(score * 1e6) / 1e6;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final String result = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    private static void putInts(ByteBuffer buffer, int[] values) {
+        buffer.putInt(values.length);
+        buffer.asIntBuffer().put(values);
+        buffer.position(buffer.position() + 4 * values.length);
+    }
+
+    /**
+     * Puts arrays of the same length, without their length
+     */
+    private static void putColumns(ByteBuffer buffer, int[]... columns) {
+        for (int[] values : columns) {
+            buffer.asIntBuffer().put(values);
+            buffer.position(buffer.position() + 4 * values.length);
+        }
+    }
+
+    private static int[] getInts(ByteBuffer buffer, int length) {
+        final int[] values = new int[length];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * length);
+        return values;
+    }
+}
@@ -0,0 +1,549 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.StefanRichterHuber.WhisperXServer.Job.JobStatus;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueStatus;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Typed;
+import jakarta.inject.Inject;
+
+/**
+ * {@link JobQueue} shared by several nodes through a common directory (e.g. a
+ * network file system). Every queued job is an empty file, named by priority,
+ * rank (see {@link #entryName(Job, double, JobScheduler.Order, double)}),
+ * client and ID, so the directory listing is the order of the queue. A node
+ * with a free WhisperX instance claims the first job by creating its lease
+ * file, which only one node can do. The lease is renewed (touched) while the
+ * job runs. Leases not renewed within the lease timeout belong to a failed
+ * node, their jobs are put back into the queue by any other node. Each node
+ * shares the durations of its recent jobs, to estimate when a full queue has
+ * room again.
+ */
+@ApplicationScoped
+@Typed(FileJobQueue.class)
+public class FileJobQueue implements JobQueue {
+    static final String QUEUE_DIR = "queue";
+    static final String LEASE_DIR = "leases";
+    static final String DURATION_DIR = "durations";
+    private static final String EXPIRED_SUFFIX = ".expired";
+
+    /**
+     * Number of recent job durations each node shares
+     */
+    private static final int DURATION_HISTORY = 20;
+
+    /**
+     * Durations of nodes which did not finish a job for this time are discarded
+     */
+    private static final Duration DURATION_MAX_AGE = Duration.ofDays(1);
+
+    @Inject
+    Logger logger;
+
+    @Inject
+    JobStore jobStore;
+
+    @Inject
+    WhisperXService whisperXService;
+
+    @Inject
+    ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * Directory shared by all nodes
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cluster.directory", defaultValue = "/tmp/whisperx-cluster")
+    String directory;
+
+    /**
+     * Name of this node in the leases, defaults to the host name plus a random
+     * suffix
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cluster.node-id")
+    Optional<String> nodeId;
+
+    /**
+     * Maximum number of queued jobs of all nodes
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.queue.capacity", defaultValue = "100")
+    int capacity;
+
+    /**
+     * Maximum number of queued jobs of a single client, 0 for no limit
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.queue.max-per-client", defaultValue = "0")
+    int maxPerClient;
+
+    /**
+     * Order of the jobs within a priority class
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.queue.order", defaultValue = "sjf")
+    JobScheduler.Order order;
+
+    /**
+     * Seconds a job is assumed shorter for each second it waited (only for
+     * {@link JobScheduler.Order#SJF})
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.queue.aging", defaultValue = "10")
+    double aging;
+
+    /**
+     * Interval to look for queued jobs and expired leases
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cluster.poll-interval", defaultValue = "1s")
+    Duration pollInterval;
+
+    /**
+     * Interval to renew the leases of running jobs
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cluster.heartbeat-interval", defaultValue = "10s")
+    Duration heartbeatInterval;
+
+    /**
+     * Leases not renewed for this time are taken over by other nodes
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cluster.lease-timeout", defaultValue = "1m")
+    Duration leaseTimeout;
+
+    /**
+     * Jobs leased by this node, with the time they were claimed (in ms)
+     */
+    private final Map<String, Long> leased = new ConcurrentHashMap<>();
+
+    /**
+     * Durations of the recent jobs of this node in ms, oldest first
+     */
+    private final Deque<Long> durations = new ConcurrentLinkedDeque<>();
+
+    private Path queueDir;
+    private Path leaseDir;
+    private Path durationDir;
+    private String node;
+    JobRunner runner;
+    private ScheduledFuture<?> dispatcher;
+    private ScheduledFuture<?> heartbeat;
+
+    @PostConstruct
+    void init() {
+        try {
+            final Path dir = Paths.get(directory);
+            this.queueDir = Files.createDirectories(dir.resolve(QUEUE_DIR));
+            this.leaseDir = Files.createDirectories(dir.resolve(LEASE_DIR));
+            this.durationDir = Files.createDirectories(dir.resolve(DURATION_DIR));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create shared job queue in " + directory, e);
+        }
+        this.node = nodeId.filter(id -> !id.isBlank()).orElseGet(FileJobQueue::defaultNodeId);
+        logger.infof("Sharing jobs in %s as node %s", directory, node);
+    }
+
+    @PreDestroy
+    void close() {
+        if (dispatcher != null) {
+            dispatcher.cancel(false);
+            heartbeat.cancel(false);
+        }
+    }
+
+    @Override
+    public void start(JobRunner runner) {
+        this.runner = runner;
+        this.dispatcher = scheduledExecutorService.scheduleWithFixedDelay(this::dispatch,
+                pollInterval.toMillis(), pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+        this.heartbeat = scheduledExecutorService.scheduleWithFixedDelay(this::renewLeases,
+                heartbeatInterval.toMillis(), heartbeatInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void checkCapacity(String client, String model) throws QueueFullException {
+        final List<String> queue = listQueue();
+        if (queue.size() >= capacity) {
+            throw new QueueFullException("Job queue is full", estimateWait(queue.size()));
+        }
+        if (maxPerClient > 0) {
+            final String hash = clientHash(client);
+            final long queued = queue.stream().filter(entry -> hash.equals(clientOf(entry))).count();
+            if (queued >= maxPerClient) {
+                throw new QueueFullException("Too many queued jobs for client " + client,
+                        estimateWait(queue.size()));
+            }
+        }
+    }
+
+    @Override
+    public void offer(Job job) throws QueueFullException {
+        checkCapacity(job.client(), job.model());
+        try {
+            Files.createFile(queueDir.resolve(entryName(job)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to queue job " + job.id(), e);
+        }
+    }
+
+    @Override
+    public void release(String id) {
+        final Long claimed = leased.remove(id);
+        if (claimed == null) {
+            return;
+        }
+        if (jobStore.get(id).filter(job -> job.status() == JobStatus.FINISHED).isPresent()) {
+            recordDuration(System.currentTimeMillis() - claimed);
+        }
+        final Path lease = leaseDir.resolve(id);
+        try {
+            if (node.equals(readLease(lease))) {
+                Files.deleteIfExists(lease);
+            }
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to release lease of job %s", id);
+        }
+    }
+
+    @Override
+    public Optional<QueueStatus> getQueueStatus(String id) {
+        final List<String> queue = listQueue();
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).endsWith("_" + id)) {
+                return Optional.of(new QueueStatus(i, null));
+            }
+        }
+        // Claimed by this node, but possibly still waiting for a free instance
+        return leased.containsKey(id) ? whisperXService.getQueueStatus(id) : Optional.empty();
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    /**
+     * Puts the jobs of failed nodes back into the queue and claims queued jobs
+     * as long as this node has free instances
+     */
+    void dispatch() {
+        try {
+            requeueExpiredLeases();
+            while (runner.freeSlots() > 0 && claimNext()) {
+                // Claim the next one
+            }
+        } catch (RuntimeException e) {
+            logger.errorf(e, "Failed to dispatch jobs from %s", queueDir);
+        }
+    }
+
+    /**
+     * Claims the first queued job this node can start and not claimed by another
+     * node and starts it
+     *
+     * @return true if a job was claimed
+     */
+    boolean claimNext() {
+        for (String entry : listQueue()) {
+            final String id = entry.substring(entry.lastIndexOf('_') + 1);
+            final Optional<Job> queued = jobStore.get(id);
+            if (queued.isPresent() && queued.get().status() == JobStatus.ON_GOING && !runner.canStart(queued.get())) {
+                // No free instance of its model on this node
+                continue;
+            }
+            final Path lease = leaseDir.resolve(id);
+            try {
+                Files.write(lease, node.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                // Claimed by another node, which has not yet removed the entry
+                continue;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to lease job " + id, e);
+            }
+            leased.put(id, System.currentTimeMillis());
+            try {
+                Files.deleteIfExists(queueDir.resolve(entry));
+            } catch (IOException e) {
+                logger.warnf(e, "Failed to remove queue entry of job %s", id);
+            }
+            final Optional<Job> job = jobStore.get(id);
+            if (job.isEmpty() || job.get().status() != JobStatus.ON_GOING) {
+                // Removed while queued
+                release(id);
+                continue;
+            }
+            try {
+                runner.run(job.get());
+                logger.infof("Node %s claimed job %s", node, id);
+                return true;
+            } catch (QueueFullException e) {
+                logger.warnf("Failed to start claimed job %s, putting it back: %s", id, e.getMessage());
+                requeue(job.get());
+                release(id);
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renews the leases of the jobs running on this node. Jobs removed or taken
+     * over by another node are cancelled.
+     */
+    void renewLeases() {
+        final FileTime now = FileTime.from(Instant.now());
+        for (String id : List.copyOf(leased.keySet())) {
+            final Path lease = leaseDir.resolve(id);
+            try {
+                final boolean removed = jobStore.get(id).isEmpty();
+                if (!removed && node.equals(readLease(lease))) {
+                    Files.setLastModifiedTime(lease, now);
+                    continue;
+                }
+                logger.warnf("Lost job %s: %s", id, removed ? "removed" : "taken over by another node");
+                runner.cancel(id);
+                release(id);
+            } catch (IOException | RuntimeException e) {
+                logger.warnf(e, "Failed to renew lease of job %s", id);
+            }
+        }
+    }
+
+    /**
+     * Puts jobs whose lease was not renewed in time back into the queue
+     */
+    void requeueExpiredLeases() {
+        final Instant limit = Instant.now().minus(leaseTimeout);
+        final List<Path> leases;
+        try (Stream<Path> s = Files.list(leaseDir)) {
+            leases = s.collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list leases in " + leaseDir, e);
+        }
+        for (Path lease : leases) {
+            final String name = lease.getFileName().toString();
+            if (leased.containsKey(name)) {
+                continue;
+            }
+            try {
+                if (name.endsWith(EXPIRED_SUFFIX)) {
+                    // Left over by a node failing while taking over
+                    if (Files.getLastModifiedTime(lease).toInstant().isBefore(limit)) {
+                        Files.deleteIfExists(lease);
+                    }
+                    continue;
+                }
+                if (!Files.getLastModifiedTime(lease).toInstant().isBefore(limit)) {
+                    continue;
+                }
+                // Only one node succeeds in moving it
+                final Path expired = lease.resolveSibling(name + "." + node + EXPIRED_SUFFIX);
+                Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+                final Optional<Job> job = jobStore.get(name);
+                if (job.isPresent() && job.get().status() == JobStatus.ON_GOING) {
+                    logger.warnf("Lease of job %s expired, putting it back into the queue", name);
+                    requeue(job.get());
+                }
+                Files.deleteIfExists(expired);
+            } catch (NoSuchFileException e) {
+                // Released or taken over by another node in the meantime
+            } catch (IOException e) {
+                logger.warnf(e, "Failed to take over expired lease %s", lease);
+            }
+        }
+    }
+
+    /**
+     * Estimates the time until a queue slot gets available from the recent job
+     * durations of all nodes, like {@link JobScheduler} does for a single node:
+     * half a job until the next running job finishes, then a full job for each
+     * round of the queue through the running jobs.
+     *
+     * @param queued Number of queued jobs
+     * @return Estimated time, null if there is no history to estimate from
+     */
+    Duration estimateWait(int queued) {
+        final List<Long> all = readDurations();
+        if (all.isEmpty()) {
+            return null;
+        }
+        final long average = (long) all.stream().mapToLong(Long::longValue).average().orElse(0);
+        final long running;
+        try (Stream<Path> s = Files.list(leaseDir)) {
+            running = s.filter(p -> !p.getFileName().toString().endsWith(EXPIRED_SUFFIX)).count();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list leases in " + leaseDir, e);
+        }
+        return Duration.ofMillis(average / 2 + queued / Math.max(1, running) * average);
+    }
+
+    /**
+     * Adds the duration of a job finished by this node to the shared durations
+     */
+    private void recordDuration(long millis) {
+        durations.addLast(millis);
+        while (durations.size() > DURATION_HISTORY) {
+            durations.pollFirst();
+        }
+        final String content = durations.stream().map(String::valueOf).collect(Collectors.joining("\n"));
+        try {
+            // Only written by this node
+            FileJobStore.write(durationDir.resolve(node), content.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to share job durations of node %s", node);
+        }
+    }
+
+    /**
+     * @return Recent job durations of all nodes in ms
+     */
+    private List<Long> readDurations() {
+        final Instant limit = Instant.now().minus(DURATION_MAX_AGE);
+        final List<Path> files;
+        try (Stream<Path> s = Files.list(durationDir)) {
+            files = s.filter(p -> !p.getFileName().toString().endsWith(".tmp")).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list job durations in " + durationDir, e);
+        }
+        final List<Long> all = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                if (Files.getLastModifiedTime(file).toInstant().isBefore(limit)) {
+                    // Node gone or idle for long
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                Files.readAllLines(file, StandardCharsets.UTF_8).stream().filter(line -> !line.isBlank())
+                        .map(Long::valueOf).forEach(all::add);
+            } catch (NoSuchFileException e) {
+                // Removed by another node
+            } catch (IOException | NumberFormatException e) {
+                logger.warnf(e, "Failed to read job durations %s", file);
+            }
+        }
+        return all;
+    }
+
+    private void requeue(Job job) {
+        try {
+            Files.createFile(queueDir.resolve(entryName(job)));
+        } catch (FileAlreadyExistsException e) {
+            // Still queued
+        } catch (IOException e) {
+            logger.errorf(e, "Failed to put job %s back into the queue", job.id());
+        }
+    }
+
+    /**
+     * @return Names of the queue entries, in the order to be dispatched
+     */
+    private List<String> listQueue() {
+        try (Stream<Path> s = Files.list(queueDir)) {
+            return s.map(p -> p.getFileName().toString()).filter(name -> name.indexOf('_') > 0).sorted()
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list job queue " + queueDir, e);
+        }
+    }
+
+    /**
+     * @return Name of the queue entry of a job, with the estimated duration of
+     *         its audio
+     */
+    private String entryName(Job job) {
+        final double cost = job.audio() != null ? WhisperXService.estimateDuration(Paths.get(job.audio())) : 0;
+        return entryName(job, cost, order, aging);
+    }
+
+    /**
+     * Name of the queue entry of a job: priority, rank, submission time, client
+     * and ID, sorting in the order to be dispatched. The rank is the submission
+     * time (FIFO) or the cost plus the aging for the submission time (SJF): the
+     * order of {@link JobScheduler}, but fixed while the jobs wait, as all waiting
+     * jobs age alike.
+     *
+     * @param job   Job to queue
+     * @param cost  Estimated duration of the audio in seconds
+     * @param order Order of the jobs within a priority class
+     * @param aging Seconds a job is assumed shorter for each second it waited
+     * @return Name of the entry
+     */
+    static String entryName(Job job, double cost, JobScheduler.Order order, double aging) {
+        final long submitted = job.started().toInstant().toEpochMilli();
+        final double rank = order == JobScheduler.Order.SJF ? cost * 1000 + aging * submitted : submitted;
+        return String.format("%d_%019d_%013d_%s_%s", job.priority().ordinal(), (long) Math.max(0, rank), submitted,
+                clientHash(job.client()), job.id());
+    }
+
+    /**
+     * @return Client of a queue entry (hashed), null for entries without
+     */
+    private static String clientOf(String entry) {
+        final String[] fields = entry.split("_");
+        return fields.length == 5 ? fields[3] : null;
+    }
+
+    /**
+     * @return Hash of the client, the client itself might contain any character
+     */
+    private static String clientHash(String client) {
+        return String.format("%08x", Objects.hashCode(client));
+    }
+
+    private static String readLease(Path lease) throws IOException {
+        try {
+            return Files.readString(lease, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static String defaultNodeId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "node";
+        }
+        return host + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+}
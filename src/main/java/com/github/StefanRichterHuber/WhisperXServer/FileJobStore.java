@@ -0,0 +1,607 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import io.quarkus.runtime.configuration.MemorySize;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Typed;
+import jakarta.inject.Inject;
+
+/**
+ * Embedded, file-backed {@link JobStore}. Every change of the job metadata is
+ * appended to a log file, which is compacted into a snapshot file from time to
+ * time. On startup, the snapshot is read and the log is replayed. Only the
+ * (small) job metadata is kept in memory, the results are stored as files
+ * (plus a gzip compressed copy), within a total size limit.
+ */
+@ApplicationScoped
+@Typed(FileJobStore.class)
+public class FileJobStore implements JobStore {
+    private static final String SNAPSHOT_FILE = "jobs.snapshot";
+    private static final String LOG_FILE = "jobs.log";
+    private static final String RESULT_DIR = "results";
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final String TMP_SUFFIX = ".tmp";
+    /**
+     * Suffix of the directory containing the results of a job with several
+     * results
+     */
+    private static final String ARTIFACT_SUFFIX = ".artifacts";
+
+    /**
+     * Results smaller than this are not compressed, the savings would be
+     * negligible
+     */
+    private static final int MIN_COMPRESS_SIZE = 1024;
+
+    private static final String OP_SAVE = "save";
+    private static final String OP_REMOVE = "remove";
+
+    /**
+     * Entry of the log file
+     */
+    @RegisterForReflection
+    record LogEntry(String op, String id, Job job) {
+    }
+
+    /**
+     * Log entry waiting to be written
+     */
+    private static class PendingEntry {
+        final LogEntry entry;
+        boolean written;
+        IOException failure;
+
+        PendingEntry(LogEntry entry) {
+            this.entry = entry;
+        }
+    }
+
+    @Inject
+    Logger logger;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    /**
+     * Directory to store the job metadata and results in
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.job-store.directory", defaultValue = "/tmp/whisperx-server")
+    String directory;
+
+    /**
+     * Number of log entries after which the log is compacted into a new snapshot
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.job-store.compact-after", defaultValue = "1000")
+    int compactAfter;
+
+    /**
+     * Maximum total size of the stored results. The oldest results are evicted
+     * first, their jobs are kept. 0 means no limit.
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.job-store.max-result-size", defaultValue = "1G")
+    MemorySize maxResultSize;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Size of the result files (plain and compressed) of each job, oldest first
+     */
+    private final Map<String, Long> resultSizes = new LinkedHashMap<>();
+    private long resultSize;
+    private final ReentrantLock resultLock = new ReentrantLock();
+
+    /**
+     * Guards the log. A lock instead of synchronized, because a virtual thread
+     * waiting for a monitor blocks its carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Entries to be written by the next thread holding the lock
+     */
+    private final Queue<PendingEntry> pending = new ConcurrentLinkedQueue<>();
+
+    private Path snapshotFile;
+    private Path logFile;
+    private Path resultDir;
+    private FileChannel log;
+    private int logEntries;
+
+    @PostConstruct
+    void init() {
+        try {
+            final Path dir = Paths.get(directory);
+            this.snapshotFile = dir.resolve(SNAPSHOT_FILE);
+            this.logFile = dir.resolve(LOG_FILE);
+            this.resultDir = Files.createDirectories(dir.resolve(RESULT_DIR));
+
+            // Read the last snapshot and replay the log
+            if (Files.exists(snapshotFile)) {
+                try (BufferedReader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        final Job job = objectMapper.readValue(line, Job.class);
+                        jobs.put(job.id(), job);
+                    }
+                }
+            }
+            if (Files.exists(logFile)) {
+                for (String line : Files.readAllLines(logFile, StandardCharsets.UTF_8)) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+                    final LogEntry entry;
+                    try {
+                        entry = objectMapper.readValue(line, LogEntry.class);
+                    } catch (IOException e) {
+                        // Last line might be incomplete after a crash
+                        logger.warnf("Ignoring corrupt job log entry %s", line);
+                        continue;
+                    }
+                    apply(entry);
+                }
+            }
+            logger.infof("Loaded %d jobs from %s", jobs.size(), dir);
+            loadResults();
+
+            // Start with a fresh snapshot and an empty log
+            compact();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load job store from " + directory, e);
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        lock.lock();
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to close job log %s", logFile);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void save(Job job) {
+        append(new LogEntry(OP_SAVE, job.id(), job));
+    }
+
+    @Override
+    public boolean update(Job job) {
+        lock.lock();
+        try {
+            // Removals appended before are applied first, later ones are written after the update
+            writePending();
+            if (!jobs.containsKey(job.id())) {
+                return false;
+            }
+            save(job);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<Job> get(String id) {
+        return id != null ? Optional.ofNullable(jobs.get(id)) : Optional.empty();
+    }
+
+    @Override
+    public Collection<Job> getAll() {
+        return List.copyOf(jobs.values());
+    }
+
+    @Override
+    public void remove(String id) {
+        if (jobs.containsKey(id)) {
+            append(new LogEntry(OP_REMOVE, id, null));
+        }
+        resultLock.lock();
+        try {
+            final Long size = resultSizes.remove(id);
+            resultSize -= size != null ? size : 0;
+        } finally {
+            resultLock.unlock();
+        }
+        deleteResult(id);
+    }
+
+    @Override
+    public void saveResult(String id, String artifact, String result) throws IOException {
+        final long size = writeResult(resultDir, id, artifact, result);
+        resultLock.lock();
+        try {
+            if (artifact == null) {
+                final Long previous = resultSizes.put(id, size);
+                resultSize += size - (previous != null ? previous : 0);
+            } else {
+                // All results of a job are accounted (and evicted) together
+                resultSizes.merge(id, size, Long::sum);
+                resultSize += size;
+            }
+        } finally {
+            resultLock.unlock();
+        }
+        evictResults(id);
+    }
+
+    @Override
+    public Optional<Path> getResult(String id, String artifact) {
+        return getResult(resultDir, id, artifact);
+    }
+
+    @Override
+    public Optional<Path> getCompressedResult(String id, String artifact) {
+        return getCompressedResult(resultDir, id, artifact);
+    }
+
+    /**
+     * @return Total size of the stored results in bytes
+     */
+    long getResultSize() {
+        resultLock.lock();
+        try {
+            return resultSize;
+        } finally {
+            resultLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the sizes of the stored results, oldest first
+     */
+    private void loadResults() throws IOException {
+        final Map<String, Long> sizes = listResults(resultDir, true);
+        resultLock.lock();
+        try {
+            resultSizes.putAll(sizes);
+            resultSize = sizes.values().stream().mapToLong(Long::longValue).sum();
+        } finally {
+            resultLock.unlock();
+        }
+        logger.infof("Loaded %d results with %d bytes", resultSizes.size(), resultSize);
+        evictResults(null);
+    }
+
+    /**
+     * Lists the size of the stored results (plain and compressed) of each job
+     *
+     * @param resultDir Directory of the results
+     * @param cleanUp   Delete files left over by a crash while writing. Only if
+     *                  nobody else writes to the directory, otherwise they are
+     *                  skipped.
+     * @return Size of the results by job ID, oldest first
+     */
+    static Map<String, Long> listResults(Path resultDir, boolean cleanUp) throws IOException {
+        final Map<String, Long> sizes = new HashMap<>();
+        final Map<String, FileTime> modified = new HashMap<>();
+        final List<Path> files;
+        try (Stream<Path> s = Files.list(resultDir)) {
+            files = s.collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            final String name = file.getFileName().toString();
+            try {
+                if (name.endsWith(TMP_SUFFIX)) {
+                    if (cleanUp) {
+                        // Left over by a crash while writing
+                        Files.deleteIfExists(file);
+                    }
+                    continue;
+                }
+                if (name.endsWith(ARTIFACT_SUFFIX) && Files.isDirectory(file)) {
+                    final String id = name.substring(0, name.length() - ARTIFACT_SUFFIX.length());
+                    sizes.merge(id, listArtifacts(file, cleanUp), Long::sum);
+                    modified.putIfAbsent(id, Files.getLastModifiedTime(file));
+                    continue;
+                }
+                final String id = name.endsWith(COMPRESSED_SUFFIX)
+                        ? name.substring(0, name.length() - COMPRESSED_SUFFIX.length())
+                        : name;
+                sizes.merge(id, Files.size(file), Long::sum);
+                if (id.equals(name)) {
+                    modified.put(id, Files.getLastModifiedTime(file));
+                }
+            } catch (NoSuchFileException e) {
+                // Removed in the meantime
+            }
+        }
+        final Map<String, Long> oldestFirst = new LinkedHashMap<>();
+        sizes.keySet().stream()
+                .sorted(Comparator.comparing(id -> modified.getOrDefault(id, FileTime.fromMillis(0))))
+                .forEach(id -> oldestFirst.put(id, sizes.get(id)));
+        return oldestFirst;
+    }
+
+    /**
+     * @return Size of the results in an artifact directory
+     */
+    private static long listArtifacts(Path dir, boolean cleanUp) throws IOException {
+        long size = 0;
+        final List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(TMP_SUFFIX)) {
+                if (cleanUp) {
+                    Files.deleteIfExists(file);
+                }
+            } else {
+                try {
+                    size += Files.size(file);
+                } catch (NoSuchFileException e) {
+                    // Removed in the meantime
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes the oldest results until the size limit is met. The jobs
+     * themselves are kept.
+     *
+     * @param keep ID of the job whose result is never evicted
+     */
+    private void evictResults(String keep) {
+        if (maxResultSize.asLongValue() <= 0) {
+            return;
+        }
+        final List<String> evicted = new ArrayList<>();
+        resultLock.lock();
+        try {
+            final Iterator<Map.Entry<String, Long>> it = resultSizes.entrySet().iterator();
+            while (resultSize > maxResultSize.asLongValue() && it.hasNext()) {
+                final Map.Entry<String, Long> eldest = it.next();
+                if (!eldest.getKey().equals(keep)) {
+                    it.remove();
+                    resultSize -= eldest.getValue();
+                    evicted.add(eldest.getKey());
+                }
+            }
+        } finally {
+            resultLock.unlock();
+        }
+        for (String id : evicted) {
+            logger.infof("Evicted result of job %s, results exceed %d bytes", id, maxResultSize.asLongValue());
+            deleteResult(id);
+        }
+    }
+
+    private void deleteResult(String id) {
+        try {
+            deleteResult(resultDir, id);
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete result of job %s", id);
+        }
+    }
+
+    /**
+     * Writes the result of a job, plus a gzip compressed copy if worthwhile
+     *
+     * @return Size of the written files
+     */
+    static long writeResult(Path resultDir, String id, String artifact, String result) throws IOException {
+        final Path target = resultFile(resultDir, id, artifact);
+        if (artifact != null) {
+            Files.createDirectories(target.getParent());
+        }
+        final byte[] content = result.getBytes(StandardCharsets.UTF_8);
+        long size = content.length;
+        // Compressed in advance, so it can be sent as it is to clients accepting gzip
+        if (content.length >= MIN_COMPRESS_SIZE) {
+            final byte[] compressed = gzip(content);
+            if (compressed.length < content.length) {
+                write(compressed(target), compressed);
+                size += compressed.length;
+            }
+        }
+        // Written last, the result is only available if both files are complete
+        write(target, content);
+        return size;
+    }
+
+    static Optional<Path> getResult(Path resultDir, String id, String artifact) {
+        final Path result = resultFile(resultDir, id, artifact);
+        return Files.exists(result) ? Optional.of(result) : Optional.empty();
+    }
+
+    static Optional<Path> getCompressedResult(Path resultDir, String id, String artifact) {
+        final Path result = resultFile(resultDir, id, artifact);
+        final Path compressed = compressed(result);
+        return Files.exists(compressed) && Files.exists(result) ? Optional.of(compressed) : Optional.empty();
+    }
+
+    /**
+     * Deletes all results of a job
+     */
+    static void deleteResult(Path resultDir, String id) throws IOException {
+        // Plain file first, so the result is not available with only one of them
+        Files.deleteIfExists(resultDir.resolve(id));
+        Files.deleteIfExists(resultDir.resolve(id + COMPRESSED_SUFFIX));
+        final Path artifacts = resultDir.resolve(id + ARTIFACT_SUFFIX);
+        if (Files.isDirectory(artifacts)) {
+            try (Stream<Path> files = Files.list(artifacts)) {
+                for (Path file : files.sorted(Comparator.comparing(f -> f.toString().endsWith(COMPRESSED_SUFFIX)))
+                        .collect(Collectors.toList())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(artifacts);
+        }
+    }
+
+    /**
+     * @param artifact Name of one of several results, null for the only result
+     *                 of the job
+     * @return File of the result
+     */
+    private static Path resultFile(Path resultDir, String id, String artifact) {
+        return artifact == null ? resultDir.resolve(id) : resultDir.resolve(id + ARTIFACT_SUFFIX).resolve(artifact);
+    }
+
+    private static Path compressed(Path result) {
+        return result.resolveSibling(result.getFileName() + COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Writes to a temporary file first, so a file is either complete or missing
+     */
+    static void write(Path target, byte[] content) throws IOException {
+        // Unique name, another node might write the same file at the same time
+        final Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), TMP_SUFFIX);
+        Files.write(tmp, content);
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4);
+        // Compressed once but possibly sent many times, so use the best compression
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private void apply(LogEntry entry) {
+        if (OP_SAVE.equals(entry.op())) {
+            jobs.put(entry.id(), entry.job());
+        } else if (OP_REMOVE.equals(entry.op())) {
+            jobs.remove(entry.id());
+        }
+    }
+
+    /**
+     * Appends an entry to the log and applies it to the in-memory state. Returns
+     * once the entry is persisted. Entries appended concurrently are written
+     * together by a single thread and share a single force of the log (group
+     * commit), instead of waiting for each other's force.
+     */
+    private void append(LogEntry entry) {
+        final PendingEntry current = new PendingEntry(entry);
+        pending.add(current);
+        lock.lock();
+        try {
+            if (!current.written) {
+                writePending();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (current.failure != null) {
+            throw new UncheckedIOException("Failed to write job log " + logFile, current.failure);
+        }
+    }
+
+    /**
+     * Writes all pending entries with a single force. Must be called holding the
+     * lock.
+     */
+    private void writePending() {
+        final List<PendingEntry> batch = new ArrayList<>();
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        PendingEntry next;
+        while ((next = pending.poll()) != null) {
+            batch.add(next);
+        }
+        try {
+            for (PendingEntry p : batch) {
+                lines.write(objectMapper.writeValueAsBytes(p.entry));
+                lines.write('\n');
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(lines.toByteArray());
+            while (buffer.hasRemaining()) {
+                log.write(buffer);
+            }
+            log.force(false);
+            batch.forEach(p -> apply(p.entry));
+            logEntries += batch.size();
+            if (logEntries >= compactAfter) {
+                compact();
+            }
+        } catch (IOException e) {
+            batch.forEach(p -> p.failure = e);
+        } finally {
+            batch.forEach(p -> p.written = true);
+        }
+    }
+
+    /**
+     * Writes the current state into a new snapshot and truncates the log. Must be
+     * called holding the lock.
+     */
+    private void compact() throws IOException {
+        final Path tmp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Job job : jobs.values()) {
+                writer.write(objectMapper.writeValueAsString(job));
+                writer.newLine();
+            }
+        }
+        try (FileChannel fc = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            fc.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        if (log != null) {
+            log.close();
+        }
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        logEntries = 0;
+        logger.debugf("Compacted job store to %d jobs", jobs.size());
+    }
+}
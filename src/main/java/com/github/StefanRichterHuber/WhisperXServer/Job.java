@@ -0,0 +1,95 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * Metadata of a transcription job, as kept in the {@link JobStore}
+ *
+ * @param id             Unique ID of the job
+ * @param status         Current status
+ * @param client         Client which submitted the job
+ * @param priority       Priority class of the job
+ * @param audio          Location of the uploaded audio file
+ * @param language       Language of the audio, null for language detection
+ * @param diarize        Speaker diarization requested
+ * @param task           WhisperX task (transcribe, translate)
+ * @param model          WhisperX model, null for the default model
+ * @param accept         Requested media type of the result
+ * @param outputFormat   WhisperX output format matching the accept header
+ * @param artifacts      Names of all requested results ("task.format"), if the
+ *                       job has more than one task or format. Null otherwise.
+ * @param skippedSilence Seconds of silence cut out before transcription, null
+ *                       if not trimmed
+ * @param error          Error message of failed jobs
+ * @param started        Time of submission
+ * @param ended          Time the job finished or failed
+ */
+@RegisterForReflection
+public record Job(String id, JobStatus status, String client, Priority priority, String audio, String language,
+        boolean diarize, String task, String model, String accept, String outputFormat, List<String> artifacts,
+        Double skippedSilence, String error, ZonedDateTime started, ZonedDateTime ended) {
+
+    public enum JobStatus {
+        ON_GOING,
+        FINISHED,
+        ERROR,
+    }
+
+    /**
+     * @return Copy of this job with status finished
+     */
+    public Job finished() {
+        return finished(skippedSilence);
+    }
+
+    /**
+     * @param skippedSilence Seconds of silence cut out before transcription, null
+     *                       if not trimmed
+     * @return Copy of this job with status finished
+     */
+    public Job finished(Double skippedSilence) {
+        return new Job(id, JobStatus.FINISHED, client, priority, audio, language, diarize, task, model, accept,
+                outputFormat, artifacts, skippedSilence, null, started, ZonedDateTime.now());
+    }
+
+    /**
+     * @param message Error message
+     * @return Copy of this job with status error
+     */
+    public Job failed(String message) {
+        return new Job(id, JobStatus.ERROR, client, priority, audio, language, diarize, task, model, accept,
+                outputFormat, artifacts, skippedSilence, message, started, ZonedDateTime.now());
+    }
+
+    /**
+     * @return true if the job has several results, stored by their artifact name
+     */
+    public boolean hasArtifacts() {
+        return artifacts != null && !artifacts.isEmpty();
+    }
+
+    /**
+     * @return All requested WhisperX tasks
+     */
+    public List<String> tasks() {
+        return hasArtifacts() ? parts(0) : List.of(task != null ? task : WhisperXService.TASK_TRANSCRIBE);
+    }
+
+    /**
+     * @return All requested output formats
+     */
+    public List<String> formats() {
+        return hasArtifacts() ? parts(1) : List.of(outputFormat);
+    }
+
+    private List<String> parts(int index) {
+        return artifacts.stream().map(artifact -> artifact.split("\\.", 2)[index]).distinct()
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.quarkus.arc.DefaultBean;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Instance;
+import jakarta.enterprise.inject.Produces;
+import jakarta.inject.Inject;
+
+/**
+ * Selects the {@link JobStore} and {@link JobQueue} at runtime: by default jobs
+ * are kept and run locally ({@link FileJobStore}, {@link LocalJobQueue}). With
+ * {@code whisperx.cluster.enabled} all nodes using the same
+ * {@code whisperx.cluster.directory} share their jobs ({@link SharedJobStore},
+ * {@link FileJobQueue}), so any node accepts uploads, answers status requests
+ * and runs queued jobs. Provide other beans of these types to replace them.
+ */
+@ApplicationScoped
+public class JobBackends {
+
+    /**
+     * Share the jobs with other nodes
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cluster.enabled", defaultValue = "false")
+    boolean clusterEnabled;
+
+    @Produces
+    @DefaultBean
+    @ApplicationScoped
+    JobStore jobStore(Instance<FileJobStore> local, Instance<SharedJobStore> shared) {
+        return clusterEnabled ? shared.get() : local.get();
+    }
+
+    @Produces
+    @DefaultBean
+    @ApplicationScoped
+    JobQueue jobQueue(Instance<LocalJobQueue> local, Instance<FileJobQueue> shared) {
+        return clusterEnabled ? shared.get() : local.get();
+    }
+}
@@ -0,0 +1,417 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.github.StefanRichterHuber.WhisperXServer.Job.JobStatus;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueStatus;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Manages the life cycle of transcription jobs: queues them in the
+ * {@link JobQueue}, runs the jobs the queue hands to this node with the
+ * {@link WhisperXService}, keeps their state in the {@link JobStore}, resumes
+ * unfinished jobs after a restart and cleans up old jobs.
+ */
+@ApplicationScoped
+public class JobManager {
+
+    /**
+     * Time the job counts of the gauges are reused, so a scrape reads the store
+     * only once for all states
+     */
+    private static final Duration JOB_COUNTS_MAX_AGE = Duration.ofSeconds(5);
+
+    @Inject
+    Logger logger;
+
+    @Inject
+    JobStore jobStore;
+
+    @Inject
+    JobQueue jobQueue;
+
+    @Inject
+    WhisperXService whisperXService;
+
+    @Inject
+    ScheduledExecutorService scheduledExecutorService;
+
+    @Inject
+    MeterRegistry registry;
+
+    /**
+     * Jobs (and their results) are removed after this time, even if never fetched
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.job.max-age", defaultValue = "48h")
+    Duration maxAge;
+
+    /**
+     * Interval to check for jobs finished by other nodes, if the jobs are shared
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cluster.poll-interval", defaultValue = "1s")
+    Duration pollInterval;
+
+    private final Map<String, CompletableFuture<WhisperXService.Result>> running = new ConcurrentHashMap<>();
+
+    /**
+     * Completion signals of jobs somebody is waiting for
+     */
+    private final Map<String, CompletableFuture<Optional<Job>>> completions = new ConcurrentHashMap<>();
+
+    private volatile boolean shuttingDown;
+
+    private Map<JobStatus, Long> jobCounts = Map.of();
+
+    private long jobCountsTime;
+
+    void onStart(@Observes StartupEvent ev) {
+        jobQueue.start(new JobQueue.JobRunner() {
+            @Override
+            public void run(Job job) throws QueueFullException {
+                start(job);
+            }
+
+            @Override
+            public int freeSlots() {
+                return whisperXService.getFreeSlots();
+            }
+
+            @Override
+            public boolean canStart(Job job) {
+                return whisperXService.getFreeSlots(job.model()) > 0;
+            }
+
+            @Override
+            public void cancel(String id) {
+                final CompletableFuture<WhisperXService.Result> process = running.remove(id);
+                if (process != null) {
+                    process.cancel(true);
+                }
+            }
+        });
+        if (jobQueue.isShared()) {
+            // Unfinished jobs are resumed by the shared queue. Waiters for jobs run on
+            // other nodes are only signalled by polling the store.
+            this.scheduledExecutorService.scheduleWithFixedDelay(this::pollCompletions, pollInterval.toMillis(),
+                    pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            resumeUnfinishedJobs();
+        }
+
+        for (JobStatus status : JobStatus.values()) {
+            Gauge.builder("whisperx.jobs", this, manager -> manager.countJobs(status))
+                    .description("Jobs in the job store").tag("status", status.name().toLowerCase())
+                    .register(registry);
+        }
+
+        // Always clean up old jobs, to prevent the store from growing endlessly
+        this.scheduledExecutorService.scheduleAtFixedRate(this::removeExpiredJobs, 1, 1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Counts the jobs in the store with the given status, for the gauges. The
+     * counts of all states are read at once and reused for a few seconds. If the
+     * store can not be read, the last counts are kept.
+     */
+    private synchronized long countJobs(JobStatus status) {
+        final long now = System.nanoTime();
+        if (jobCountsTime == 0 || now - jobCountsTime > JOB_COUNTS_MAX_AGE.toNanos()) {
+            jobCountsTime = now;
+            try {
+                jobCounts = jobStore.getAll().stream()
+                        .collect(Collectors.groupingBy(Job::status, Collectors.counting()));
+            } catch (RuntimeException e) {
+                logger.warnf(e, "Failed to count the jobs in the store");
+            }
+        }
+        return jobCounts.getOrDefault(status, 0L);
+    }
+
+    /**
+     * Puts all unfinished jobs back into the queue
+     */
+    private void resumeUnfinishedJobs() {
+        for (Job job : jobStore.getAll()) {
+            if (job.status() != JobStatus.ON_GOING) {
+                continue;
+            }
+            if (job.audio() == null || !Files.exists(Paths.get(job.audio()))) {
+                logger.warnf("Audio of unfinished job %s is gone, marking it as failed", job.id());
+                jobStore.save(job.failed("Audio file lost during restart"));
+                continue;
+            }
+            try {
+                start(job);
+                logger.infof("Resumed unfinished job %s", job.id());
+            } catch (QueueFullException | IllegalArgumentException e) {
+                // Queue full or model no longer configured
+                logger.warnf("Failed to resume job %s: %s", job.id(), e.getMessage());
+                jobStore.save(job.failed(e.getMessage()));
+                deleteAudio(job);
+            }
+        }
+    }
+
+    void onStop(@Observes ShutdownEvent ev) {
+        // Jobs interrupted by the shutdown must stay unfinished, to be resumed
+        shuttingDown = true;
+    }
+
+    /**
+     * Submits a new job
+     *
+     * @param client       Client which submitted the job
+     * @param priority     Priority class of the job
+     * @param audio        Uploaded audio file, deleted when the job is finished
+     * @param language     Language of the audio, null for language detection
+     * @param diarize      Speaker diarization requested
+     * @param tasks        WhisperX tasks (transcribe, translate)
+     * @param model        Requested WhisperX model, null for the default model,
+     *                     "auto" to select it by the expected latency
+     * @param accept       Requested media type of the result
+     * @param formats      WhisperX output formats. If there is more than one task
+     *                     or format, the job has one result per combination (see
+     *                     {@link Job#artifacts()}).
+     * @return New job
+     * @throws QueueFullException       if the job queue is full
+     * @throws IllegalArgumentException if the model is not available
+     */
+    public Job submit(String client, Priority priority, Path audio, String language, boolean diarize,
+            List<String> tasks, String model, String accept, List<String> formats) throws QueueFullException {
+        final List<String> artifacts = WhisperXService.TASKS.stream().filter(tasks::contains)
+                .flatMap(task -> formats.stream().distinct().map(format -> WhisperXService.artifact(task, format)))
+                .collect(Collectors.toList());
+        final Job job = new Job(UUID.randomUUID().toString(), JobStatus.ON_GOING, client, priority, audio.toString(),
+                language, diarize, tasks.get(0), whisperXService.selectModel(model, audio), accept, formats.get(0),
+                artifacts.size() > 1 ? artifacts : null, null, null, ZonedDateTime.now(), null);
+        jobStore.save(job);
+        try {
+            jobQueue.offer(job);
+        } catch (QueueFullException e) {
+            jobStore.remove(job.id());
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * Checks if a job of the given client would currently be accepted. Allows to
+     * reject jobs before their (possibly large) content is received.
+     *
+     * @param client Client which wants to submit a job
+     * @param model  Requested WhisperX model, null for the default model
+     * @throws QueueFullException if the job queue is full
+     */
+    public void checkCapacity(String client, String model) throws QueueFullException {
+        jobQueue.checkCapacity(client, model);
+    }
+
+    /**
+     * @param id ID of the job
+     * @return Position of a queued job, empty if the job is not queued
+     */
+    public Optional<QueueStatus> getQueueStatus(String id) {
+        return jobQueue.getQueueStatus(id);
+    }
+
+    /**
+     * @param id ID of the job
+     * @return Job or empty if unknown
+     */
+    public Optional<Job> get(String id) {
+        return jobStore.get(id);
+    }
+
+    /**
+     * @param id ID of the job
+     * @return File with the result of a finished job
+     */
+    public Optional<Path> getResult(String id) {
+        return jobStore.getResult(id);
+    }
+
+    /**
+     * @param id       ID of the job
+     * @param artifact Name of one of the results of the job
+     * @return File with the result of a finished job
+     */
+    public Optional<Path> getResult(String id, String artifact) {
+        return jobStore.getResult(id, artifact);
+    }
+
+    /**
+     * @param id ID of the job
+     * @return gzip compressed file with the result of a finished job, if
+     *         available
+     */
+    public Optional<Path> getCompressedResult(String id) {
+        return jobStore.getCompressedResult(id);
+    }
+
+    /**
+     * @param id       ID of the job
+     * @param artifact Name of one of the results of the job
+     * @return gzip compressed file with the result of a finished job, if
+     *         available
+     */
+    public Optional<Path> getCompressedResult(String id, String artifact) {
+        return jobStore.getCompressedResult(id, artifact);
+    }
+
+    /**
+     * Signals when a job is finished or failed
+     *
+     * @param id ID of the job
+     * @return Completed with the finished or failed job, with empty if the job is
+     *         unknown or was removed. Cancelling it does not affect other waiters.
+     */
+    public CompletableFuture<Optional<Job>> awaitCompletion(String id) {
+        final Optional<Job> job = jobStore.get(id);
+        if (job.isEmpty() || job.get().status() != JobStatus.ON_GOING) {
+            return CompletableFuture.completedFuture(job);
+        }
+        final CompletableFuture<Optional<Job>> completion = completions.computeIfAbsent(id,
+                key -> new CompletableFuture<>());
+        // The job might have been completed while registering
+        final Optional<Job> current = jobStore.get(id);
+        if (current.isEmpty() || current.get().status() != JobStatus.ON_GOING) {
+            signalCompletion(id, current);
+        }
+        return completion.copy();
+    }
+
+    /**
+     * Removes a job with its results. Queued jobs are removed from the queue,
+     * running jobs are cancelled (terminating their WhisperX process).
+     *
+     * @param id ID of the job
+     */
+    public void remove(String id) {
+        final CompletableFuture<WhisperXService.Result> process = running.remove(id);
+        if (process != null) {
+            process.cancel(true);
+        }
+        jobQueue.release(id);
+        jobStore.get(id).ifPresent(this::deleteAudio);
+        jobStore.remove(id);
+        signalCompletion(id, Optional.empty());
+    }
+
+    /**
+     * Signals the waiters of jobs finished (or removed) by other nodes
+     */
+    void pollCompletions() {
+        for (String id : List.copyOf(completions.keySet())) {
+            final Optional<Job> job = jobStore.get(id);
+            if (job.isEmpty() || job.get().status() != JobStatus.ON_GOING) {
+                signalCompletion(id, job);
+            }
+        }
+    }
+
+    private void signalCompletion(String id, Optional<Job> job) {
+        final CompletableFuture<Optional<Job>> completion = completions.remove(id);
+        if (completion != null) {
+            completion.complete(job);
+        }
+    }
+
+    private void start(Job job) throws QueueFullException {
+        final Path audio = Paths.get(job.audio());
+        final CompletableFuture<WhisperXService.Result> process = whisperXService.transcribe(job.id(), job.client(),
+                job.priority(), job.model(), audio, job.diarize(), job.language(), job.tasks(), job.formats());
+        running.put(job.id(), process);
+
+        process.whenComplete((result, e) -> {
+            running.remove(job.id());
+            if (shuttingDown || e instanceof CancellationException) {
+                return;
+            }
+            if (jobStore.get(job.id()).isEmpty()) {
+                // Removed in the meantime (on any node)
+                jobQueue.release(job.id());
+                return;
+            }
+            Job completed;
+            try {
+                if (e == null) {
+                    if (job.hasArtifacts()) {
+                        for (Map.Entry<String, String> artifact : result.artifacts().entrySet()) {
+                            jobStore.saveResult(job.id(), artifact.getKey(), artifact.getValue());
+                        }
+                    } else {
+                        jobStore.saveResult(job.id(), result.artifacts().values().iterator().next());
+                    }
+                    completed = job.finished(result.skippedSilence());
+                } else {
+                    logger.errorf(e, "Failed to invoke WhisperX");
+                    completed = job.failed(e.getMessage());
+                }
+            } catch (IOException e1) {
+                logger.errorf(e1, "Failed to store result of job %s", job.id());
+                completed = job.failed(e1.getMessage());
+            }
+            if (!jobStore.update(completed)) {
+                // Removed while the result was stored, remove it again with the result
+                jobStore.remove(job.id());
+                jobQueue.release(job.id());
+                return;
+            }
+            jobQueue.release(job.id());
+            deleteAudio(job);
+            signalCompletion(job.id(), Optional.of(completed));
+        });
+    }
+
+    private void deleteAudio(Job job) {
+        if (job.audio() != null) {
+            try {
+                Files.deleteIfExists(Paths.get(job.audio()));
+            } catch (IOException e) {
+                logger.warnf(e, "Failed to delete audio of job %s", job.id());
+            }
+        }
+    }
+
+    /**
+     * Removes all jobs older than the maximum age
+     */
+    void removeExpiredJobs() {
+        final ZonedDateTime limit = ZonedDateTime.now().minus(maxAge);
+        for (Job job : jobStore.getAll()) {
+            if (job.started().isBefore(limit)) {
+                logger.infof("Removing expired job %s", job.id());
+                remove(job.id());
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.util.Optional;
+
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueStatus;
+
+/**
+ * Queue of the jobs waiting for a node to run them. {@link LocalJobQueue} runs
+ * every job on the node which accepted it, {@link FileJobQueue} shares the jobs
+ * between all nodes using the same directory. See {@link JobBackends} for the
+ * selection.
+ */
+public interface JobQueue {
+
+    /**
+     * Runs jobs on this node
+     */
+    interface JobRunner {
+        /**
+         * Starts a job on this node
+         *
+         * @param job Job to run
+         * @throws QueueFullException if the job can not be accepted
+         */
+        void run(Job job) throws QueueFullException;
+
+        /**
+         * @return Number of jobs this node could start right away
+         */
+        int freeSlots();
+
+        /**
+         * @param job Job to run
+         * @return true if this node could start the job right away, i.e. it has
+         *         a free instance of its model
+         */
+        boolean canStart(Job job);
+
+        /**
+         * Stops a job on this node, without changing its state. Called if the
+         * job was taken over by another node or removed.
+         *
+         * @param id ID of the job
+         */
+        void cancel(String id);
+    }
+
+    /**
+     * Starts delivering jobs to the runner of this node
+     *
+     * @param runner Runner of this node
+     */
+    void start(JobRunner runner);
+
+    /**
+     * Checks if a job of the given client would currently be accepted
+     *
+     * @param client Client which wants to submit a job
+     * @param model  Requested WhisperX model, null for the default model
+     * @throws QueueFullException if the queue is full
+     */
+    void checkCapacity(String client, String model) throws QueueFullException;
+
+    /**
+     * Adds a new job, already saved in the {@link JobStore}
+     *
+     * @param job Job to add
+     * @throws QueueFullException if the queue is full
+     */
+    void offer(Job job) throws QueueFullException;
+
+    /**
+     * Signals that this node is done with a job, because it finished or failed
+     *
+     * @param id ID of the job
+     */
+    void release(String id);
+
+    /**
+     * @param id ID of the job
+     * @return Position of a queued job, empty if the job is not queued
+     */
+    Optional<QueueStatus> getQueueStatus(String id);
+
+    /**
+     * @return true if the jobs are shared with other nodes
+     */
+    default boolean isShared() {
+        return false;
+    }
+}
@@ -0,0 +1,586 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Scheduler for transcription jobs with a bounded queue. Jobs are dispatched to
+ * a fixed number of worker threads by priority class first. Within a priority
+ * class, the client with the least running jobs (and the longest time since it
+ * was served last) goes first, so a single client can not monopolize the
+ * workers by submitting lots of jobs. Depending on the {@link Policy}, shorter
+ * jobs are preferred next and workers can be reserved for short jobs, so a
+ * short voice memo does not wait behind a meeting of several hours.
+ */
+public class JobScheduler implements AutoCloseable {
+	private static final Logger LOGGER = Logger.getLogger(JobScheduler.class);
+
+	/**
+	 * Number of recent job durations used to estimate waiting times
+	 */
+	private static final int DURATION_HISTORY = 20;
+
+	/**
+	 * Priority class of a job. Jobs of a higher class are always dispatched first.
+	 */
+	public enum Priority {
+		HIGH,
+		NORMAL,
+		LOW;
+
+		/**
+		 * Parses the priority from a request parameter
+		 *
+		 * @param value high, normal or low (case insensitive). null defaults to
+		 *              normal.
+		 * @return Priority
+		 * @throws IllegalArgumentException if the value is unknown
+		 */
+		public static Priority parse(String value) {
+			return value == null || value.isBlank() ? NORMAL : Priority.valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	/**
+	 * Order of the jobs of a priority class (and of clients with the same number
+	 * of running jobs)
+	 */
+	public enum Order {
+		/**
+		 * In order of submission
+		 */
+		FIFO,
+		/**
+		 * Shortest job first. The longer a job waits, the shorter it is assumed to be
+		 * (aging), so long jobs still start eventually.
+		 */
+		SJF
+	}
+
+	/**
+	 * Scheduling policy
+	 *
+	 * @param order            Order of the jobs within a priority class
+	 * @param aging            Seconds a job is assumed shorter for each second it
+	 *                         waited (only for {@link Order#SJF})
+	 * @param shortJob         Jobs up to this length (in seconds of audio) are short
+	 *                         jobs
+	 * @param shortLaneWorkers Number of workers reserved for short jobs. At least
+	 *                         one worker is always left for long jobs.
+	 */
+	public record Policy(Order order, double aging, double shortJob, int shortLaneWorkers) {
+		/**
+		 * Jobs in order of submission, no reserved workers
+		 */
+		public static final Policy FIFO = new Policy(Order.FIFO, 0, 0, 0);
+	}
+
+	/**
+	 * Thrown if a job can not be accepted because the queue is full
+	 */
+	public static class QueueFullException extends Exception {
+		private final Duration retryAfter;
+
+		public QueueFullException(String message, Duration retryAfter) {
+			super(message);
+			this.retryAfter = retryAfter;
+		}
+
+		/**
+		 * @return Estimated time until a queue slot will be available
+		 */
+		public Duration getRetryAfter() {
+			return retryAfter;
+		}
+	}
+
+	/**
+	 * Position of a queued job
+	 *
+	 * @param position       Number of queued jobs dispatched before this job
+	 * @param estimatedStart Estimated time until the job starts, null if there
+	 *                       is no history to estimate from
+	 */
+	public record QueueStatus(int position, Duration estimatedStart) {
+	}
+
+	private static class Entry {
+		final String id;
+		final String client;
+		final Priority priority;
+		final long sequence;
+		final long queued = System.nanoTime();
+		final Supplier<?> task;
+		final boolean helper;
+		final CompletableFuture<Object> future = new CompletableFuture<>();
+		double cost;
+		boolean longJob;
+		Thread thread;
+
+		Entry(String id, String client, Priority priority, long sequence, double cost, boolean helper,
+				Supplier<?> task) {
+			this.id = id;
+			this.client = client;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.cost = cost;
+			this.helper = helper;
+			this.task = task;
+		}
+	}
+
+	private static class ClientState {
+		int queued;
+		int queuedHelpers;
+		int running;
+		long lastServed;
+	}
+
+	private final int workers;
+	private final int capacity;
+	private final int maxQueuedPerClient;
+	private final Policy policy;
+	private final int longLaneWorkers;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final List<Entry> queue = new ArrayList<>();
+	private final Map<String, Entry> running = new HashMap<>();
+	private final Map<String, ClientState> clients = new HashMap<>();
+	private final Deque<Duration> durations = new ArrayDeque<>();
+	private final List<Thread> threads = new ArrayList<>();
+	private long sequence;
+	private int runningLong;
+	/**
+	 * Queued helpers of running jobs, not counted against the capacity
+	 */
+	private int queuedHelpers;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new scheduler dispatching jobs in order of submission and starts
+	 * its worker threads
+	 *
+	 * @param workers            Number of jobs executed in parallel
+	 * @param capacity           Maximum number of queued (not yet running) jobs
+	 * @param maxQueuedPerClient Maximum number of queued jobs of a single client
+	 */
+	public JobScheduler(int workers, int capacity, int maxQueuedPerClient) {
+		this(workers, capacity, maxQueuedPerClient, Policy.FIFO);
+	}
+
+	/**
+	 * Creates a new scheduler and starts its worker threads
+	 *
+	 * @param workers            Number of jobs executed in parallel
+	 * @param capacity           Maximum number of queued (not yet running) jobs
+	 * @param maxQueuedPerClient Maximum number of queued jobs of a single client
+	 * @param policy             Scheduling policy
+	 */
+	public JobScheduler(int workers, int capacity, int maxQueuedPerClient, Policy policy) {
+		this.workers = workers > 0 ? workers : 1;
+		this.capacity = capacity;
+		this.maxQueuedPerClient = maxQueuedPerClient > 0 ? maxQueuedPerClient : capacity;
+		this.policy = policy;
+		this.longLaneWorkers = this.workers - Math.max(0, Math.min(policy.shortLaneWorkers(), this.workers - 1));
+		final ThreadFactory factory = VirtualThreads.factory("job-scheduler");
+		for (int i = 0; i < this.workers; i++) {
+			// Workers only wait for WhisperX, they do not need a platform thread of their own
+			final Thread t = factory.newThread(this::work);
+			t.start();
+			threads.add(t);
+		}
+	}
+
+	/**
+	 * Checks if a job of the given client would currently be accepted. Allows to
+	 * reject jobs before their (possibly large) content is received.
+	 *
+	 * @param client Client which wants to submit a job
+	 * @throws QueueFullException if the queue (or the share of the client) is full
+	 */
+	public void checkCapacity(String client) throws QueueFullException {
+		lock.lock();
+		try {
+			if (queue.size() - queuedHelpers >= capacity) {
+				throw new QueueFullException("Job queue is full", estimateWait(queue.size()));
+			}
+			final ClientState existing = clients.get(client);
+			if (existing != null && existing.queued >= maxQueuedPerClient) {
+				throw new QueueFullException("Too many queued jobs for client " + client,
+						estimateWait(queue.size()));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Submits a new job of unknown length, treated as a short job
+	 *
+	 * @see #submit(String, String, Priority, double, Supplier)
+	 */
+	public <T> CompletableFuture<T> submit(String id, String client, Priority priority, Supplier<T> task)
+			throws QueueFullException {
+		return submit(id, client, priority, 0, task);
+	}
+
+	/**
+	 * Submits a new job
+	 *
+	 * @param <T>      Result type
+	 * @param id       Unique ID of the job
+	 * @param client   Client which submitted the job
+	 * @param priority Priority class of the job
+	 * @param cost     Estimated length of the job (seconds of audio)
+	 * @param task     Task to execute. Cancelling the returned future removes a
+	 *                 queued job or interrupts a running one.
+	 * @return Future with the result of the task
+	 * @throws QueueFullException if the queue (or the share of the client) is full
+	 */
+	public <T> CompletableFuture<T> submit(String id, String client, Priority priority, double cost,
+			Supplier<T> task) throws QueueFullException {
+		lock.lock();
+		try {
+			checkCapacity(client);
+			return enqueue(id, client, priority, cost, false, task);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Submits a helper of a running job, e.g. to transcribe chunks of its audio
+	 * in parallel. Helpers are dispatched like jobs, but are not counted against
+	 * the capacity and the limit of the client, and their durations are not used
+	 * to estimate waiting times.
+	 *
+	 * @see #submit(String, String, Priority, double, Supplier)
+	 */
+	public <T> CompletableFuture<T> submitHelper(String id, String client, Priority priority, Supplier<T> task) {
+		lock.lock();
+		try {
+			return enqueue(id, client, priority, 0, true, task);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a job to the queue. Must be called with the lock held.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> CompletableFuture<T> enqueue(String id, String client, Priority priority, double cost,
+			boolean helper, Supplier<T> task) {
+		final ClientState state = clients.computeIfAbsent(client, c -> new ClientState());
+		final Entry entry = new Entry(id, client, priority, sequence++, cost, helper, task);
+		entry.future.whenComplete((r, e) -> {
+			if (entry.future.isCancelled()) {
+				cancel(entry);
+			}
+		});
+		queue.add(entry);
+		if (helper) {
+			state.queuedHelpers++;
+			queuedHelpers++;
+		} else {
+			state.queued++;
+		}
+		available.signal();
+		LOGGER.debugf("Queued job %s of client %s with priority %s (%.0f s), %d jobs queued", id, client,
+				priority, cost, queue.size());
+		return (CompletableFuture<T>) entry.future;
+	}
+
+	/**
+	 * Updates the estimated length of a queued job, once it is known more
+	 * precisely. Ignored if the job is no longer queued.
+	 *
+	 * @param id   ID of the job
+	 * @param cost Estimated length of the job (seconds of audio)
+	 */
+	public void updateCost(String id, double cost) {
+		lock.lock();
+		try {
+			for (Entry entry : queue) {
+				if (entry.id.equals(id)) {
+					entry.cost = cost;
+					// Might have become a short job a waiting worker can take
+					available.signalAll();
+					return;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the position of a queued job
+	 *
+	 * @param id ID of the job
+	 * @return Queue status or empty if the job is not (or no longer) queued
+	 */
+	public Optional<QueueStatus> getQueueStatus(String id) {
+		lock.lock();
+		try {
+			final long now = System.nanoTime();
+			final Optional<Entry> entry = queue.stream().filter(e -> e.id.equals(id)).findAny();
+			return entry.map(e -> {
+				final int position = (int) queue.stream().filter(o -> o != e && isBefore(o, e, now)).count();
+				return new QueueStatus(position, estimateWait(position));
+			});
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Estimated time until a job submitted now starts, null if there is no
+	 *         history to estimate from
+	 */
+	public Duration estimateWait() {
+		lock.lock();
+		try {
+			return estimateWait(queue.size());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of queued (not yet running) jobs
+	 */
+	public int getQueueSize() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of currently running jobs
+	 */
+	public int getRunningJobs() {
+		lock.lock();
+		try {
+			return running.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Estimates the time until a job at the given queue position starts, based on
+	 * the durations of recent jobs. Must be called with the lock held.
+	 */
+	private Duration estimateWait(int position) {
+		if (durations.isEmpty()) {
+			return null;
+		}
+		final long average = (long) durations.stream().mapToLong(Duration::toMillis).average().orElse(0);
+		final int free = workers - running.size();
+		if (position < free) {
+			return Duration.ZERO;
+		}
+		// Half a job on average until the next worker gets free, then full jobs
+		final long rounds = (position - free) / workers;
+		return Duration.ofMillis(average / 2 + rounds * average);
+	}
+
+	/**
+	 * Checks if the queued job a is dispatched before job b (ignoring the fair
+	 * share between clients and reserved workers, which depend on the jobs
+	 * running at dispatch time)
+	 */
+	private boolean isBefore(Entry a, Entry b, long now) {
+		final int byPriority = a.priority.compareTo(b.priority);
+		if (byPriority != 0) {
+			return byPriority < 0;
+		}
+		final int byCost = compareCost(a, b, now);
+		return byCost < 0 || (byCost == 0 && a.sequence < b.sequence);
+	}
+
+	/**
+	 * Picks the next job to run, null if no queued job can be started right now.
+	 * Must be called with the lock held.
+	 */
+	private Entry next() {
+		final long now = System.nanoTime();
+		Entry best = null;
+		for (Entry candidate : queue) {
+			if (isLong(candidate) && runningLong >= longLaneWorkers) {
+				// Remaining workers are reserved for short jobs
+				continue;
+			}
+			if (best == null || compareForDispatch(candidate, best, now) < 0) {
+				best = candidate;
+			}
+		}
+		return best;
+	}
+
+	private int compareForDispatch(Entry a, Entry b, long now) {
+		final int byPriority = a.priority.compareTo(b.priority);
+		if (byPriority != 0) {
+			return byPriority;
+		}
+		final ClientState ca = clients.get(a.client);
+		final ClientState cb = clients.get(b.client);
+		if (!a.client.equals(b.client) && ca.running != cb.running) {
+			return Integer.compare(ca.running, cb.running);
+		}
+		final int byCost = compareCost(a, b, now);
+		if (byCost != 0) {
+			return byCost;
+		}
+		if (!a.client.equals(b.client) && ca.lastServed != cb.lastServed) {
+			return Long.compare(ca.lastServed, cb.lastServed);
+		}
+		return Long.compare(a.sequence, b.sequence);
+	}
+
+	/**
+	 * Compares the aged cost of two jobs, if shorter jobs are preferred
+	 */
+	private int compareCost(Entry a, Entry b, long now) {
+		if (policy.order() != Order.SJF) {
+			return 0;
+		}
+		return Double.compare(agedCost(a, now), agedCost(b, now));
+	}
+
+	private double agedCost(Entry entry, long now) {
+		return entry.cost - policy.aging() * (now - entry.queued) / 1_000_000_000.0;
+	}
+
+	private boolean isLong(Entry entry) {
+		return longLaneWorkers < workers && entry.cost > policy.shortJob();
+	}
+
+	private void work() {
+		while (!closed) {
+			final Entry entry;
+			lock.lock();
+			try {
+				Entry candidate = next();
+				while (candidate == null) {
+					available.await();
+					candidate = next();
+				}
+				entry = candidate;
+				queue.remove(entry);
+				entry.longJob = isLong(entry);
+				if (entry.longJob) {
+					runningLong++;
+				}
+				final ClientState state = clients.get(entry.client);
+				if (entry.helper) {
+					state.queuedHelpers--;
+					queuedHelpers--;
+				} else {
+					state.queued--;
+				}
+				state.running++;
+				state.lastServed = sequence++;
+				entry.thread = Thread.currentThread();
+				running.put(entry.id, entry);
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+
+			final long start = System.nanoTime();
+			try {
+				if (!entry.future.isDone()) {
+					entry.future.complete(entry.task.get());
+				}
+			} catch (Throwable e) {
+				entry.future.completeExceptionally(e);
+			} finally {
+				lock.lock();
+				try {
+					entry.thread = null;
+					running.remove(entry.id);
+					if (entry.longJob) {
+						runningLong--;
+						// A waiting worker might take a long job now
+						available.signal();
+					}
+					release(entry, false);
+					// Helpers finish early once all their work is taken by others
+					if (!entry.helper && !entry.future.isCompletedExceptionally()) {
+						durations.addLast(Duration.ofNanos(System.nanoTime() - start));
+						if (durations.size() > DURATION_HISTORY) {
+							durations.removeFirst();
+						}
+					}
+				} finally {
+					lock.unlock();
+				}
+				// Clear a pending interrupt of a cancelled job
+				Thread.interrupted();
+			}
+		}
+	}
+
+	/**
+	 * Removes a cancelled job from the queue or interrupts it, if already running
+	 */
+	private void cancel(Entry entry) {
+		lock.lock();
+		try {
+			if (queue.remove(entry)) {
+				release(entry, true);
+				LOGGER.infof("Removed cancelled job %s from queue", entry.id);
+			} else if (entry.thread != null) {
+				LOGGER.infof("Interrupting cancelled job %s", entry.id);
+				entry.thread.interrupt();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Updates the client state after a job left the queue or finished. Must be
+	 * called with the lock held.
+	 */
+	private void release(Entry entry, boolean queued) {
+		final ClientState state = clients.get(entry.client);
+		if (!queued) {
+			state.running--;
+		} else if (entry.helper) {
+			state.queuedHelpers--;
+			queuedHelpers--;
+		} else {
+			state.queued--;
+		}
+		if (state.queued == 0 && state.queuedHelpers == 0 && state.running == 0) {
+			clients.remove(entry.client);
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		threads.forEach(Thread::interrupt);
+	}
+}
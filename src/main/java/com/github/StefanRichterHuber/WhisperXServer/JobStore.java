@@ -0,0 +1,111 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Optional;
+
+/**
+ * Storage for the metadata and the results of transcription jobs. The default
+ * implementation is {@link FileJobStore}, or {@link SharedJobStore} if several
+ * nodes share the jobs (see {@link JobBackends}). Provide another bean
+ * implementing this interface to replace them.
+ */
+public interface JobStore {
+
+    /**
+     * Inserts or updates the metadata of a job
+     *
+     * @param job Job to save
+     */
+    void save(Job job);
+
+    /**
+     * Updates the metadata of a job, unless it was removed. Implementations
+     * should check and save atomically, so a job removed concurrently is not
+     * restored.
+     *
+     * @param job Job to save
+     * @return false if the job is unknown (and was not saved)
+     */
+    default boolean update(Job job) {
+        if (get(job.id()).isEmpty()) {
+            return false;
+        }
+        save(job);
+        return true;
+    }
+
+    /**
+     * @param id ID of the job
+     * @return Job or empty if unknown
+     */
+    Optional<Job> get(String id);
+
+    /**
+     * @return All jobs in the store
+     */
+    Collection<Job> getAll();
+
+    /**
+     * Removes a job and its results
+     *
+     * @param id ID of the job
+     */
+    void remove(String id);
+
+    /**
+     * Stores the result of a job
+     *
+     * @param id     ID of the job
+     * @param result Result document
+     * @throws IOException
+     */
+    default void saveResult(String id, String result) throws IOException {
+        saveResult(id, null, result);
+    }
+
+    /**
+     * Stores one of several results of a job
+     *
+     * @param id       ID of the job
+     * @param artifact Name of the result (e.g. "translate.srt"), null for the
+     *                 only result of the job
+     * @param result   Result document
+     * @throws IOException
+     */
+    void saveResult(String id, String artifact, String result) throws IOException;
+
+    /**
+     * @param id ID of the job
+     * @return File containing the result of the job, empty if there is none
+     */
+    default Optional<Path> getResult(String id) {
+        return getResult(id, null);
+    }
+
+    /**
+     * @param id       ID of the job
+     * @param artifact Name of the result, null for the only result of the job
+     * @return File containing the result, empty if there is none
+     */
+    Optional<Path> getResult(String id, String artifact);
+
+    /**
+     * @param id ID of the job
+     * @return gzip compressed file containing the result of the job, empty if
+     *         there is none
+     */
+    default Optional<Path> getCompressedResult(String id) {
+        return getCompressedResult(id, null);
+    }
+
+    /**
+     * @param id       ID of the job
+     * @param artifact Name of the result, null for the only result of the job
+     * @return gzip compressed file containing the result, empty if there is none
+     */
+    default Optional<Path> getCompressedResult(String id, String artifact) {
+        return Optional.empty();
+    }
+}
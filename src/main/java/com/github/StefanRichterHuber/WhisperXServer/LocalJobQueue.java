@@ -0,0 +1,49 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.util.Optional;
+
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueStatus;
+
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Typed;
+import jakarta.inject.Inject;
+
+/**
+ * {@link JobQueue} of a single node: jobs are started right away and wait in
+ * the {@link JobScheduler} of the {@link WhisperXService}.
+ */
+@ApplicationScoped
+@Typed(LocalJobQueue.class)
+public class LocalJobQueue implements JobQueue {
+
+    @Inject
+    WhisperXService whisperXService;
+
+    private JobRunner runner;
+
+    @Override
+    public void start(JobRunner runner) {
+        this.runner = runner;
+    }
+
+    @Override
+    public void checkCapacity(String client, String model) throws QueueFullException {
+        whisperXService.checkCapacity(client, model);
+    }
+
+    @Override
+    public void offer(Job job) throws QueueFullException {
+        runner.run(job);
+    }
+
+    @Override
+    public void release(String id) {
+        // Nothing to release, the job only existed on this node
+    }
+
+    @Override
+    public Optional<QueueStatus> getQueueStatus(String id) {
+        return whisperXService.getQueueStatus(id);
+    }
+}
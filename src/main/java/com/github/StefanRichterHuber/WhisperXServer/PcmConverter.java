@@ -0,0 +1,161 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Converts uncompressed WAV audio into the format required by WhisperX without
+ * starting ffmpeg: channels are mixed down to mono and the sample rate is
+ * converted by a {@link PolyphaseResampler}. The audio is streamed through
+ * fixed size buffers, all sample loops work on primitive arrays.
+ */
+public class PcmConverter {
+    private PcmConverter() {
+
+    }
+
+    /**
+     * @param header Header of the WAV file
+     * @return true if the audio data can be converted by
+     *         {@link #convert(ReadableByteChannel, WavHeader, WritableByteChannel)}
+     */
+    public static boolean isSupported(WavHeader header) {
+        final int bits = header.getBitsPerSample();
+        return header.getChannels() > 0 && header.getSampleRate() > 0
+                && (header.isFloat() || header.isPcm() && (bits == 8 || bits == 16 || bits == 24 || bits == 32));
+    }
+
+    /**
+     * Converts the audio data into a 16 kHz, 16 bit, mono PCM WAV file
+     *
+     * @param source Channel positioned at the start of the audio data. Read up to
+     *               the data size given in the header (or to its end, if
+     *               unknown). Not closed.
+     * @param header Header of the source
+     * @param target Channel to write the WAV file to. Not closed.
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    public static long convert(ReadableByteChannel source, WavHeader header, WritableByteChannel target)
+            throws IOException {
+        if (!isSupported(header)) {
+            throw new IOException("Unsupported WAV format: " + header);
+        }
+        final int frameSize = header.getFrameSize();
+        final PolyphaseResampler resampler = header.getSampleRate() != WavHeader.TARGET_SAMPLE_RATE
+                ? new PolyphaseResampler(header.getSampleRate(), WavHeader.TARGET_SAMPLE_RATE)
+                : null;
+
+        // Unknown sizes are marked as invalid in the header, like ffmpeg does for pipes
+        final long inputFrames = header.getDataSize() >= 0 ? header.getDataSize() / frameSize : -1;
+        final long outputFrames = inputFrames < 0 ? -1
+                : resampler != null ? resampler.outputLength(inputFrames) : inputFrames;
+        long written = write(target,
+                WavHeader.createPcmHeader(1, WavHeader.TARGET_SAMPLE_RATE, 16,
+                        outputFrames >= 0 ? outputFrames * 2 : 0xFFFFFFFFL));
+
+        final byte[] bytes = new byte[StreamUtils.BUFFER_SIZE - StreamUtils.BUFFER_SIZE % frameSize];
+        final ByteBuffer input = ByteBuffer.wrap(bytes);
+        final float[] mono = new float[bytes.length / frameSize];
+        final short[] resampled = new short[resampler != null ? resampler.maxOutput(mono.length) : mono.length];
+        final ByteBuffer output = ByteBuffer.allocate(resampled.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+
+        long remaining = inputFrames >= 0 ? inputFrames * frameSize : Long.MAX_VALUE;
+        while (remaining > 0) {
+            input.limit(input.position() + (int) Math.min(input.capacity() - input.position(), remaining));
+            final int read = source.read(input);
+            if (read < 0) {
+                break;
+            }
+            remaining -= read;
+            // Only complete frames, the rest stays in the buffer
+            final int frames = input.position() / frameSize;
+            decode(bytes, frames, header, mono);
+            final int count;
+            if (resampler != null) {
+                count = resampler.process(mono, 0, frames, resampled);
+            } else {
+                for (int i = 0; i < frames; i++) {
+                    resampled[i] = PolyphaseResampler.toShort(mono[i]);
+                }
+                count = frames;
+            }
+            written += write(target, output, resampled, count);
+            input.limit(input.position()).position(frames * frameSize);
+            input.compact();
+        }
+        if (resampler != null) {
+            written += write(target, output, resampled, resampler.flush(resampled));
+        }
+        return written;
+    }
+
+    /**
+     * Decodes and mixes down the given number of frames
+     */
+    static void decode(byte[] bytes, int frames, WavHeader header, float[] mono) {
+        final int channels = header.getChannels();
+        final float scale = 1f / channels;
+        // One loop per format, to keep the format check out of the inner loop
+        switch (header.getBitsPerSample()) {
+            case 8:
+                for (int frame = 0, i = 0; frame < frames; frame++) {
+                    float sum = 0;
+                    for (final int end = i + channels; i < end; i++) {
+                        sum += (bytes[i] & 0xFF) - 128;
+                    }
+                    mono[frame] = sum * scale / 128f;
+                }
+                break;
+            case 16:
+                for (int frame = 0, i = 0; frame < frames; frame++) {
+                    float sum = 0;
+                    for (final int end = i + 2 * channels; i < end; i += 2) {
+                        sum += (short) ((bytes[i] & 0xFF) | bytes[i + 1] << 8);
+                    }
+                    mono[frame] = sum * scale / 32768f;
+                }
+                break;
+            case 24:
+                for (int frame = 0, i = 0; frame < frames; frame++) {
+                    float sum = 0;
+                    for (final int end = i + 3 * channels; i < end; i += 3) {
+                        sum += (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8 | bytes[i + 2] << 16;
+                    }
+                    mono[frame] = sum * scale / 8388608f;
+                }
+                break;
+            default:
+                final boolean isFloat = header.isFloat();
+                for (int frame = 0, i = 0; frame < frames; frame++) {
+                    float sum = 0;
+                    for (final int end = i + 4 * channels; i < end; i += 4) {
+                        final int bits = (bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF) << 16
+                                | bytes[i + 3] << 24;
+                        sum += isFloat ? Float.intBitsToFloat(bits) : bits / 2147483648f;
+                    }
+                    mono[frame] = sum * scale;
+                }
+                break;
+        }
+    }
+
+    private static long write(WritableByteChannel target, ByteBuffer output, short[] samples, int count)
+            throws IOException {
+        output.clear();
+        output.asShortBuffer().put(samples, 0, count);
+        output.limit(count * 2);
+        return write(target, output);
+    }
+
+    private static long write(WritableByteChannel target, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer);
+        }
+        return written;
+    }
+}
@@ -0,0 +1,204 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter for a rational ratio up / down. Each output
+ * sample is computed from a Kaiser-windowed sinc low-pass filter, which is
+ * precomputed for all up possible fractional positions (phases) between two
+ * input samples. The output is aligned with the input: there is no filter
+ * delay and exactly ceil(inputs * up / down) samples are produced.
+ */
+public class PolyphaseResampler {
+    /**
+     * Zero crossings of the sinc on each side of the filter, at the cutoff
+     * frequency. More give a steeper filter.
+     */
+    private static final int ZERO_CROSSINGS = 16;
+
+    private static final double KAISER_BETA = 8.0;
+
+    /**
+     * Cutoff relative to the lower of both Nyquist frequencies, leaving room for
+     * the transition band
+     */
+    private static final double CUTOFF = 0.95;
+
+    private final int up;
+    private final int down;
+    private final int taps;
+
+    /**
+     * Coefficients of all phases, phase by phase
+     */
+    private final float[] coefficients;
+
+    /**
+     * Input samples still needed, history[0] is the input sample with the index
+     * start
+     */
+    private float[] history;
+    private int available;
+    private long start;
+
+    private long inputs;
+    private long outputs;
+
+    /**
+     * @param inputRate  Sample rate of the input
+     * @param outputRate Sample rate of the output
+     */
+    public PolyphaseResampler(int inputRate, int outputRate) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rates " + inputRate + " -> " + outputRate);
+        }
+        final int gcd = gcd(inputRate, outputRate);
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+
+        final double cutoff = Math.min(1.0, (double) up / down) * CUTOFF;
+        this.taps = 2 * (int) Math.ceil(ZERO_CROSSINGS / cutoff);
+        this.coefficients = new float[up * taps];
+        for (int phase = 0; phase < up; phase++) {
+            final double fraction = (double) phase / up;
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                // Distance of the input sample from the output position
+                final double t = j - taps / 2 + 1 - fraction;
+                final double value = cutoff * sinc(cutoff * t) * kaiser(t / (taps / 2));
+                coefficients[phase * taps + j] = (float) value;
+                sum += value;
+            }
+            // Unity gain for each phase
+            for (int j = 0; j < taps; j++) {
+                coefficients[phase * taps + j] /= (float) sum;
+            }
+        }
+
+        // Samples before the start of the input are silence
+        this.history = new float[Math.max(4096, 2 * taps)];
+        this.available = taps / 2 - 1;
+        this.start = -available;
+    }
+
+    /**
+     * @param inputs Number of input samples
+     * @return Number of output samples for the whole input
+     */
+    public long outputLength(long inputs) {
+        return (inputs * up + down - 1) / down;
+    }
+
+    /**
+     * @param length Number of input samples passed to
+     *               {@link #process(float[], int, int, short[])}
+     * @return Size of the output array required, including the samples held
+     *         back for the filter
+     */
+    public int maxOutput(int length) {
+        return (int) ((long) (length + taps / 2 + 1) * up / down) + 2;
+    }
+
+    /**
+     * Resamples the next input samples
+     *
+     * @param input  Input samples, in the range -1 to 1
+     * @param offset Offset of the first input sample
+     * @param length Number of input samples
+     * @param output Receives the output samples, at least
+     *               {@link #maxOutput(int)} long
+     * @return Number of output samples produced
+     */
+    public int process(float[] input, int offset, int length, short[] output) {
+        append(input, offset, length);
+        inputs += length;
+        return produce(output);
+    }
+
+    /**
+     * Produces the remaining output samples at the end of the input
+     *
+     * @param output Receives the output samples, at least
+     *               {@link #maxOutput(int)} of 0 long
+     * @return Number of output samples produced
+     */
+    public int flush(short[] output) {
+        // Samples after the end of the input are silence
+        append(new float[taps / 2 + 1], 0, taps / 2 + 1);
+        return produce(output);
+    }
+
+    private void append(float[] input, int offset, int length) {
+        // Drop the samples not needed for the next output anymore
+        final long needed = outputs * down / up - taps / 2 + 1;
+        final int drop = (int) Math.max(0, Math.min(available, needed - start));
+        if (drop > 0) {
+            System.arraycopy(history, drop, history, 0, available - drop);
+            available -= drop;
+            start += drop;
+        }
+        if (available + length > history.length) {
+            history = Arrays.copyOf(history, Math.max(available + length, 2 * history.length));
+        }
+        System.arraycopy(input, offset, history, available, length);
+        available += length;
+    }
+
+    private int produce(short[] output) {
+        final long limit = outputLength(inputs);
+        final long end = start + available;
+        int produced = 0;
+        while (outputs < limit) {
+            final long position = outputs * down;
+            final long base = position / up;
+            if (base + taps / 2 >= end) {
+                break;
+            }
+            final int coefficient = (int) (position % up) * taps;
+            final int sample = (int) (base - taps / 2 + 1 - start);
+            float value = 0;
+            for (int j = 0; j < taps; j++) {
+                value += coefficients[coefficient + j] * history[sample + j];
+            }
+            output[produced++] = toShort(value);
+            outputs++;
+        }
+        return produced;
+    }
+
+    /**
+     * Converts a sample in the range -1 to 1 to 16 bit, clipping it
+     */
+    static short toShort(float value) {
+        final int scaled = Math.round(value * 32768f);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, scaled));
+    }
+
+    private static double sinc(double x) {
+        return x == 0 ? 1.0 : Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    private static double kaiser(double x) {
+        return Math.abs(x) > 1 ? 0 : besselI0(KAISER_BETA * Math.sqrt(1 - x * x)) / besselI0(KAISER_BETA);
+    }
+
+    /**
+     * Modified Bessel function of the first kind, order 0
+     */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
@@ -1,15 +1,37 @@
 package com.github.StefanRichterHuber.WhisperXServer;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 import java.util.function.Consumer;
 
+import org.jboss.logging.Logger;
+
 public class ProcessUtils {
+    private static final Logger LOGGER = Logger.getLogger(ProcessUtils.class);
+
+    /**
+     * Lines longer than this are split, to bound the memory used per stream
+     */
+    static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    /**
+     * Threads draining the output of processes. Never use the common pool for
+     * this: if all of its threads are busy, the output is not read and the child
+     * process blocks as soon as its pipe buffer is full.
+     */
+    private static final ExecutorService PUMP_EXECUTOR = VirtualThreads.newExecutor("process-output-pump");
+
     private ProcessUtils() {
 
     }
@@ -17,24 +39,132 @@ public class ProcessUtils {
     /**
      * Async handles the stdout / error output of a process, reading it line-by-line
      * and calling the given handler on each new line;
-     * 
+     *
      * @param s          InputStream / Errorstream from the process
      * @param onNextLine Handler for each line read
      */
     public static CompletableFuture<Void> handleProcessOutput(InputStream s, Consumer<String> onNextLine) {
-        return CompletableFuture.runAsync(() -> {
-            try (final InputStream err = new BufferedInputStream(s)) {
-                final InputStreamReader r = new InputStreamReader(err, StandardCharsets.UTF_8);
-                final BufferedReader reader = new BufferedReader(r);
+        return handleProcessOutput(s, onNextLine, PUMP_EXECUTOR);
+    }
 
-                while (reader.ready()) {
-                    final String line = reader.readLine();
-                    onNextLine.accept(line);
-                }
+    /**
+     * Async handles the stdout / error output of a process, reading it line-by-line
+     * until the stream is closed and calling the given handler on each new line.
+     * Lines are terminated by \n, \r (progress bars) or \r\n. The stream is
+     * always drained completely, even if the handler fails.
+     *
+     * @param s          InputStream / Errorstream from the process
+     * @param onNextLine Handler for each line read
+     * @param executor   Executor to run the (blocking) reader on
+     */
+    public static CompletableFuture<Void> handleProcessOutput(InputStream s, Consumer<String> onNextLine,
+            Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try (s) {
+                pump(s, onNextLine);
             } catch (IOException e) {
+                // Stream closed, e.g. because the process was destroyed
+                LOGGER.debugf("Stopped reading process output: %s", e.getMessage());
+            }
+        }, executor);
+    }
+
+    /**
+     * Drains both stdout and stderr of a process
+     *
+     * @param process    Process to read the output from
+     * @param onNextLine Handler for each line read from any of the streams
+     * @return Completed when both streams are closed
+     */
+    public static CompletableFuture<Void> handleProcessOutput(Process process, Consumer<String> onNextLine) {
+        return CompletableFuture.allOf(handleProcessOutput(process.getInputStream(), onNextLine),
+                handleProcessOutput(process.getErrorStream(), onNextLine));
+    }
+
+    /**
+     * Waits for the process to exit. Unlike {@link Process#waitFor()}, this does
+     * not block the carrier thread of a virtual thread.
+     *
+     * @param process Process to wait for
+     * @return Exit code of the process
+     * @throws InterruptedException
+     */
+    public static int waitFor(Process process) throws InterruptedException {
+        try {
+            return process.onExit().get().exitValue();
+        } catch (ExecutionException e) {
+            // onExit() never completes exceptionally, fall back to the plain wait
+            return process.waitFor();
+        }
+    }
 
+    /**
+     * Terminates a process and all its descendants: asks them to terminate and
+     * kills those still alive after the grace period. The descendants are
+     * collected first, they can not be found anymore once their parent is gone.
+     *
+     * @param process Process to terminate
+     * @param grace   Time to terminate gracefully
+     */
+    public static void destroyTree(Process process, Duration grace) {
+        final List<ProcessHandle> descendants = process.descendants().collect(Collectors.toList());
+        descendants.forEach(ProcessHandle::destroy);
+        process.destroy();
+        try {
+            process.onExit().get(grace.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.debugf("Process %d did not terminate within %s, killing it", process.pid(), grace);
+        }
+        descendants.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
+        if (process.isAlive()) {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Splits the stream into lines and passes them to the handler
+     */
+    static void pump(InputStream s, Consumer<String> onNextLine) throws IOException {
+        final byte[] buffer = new byte[StreamUtils.BUFFER_SIZE / 8];
+        byte[] line = new byte[256];
+        int length = 0;
+        boolean afterCr = false;
+        int read;
+        while ((read = s.read(buffer)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                final byte b = buffer[i];
+                if (b == '\n' || b == '\r') {
+                    // \r\n is a single line break
+                    if (!(b == '\n' && afterCr)) {
+                        emit(line, length, onNextLine);
+                        length = 0;
+                    }
+                    afterCr = b == '\r';
+                    continue;
+                }
+                afterCr = false;
+                if (length == MAX_LINE_LENGTH) {
+                    emit(line, length, onNextLine);
+                    length = 0;
+                } else if (length == line.length) {
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_LENGTH));
+                }
+                line[length++] = b;
             }
-        });
+        }
+        if (length > 0) {
+            emit(line, length, onNextLine);
+        }
+    }
 
+    private static void emit(byte[] line, int length, Consumer<String> onNextLine) {
+        try {
+            onNextLine.accept(new String(line, 0, length, StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            // Keep on reading, otherwise the process might block
+            LOGGER.warnf(e, "Failed to handle process output");
+        }
     }
 }
@@ -0,0 +1,173 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.inject.Typed;
+import jakarta.inject.Inject;
+
+/**
+ * {@link JobStore} shared by several nodes through a common directory (e.g. a
+ * network file system). Each job is a JSON file, written atomically, and
+ * nothing is cached, so every node sees the changes of the others. The results
+ * are kept until their jobs are removed, within a total size limit.
+ */
+@ApplicationScoped
+@Typed(SharedJobStore.class)
+public class SharedJobStore implements JobStore {
+    static final String JOB_DIR = "jobs";
+    static final String RESULT_DIR = "results";
+    private static final String SUFFIX = ".json";
+
+    @Inject
+    Logger logger;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    /**
+     * Directory shared by all nodes
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cluster.directory", defaultValue = "/tmp/whisperx-cluster")
+    String directory;
+
+    /**
+     * Maximum total size of the stored results of all nodes. The oldest results
+     * are evicted first, their jobs are kept. 0 means no limit.
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.job-store.max-result-size", defaultValue = "1G")
+    MemorySize maxResultSize;
+
+    private Path jobDir;
+    private Path resultDir;
+
+    @PostConstruct
+    void init() {
+        try {
+            final Path dir = Paths.get(directory);
+            this.jobDir = Files.createDirectories(dir.resolve(JOB_DIR));
+            this.resultDir = Files.createDirectories(dir.resolve(RESULT_DIR));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create shared job store in " + directory, e);
+        }
+    }
+
+    @Override
+    public void save(Job job) {
+        try {
+            FileJobStore.write(jobDir.resolve(job.id() + SUFFIX), objectMapper.writeValueAsBytes(job));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save job " + job.id(), e);
+        }
+    }
+
+    @Override
+    public Optional<Job> get(String id) {
+        if (id == null || id.isBlank() || id.contains("/") || id.contains("\\") || id.startsWith(".")) {
+            return Optional.empty();
+        }
+        return read(jobDir.resolve(id + SUFFIX));
+    }
+
+    @Override
+    public Collection<Job> getAll() {
+        final List<Path> files;
+        try (Stream<Path> s = Files.list(jobDir)) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to list jobs in " + jobDir, e);
+        }
+        final List<Job> jobs = new ArrayList<>(files.size());
+        for (Path file : files) {
+            read(file).ifPresent(jobs::add);
+        }
+        return jobs;
+    }
+
+    @Override
+    public void remove(String id) {
+        try {
+            Files.deleteIfExists(jobDir.resolve(id + SUFFIX));
+            FileJobStore.deleteResult(resultDir, id);
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to remove job %s", id);
+        }
+    }
+
+    @Override
+    public void saveResult(String id, String artifact, String result) throws IOException {
+        FileJobStore.writeResult(resultDir, id, artifact, result);
+        evictResults(id);
+    }
+
+    @Override
+    public Optional<Path> getResult(String id, String artifact) {
+        return FileJobStore.getResult(resultDir, id, artifact);
+    }
+
+    @Override
+    public Optional<Path> getCompressedResult(String id, String artifact) {
+        return FileJobStore.getCompressedResult(resultDir, id, artifact);
+    }
+
+    /**
+     * Removes the oldest results until the size limit is met. The sizes are read
+     * from the directory, as any node adds results. The jobs themselves are kept.
+     *
+     * @param keep ID of the job whose result is never evicted
+     */
+    private void evictResults(String keep) {
+        if (maxResultSize.asLongValue() <= 0) {
+            return;
+        }
+        try {
+            final Map<String, Long> sizes = FileJobStore.listResults(resultDir, false);
+            long size = sizes.values().stream().mapToLong(Long::longValue).sum();
+            for (Map.Entry<String, Long> eldest : sizes.entrySet()) {
+                if (size <= maxResultSize.asLongValue()) {
+                    break;
+                }
+                if (!eldest.getKey().equals(keep)) {
+                    logger.infof("Evicted result of job %s, results exceed %d bytes", eldest.getKey(),
+                            maxResultSize.asLongValue());
+                    FileJobStore.deleteResult(resultDir, eldest.getKey());
+                    size -= eldest.getValue();
+                }
+            }
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to evict results in %s", resultDir);
+        }
+    }
+
+    private Optional<Job> read(Path file) {
+        try {
+            return Optional.of(objectMapper.readValue(Files.readAllBytes(file), Job.class));
+        } catch (NoSuchFileException e) {
+            // Removed by another node
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read job " + file, e);
+        }
+    }
+}
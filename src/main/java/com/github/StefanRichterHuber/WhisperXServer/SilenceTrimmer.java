@@ -0,0 +1,284 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Cuts long silences out of WAV files (in the format required by WhisperX), so
+ * WhisperX does not spend time on them. Speech is detected per frame from its
+ * energy, quiet frames with lots of zero crossings (unvoiced sounds like "s" or
+ * "f") count as speech too. The kept parts of the audio are recorded, to map
+ * timestamps of the transcript back to the original audio.
+ */
+public class SilenceTrimmer {
+    /**
+     * Length of the frames speech is detected in
+     */
+    static final int FRAME_MILLIS = 20;
+
+    /**
+     * Quiet frames with at least this rate of zero crossings per sample are
+     * unvoiced speech
+     */
+    private static final double UNVOICED_ZERO_CROSSINGS = 0.25;
+
+    /**
+     * Unvoiced speech may be this much quieter than the threshold (in dB)
+     */
+    private static final double UNVOICED_MARGIN_DB = 10;
+
+    /**
+     * Part of the original audio kept in the trimmed audio
+     *
+     * @param start         Start in the trimmed audio in seconds
+     * @param originalStart Start in the original audio in seconds
+     * @param duration      Duration in seconds
+     */
+    public record Span(double start, double originalStart, double duration) {
+    }
+
+    /**
+     * Audio with long silences cut out
+     *
+     * @param file             WAV file containing the remaining audio
+     * @param spans            Parts of the original audio kept, in order
+     * @param originalDuration Duration of the original audio in seconds
+     */
+    public record Trimmed(Path file, List<Span> spans, double originalDuration) {
+
+        /**
+         * @return Duration of the trimmed audio in seconds
+         */
+        public double duration() {
+            return spans.stream().mapToDouble(Span::duration).sum();
+        }
+
+        /**
+         * @return Seconds of silence cut out
+         */
+        public double skipped() {
+            return originalDuration - duration();
+        }
+
+        /**
+         * Maps a timestamp of the trimmed audio to the original audio
+         *
+         * @param timestamp Seconds from the start of the trimmed audio
+         * @return Seconds from the start of the original audio
+         */
+        public double toOriginal(double timestamp) {
+            int low = 0;
+            int high = spans.size() - 1;
+            // Last span starting at or before the timestamp
+            while (low < high) {
+                final int middle = (low + high + 1) / 2;
+                if (spans.get(middle).start() <= timestamp) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            final Span span = spans.get(low);
+            return span.originalStart() + timestamp - span.start();
+        }
+
+        /**
+         * @param output Output of WhisperX for the trimmed audio
+         * @return Output with the timestamps of the original audio
+         */
+        public WhisperXOutput toOriginal(WhisperXOutput output) {
+            return output.withTimestamps(this::toOriginal);
+        }
+    }
+
+    private SilenceTrimmer() {
+
+    }
+
+    /**
+     * Cuts silences longer than the given minimum out of the given file. The
+     * trimmed audio is written next to the file.
+     *
+     * @param wav         WAV file, 16 bit PCM mono
+     * @param thresholdDb Frames quieter than this (in dB relative to full scale)
+     *                    are silent
+     * @param minSilence  Minimum duration of silences to cut
+     * @param padding     Silence kept before and after speech
+     * @return Trimmed audio or empty if there is no silence to cut (or no speech
+     *         at all)
+     * @throws IOException
+     */
+    public static Optional<Trimmed> trim(Path wav, double thresholdDb, Duration minSilence, Duration padding)
+            throws IOException {
+        final WavHeader header = WavHeader.read(wav)
+                .filter(h -> h.isPcm() && h.getChannels() == 1 && h.getBitsPerSample() == 16)
+                .orElseThrow(() -> new IOException(wav + " is no 16 bit mono PCM wav file"));
+        final int frameSamples = header.getSampleRate() * FRAME_MILLIS / 1000;
+        final long frameBytes = (long) frameSamples * header.getFrameSize();
+        final double bytesPerSecond = (double) header.getSampleRate() * header.getFrameSize();
+
+        try (FileChannel source = FileChannel.open(wav, StandardOpenOption.READ)) {
+            final boolean[] speech = detectSpeech(source, header, frameSamples, thresholdDb);
+            final List<int[]> kept = findSpeech(speech, (int) (minSilence.toMillis() / FRAME_MILLIS),
+                    (int) (padding.toMillis() / FRAME_MILLIS));
+            if (kept.isEmpty() || (kept.size() == 1 && kept.get(0)[0] == 0 && kept.get(0)[1] == speech.length)) {
+                return Optional.empty();
+            }
+
+            final List<Span> spans = new ArrayList<>(kept.size());
+            long length = 0;
+            for (int[] range : kept) {
+                final long from = range[0] * frameBytes;
+                final long to = Math.min(range[1] * frameBytes, header.getDataSize());
+                spans.add(new Span(length / bytesPerSecond, from / bytesPerSecond, (to - from) / bytesPerSecond));
+                length += to - from;
+            }
+
+            final String fileName = wav.getFileName().toString();
+            final String stem = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+            final Path file = wav.resolveSibling(stem + ".trimmed.wav");
+            try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer trimmedHeader = WavHeader.createPcmHeader(header.getChannels(),
+                        header.getSampleRate(), header.getBitsPerSample(), length);
+                while (trimmedHeader.hasRemaining()) {
+                    target.write(trimmedHeader);
+                }
+                for (int[] range : kept) {
+                    final long from = header.getDataOffset() + range[0] * frameBytes;
+                    final long count = Math.min(range[1] * frameBytes, header.getDataSize()) - range[0] * frameBytes;
+                    // Copied by the kernel, the audio data is not loaded into the heap
+                    long copied = 0;
+                    while (copied < count) {
+                        final long transferred = source.transferTo(from + copied, count - copied, target);
+                        if (transferred <= 0) {
+                            throw new IOException("Unexpected end of " + wav);
+                        }
+                        copied += transferred;
+                    }
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            return Optional.of(new Trimmed(file, spans, header.getDurationSeconds()));
+        }
+    }
+
+    /**
+     * Finds the parts of the audio to keep: everything except silences of at
+     * least the minimum length, shortened by the padding on both sides.
+     *
+     * @param speech        Speech detected for each frame
+     * @param silenceFrames Minimum number of silent frames to cut
+     * @param paddingFrames Number of silent frames kept next to speech
+     * @return Frame ranges to keep (start inclusive, end exclusive), in order
+     */
+    static List<int[]> findSpeech(boolean[] speech, int silenceFrames, int paddingFrames) {
+        final List<int[]> kept = new ArrayList<>();
+        if (!hasSpeech(speech)) {
+            return kept;
+        }
+        int keepFrom = 0;
+        int i = 0;
+        while (i < speech.length) {
+            if (speech[i]) {
+                i++;
+                continue;
+            }
+            final int silenceStart = i;
+            while (i < speech.length && !speech[i]) {
+                i++;
+            }
+            if (i - silenceStart < Math.max(silenceFrames, 1)) {
+                continue;
+            }
+            // Some silence is kept next to speech, but none at the start and end of the audio
+            final int cutFrom = silenceStart > 0 ? silenceStart + paddingFrames : 0;
+            final int cutTo = i < speech.length ? i - paddingFrames : speech.length;
+            if (cutFrom < cutTo) {
+                if (cutFrom > keepFrom) {
+                    kept.add(new int[] { keepFrom, cutFrom });
+                }
+                keepFrom = cutTo;
+            }
+        }
+        if (keepFrom < speech.length) {
+            kept.add(new int[] { keepFrom, speech.length });
+        }
+        return kept;
+    }
+
+    private static boolean hasSpeech(boolean[] speech) {
+        for (boolean frame : speech) {
+            if (frame) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Detects speech in each frame from its energy and rate of zero crossings,
+     * reading the audio data in a single pass
+     */
+    static boolean[] detectSpeech(FileChannel source, WavHeader header, int frameSamples, double thresholdDb)
+            throws IOException {
+        final long samples = header.getDataSize() / 2;
+        final boolean[] speech = new boolean[(int) ((samples + frameSamples - 1) / frameSamples)];
+        // Mean square of a sample at the threshold
+        final double threshold = Math.pow(10, thresholdDb / 10) * 32768.0 * 32768.0;
+        final double unvoicedThreshold = threshold / Math.pow(10, UNVOICED_MARGIN_DB / 10);
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(StreamUtils.BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = header.getDataOffset();
+        final long end = header.getDataOffset() + header.getDataSize();
+        int frame = 0;
+        int count = 0;
+        int crossings = 0;
+        double sum = 0;
+        short previous = 0;
+        while (position < end) {
+            buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + end - position));
+            final int read = source.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            buffer.flip();
+            while (buffer.remaining() >= 2) {
+                final short sample = buffer.getShort();
+                sum += (double) sample * sample;
+                if (count > 0 && (sample < 0) != (previous < 0)) {
+                    crossings++;
+                }
+                previous = sample;
+                if (++count == frameSamples) {
+                    speech[frame++] = isSpeech(sum / count, (double) crossings / count, threshold, unvoicedThreshold);
+                    count = 0;
+                    crossings = 0;
+                    sum = 0;
+                }
+            }
+            // Keep an incomplete sample for the next read
+            buffer.compact();
+        }
+        if (count > 0 && frame < speech.length) {
+            speech[frame] = isSpeech(sum / count, (double) crossings / count, threshold, unvoicedThreshold);
+        }
+        return speech;
+    }
+
+    private static boolean isSpeech(double energy, double zeroCrossings, double threshold, double unvoicedThreshold) {
+        return energy >= threshold || (energy >= unvoicedThreshold && zeroCrossings >= UNVOICED_ZERO_CROSSINGS);
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class StreamUtils {
+    /**
+     * Size of the buffer used to copy data between channels. Memory usage per
+     * copy is constant, regardless of the amount of data copied.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private StreamUtils() {
+
+    }
+
+    /**
+     * Copies all data from the source channel to the target channel, using a
+     * single fixed-size buffer
+     * 
+     * @param source Channel to read from until end-of-stream
+     * @param target Channel to write to. Not closed.
+     * @return Number of bytes copied
+     * @throws IOException
+     */
+    public static long transfer(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long total = 0;
+        while (source.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                total += target.write(buffer);
+            }
+            buffer.clear();
+        }
+        return total;
+    }
+}
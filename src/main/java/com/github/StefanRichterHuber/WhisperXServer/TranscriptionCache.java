@@ -0,0 +1,346 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import io.quarkus.runtime.configuration.MemorySize;
+import jakarta.annotation.PostConstruct;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.inject.Inject;
+
+/**
+ * Content-addressed cache of WhisperX results on local disk, stored in the
+ * binary format of {@link CompactTranscript} after the seconds of silence cut
+ * out of the audio. The key is a hash of the normalized audio and all
+ * parameters influencing the result. The cache is bounded by size, least
+ * recently used entries are evicted first.
+ */
+@ApplicationScoped
+public class TranscriptionCache {
+    private static final String SUFFIX = ".wxc";
+
+    /**
+     * Cached result
+     *
+     * @param transcript     WhisperX output
+     * @param skippedSilence Seconds of silence cut out before transcription,
+     *                       null if not trimmed
+     */
+    public record Entry(CompactTranscript transcript, Double skippedSilence) {
+    }
+
+    /**
+     * Suffix of entries written by older versions as JSON
+     */
+    private static final String LEGACY_SUFFIX = ".json";
+
+    /**
+     * Suffix of entries being written
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    @Inject
+    Logger logger;
+
+    /**
+     * Directory to store the cached results in
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cache.directory", defaultValue = "/tmp/whisperx-server/cache")
+    String directory;
+
+    /**
+     * Maximum total size of the cached results. 0 disables the cache.
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.cache.max-size", defaultValue = "1G")
+    MemorySize maxSize;
+
+    private Path cacheDir;
+
+    /**
+     * Size of all entries, in least recently used order
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalSize;
+
+    @PostConstruct
+    void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            this.cacheDir = Files.createDirectories(Paths.get(directory));
+            // Restore the LRU order from the modification times
+            final List<Path> files;
+            // Entries of older versions and entries whose writing was interrupted
+            try (Stream<Path> s = Files.list(cacheDir)) {
+                s.filter(p -> p.getFileName().toString().endsWith(LEGACY_SUFFIX)
+                        || p.getFileName().toString().endsWith(TMP_SUFFIX)).forEach(this::deleteStale);
+            }
+            try (Stream<Path> s = Files.list(cacheDir)) {
+                files = s.filter(p -> p.getFileName().toString().endsWith(SUFFIX))
+                        .sorted(Comparator.comparing(TranscriptionCache::lastModified))
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                final long size = Files.size(file);
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                totalSize += size;
+            }
+            logger.infof("Loaded %d cached transcriptions with %d bytes from %s", entries.size(), totalSize,
+                    cacheDir);
+            synchronized (this) {
+                evict();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load transcription cache from " + directory, e);
+        }
+    }
+
+    /**
+     * @return true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return maxSize.asLongValue() > 0;
+    }
+
+    /**
+     * Computes the cache key for an audio file and the parameters of the
+     * transcription
+     *
+     * @param wav      Audio file in the format required by WhisperX
+     * @param model    WhisperX model
+     * @param language Language of the audio, null for language detection
+     * @param task     WhisperX task
+     * @param diarize  Speaker diarization applied
+     * @param vad      Settings silences were cut out of the audio with, null if
+     *                 disabled
+     * @return Cache key
+     * @throws IOException
+     */
+    public String computeKey(Path wav, String model, String language, String task, boolean diarize, String vad)
+            throws IOException {
+        return computeKey(digestAudio(wav), model, language, task, diarize, vad);
+    }
+
+    /**
+     * Hashes the audio data of a file once, to compute the keys of several
+     * transcriptions of it with {@link #computeKey(MessageDigest, String, String,
+     * String, boolean, String)}
+     *
+     * @param wav Audio file in the format required by WhisperX
+     * @return Digest of the audio data
+     * @throws IOException
+     */
+    public MessageDigest digestAudio(Path wav) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // Only the audio data counts, not the header
+        final long offset = WavHeader.read(wav).map(WavHeader::getDataOffset).orElse(0L);
+        try (FileChannel fc = FileChannel.open(wav, StandardOpenOption.READ)) {
+            fc.position(offset);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(StreamUtils.BUFFER_SIZE);
+            while (fc.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Computes the cache key for the parameters of a transcription
+     *
+     * @param audio    Digest of the audio data, see {@link #digestAudio(Path)}.
+     *                 Not modified.
+     * @param model    WhisperX model
+     * @param language Language of the audio, null for language detection
+     * @param task     WhisperX task
+     * @param diarize  Speaker diarization applied
+     * @param vad      Settings silences were cut out of the audio with, null if
+     *                 disabled
+     * @return Cache key
+     */
+    public String computeKey(MessageDigest audio, String model, String language, String task, boolean diarize,
+            String vad) {
+        final MessageDigest digest;
+        try {
+            digest = (MessageDigest) audio.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        final String parameters = String.join("|", model,
+                language != null && !language.isBlank() ? language : "auto", task, String.valueOf(diarize),
+                vad != null ? vad : "off");
+        digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Looks up a cached result
+     *
+     * @param key Cache key
+     * @return Cached result or empty if not cached
+     */
+    public Optional<Entry> get(String key) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return Optional.empty();
+            }
+        }
+        final Path file = cacheDir.resolve(key + SUFFIX);
+        try {
+            final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (data.remaining() < Double.BYTES) {
+                throw new IllegalArgumentException("Corrupt cache entry");
+            }
+            final double skipped = data.getDouble();
+            final byte[] transcript = new byte[data.remaining()];
+            data.get(transcript);
+            final Entry result = new Entry(CompactTranscript.fromBytes(transcript),
+                    Double.isNaN(skipped) ? null : skipped);
+            // Persist the LRU order
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            logger.debugf("Found cached transcription %s", key);
+            return Optional.of(result);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warnf(e, "Failed to read cached transcription %s", key);
+            synchronized (this) {
+                remove(key);
+            }
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Adds a result to the cache, evicting the least recently used entries if
+     * the cache gets too large
+     *
+     * @param key            Cache key
+     * @param transcript     WhisperX output
+     * @param skippedSilence Seconds of silence cut out before transcription,
+     *                       null if not trimmed
+     */
+    public void put(String key, CompactTranscript transcript, Double skippedSilence) {
+        if (!isEnabled()) {
+            return;
+        }
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(cacheDir, key, TMP_SUFFIX);
+            final byte[] bytes = transcript.toBytes();
+            Files.write(tmp, ByteBuffer.allocate(Double.BYTES + bytes.length)
+                    .putDouble(skippedSilence != null ? skippedSilence : Double.NaN).put(bytes).array());
+            final long size = Files.size(tmp);
+            synchronized (this) {
+                Files.move(tmp, cacheDir.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                final Long previous = entries.put(key, size);
+                totalSize += size - (previous != null ? previous : 0);
+                evict();
+            }
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to cache transcription %s", key);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    logger.warnf(e, "Failed to delete %s", tmp);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Total size of all cached results in bytes
+     */
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    /**
+     * Removes least recently used entries until the size limit is met. Must be
+     * called synchronized.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalSize > maxSize.asLongValue() && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            totalSize -= eldest.getValue();
+            delete(eldest.getKey());
+            logger.debugf("Evicted cached transcription %s", eldest.getKey());
+        }
+    }
+
+    /**
+     * Removes a single entry. Must be called synchronized.
+     */
+    private void remove(String key) {
+        final Long size = entries.remove(key);
+        if (size != null) {
+            totalSize -= size;
+        }
+        delete(key);
+    }
+
+    private void delete(String key) {
+        try {
+            Files.deleteIfExists(cacheDir.resolve(key + SUFFIX));
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete cached transcription %s", key);
+        }
+    }
+
+    private void deleteStale(Path file) {
+        try {
+            Files.delete(file);
+            logger.debugf("Deleted stale cached transcription %s", file);
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete cached transcription %s", file);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
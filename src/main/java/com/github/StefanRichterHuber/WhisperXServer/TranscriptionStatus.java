@@ -1,6 +1,7 @@
 package com.github.StefanRichterHuber.WhisperXServer;
 
 import java.time.ZonedDateTime;
+import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonInclude;
@@ -11,6 +12,112 @@ import io.quarkus.runtime.annotations.RegisterForReflection;
 @JsonInclude(Include.NON_NULL)
 @RegisterForReflection
 public class TranscriptionStatus {
+    /**
+     * Progress of a running job
+     */
+    @JsonInclude(Include.NON_NULL)
+    @RegisterForReflection
+    public static class Progress {
+        /**
+         * Current stage (CONVERTING, TRANSCRIBING, ALIGNING, DIARIZING)
+         */
+        private final String stage;
+
+        /**
+         * Progress of the current stage in percent
+         */
+        private final double stagePercent;
+
+        /**
+         * Total progress in percent
+         */
+        private final double percent;
+
+        /**
+         * Estimated end of the job
+         */
+        @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+        private final ZonedDateTime estimatedEnd;
+
+        public Progress() {
+            this(null, 0, 0, null);
+        }
+
+        public Progress(String stage, double stagePercent, double percent, ZonedDateTime estimatedEnd) {
+            this.stage = stage;
+            this.stagePercent = stagePercent;
+            this.percent = percent;
+            this.estimatedEnd = estimatedEnd;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public double getStagePercent() {
+            return stagePercent;
+        }
+
+        public double getPercent() {
+            return percent;
+        }
+
+        public ZonedDateTime getEstimatedEnd() {
+            return estimatedEnd;
+        }
+    }
+
+    /**
+     * One of several results of a finished job
+     */
+    @JsonInclude(Include.NON_NULL)
+    @RegisterForReflection
+    public static class Artifact {
+        /**
+         * WhisperX task (transcribe, translate)
+         */
+        private final String task;
+
+        /**
+         * Output format (srt, vtt, txt, tsv, json, aud)
+         */
+        private final String format;
+
+        private final String contentType;
+
+        /**
+         * Location to fetch the result from
+         */
+        private final String href;
+
+        public Artifact() {
+            this(null, null, null, null);
+        }
+
+        public Artifact(String task, String format, String contentType, String href) {
+            this.task = task;
+            this.format = format;
+            this.contentType = contentType;
+            this.href = href;
+        }
+
+        public String getTask() {
+            return task;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getHref() {
+            return href;
+        }
+    }
+
     @JsonInclude(Include.NON_NULL)
     @RegisterForReflection
     public static class Task {
@@ -25,16 +132,101 @@ public class TranscriptionStatus {
         @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSSZ")
         private final ZonedDateTime end;
 
+        /**
+         * Number of jobs queued before this one, null if not queued (anymore)
+         */
+        private final Integer queuePosition;
+
+        /**
+         * Estimated start of a queued job
+         */
+        @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+        private final ZonedDateTime estimatedStart;
+
+        /**
+         * State of the job (ON_GOING, FINISHED, ERROR)
+         */
+        private final String status;
+
+        /**
+         * Error message of a failed job
+         */
+        private final String error;
+
+        /**
+         * Progress of a running job
+         */
+        private final Progress progress;
+
+        /**
+         * WhisperX model of the job
+         */
+        private final String model;
+
+        /**
+         * Results of a finished job with several tasks or formats
+         */
+        private final List<Artifact> artifacts;
+
+        /**
+         * Seconds of silence cut out before transcription
+         */
+        private final Double skippedSilence;
+
         public Task() {
             this(null, null, null, null, null);
         }
 
         public Task(String id, String href, String contentType, ZonedDateTime start, ZonedDateTime end) {
+            this(id, href, contentType, start, end, null, null);
+        }
+
+        public Task(String id, String href, String contentType, ZonedDateTime start, ZonedDateTime end,
+                Integer queuePosition, ZonedDateTime estimatedStart) {
+            this(id, href, contentType, start, end, queuePosition, estimatedStart, null, null);
+        }
+
+        public Task(String id, String href, String contentType, ZonedDateTime start, ZonedDateTime end,
+                Integer queuePosition, ZonedDateTime estimatedStart, String status, String error) {
+            this(id, href, contentType, start, end, queuePosition, estimatedStart, status, error, null);
+        }
+
+        public Task(String id, String href, String contentType, ZonedDateTime start, ZonedDateTime end,
+                Integer queuePosition, ZonedDateTime estimatedStart, String status, String error,
+                Progress progress) {
+            this(id, href, contentType, start, end, queuePosition, estimatedStart, status, error, progress, null);
+        }
+
+        public Task(String id, String href, String contentType, ZonedDateTime start, ZonedDateTime end,
+                Integer queuePosition, ZonedDateTime estimatedStart, String status, String error,
+                Progress progress, String model) {
+            this(id, href, contentType, start, end, queuePosition, estimatedStart, status, error, progress, model,
+                    null);
+        }
+
+        public Task(String id, String href, String contentType, ZonedDateTime start, ZonedDateTime end,
+                Integer queuePosition, ZonedDateTime estimatedStart, String status, String error,
+                Progress progress, String model, List<Artifact> artifacts) {
+            this(id, href, contentType, start, end, queuePosition, estimatedStart, status, error, progress, model,
+                    artifacts, null);
+        }
+
+        public Task(String id, String href, String contentType, ZonedDateTime start, ZonedDateTime end,
+                Integer queuePosition, ZonedDateTime estimatedStart, String status, String error,
+                Progress progress, String model, List<Artifact> artifacts, Double skippedSilence) {
             this.id = id;
             this.href = href;
             this.contentType = contentType;
             this.start = start;
             this.end = end;
+            this.queuePosition = queuePosition;
+            this.estimatedStart = estimatedStart;
+            this.status = status;
+            this.error = error;
+            this.progress = progress;
+            this.model = model;
+            this.artifacts = artifacts;
+            this.skippedSilence = skippedSilence;
         }
 
         public String getHref() {
@@ -57,6 +249,38 @@ public class TranscriptionStatus {
             return end;
         }
 
+        public Integer getQueuePosition() {
+            return queuePosition;
+        }
+
+        public ZonedDateTime getEstimatedStart() {
+            return estimatedStart;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public Progress getProgress() {
+            return progress;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public List<Artifact> getArtifacts() {
+            return artifacts;
+        }
+
+        public Double getSkippedSilence() {
+            return skippedSilence;
+        }
+
     }
 
     private final Task task;
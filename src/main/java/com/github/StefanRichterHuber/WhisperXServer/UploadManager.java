@@ -0,0 +1,485 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import io.quarkus.runtime.configuration.MemorySize;
+import jakarta.enterprise.context.ApplicationScoped;
+import jakarta.enterprise.event.Observes;
+import jakarta.inject.Inject;
+
+/**
+ * Manages resumable uploads of large recordings. The file of an upload is
+ * created with its full length up front, the chunks are written directly into
+ * it at their offset. Once complete, the file becomes the audio of the
+ * transcription job as it is. The state of each upload is stored next to its
+ * file, so uploads can be resumed after a restart.
+ */
+@ApplicationScoped
+public class UploadManager {
+    private static final String UPLOAD_SUFFIX = ".upload";
+    private static final String STATE_SUFFIX = ".upload.json";
+
+    /**
+     * Thrown if the checksum of a chunk does not match its content
+     */
+    public static class ChecksumMismatchException extends IOException {
+        public ChecksumMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown if a chunk does not start at the current offset of the upload, or
+     * another chunk of the upload is written at the same time
+     */
+    public static class OffsetMismatchException extends IOException {
+        public OffsetMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Parameters of the transcription job to start once the upload is complete
+     */
+    @RegisterForReflection
+    public record JobRequest(String client, Priority priority, String language, boolean diarize,
+            List<String> tasks, String model, String accept, List<String> formats) {
+    }
+
+    /**
+     * Persisted state of an upload
+     *
+     * @param id      ID of the upload
+     * @param length  Total length in bytes
+     * @param offset  Number of bytes received
+     * @param request Job to start once the upload is complete
+     * @param jobId   ID of the started job, null if not started yet
+     */
+    @RegisterForReflection
+    record State(String id, long length, long offset, JobRequest request, String jobId) {
+    }
+
+    /**
+     * State of an upload
+     */
+    public static class Upload {
+        private final String id;
+        private final long length;
+        private final Path file;
+        private final JobRequest request;
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long offset;
+        private volatile String jobId;
+        private volatile boolean removed;
+
+        Upload(String id, long length, Path file, JobRequest request) {
+            this.id = id;
+            this.length = length;
+            this.file = file;
+            this.request = request;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return Number of bytes received so far
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public JobRequest getRequest() {
+            return request;
+        }
+
+        public boolean isComplete() {
+            return offset == length;
+        }
+
+        /**
+         * @return ID of the job started with the upload, null if not started yet
+         */
+        public String getJobId() {
+            return jobId;
+        }
+    }
+
+    @Inject
+    Logger logger;
+
+    @Inject
+    ScheduledExecutorService scheduledExecutorService;
+
+    @Inject
+    JobManager jobManager;
+
+    @Inject
+    JobStore jobStore;
+
+    @Inject
+    ObjectMapper objectMapper;
+
+    /**
+     * Directory to store the uploads in, the same as the work files of the jobs
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.workdir", defaultValue = "/tmp")
+    String workdir;
+
+    /**
+     * Maximum length of an upload
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.upload.max-length", defaultValue = "20G")
+    MemorySize maxLength;
+
+    /**
+     * Uploads not continued within this time are removed
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.upload.expiry", defaultValue = "24h")
+    Duration expiry;
+
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    void onStart(@Observes StartupEvent ev) {
+        try {
+            loadUploads();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load uploads from " + workdir, e);
+        }
+        this.scheduledExecutorService.scheduleAtFixedRate(this::removeExpiredUploads, 10, 10, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Restores the uploads from their stored state and deletes the files of
+     * uploads without state, which are older than the expiry time and not the
+     * audio of a job
+     */
+    void loadUploads() throws IOException {
+        final List<Path> files;
+        try (Stream<Path> s = Files.list(Paths.get(workdir))) {
+            files = s.collect(Collectors.toList());
+        }
+        for (Path stateFile : files) {
+            if (!stateFile.getFileName().toString().endsWith(STATE_SUFFIX)) {
+                continue;
+            }
+            try {
+                final State state = objectMapper.readValue(stateFile.toFile(), State.class);
+                final Path file = stateFile.resolveSibling(state.id() + UPLOAD_SUFFIX);
+                if (state.jobId() == null && (!Files.exists(file) || Files.size(file) != state.length())) {
+                    logger.warnf("Removing upload %s, its file is missing or incomplete", state.id());
+                    Files.deleteIfExists(file);
+                    Files.delete(stateFile);
+                    continue;
+                }
+                final Upload upload = new Upload(state.id(), state.length(), file, state.request());
+                upload.offset = state.offset();
+                upload.jobId = state.jobId();
+                uploads.put(upload.id, upload);
+            } catch (IOException e) {
+                logger.warnf(e, "Failed to load upload %s", stateFile);
+            }
+        }
+
+        // Files of direct uploads and of uploads of older versions, left over by a crash
+        final Set<String> audio = jobStore.getAll().stream().map(Job::audio).filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        final Instant limit = Instant.now().minus(expiry);
+        int orphans = 0;
+        for (Path file : files) {
+            final String name = file.getFileName().toString();
+            if (name.endsWith(UPLOAD_SUFFIX)
+                    && !uploads.containsKey(name.substring(0, name.length() - UPLOAD_SUFFIX.length()))
+                    && !audio.contains(file.toString()) && lastModified(file).isBefore(limit)) {
+                Files.deleteIfExists(file);
+                orphans++;
+            }
+        }
+        logger.infof("Loaded %d uploads from %s, deleted %d orphaned upload files", uploads.size(), workdir,
+                orphans);
+    }
+
+    /**
+     * Starts a new upload
+     *
+     * @param length  Total length of the upload in bytes
+     * @param request Job to start once the upload is complete
+     * @return New upload
+     * @throws IllegalArgumentException if the length exceeds the maximum length
+     */
+    public Upload create(long length, JobRequest request) throws IOException {
+        if (length <= 0 || length > maxLength.asLongValue()) {
+            throw new IllegalArgumentException(
+                    "Upload length must be between 1 and " + maxLength.asLongValue() + " bytes");
+        }
+        final String id = UUID.randomUUID().toString();
+        final Path file = Paths.get(workdir, id + UPLOAD_SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            // Reserve the full length, chunks are written at their offset
+            channel.write(ByteBuffer.allocate(1), length - 1);
+        }
+        final Upload upload = new Upload(id, length, file, request);
+        try {
+            save(upload);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        uploads.put(id, upload);
+        logger.debugf("Created upload %s with %d bytes", id, length);
+        return upload;
+    }
+
+    /**
+     * @param id ID of the upload
+     * @return Upload or empty if unknown
+     */
+    public Optional<Upload> get(String id) {
+        return id != null ? Optional.ofNullable(uploads.get(id)) : Optional.empty();
+    }
+
+    /**
+     * Writes the next chunk of an upload. The offset of the upload only
+     * advances if the whole chunk was received and matches its checksum, so a
+     * client can resume from the offset after any failure.
+     *
+     * @param upload   Upload to write to
+     * @param offset   Offset of the chunk, must be the current offset
+     * @param content  Content of the chunk
+     * @param checksum Checksum of the chunk ("algorithm base64-digest", with
+     *                 algorithm one of md5, sha1, sha256), null to skip the check
+     * @return New offset of the upload
+     * @throws OffsetMismatchException    if the chunk does not start at the
+     *                                    current offset
+     * @throws ChecksumMismatchException  if the checksum does not match
+     * @throws NoSuchFileException        if the upload was removed meanwhile
+     * @throws IllegalArgumentException   if the chunk exceeds the length of the
+     *                                    upload or the checksum algorithm is not
+     *                                    supported
+     */
+    public long write(Upload upload, long offset, InputStream content, String checksum) throws IOException {
+        final MessageDigest digest = checksum != null ? digest(checksum) : null;
+        if (!upload.lock.tryLock()) {
+            throw new OffsetMismatchException("Another chunk of upload " + upload.id + " is being written");
+        }
+        try {
+            if (upload.removed) {
+                throw new NoSuchFileException(upload.file.toString(), null, "Upload was removed");
+            }
+            if (offset != upload.offset) {
+                throw new OffsetMismatchException(
+                        "Chunk offset " + offset + " does not match upload offset " + upload.offset);
+            }
+            long position = offset;
+            try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.WRITE)) {
+                final byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+                int read;
+                while ((read = content.read(buffer)) >= 0) {
+                    if (position + read > upload.length) {
+                        throw new IllegalArgumentException("Chunk exceeds the upload length of " + upload.length);
+                    }
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        position += channel.write(chunk, position);
+                    }
+                }
+                // The stored offset must never be ahead of the content on disk
+                channel.force(false);
+            }
+            if (digest != null) {
+                final String expected = checksum.substring(checksum.indexOf(' ') + 1).trim();
+                final String actual = Base64.getEncoder().encodeToString(digest.digest());
+                if (!actual.equals(expected)) {
+                    throw new ChecksumMismatchException("Checksum of chunk at offset " + offset + " does not match");
+                }
+            }
+            upload.offset = position;
+            save(upload);
+            return position;
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the transcription job of a complete upload, unless already started.
+     * The file is handed over to the job as it is.
+     *
+     * @param upload Complete upload
+     * @return Job of the upload, empty if it was already removed
+     * @throws QueueFullException if the job queue is full. The upload is kept, so
+     *                            the job can be started later.
+     */
+    public Optional<Job> submit(Upload upload) throws QueueFullException {
+        upload.lock.lock();
+        try {
+            if (!upload.isComplete()) {
+                throw new IllegalStateException("Upload " + upload.id + " is not complete");
+            }
+            if (upload.jobId != null) {
+                return jobManager.get(upload.jobId);
+            }
+            final JobRequest request = upload.request;
+            final Job job = jobManager.submit(request.client(), request.priority(), upload.file, request.language(),
+                    request.diarize(), request.tasks(), request.model(), request.accept(), request.formats());
+            upload.jobId = job.id();
+            try {
+                save(upload);
+            } catch (IOException e) {
+                logger.warnf(e, "Failed to store the job of upload %s", upload.id);
+            }
+            logger.debugf("Started job %s for upload %s", job.id(), upload.id);
+            return Optional.of(job);
+        } finally {
+            upload.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes an upload. Its file is deleted, unless it was handed over to a job.
+     *
+     * @param id ID of the upload
+     * @return false if a chunk of the upload is being written, so it was not
+     *         removed
+     */
+    public boolean remove(String id) {
+        final Upload upload = uploads.get(id);
+        if (upload == null) {
+            return true;
+        }
+        if (!upload.lock.tryLock()) {
+            return false;
+        }
+        try {
+            upload.removed = true;
+            uploads.remove(id, upload);
+            if (upload.jobId == null) {
+                Files.deleteIfExists(upload.file);
+            }
+            Files.deleteIfExists(stateFile(upload));
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete upload %s", id);
+        } finally {
+            upload.lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Removes all uploads not continued within the expiry time. The time of the
+     * last change is taken from the stored state.
+     */
+    void removeExpiredUploads() {
+        final Instant limit = Instant.now().minus(expiry);
+        for (Upload upload : List.copyOf(uploads.values())) {
+            if (lastModified(stateFile(upload)).isBefore(limit)) {
+                logger.infof("Removing expired upload %s", upload.id);
+                remove(upload.id);
+            }
+        }
+    }
+
+    /**
+     * Stores the state of an upload next to its file
+     */
+    private void save(Upload upload) throws IOException {
+        final Path stateFile = stateFile(upload);
+        final Path tmp = Files.createTempFile(stateFile.getParent(), upload.id, ".tmp");
+        try {
+            objectMapper.writeValue(tmp.toFile(),
+                    new State(upload.id, upload.length, upload.offset, upload.request, upload.jobId));
+            Files.move(tmp, stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static Path stateFile(Upload upload) {
+        return upload.file.resolveSibling(upload.id + STATE_SUFFIX);
+    }
+
+    /**
+     * @return Time of the last modification, the epoch if the file is missing
+     */
+    private static Instant lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toInstant();
+        } catch (IOException e) {
+            return Instant.EPOCH;
+        }
+    }
+
+    /**
+     * @param checksum Checksum header ("algorithm base64-digest")
+     * @return Digest for the algorithm of the checksum
+     */
+    private static MessageDigest digest(String checksum) {
+        final String algorithm = checksum.trim().split("\\s+", 2)[0].toLowerCase(Locale.ROOT);
+        try {
+            switch (algorithm) {
+                case "md5":
+                    return MessageDigest.getInstance("MD5");
+                case "sha1":
+                    return MessageDigest.getInstance("SHA-1");
+                case "sha256":
+                    return MessageDigest.getInstance("SHA-256");
+                default:
+                    throw new IllegalArgumentException("Unsupported checksum algorithm " + algorithm);
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
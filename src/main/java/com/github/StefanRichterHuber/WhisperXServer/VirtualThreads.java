@@ -0,0 +1,111 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Threads for blocking work like waiting for processes or copying pipes. On
+ * Java 21 and newer these are virtual threads, which do not occupy a platform
+ * thread while they are blocked. On older runtimes (and native images without
+ * virtual thread support) daemon platform threads are used instead. The
+ * virtual thread API is looked up reflectively, so the sources still compile
+ * for Java 17.
+ */
+public class VirtualThreads {
+    private static final Logger LOGGER = Logger.getLogger(VirtualThreads.class);
+
+    /**
+     * Thread.ofVirtual(), Thread.Builder.name(String, long),
+     * Thread.Builder.factory() and Executors.newThreadPerTaskExecutor(). null if
+     * virtual threads are not available.
+     */
+    private static final Method[] API = lookup();
+
+    private VirtualThreads() {
+
+    }
+
+    /**
+     * @return true if virtual threads are used
+     */
+    public static boolean isAvailable() {
+        return API != null;
+    }
+
+    /**
+     * Creates a factory for (virtual) threads
+     *
+     * @param name Name of the threads, followed by a counter
+     * @return Thread factory
+     */
+    public static ThreadFactory factory(String name) {
+        if (API != null) {
+            try {
+                final Object builder = API[1].invoke(API[0].invoke(null), name + "-", 0L);
+                return (ThreadFactory) API[2].invoke(builder);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Failed to create virtual thread factory", e);
+            }
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Creates an unbounded executor starting a new (virtual) thread per task. Use
+     * a semaphore or a bounded pool on top of it to limit the actual work.
+     *
+     * @param name Name of the threads, followed by a counter
+     * @return Executor
+     */
+    public static ExecutorService newExecutor(String name) {
+        if (API != null) {
+            try {
+                return (ExecutorService) API[3].invoke(null, factory(name));
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Failed to create virtual thread executor", e);
+            }
+        }
+        return Executors.newCachedThreadPool(factory(name));
+    }
+
+    /**
+     * Creates an executor for blocking work, which is limited elsewhere
+     *
+     * @param name     Name of the threads, followed by a counter
+     * @param fallback Bounded executor used if virtual threads are not
+     *                 available, instead of an unbounded number of platform
+     *                 threads
+     * @return Executor starting a virtual thread per task, or the fallback
+     */
+    public static Executor newExecutor(String name, Executor fallback) {
+        return API != null ? newExecutor(name) : fallback;
+    }
+
+    private static Method[] lookup() {
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            final Method[] api = new Method[] { Thread.class.getMethod("ofVirtual"),
+                    builder.getMethod("name", String.class, long.class), builder.getMethod("factory"),
+                    Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class) };
+            // Fails if virtual threads are a disabled preview feature
+            api[2].invoke(api[0].invoke(null));
+            return api;
+        } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+            LOGGER.infof("Virtual threads not available on Java %s, using platform threads",
+                    Runtime.version().feature());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+/**
+ * Minimal parser for the header of RIFF / WAVE files. Only reads the "fmt " and
+ * the position of the "data" chunk, the audio data itself is not touched.
+ */
+public class WavHeader {
+    /**
+     * Sample rate required by WhisperX
+     */
+    public static final int TARGET_SAMPLE_RATE = 16000;
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_IEEE_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    private final int audioFormat;
+    private final int channels;
+    private final int sampleRate;
+    private final int bitsPerSample;
+    private final long dataOffset;
+    private final long dataSize;
+
+    WavHeader(int audioFormat, int channels, int sampleRate, int bitsPerSample, long dataOffset, long dataSize) {
+        this.audioFormat = audioFormat;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.bitsPerSample = bitsPerSample;
+        this.dataOffset = dataOffset;
+        this.dataSize = dataSize;
+    }
+
+    /**
+     * Reads the WAV header of the given file
+     *
+     * @param file File to check
+     * @return Header or empty, if the file is not a (supported) WAV file
+     * @throws IOException
+     */
+    public static Optional<WavHeader> read(Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(fc);
+        }
+    }
+
+    /**
+     * Reads the WAV header from the current position of the given channel. After
+     * successful return, the channel is positioned at the start of the audio
+     * data.
+     *
+     * @param channel Channel to read from
+     * @return Header or empty, if the content is not a (supported) WAV file
+     * @throws IOException
+     */
+    public static Optional<WavHeader> read(SeekableByteChannel channel) throws IOException {
+        return read(channel, true);
+    }
+
+    /**
+     * Reads the WAV header from the beginning of a stream. After successful
+     * return, the buffer is positioned at the start of the audio data.
+     *
+     * @param prefix First bytes of the stream
+     * @return Header or empty, if the content is not a (supported) WAV file or
+     *         the header is not contained in the prefix. The data size is -1 if
+     *         the header does not contain a valid size.
+     * @throws IOException
+     */
+    public static Optional<WavHeader> read(ByteBuffer prefix) throws IOException {
+        final BufferChannel channel = new BufferChannel(prefix.slice());
+        final Optional<WavHeader> header = read(channel, false);
+        header.ifPresent(h -> prefix.position(prefix.position() + (int) h.getDataOffset()));
+        return header;
+    }
+
+    private static Optional<WavHeader> read(SeekableByteChannel channel, boolean sized) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        if (!readFully(channel, buffer, 12)) {
+            return Optional.empty();
+        }
+        if (buffer.getInt(0) != 0x46464952 /* RIFF */ || buffer.getInt(8) != 0x45564157 /* WAVE */) {
+            return Optional.empty();
+        }
+
+        int audioFormat = -1;
+        int channels = 0;
+        int sampleRate = 0;
+        int bitsPerSample = 0;
+
+        // Walk through the chunks until the data chunk is found
+        while (readFully(channel, buffer, 8)) {
+            final int chunkId = buffer.getInt(0);
+            final long chunkSize = Integer.toUnsignedLong(buffer.getInt(4));
+
+            if (chunkId == 0x20746d66 /* fmt */) {
+                if (chunkSize < 16 || !readFully(channel, buffer, (int) Math.min(chunkSize, buffer.capacity()))) {
+                    return Optional.empty();
+                }
+                audioFormat = Short.toUnsignedInt(buffer.getShort(0));
+                channels = Short.toUnsignedInt(buffer.getShort(2));
+                sampleRate = buffer.getInt(4);
+                bitsPerSample = Short.toUnsignedInt(buffer.getShort(14));
+                if (audioFormat == FORMAT_EXTENSIBLE && chunkSize >= 40) {
+                    // First two bytes of the sub format GUID contain the actual format
+                    audioFormat = Short.toUnsignedInt(buffer.getShort(24));
+                }
+                channel.position(channel.position() + chunkSize - Math.min(chunkSize, buffer.capacity())
+                        + (chunkSize & 1));
+            } else if (chunkId == 0x61746164 /* data */) {
+                if (audioFormat < 0) {
+                    return Optional.empty();
+                }
+                final long dataOffset = channel.position();
+                // Streamed WAV files (e.g. written by ffmpeg to a pipe) have no valid size
+                final boolean invalidSize = chunkSize == 0 || chunkSize == 0xFFFFFFFFL;
+                final long dataSize;
+                if (!sized) {
+                    dataSize = invalidSize ? -1 : chunkSize;
+                } else {
+                    final long available = channel.size() - dataOffset;
+                    dataSize = invalidSize || chunkSize > available ? available : chunkSize;
+                }
+                return Optional.of(new WavHeader(audioFormat, channels, sampleRate, bitsPerSample, dataOffset,
+                        dataSize));
+            } else {
+                channel.position(channel.position() + chunkSize + (chunkSize & 1));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Creates a canonical 44 byte header of a PCM WAV file
+     *
+     * @param channels      Number of channels
+     * @param sampleRate    Sample rate in Hz
+     * @param bitsPerSample Bits per sample
+     * @param dataSize      Number of audio bytes following the header
+     * @return Header, ready to be written
+     */
+    public static ByteBuffer createPcmHeader(int channels, int sampleRate, int bitsPerSample, long dataSize) {
+        final int frameSize = channels * ((bitsPerSample + 7) / 8);
+        final ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952 /* RIFF */).putInt((int) Math.min(36 + dataSize, 0xFFFFFFFFL))
+                .putInt(0x45564157 /* WAVE */);
+        header.putInt(0x20746d66 /* fmt */).putInt(16) //
+                .putShort((short) FORMAT_PCM) //
+                .putShort((short) channels) //
+                .putInt(sampleRate) //
+                .putInt(sampleRate * frameSize) //
+                .putShort((short) frameSize) //
+                .putShort((short) bitsPerSample);
+        header.putInt(0x61746164 /* data */).putInt((int) Math.min(dataSize, 0xFFFFFFFFL));
+        return header.flip();
+    }
+
+    private static boolean readFully(SeekableByteChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the audio data is already in the format required by
+     *         WhisperX (PCM signed 16 bit little-endian, 16 kHz, mono)
+     */
+    public boolean isWhisperXCompatible() {
+        return isPcm() && channels == 1 && sampleRate == TARGET_SAMPLE_RATE && bitsPerSample == 16;
+    }
+
+    /**
+     * @return true if the audio data is uncompressed integer PCM
+     */
+    public boolean isPcm() {
+        return audioFormat == FORMAT_PCM;
+    }
+
+    /**
+     * @return true if the audio data is uncompressed 32 bit floating point
+     */
+    public boolean isFloat() {
+        return audioFormat == FORMAT_IEEE_FLOAT && bitsPerSample == 32;
+    }
+
+    /**
+     * @return Duration of the audio data in seconds
+     */
+    public double getDurationSeconds() {
+        final int frameSize = getFrameSize();
+        return frameSize > 0 && sampleRate > 0 && dataSize > 0 ? (double) (dataSize / frameSize) / sampleRate : 0.0d;
+    }
+
+    /**
+     * @return Number of bytes per frame (one sample for all channels)
+     */
+    public int getFrameSize() {
+        return channels * ((bitsPerSample + 7) / 8);
+    }
+
+    public int getAudioFormat() {
+        return audioFormat;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    /**
+     * @return Offset of the first audio byte in the file
+     */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * @return Number of audio bytes, -1 if unknown (streams only)
+     */
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * Read-only channel over the prefix of a stream. Its size is unknown, so it
+     * reports the size of the prefix.
+     */
+    private static class BufferChannel implements SeekableByteChannel {
+        private final ByteBuffer buffer;
+
+        BufferChannel(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int length = Math.min(dst.remaining(), buffer.remaining());
+            dst.put(buffer.slice(buffer.position(), length));
+            buffer.position(buffer.position() + length);
+            return length;
+        }
+
+        @Override
+        public long position() {
+            return buffer.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            buffer.position((int) Math.min(newPosition, buffer.limit()));
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return buffer.limit();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WAV format %d, %d channels, %d Hz, %d bit, %d bytes of data", audioFormat, channels,
+                sampleRate, bitsPerSample, dataSize);
+    }
+}
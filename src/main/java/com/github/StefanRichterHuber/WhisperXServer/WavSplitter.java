@@ -0,0 +1,213 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits long WAV files (in the format required by WhisperX) into chunks at
+ * silence boundaries, using a simple energy-based voice activity detection
+ * over the PCM data. Each boundary is placed at the quietest point in a window
+ * around the target chunk length.
+ */
+public class WavSplitter {
+    /**
+     * Length of the frames the energy is computed for
+     */
+    static final int FRAME_MILLIS = 100;
+
+    /**
+     * Number of frames the energy is averaged over to find a pause instead of a
+     * single quiet frame
+     */
+    private static final int SMOOTHING_FRAMES = 5;
+
+    /**
+     * A chunk of the original audio
+     *
+     * @param file   WAV file containing the chunk
+     * @param offset Start of the chunk in the original audio in seconds
+     */
+    public record Chunk(Path file, double offset) {
+    }
+
+    private WavSplitter() {
+
+    }
+
+    /**
+     * Splits the given file into chunks of about the given duration. The chunks
+     * are written next to the file.
+     *
+     * @param wav           WAV file, 16 bit PCM mono
+     * @param chunkDuration Target duration of each chunk
+     * @param searchWindow  Maximum distance of a boundary from its target
+     *                      position, to find a silence
+     * @return Chunks, in order
+     * @throws IOException
+     */
+    public static List<Chunk> split(Path wav, Duration chunkDuration, Duration searchWindow) throws IOException {
+        final WavHeader header = WavHeader.read(wav)
+                .filter(h -> h.isPcm() && h.getChannels() == 1 && h.getBitsPerSample() == 16)
+                .orElseThrow(() -> new IOException(wav + " is no 16 bit mono PCM wav file"));
+        final int frameBytes = header.getSampleRate() * FRAME_MILLIS / 1000 * header.getFrameSize();
+
+        final String fileName = wav.getFileName().toString();
+        final String stem = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.')) : fileName;
+        final List<Chunk> chunks = new ArrayList<>();
+        try (FileChannel source = FileChannel.open(wav, StandardOpenOption.READ)) {
+            final double[] energy = frameEnergy(source, header, frameBytes);
+            final List<Integer> boundaries = findBoundaries(energy, (int) (chunkDuration.toMillis() / FRAME_MILLIS),
+                    (int) (searchWindow.toMillis() / FRAME_MILLIS));
+            boundaries.add(energy.length);
+
+            int start = 0;
+            try {
+                for (int end : boundaries) {
+                    final long from = (long) start * frameBytes;
+                    final long length = Math.min((long) end * frameBytes, header.getDataSize()) - from;
+                    final Path file = wav.resolveSibling(stem + ".chunk-" + chunks.size() + ".wav");
+                    writeChunk(source, header, header.getDataOffset() + from, length, file);
+                    chunks.add(new Chunk(file, start * FRAME_MILLIS / 1000.0));
+                    start = end;
+                }
+            } catch (IOException e) {
+                delete(chunks);
+                throw e;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Deletes the files of the given chunks
+     */
+    public static void delete(List<Chunk> chunks) {
+        for (Chunk chunk : chunks) {
+            try {
+                Files.deleteIfExists(chunk.file());
+            } catch (IOException e) {
+                // Work files are cleaned up anyway
+            }
+        }
+    }
+
+    /**
+     * Finds the chunk boundaries: starting from the previous boundary, the
+     * quietest point within the search window around the target chunk length.
+     *
+     * @param energy       Mean energy of each frame
+     * @param chunkFrames  Target number of frames per chunk
+     * @param searchFrames Maximum distance of a boundary from its target
+     * @return Frame indices of the boundaries (exclusive the end of the audio)
+     */
+    static List<Integer> findBoundaries(double[] energy, int chunkFrames, int searchFrames) {
+        final double[] smoothed = smooth(energy);
+        final List<Integer> boundaries = new ArrayList<>();
+        int start = 0;
+        // The last chunk must not get shorter than half the chunk length
+        while (energy.length - start > chunkFrames + Math.max(searchFrames, chunkFrames / 2)) {
+            final int target = start + chunkFrames;
+            final int from = Math.max(start + chunkFrames / 2, target - searchFrames);
+            final int to = Math.min(energy.length - chunkFrames / 2, target + searchFrames);
+            int best = target;
+            for (int i = from; i <= to; i++) {
+                if (smoothed[i] < smoothed[best]) {
+                    best = i;
+                }
+            }
+            boundaries.add(best);
+            start = best;
+        }
+        return boundaries;
+    }
+
+    /**
+     * Computes the mean energy of each frame, reading the audio data in a single
+     * pass
+     */
+    static double[] frameEnergy(FileChannel source, WavHeader header, int frameBytes) throws IOException {
+        final int frames = (int) ((header.getDataSize() + frameBytes - 1) / frameBytes);
+        final double[] energy = new double[frames];
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(frameBytes * 64).order(ByteOrder.LITTLE_ENDIAN);
+        long position = header.getDataOffset();
+        final long end = header.getDataOffset() + header.getDataSize();
+        int frame = 0;
+        while (position < end && frame < frames) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            final int read = source.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            // Only process complete frames, except at the end of the data
+            final int usable = position < end ? buffer.position() - buffer.position() % frameBytes
+                    : buffer.position();
+            position -= buffer.position() - usable;
+            buffer.flip().limit(usable);
+            final ShortBuffer samples = buffer.asShortBuffer();
+            while (samples.hasRemaining() && frame < frames) {
+                final int count = Math.min(frameBytes / 2, samples.remaining());
+                double sum = 0;
+                for (int i = 0; i < count; i++) {
+                    final double sample = samples.get();
+                    sum += sample * sample;
+                }
+                energy[frame++] = count > 0 ? sum / count : 0;
+            }
+        }
+        return energy;
+    }
+
+    /**
+     * Moving average over the frame energies
+     */
+    private static double[] smooth(double[] energy) {
+        final double[] smoothed = new double[energy.length];
+        double sum = 0;
+        for (int i = 0; i < energy.length; i++) {
+            sum += energy[i];
+            if (i >= SMOOTHING_FRAMES) {
+                sum -= energy[i - SMOOTHING_FRAMES];
+            }
+            // Centered on the frame
+            final int center = i - SMOOTHING_FRAMES / 2;
+            if (center >= 0) {
+                smoothed[center] = sum / Math.min(i + 1, SMOOTHING_FRAMES);
+            }
+        }
+        for (int i = Math.max(0, energy.length - SMOOTHING_FRAMES / 2); i < energy.length; i++) {
+            smoothed[i] = energy[i];
+        }
+        return smoothed;
+    }
+
+    private static void writeChunk(FileChannel source, WavHeader header, long from, long length, Path file)
+            throws IOException {
+        try (FileChannel target = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer chunkHeader = WavHeader.createPcmHeader(header.getChannels(), header.getSampleRate(),
+                    header.getBitsPerSample(), length);
+            while (chunkHeader.hasRemaining()) {
+                target.write(chunkHeader);
+            }
+            // Copied by the kernel, the audio data is not loaded into the heap
+            long copied = 0;
+            while (copied < length) {
+                final long transferred = source.transferTo(from + copied, length - copied, target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                copied += transferred;
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * A WhisperX model available for transcriptions, with its own WhisperX
+ * instances: a {@link JobScheduler} queueing the jobs for them and, if
+ * configured, a {@link WhisperXWorkerPool} keeping the model loaded.
+ */
+public class WhisperXModel implements AutoCloseable {
+	/**
+	 * Model name to select the model by expected latency
+	 */
+	public static final String AUTO = "auto";
+
+	/**
+	 * Weight of a new measurement in the realtime factor estimate
+	 */
+	private static final double SMOOTHING = 0.3;
+
+	private final String name;
+	private final int instances;
+	private final double baseRealtimeFactor;
+	private final JobScheduler scheduler;
+	private final WhisperXWorkerPool workerPool;
+	private volatile double realtimeFactor;
+
+	/**
+	 * @param name           Name of the model, passed to WhisperX
+	 * @param instances      Number of parallel WhisperX instances
+	 * @param realtimeFactor Expected seconds of audio transcribed per second,
+	 *                       refined by {@link #recordRealtimeFactor(double)}
+	 * @param scheduler      Scheduler of the instances
+	 * @param workerPool     Worker pool running the model, null to invoke
+	 *                       WhisperX once per job
+	 */
+	public WhisperXModel(String name, int instances, double realtimeFactor, JobScheduler scheduler,
+			WhisperXWorkerPool workerPool) {
+		this.name = name;
+		this.instances = instances;
+		this.baseRealtimeFactor = realtimeFactor;
+		this.realtimeFactor = realtimeFactor;
+		this.scheduler = scheduler;
+		this.workerPool = workerPool;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getInstances() {
+		return instances;
+	}
+
+	public JobScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * @return Worker pool running the model, null if WhisperX is invoked once per
+	 *         job
+	 */
+	public WhisperXWorkerPool getWorkerPool() {
+		return workerPool;
+	}
+
+	/**
+	 * @return Number of jobs which would start right away
+	 */
+	public int getFreeSlots() {
+		return Math.max(0, instances - scheduler.getRunningJobs() - scheduler.getQueueSize());
+	}
+
+	/**
+	 * @return Current estimate of the seconds of audio transcribed per second
+	 */
+	public double getRealtimeFactor() {
+		return realtimeFactor;
+	}
+
+	/**
+	 * Refines the realtime factor estimate with a measurement
+	 *
+	 * @param factor Seconds of audio transcribed per second of a finished job
+	 */
+	public void recordRealtimeFactor(double factor) {
+		if (factor > 0 && Double.isFinite(factor)) {
+			realtimeFactor = realtimeFactor * (1 - SMOOTHING) + factor * SMOOTHING;
+		}
+	}
+
+	/**
+	 * Estimates the time until a job with the given audio duration submitted now
+	 * would be finished: the time until it starts, based on the recent jobs (or,
+	 * without history, assuming the jobs in front of it are of the same
+	 * duration), plus its own transcription time.
+	 *
+	 * @param audioSeconds Duration of the audio
+	 * @return Estimated latency
+	 */
+	public Duration estimateLatency(double audioSeconds) {
+		final double processing = audioSeconds / realtimeFactor;
+		final Duration wait = scheduler.estimateWait();
+		final double waitSeconds;
+		if (wait != null) {
+			waitSeconds = wait.toMillis() / 1000.0;
+		} else {
+			final int ahead = scheduler.getQueueSize() + scheduler.getRunningJobs() - instances + 1;
+			waitSeconds = Math.max(0, ahead) / (double) instances * processing;
+		}
+		return Duration.ofMillis((long) ((waitSeconds + processing) * 1000));
+	}
+
+	/**
+	 * Selects the model for {@link #AUTO}: the most accurate model (the slowest
+	 * by its configured realtime factor) expected to finish the job within the
+	 * latency target. If no model meets the target, the one with the lowest
+	 * expected latency.
+	 *
+	 * @param models        Available models
+	 * @param audioSeconds  Duration of the audio
+	 * @param latencyTarget Maximum time until the job should be finished
+	 * @return Selected model
+	 */
+	public static WhisperXModel select(Collection<WhisperXModel> models, double audioSeconds,
+			Duration latencyTarget) {
+		return models.stream().filter(m -> m.estimateLatency(audioSeconds).compareTo(latencyTarget) <= 0)
+				.min(Comparator.comparingDouble(m -> m.baseRealtimeFactor))
+				.orElseGet(() -> models.stream()
+						.min(Comparator.comparing((WhisperXModel m) -> m.estimateLatency(audioSeconds))).orElseThrow());
+	}
+
+	/**
+	 * @param name Name of the model
+	 * @return Typical seconds of audio transcribed per second, relative to the
+	 *         large models (from the speed comparison of the Whisper models)
+	 */
+	public static double defaultRealtimeFactor(String name) {
+		final String n = name.toLowerCase(Locale.ROOT);
+		if (n.contains("tiny")) {
+			return 32;
+		} else if (n.contains("base")) {
+			return 16;
+		} else if (n.contains("small")) {
+			return 6;
+		} else if (n.contains("medium")) {
+			return 2;
+		}
+		return 1;
+	}
+
+	/**
+	 * @param name Name of the model
+	 * @return Typical memory needed by one instance of the model in bytes, 0 if
+	 *         unknown
+	 */
+	public static long defaultMemory(String name) {
+		final String n = name.toLowerCase(Locale.ROOT);
+		final long gb = 1024L * 1024 * 1024;
+		if (n.contains("tiny") || n.contains("base")) {
+			return gb;
+		} else if (n.contains("small")) {
+			return 2 * gb;
+		} else if (n.contains("medium")) {
+			return 5 * gb;
+		} else if (n.contains("large")) {
+			return 10 * gb;
+		}
+		return 0;
+	}
+
+	@Override
+	public void close() {
+		scheduler.close();
+		if (workerPool != null) {
+			workerPool.close();
+		}
+	}
+}
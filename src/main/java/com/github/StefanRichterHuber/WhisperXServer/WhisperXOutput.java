@@ -1,41 +1,55 @@
 package com.github.StefanRichterHuber.WhisperXServer;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Objects;
+import java.util.function.DoubleUnaryOperator;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment.Word;
 
 import io.quarkus.runtime.annotations.RegisterForReflection;
 
 @RegisterForReflection
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonInclude(Include.NON_NULL)
 public class WhisperXOutput {
     @RegisterForReflection
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    @JsonInclude(Include.NON_NULL)
     public static class Segment {
         @RegisterForReflection
+        @JsonIgnoreProperties(ignoreUnknown = true)
+        @JsonInclude(Include.NON_NULL)
         public static class Word {
             private final String word;
-            private final double start;
-            private final double end;
-            private final double score;
+            private final Double start;
+            private final Double end;
+            private final Double score;
             private final String speaker;
 
             public String getWord() {
                 return word;
             }
 
-            public double getStart() {
+            /**
+             * @return Start of the word or null if it could not be aligned (e.g.
+             *         numbers)
+             */
+            public Double getStart() {
                 return start;
             }
 
-            public double getEnd() {
+            public Double getEnd() {
                 return end;
             }
 
-            public double getScore() {
+            public Double getScore() {
                 return score;
             }
 
@@ -48,11 +62,31 @@ public class WhisperXOutput {
             }
 
             public Word() {
-                this.word = null;
-                this.start = 0.0d;
-                this.end = 0.0d;
-                this.score = 0.0d;
-                this.speaker = null;
+                this(null, null, null, null, null);
+            }
+
+            public Word(String word, Double start, Double end, Double score, String speaker) {
+                this.word = word;
+                this.start = start;
+                this.end = end;
+                this.score = score;
+                this.speaker = speaker;
+            }
+
+            /**
+             * @return Copy of this word, moved by the given number of seconds
+             */
+            public Word withOffset(double offset) {
+                return withTimestamps(timestamp -> timestamp + offset);
+            }
+
+            /**
+             * @param mapping Maps each timestamp in seconds
+             * @return Copy of this word with mapped timestamps
+             */
+            public Word withTimestamps(DoubleUnaryOperator mapping) {
+                return new Word(word, start != null ? map(start, mapping) : null,
+                        end != null ? map(end, mapping) : null, score, speaker);
             }
 
         }
@@ -75,6 +109,9 @@ public class WhisperXOutput {
             return text;
         }
 
+        /**
+         * @return Aligned words of this segment or null if not aligned
+         */
         public List<Word> getWords() {
             return words;
         }
@@ -88,11 +125,32 @@ public class WhisperXOutput {
         }
 
         public Segment() {
-            this.start = 0.0d;
-            this.end = 0.0d;
-            this.text = null;
-            this.words = new ArrayList<>();
-            this.speaker = null;
+            this(0.0d, 0.0d, null, null, null);
+        }
+
+        public Segment(double start, double end, String text, List<Word> words, String speaker) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+            this.words = words;
+            this.speaker = speaker;
+        }
+
+        /**
+         * @return Copy of this segment (and its words), moved by the given number
+         *         of seconds
+         */
+        public Segment withOffset(double offset) {
+            return withTimestamps(timestamp -> timestamp + offset);
+        }
+
+        /**
+         * @param mapping Maps each timestamp in seconds
+         * @return Copy of this segment (and its words) with mapped timestamps
+         */
+        public Segment withTimestamps(DoubleUnaryOperator mapping) {
+            return new Segment(map(start, mapping), map(end, mapping), text,
+                    words != null ? words.stream().map(w -> w.withTimestamps(mapping)).toList() : null, speaker);
         }
 
     }
@@ -100,54 +158,80 @@ public class WhisperXOutput {
     private final List<Segment> segments;
     @JsonProperty("word_segments")
     private final List<Word> wordSegments;
+    private final String language;
 
     public WhisperXOutput() {
-        segments = new ArrayList<>();
-        this.wordSegments = new ArrayList<>();
+        this(new ArrayList<>(), new ArrayList<>(), null);
+    }
+
+    public WhisperXOutput(List<Segment> segments, List<Word> wordSegments, String language) {
+        this.segments = segments;
+        this.wordSegments = wordSegments;
+        this.language = language;
+    }
+
+    /**
+     * Maps a timestamp, keeping the millisecond precision of WhisperX
+     */
+    private static double map(double timestamp, DoubleUnaryOperator mapping) {
+        return Math.round(mapping.applyAsDouble(timestamp) * 1000.0) / 1000.0;
+    }
+
+    /**
+     * @param mapping Maps each timestamp in seconds, e.g. from trimmed audio back
+     *                to the original audio
+     * @return Copy of this output with mapped timestamps
+     */
+    public WhisperXOutput withTimestamps(DoubleUnaryOperator mapping) {
+        return new WhisperXOutput(segments.stream().map(s -> s.withTimestamps(mapping)).toList(),
+                wordSegments != null ? wordSegments.stream().map(w -> w.withTimestamps(mapping)).toList() : null,
+                language);
+    }
+
+    /**
+     * Merges the outputs of consecutive chunks of an audio file into the output
+     * of the whole file
+     *
+     * @param parts   Outputs of the chunks, in order
+     * @param offsets Start of each chunk in the whole audio file in seconds
+     * @return Merged output with the language of the first chunk
+     */
+    public static WhisperXOutput merge(List<WhisperXOutput> parts, List<Double> offsets) {
+        final List<Segment> segments = new ArrayList<>();
+        final List<Word> wordSegments = new ArrayList<>();
+        for (int i = 0; i < parts.size(); i++) {
+            final double offset = offsets.get(i);
+            for (Segment segment : parts.get(i).getSegments()) {
+                segments.add(segment.withOffset(offset));
+            }
+            if (parts.get(i).getWordSegments() != null) {
+                for (Word word : parts.get(i).getWordSegments()) {
+                    wordSegments.add(word.withOffset(offset));
+                }
+            }
+        }
+        return new WhisperXOutput(segments, wordSegments, parts.isEmpty() ? null : parts.get(0).getLanguage());
     }
 
     /**
      * Converts this json representation of the WhisperX output to another format
      * 
      * @param outputFormat One of srt,vtt,txt,tsv,json,aud
-     * @return String representation or or null if format not supported
+     * @return String representation or null if format not supported
+     * @see WhisperXOutputWriter
      */
     public String toFormat(final String outputFormat) {
-        if ("json".equals(outputFormat)) {
-            final ObjectMapper om = new ObjectMapper();
-            try {
-                final String result = om.writeValueAsString(this);
-                return result;
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
-            }
+        final StringWriter out = new StringWriter(this.segments != null ? this.segments.size() * 128 : 16);
+        final WhisperXOutputWriter writer = WhisperXOutputWriter.create(outputFormat, out);
+        if (writer == null) {
+            return null;
         }
-        if ("txt".equals(outputFormat)) {
-            String currentSpeaker = null;
-            final StringBuilder sb = new StringBuilder();
-
-            for (Segment segment : this.getSegments()) {
-                final String speaker = segment.getSpeaker();
-                // Header line for each speaker
-                if (speaker != null && !speaker.isBlank() && !Objects.equals(currentSpeaker, speaker)) {
-                    if (!sb.isEmpty()) {
-                        sb.append("\n\n");
-                    }
-                    sb.append(speaker).append(":").append("\n");
-                    currentSpeaker = speaker;
-                }
-                final String text = segment.getText().trim();
-                sb.append(text);
-                if (text.endsWith("!") || text.endsWith("?")
-                        || text.endsWith(".")) {
-                    sb.append(" ");
-                }
-            }
-            return sb.toString();
+        try {
+            writer.write(this);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        // logger.errorf("Output format '%s' not supported for conversion",
-        // outputFormat);
-        return null;
+        return out.toString();
     }
 
     public String toString() {
@@ -161,4 +245,8 @@ public class WhisperXOutput {
     public List<Word> getWordSegments() {
         return this.wordSegments;
     }
+
+    public String getLanguage() {
+        return this.language;
+    }
 }
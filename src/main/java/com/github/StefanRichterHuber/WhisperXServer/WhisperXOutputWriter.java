@@ -0,0 +1,545 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment;
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment.Word;
+
+/**
+ * Renders a WhisperX output segment by segment into one of the output formats
+ * of WhisperX. Together with {@link #convert(JsonParser, WhisperXOutputWriter)}
+ * a JSON output is converted while it is parsed, so only a single segment is in
+ * memory at any time.
+ */
+public abstract class WhisperXOutputWriter {
+    /**
+     * Supported output formats
+     */
+    public static final List<String> FORMATS = List.of("json", "txt", "srt", "vtt", "tsv", "aud");
+
+    /**
+     * Shared mapper to bind single segments and words
+     */
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Languages WhisperX joins words without spaces for subtitles
+     */
+    private static final Set<String> LANGUAGES_WITHOUT_SPACES = Set.of("ja", "zh");
+
+    /**
+     * Default maximum line width of WhisperX subtitles
+     */
+    private static final int MAX_LINE_WIDTH = 1000;
+
+    protected final Writer out;
+    protected String language;
+
+    protected WhisperXOutputWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Creates a writer for the given format
+     *
+     * @param outputFormat One of srt,vtt,txt,tsv,json,aud
+     * @param out          Target of the rendered output, not closed by the writer
+     * @return Writer or null if format not supported
+     */
+    public static WhisperXOutputWriter create(String outputFormat, Writer out) {
+        if (outputFormat == null) {
+            return null;
+        }
+        switch (outputFormat) {
+            case "json":
+                return new JsonWriter(out);
+            case "txt":
+                return new TxtWriter(out);
+            case "srt":
+                return new SrtWriter(out);
+            case "vtt":
+                return new VttWriter(out);
+            case "tsv":
+                return new TsvWriter(out);
+            case "aud":
+                return new AudWriter(out);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Creates a parser for a WhisperX JSON output and checks that it starts with
+     * an object
+     *
+     * @return Parser positioned at the start of the object or null if the input
+     *         is empty
+     * @throws JsonParseException if the input is not a JSON object
+     */
+    public static JsonParser parse(InputStream json) throws IOException {
+        final JsonParser parser = MAPPER.createParser(json);
+        final JsonToken token = parser.nextToken();
+        if (token == null) {
+            parser.close();
+            return null;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            final JsonParseException e = new JsonParseException(parser, "Expected WhisperX output object, got " + token);
+            parser.close();
+            throw e;
+        }
+        return parser;
+    }
+
+    /**
+     * Streams the segments, word segments and language from the parser into the
+     * writer and finishes it. The parser is closed afterwards.
+     *
+     * @param parser Parser from {@link #parse(InputStream)}
+     */
+    public static void convert(JsonParser parser, WhisperXOutputWriter writer) throws IOException {
+        try (parser) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.currentName();
+                final JsonToken value = parser.nextToken();
+                if ("segments".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        writer.segment(parser.readValueAs(Segment.class));
+                    }
+                } else if ("word_segments".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        writer.wordSegment(parser.readValueAs(Word.class));
+                    }
+                } else if ("language".equals(field) && value == JsonToken.VALUE_STRING) {
+                    writer.language(parser.getText());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * Reads the language of a WhisperX JSON output without binding any segments.
+     * The whole input is validated on the way.
+     *
+     * @param parser Parser from {@link #parse(InputStream)}, closed afterwards
+     * @return Language or null if not present
+     */
+    public static String readLanguage(JsonParser parser) throws IOException {
+        String language = null;
+        try (parser) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.currentName();
+                if (parser.nextToken() == JsonToken.VALUE_STRING && "language".equals(field)) {
+                    language = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return language;
+    }
+
+    /**
+     * Writes the whole output and finishes the writer
+     */
+    public void write(WhisperXOutput output) throws IOException {
+        language(output.getLanguage());
+        if (output.getSegments() != null) {
+            for (Segment segment : output.getSegments()) {
+                segment(segment);
+            }
+        }
+        if (output.getWordSegments() != null) {
+            for (Word word : output.getWordSegments()) {
+                wordSegment(word);
+            }
+        }
+        finish();
+    }
+
+    /**
+     * @return true if the language must be known before the first segment is
+     *         written, because WhisperX puts it at the end of its output
+     */
+    public static boolean requiresLanguage(String outputFormat) {
+        return "srt".equals(outputFormat) || "vtt".equals(outputFormat);
+    }
+
+    public void language(String language) throws IOException {
+        this.language = language;
+    }
+
+    public abstract void segment(Segment segment) throws IOException;
+
+    public void wordSegment(Word word) throws IOException {
+        // Only part of the JSON output
+    }
+
+    /**
+     * Writes everything still pending. Does not close the target.
+     */
+    public void finish() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Same output as {@link WhisperXOutput} serialized by Jackson
+     */
+    private static class JsonWriter extends WhisperXOutputWriter {
+        private final JsonGenerator generator;
+        private String array;
+        private boolean segments;
+        private boolean wordSegments;
+
+        JsonWriter(Writer out) {
+            super(out);
+            try {
+                this.generator = MAPPER.createGenerator(out).disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                this.generator.writeStartObject();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void segment(Segment segment) throws IOException {
+            startArray("segments");
+            segments = true;
+            generator.writeObject(segment);
+        }
+
+        @Override
+        public void wordSegment(Word word) throws IOException {
+            startArray("word_segments");
+            wordSegments = true;
+            generator.writeObject(word);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!segments) {
+                startArray("segments");
+                segments = true;
+            }
+            if (!wordSegments) {
+                startArray("word_segments");
+            }
+            startArray(null);
+            if (language != null) {
+                generator.writeStringField("language", language);
+            }
+            generator.writeEndObject();
+            generator.flush();
+        }
+
+        /**
+         * Closes the current array and opens the given one, if not already open
+         */
+        private void startArray(String name) throws IOException {
+            if (Objects.equals(array, name)) {
+                return;
+            }
+            if (array != null) {
+                generator.writeEndArray();
+            }
+            if (name != null) {
+                generator.writeArrayFieldStart(name);
+            }
+            array = name;
+        }
+    }
+
+    /**
+     * Plain text, paragraphs per speaker
+     */
+    private static class TxtWriter extends WhisperXOutputWriter {
+        private String currentSpeaker;
+        private boolean empty = true;
+
+        TxtWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void segment(Segment segment) throws IOException {
+            final String speaker = segment.getSpeaker();
+            // Header line for each speaker
+            if (speaker != null && !speaker.isBlank() && !Objects.equals(currentSpeaker, speaker)) {
+                if (!empty) {
+                    out.write("\n\n");
+                }
+                out.write(speaker);
+                out.write(":\n");
+                currentSpeaker = speaker;
+                empty = false;
+            }
+            final String text = segment.getText().trim();
+            out.write(text);
+            empty &= text.isEmpty();
+            if (text.endsWith("!") || text.endsWith("?") || text.endsWith(".")) {
+                out.write(' ');
+                empty = false;
+            }
+        }
+    }
+
+    /**
+     * Same output as the TSV writer of WhisperX: start and end in milliseconds
+     */
+    private static class TsvWriter extends WhisperXOutputWriter {
+        private boolean header;
+
+        TsvWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void segment(Segment segment) throws IOException {
+            header();
+            out.write(Long.toString(Math.round(Math.rint(1000 * segment.getStart()))));
+            out.write('\t');
+            out.write(Long.toString(Math.round(Math.rint(1000 * segment.getEnd()))));
+            out.write('\t');
+            out.write(segment.getText().strip().replace('\t', ' '));
+            out.write('\n');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            header();
+            super.finish();
+        }
+
+        private void header() throws IOException {
+            if (!header) {
+                out.write("start\tend\ttext\n");
+                header = true;
+            }
+        }
+    }
+
+    /**
+     * Same output as the Audacity label writer of WhisperX
+     */
+    private static class AudWriter extends WhisperXOutputWriter {
+        AudWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void segment(Segment segment) throws IOException {
+            out.write(pythonFloat(segment.getStart()));
+            out.write('\t');
+            out.write(pythonFloat(segment.getEnd()));
+            out.write('\t');
+            if (segment.getSpeaker() != null) {
+                out.write("[[");
+                out.write(segment.getSpeaker());
+                out.write("]]");
+            }
+            out.write(segment.getText().strip().replace('\t', ' '));
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Creates the subtitles like WhisperX with default options: one subtitle per
+     * segment, built from the aligned words if the first segment has them. Lines
+     * longer than the maximum line width are broken.
+     */
+    private abstract static class SubtitleWriter extends WhisperXOutputWriter {
+        private final boolean alwaysIncludeHours;
+        private final char decimalMarker;
+        private final StringBuilder text = new StringBuilder(256);
+        private boolean started;
+        private Boolean aligned;
+        private Segment first;
+        private int lineLength;
+
+        SubtitleWriter(Writer out, boolean alwaysIncludeHours, char decimalMarker) {
+            super(out);
+            this.alwaysIncludeHours = alwaysIncludeHours;
+            this.decimalMarker = decimalMarker;
+        }
+
+        @Override
+        public void segment(Segment segment) throws IOException {
+            start();
+            if (aligned == null) {
+                aligned = segment.getWords() != null;
+            }
+            if (!aligned) {
+                final String stripped = segment.getText().strip().replace("-->", "->");
+                subtitle(segment, stripped);
+                return;
+            }
+            if (segment.getWords() == null) {
+                return;
+            }
+            final String separator = LANGUAGES_WITHOUT_SPACES.contains(language) ? "" : " ";
+            final List<Word> words = segment.getWords();
+            for (int i = 0; i < words.size(); i++) {
+                final String word = words.get(i).getWord();
+                final int length = word.codePointCount(0, word.length());
+                final boolean segmentBreak = i == 0 && first != null;
+                if (lineLength > 0 && lineLength + length <= MAX_LINE_WIDTH && !segmentBreak) {
+                    // Line continuation
+                    lineLength += length;
+                    text.append(separator).append(word);
+                    continue;
+                }
+                final String stripped = word.strip();
+                if (segmentBreak) {
+                    subtitle(first, text);
+                    text.setLength(0);
+                    first = null;
+                } else if (lineLength > 0) {
+                    // Line break
+                    text.append(separator).append('\n');
+                }
+                if (first == null) {
+                    first = segment;
+                } else if (lineLength == 0) {
+                    text.append(separator);
+                }
+                text.append(stripped);
+                lineLength = stripped.codePointCount(0, stripped.length());
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            start();
+            if (first != null) {
+                subtitle(first, text);
+                first = null;
+            }
+            super.finish();
+        }
+
+        private void start() throws IOException {
+            if (!started) {
+                started = true;
+                header();
+            }
+        }
+
+        private void subtitle(Segment segment, CharSequence text) throws IOException {
+            subtitle(formatTimestamp(segment.getStart(), alwaysIncludeHours, decimalMarker),
+                    formatTimestamp(segment.getEnd(), alwaysIncludeHours, decimalMarker),
+                    segment.getSpeaker() != null ? "[" + segment.getSpeaker() + "]: " + text : text);
+        }
+
+        protected void header() throws IOException {
+
+        }
+
+        protected abstract void subtitle(String start, String end, CharSequence text) throws IOException;
+    }
+
+    /**
+     * Same output as the SRT writer of WhisperX with default options
+     */
+    private static class SrtWriter extends SubtitleWriter {
+        private int index;
+
+        SrtWriter(Writer out) {
+            super(out, true, ',');
+        }
+
+        @Override
+        protected void subtitle(String start, String end, CharSequence text) throws IOException {
+            out.write(Integer.toString(++index));
+            out.write('\n');
+            out.write(start);
+            out.write(" --> ");
+            out.write(end);
+            out.write('\n');
+            out.append(text);
+            out.write("\n\n");
+        }
+    }
+
+    /**
+     * Same output as the VTT writer of WhisperX with default options
+     */
+    private static class VttWriter extends SubtitleWriter {
+        VttWriter(Writer out) {
+            super(out, false, '.');
+        }
+
+        @Override
+        protected void header() throws IOException {
+            out.write("WEBVTT\n\n");
+        }
+
+        @Override
+        protected void subtitle(String start, String end, CharSequence text) throws IOException {
+            out.write(start);
+            out.write(" --> ");
+            out.write(end);
+            out.write('\n');
+            out.append(text);
+            out.write("\n\n");
+        }
+    }
+
+    /**
+     * Formats a timestamp like WhisperX: [hh:]mm:ss.mmm, hours only if requested
+     * or necessary
+     */
+    static String formatTimestamp(double seconds, boolean alwaysIncludeHours, char decimalMarker) {
+        // Python rounds half to even
+        long millis = Math.round(Math.rint(seconds * 1000.0));
+        final long hours = millis / 3_600_000;
+        millis -= hours * 3_600_000;
+        final long minutes = millis / 60_000;
+        millis -= minutes * 60_000;
+        final long secs = millis / 1_000;
+        millis -= secs * 1_000;
+
+        final StringBuilder sb = new StringBuilder(12);
+        if (alwaysIncludeHours || hours > 0) {
+            pad(sb, hours, 2).append(':');
+        }
+        pad(sb, minutes, 2).append(':');
+        pad(sb, secs, 2).append(decimalMarker);
+        return pad(sb, millis, 3).toString();
+    }
+
+    private static StringBuilder pad(StringBuilder sb, long value, int digits) {
+        for (long limit = 10; digits > 1; digits--, limit *= 10) {
+            if (value < limit) {
+                sb.append('0');
+            }
+        }
+        return sb.append(value);
+    }
+
+    /**
+     * Formats a double like the Python repr (e.g. 12.0 or 0.0005), valid for the
+     * range of timestamps
+     */
+    private static String pythonFloat(double value) {
+        final String s = Double.toString(value);
+        if (s.indexOf('E') < 0) {
+            return s;
+        }
+        final String plain = new BigDecimal(s).stripTrailingZeros().toPlainString();
+        return plain.indexOf('.') < 0 ? plain + ".0" : plain;
+    }
+}
@@ -0,0 +1,173 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Progress of a running transcription job, updated from the output of
+ * WhisperX. WhisperX announces each stage (">>Performing transcription...")
+ * and prints the percentage of the stage ("Progress: 42.50%...") if invoked
+ * with --print_progress. Jobs with several tasks run WhisperX several times,
+ * each run taking the same share of the total progress.
+ */
+public class WhisperXProgress {
+	public enum Stage {
+		CONVERTING(5), TRANSCRIBING(65), ALIGNING(15), DIARIZING(15);
+
+		/**
+		 * Rough share of the stage on the total processing time
+		 */
+		private final int weight;
+
+		private Stage(int weight) {
+			this.weight = weight;
+		}
+	}
+
+	private static final Pattern STAGE = Pattern.compile(">>Performing (transcription|alignment|diarization)");
+	private static final Pattern PERCENT = Pattern.compile("Progress: (\\d+(?:\\.\\d+)?)%");
+
+	/**
+	 * Minimum progress in percent before an ETA is estimated
+	 */
+	private static final double MIN_PERCENT_FOR_ETA = 1.0;
+
+	private final boolean diarize;
+	private final int runs;
+	private final Clock clock;
+	private final Instant started;
+
+	private Stage stage = Stage.CONVERTING;
+	private double stagePercent;
+	private int run;
+
+	/**
+	 * @param diarize Speaker diarization is performed
+	 */
+	public WhisperXProgress(boolean diarize) {
+		this(diarize, 1);
+	}
+
+	/**
+	 * @param diarize Speaker diarization is performed
+	 * @param runs    Number of WhisperX runs of the job
+	 */
+	public WhisperXProgress(boolean diarize, int runs) {
+		this(diarize, runs, Clock.systemUTC());
+	}
+
+	WhisperXProgress(boolean diarize, int runs, Clock clock) {
+		this.diarize = diarize;
+		this.runs = Math.max(1, runs);
+		this.clock = clock;
+		this.started = clock.instant();
+	}
+
+	/**
+	 * Parses a line of the WhisperX output
+	 *
+	 * @param line Line printed by WhisperX
+	 */
+	public void onOutput(String line) {
+		final Matcher stageMatcher = STAGE.matcher(line);
+		if (stageMatcher.find()) {
+			switch (stageMatcher.group(1)) {
+				case "transcription":
+					setStage(Stage.TRANSCRIBING);
+					break;
+				case "alignment":
+					setStage(Stage.ALIGNING);
+					break;
+				default:
+					setStage(Stage.DIARIZING);
+					break;
+			}
+			return;
+		}
+		final Matcher percentMatcher = PERCENT.matcher(line);
+		if (percentMatcher.find()) {
+			final double percent = Double.parseDouble(percentMatcher.group(1));
+			synchronized (this) {
+				this.stagePercent = Math.min(100.0, Math.max(this.stagePercent, percent));
+			}
+		}
+	}
+
+	/**
+	 * Enters a new stage. Stages never go back.
+	 */
+	public synchronized void setStage(Stage stage) {
+		if (stage.ordinal() > this.stage.ordinal()) {
+			this.stage = stage;
+			this.stagePercent = 0;
+		}
+	}
+
+	/**
+	 * Starts the next WhisperX run of the job, beginning with the transcription
+	 * again
+	 */
+	public synchronized void nextRun() {
+		if (run < runs - 1) {
+			run++;
+			stage = Stage.TRANSCRIBING;
+			stagePercent = 0;
+		}
+	}
+
+	/**
+	 * Sets the progress of the current stage, if not reported by WhisperX itself
+	 */
+	public synchronized void setStagePercent(double percent) {
+		this.stagePercent = Math.min(100.0, Math.max(this.stagePercent, percent));
+	}
+
+	public synchronized Stage getStage() {
+		return stage;
+	}
+
+	/**
+	 * @return Progress of the current stage in percent
+	 */
+	public synchronized double getStagePercent() {
+		return stagePercent;
+	}
+
+	/**
+	 * @return Total progress in percent, weighting the stages by their typical
+	 *         duration and all runs equally
+	 */
+	public synchronized double getPercent() {
+		int total = 0;
+		double done = 0;
+		for (Stage s : Stage.values()) {
+			if (s == Stage.DIARIZING && !diarize) {
+				continue;
+			}
+			total += s.weight;
+			if (s.ordinal() < stage.ordinal()) {
+				done += s.weight;
+			} else if (s == stage) {
+				done += s.weight * stagePercent / 100.0;
+			}
+		}
+		return (100.0 * run + 100.0 * done / total) / runs;
+	}
+
+	/**
+	 * @return Estimated remaining processing time, extrapolated from the elapsed
+	 *         time and the total progress. Empty if too early to tell.
+	 */
+	public Optional<Duration> getEstimatedRemaining() {
+		final double percent = getPercent();
+		if (percent < MIN_PERCENT_FOR_ETA) {
+			return Optional.empty();
+		}
+		final long elapsed = Duration.between(started, clock.instant()).toMillis();
+		return Optional.of(Duration.ofMillis((long) (elapsed * (100.0 - percent) / percent)));
+	}
+}
@@ -1,38 +1,70 @@
 package com.github.StefanRichterHuber.WhisperXServer;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.time.ZonedDateTime;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import javax.sound.sampled.UnsupportedAudioFileException;
-
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
+import org.jboss.resteasy.reactive.RestStreamElementType;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.StefanRichterHuber.WhisperXServer.Job.JobStatus;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueStatus;
 
-import io.quarkus.vertx.http.Compressed;
+import io.smallrye.common.annotation.Blocking;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.vertx.core.Vertx;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
 import jakarta.inject.Inject;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HEAD;
 import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.PATCH;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
-import jakarta.ws.rs.container.AsyncResponse;
-import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
 
 @Path("/")
 public class WhisperXServer {
@@ -46,66 +78,239 @@ public class WhisperXServer {
     @Inject
     WhisperXService whisperXService;
 
+    @Inject
+    JobManager jobManager;
+
+    @Inject
+    UploadManager uploadManager;
+
+    @Inject
+    ClientRegistry clientRegistry;
+
     @Inject
     ScheduledExecutorService scheduledExecutorService;
 
-    private static final Map<String, Job> JOBS = new ConcurrentHashMap<>();
+    @Inject
+    Vertx vertx;
 
-    private enum JobStatus {
-        ON_GOING,
-        FINISHED,
-        ERROR,
-    }
+    /**
+     * Maximum time a long-polling status request is held
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.status.max-wait", defaultValue = "60s")
+    Duration maxWait;
 
-    private record Job(String id, String accept, JobStatus status, String result, ZonedDateTime started,
-            ZonedDateTime ended) {
-    }
+    /**
+     * Interval of the status updates sent to server-sent event streams
+     */
+    @Inject
+    @ConfigProperty(name = "whisperx.status.event-interval", defaultValue = "15s")
+    Duration eventInterval;
 
     /**
-     * Converts any audio file to the audio format required for WhisperX
+     * Runs the blocking parts of requests (job log, result files), after their
+     * content was received by the event loop. Virtual threads if available,
+     * otherwise the worker pool.
+     */
+    private final Executor blockingExecutor = VirtualThreads.newExecutor("request",
+            Infrastructure.getDefaultWorkerPool());
+
+    /**
+     * Header with the API key identifying a configured client
+     */
+    private static final String API_KEY_HEADER = "X-Api-Key";
+
+    /**
+     * Headers and content type of resumable uploads, as defined by the tus
+     * protocol
+     */
+    private static final String UPLOAD_LENGTH_HEADER = "Upload-Length";
+    private static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+    private static final String UPLOAD_CHECKSUM_HEADER = "Upload-Checksum";
+    private static final String UPLOAD_CONTENT_TYPE = "application/offset+octet-stream";
+    private static final int CHECKSUM_MISMATCH = 460;
+
+    /**
+     * Retry-After sent if there is no history of job durations to estimate from
+     */
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofMinutes(1);
+
+    /**
+     * Converts any audio file to the audio format required for WhisperX. The
+     * request body is streamed through ffmpeg directly into the response.
      * 
-     * @param ar      Async response
      * @param content Raw audio file content
      */
     @POST
     @Path("/convert")
     @Consumes("audio/*")
     @Produces("audio/wav")
-    @Compressed
-    public void convertAudioToTargetFormat(@Suspended AsyncResponse ar, InputStream content) {
-        CompletableFuture.runAsync(() -> {
+    public Response convertAudioToTargetFormat(InputStream content) {
+        final StreamingOutput converted = os -> {
             try {
-                final byte[] converted = audioConverterService.convertAudioToTargetFormat(content);
-                ar.resume(Response.ok(converted, "audio/wav").build());
-
-            } catch (IOException | InterruptedException | ExecutionException e) {
-                ar.resume(Response.serverError().entity(e.toString()).build());
+                audioConverterService.convertAudioToTargetFormat(content, Channels.newChannel(os));
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException("Failed to convert audio file", e);
             }
-        });
+        };
+        return Response.ok(converted, "audio/wav").build();
     }
 
     /**
-     * Checks the status of an on-going transcription job
+     * Checks the status of an on-going transcription job. With the wait
+     * parameter, the request is held until the job is completed or the wait time
+     * is over (long-polling), instead of returning immediately. Results are
+     * sent directly from their file, gzip compressed if the client accepts it.
+     * Jobs with several tasks or formats list their results (artifacts) when
+     * finished, each fetched with the task and format parameters. These jobs are
+     * kept until they expire.
      * 
-     * @param jobID ID of the job to look up
+     * @param jobID          ID of the job to look up
+     * @param wait           Maximum number of seconds to wait for the completion
+     *                       of the job
+     * @param task           Task of the artifact to fetch
+     * @param format         Format of the artifact to fetch
+     * @param acceptEncoding Accept-Encoding header
+     * @param routingContext Context of the request, to clean up after the result
+     *                       was sent
      * @return Current status of transcription / result / error
      */
     @GET
     @Path("transcription-status")
-    public Response transcriptionStatus(@QueryParam("job-id") String jobID) {
-        final Job job = JOBS.get(jobID);
+    @Blocking
+    public Uni<Response> transcriptionStatus(@QueryParam("job-id") String jobID,
+            @QueryParam("wait") @DefaultValue("0") int wait,
+            @QueryParam("task") String task,
+            @QueryParam("format") String format,
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+            @Context RoutingContext routingContext) throws IOException {
+        final boolean gzip = acceptsGzip(acceptEncoding);
+        final Job job = jobManager.get(jobID).orElse(null);
+        if (job == null || job.status() != JobStatus.ON_GOING || wait <= 0) {
+            return Uni.createFrom()
+                    .item(this.buildTranscriptionStatusResponse(jobID, task, format, gzip, routingContext));
+        }
+        final Duration timeout = Duration.ofSeconds(Math.min(wait, maxWait.toSeconds()));
+        return Uni.createFrom().completionStage(jobManager.awaitCompletion(jobID)) //
+                .ifNoItem().after(timeout).recoverWithItem(Optional.empty()) //
+                .emitOn(blockingExecutor) //
+                .map(completed -> {
+                    try {
+                        return this.buildTranscriptionStatusResponse(jobID, task, format, gzip, routingContext);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Cancels a job and removes it with its results. A queued job is removed
+     * from the queue, the WhisperX process of a running job (with all its child
+     * processes) is terminated, so its WhisperX instance is free for the next
+     * job.
+     * 
+     * @param jobID ID of the job to cancel
+     * @return 204 No Content, 404 if the job is unknown
+     */
+    @DELETE
+    @Path("transcription-status")
+    @Blocking
+    public Response cancelTranscription(@QueryParam("job-id") String jobID) {
+        final Job job = jobManager.get(jobID).orElse(null);
+        if (job == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        if (job.status() == JobStatus.ON_GOING) {
+            logger.infof("Cancelling job %s", jobID);
+        }
+        jobManager.remove(jobID);
+        return Response.noContent().build();
+    }
+
+    /**
+     * Streams the status of a transcription job as server-sent events: the
+     * current status, periodic updates while the job is queued or running, and
+     * the final status when the job is finished or failed. The result itself is
+     * fetched from the transcription-status endpoint afterwards.
+     * 
+     * @param jobID ID of the job to observe
+     * @return Stream of status updates, 404 if the job is unknown
+     */
+    @GET
+    @Path("transcription-status/events")
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @RestStreamElementType(MediaType.APPLICATION_JSON)
+    @Blocking
+    public Multi<TranscriptionStatus> transcriptionStatusEvents(@QueryParam("job-id") String jobID) {
+        final Job job = jobManager.get(jobID).orElseThrow(NotFoundException::new);
+        // Building the status might access a shared file system, keep it off the event loop
+        return this.streamStatus(job).runSubscriptionOn(blockingExecutor);
+    }
+
+    /**
+     * Emits the current status of the job, periodic updates while it is ongoing
+     * and the final status
+     */
+    private Multi<TranscriptionStatus> streamStatus(Job job) {
+        return Multi.createFrom().emitter(emitter -> {
+            emitter.emit(this.buildStatusResponse(job));
+            if (job.status() != JobStatus.ON_GOING) {
+                emitter.complete();
+                return;
+            }
+            final ScheduledFuture<?> updates = scheduledExecutorService.scheduleAtFixedRate(
+                    () -> jobManager.get(job.id()).filter(current -> current.status() == JobStatus.ON_GOING)
+                            .ifPresent(current -> emitter.emit(this.buildStatusResponse(current))),
+                    eventInterval.toMillis(), eventInterval.toMillis(), TimeUnit.MILLISECONDS);
+            emitter.onTermination(() -> updates.cancel(false));
+            jobManager.awaitCompletion(job.id()).whenComplete((completed, e) -> {
+                updates.cancel(false);
+                if (completed != null) {
+                    completed.ifPresent(current -> emitter.emit(this.buildStatusResponse(current)));
+                }
+                emitter.complete();
+            });
+        });
+    }
+
+    /**
+     * Builds the response of the transcription-status endpoint for the current
+     * state of the job. Finished and failed jobs are removed, once their result
+     * is delivered. Jobs with several results are kept.
+     */
+    private Response buildTranscriptionStatusResponse(String jobID, String task, String format, boolean gzip,
+            RoutingContext routingContext) throws IOException {
+        final Job job = jobManager.get(jobID).orElse(null);
         if (job != null) {
+            if (job.status() == JobStatus.FINISHED && job.hasArtifacts()) {
+                if (task == null && format == null) {
+                    return Response.ok(this.buildStatusResponse(job), MediaType.APPLICATION_JSON).build();
+                }
+                return this.buildArtifactResponse(job, task != null ? task : job.tasks().get(0),
+                        format != null ? format : job.formats().get(0), gzip);
+            }
             if (job.status() == JobStatus.FINISHED) {
-                JOBS.remove(jobID);
-                return Response.ok(job.result(), job.accept()).build();
+                final Optional<java.nio.file.Path> resultFile = jobManager.getResult(jobID);
+                if (resultFile.isEmpty()) {
+                    jobManager.remove(jobID);
+                    return Response.status(Status.GONE).entity("Result of job " + jobID + " is gone").build();
+                }
+                final Optional<java.nio.file.Path> compressed = gzip ? jobManager.getCompressedResult(jobID)
+                        : Optional.empty();
+                // The file is sent (zero-copy) after this method returns, remove the job once it is sent
+                routingContext.addEndHandler(sent -> blockingExecutor.execute(() -> jobManager.remove(jobID)));
+                final Response.ResponseBuilder response = Response.ok(compressed.orElse(resultFile.get()),
+                        job.accept()).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                compressed.ifPresent(file -> response.header(HttpHeaders.CONTENT_ENCODING, "gzip"));
+                return response.build();
             }
             if (job.status() == JobStatus.ERROR) {
-                JOBS.remove(jobID);
-                return Response.serverError().entity(job.result()).build();
+                jobManager.remove(jobID);
+                return Response.serverError().entity(job.error()).build();
             }
             if (job.status() == JobStatus.ON_GOING) {
                 return Response.status(Status.ACCEPTED)
-                        .entity(this.buildStatusResponse(jobID, job.accept(), job.started(), job.ended()))
+                        .entity(this.buildStatusResponse(job))
                         .type(MediaType.APPLICATION_JSON).build();
             }
         }
@@ -113,84 +318,498 @@ public class WhisperXServer {
     }
 
     /**
-     * Converts a Json object generated by WhisperX to another format
+     * Sends one of the results of a finished job with several results, without
+     * removing the job
+     */
+    private Response buildArtifactResponse(Job job, String task, String format, boolean gzip) {
+        final String artifact = WhisperXService.artifact(task, format);
+        if (!job.artifacts().contains(artifact)) {
+            return Response.status(Status.NOT_FOUND).entity("Job " + job.id() + " has no result " + artifact)
+                    .build();
+        }
+        final Optional<java.nio.file.Path> resultFile = jobManager.getResult(job.id(), artifact);
+        if (resultFile.isEmpty()) {
+            return Response.status(Status.GONE).entity("Result " + artifact + " of job " + job.id() + " is gone")
+                    .build();
+        }
+        final Optional<java.nio.file.Path> compressed = gzip ? jobManager.getCompressedResult(job.id(), artifact)
+                : Optional.empty();
+        final Response.ResponseBuilder response = Response.ok(compressed.orElse(resultFile.get()),
+                this.getContentType(format)).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        compressed.ifPresent(file -> response.header(HttpHeaders.CONTENT_ENCODING, "gzip"));
+        return response.build();
+    }
+
+    /**
+     * Converts a Json object generated by WhisperX to another format. The input
+     * is parsed and rendered segment by segment, so the memory needed does not
+     * depend on the length of the transcript. Subtitles need the language, which
+     * WhisperX writes last, so for them the input is spooled to a temporary file
+     * and read twice.
      * 
      * @param input  JSON generated by WhisperX
      * @param accept Outputformat
-     * @return
-     * @throws JsonProcessingException
+     * @return Converted transcription, 400 if the input is no valid JSON
      */
     @POST
     @Path("convert-transcription")
     @Consumes(MediaType.APPLICATION_JSON)
-    public String convertTranscription(WhisperXOutput input, @HeaderParam(HttpHeaders.ACCEPT) String accept)
-            throws JsonProcessingException {
+    public Response convertTranscription(InputStream input, @HeaderParam(HttpHeaders.ACCEPT) String accept)
+            throws IOException {
         final String outputFormat = this.getOutputFormat(accept);
-        final String result = input != null ? input.toFormat(outputFormat) : null;
-        return result;
+        final String type = "json".equals(outputFormat) ? MediaType.APPLICATION_JSON
+                : "txt".equals(outputFormat) ? MediaType.TEXT_PLAIN : accept;
+        final java.nio.file.Path spooled;
+        final String language;
+        final JsonParser parser;
+        if (WhisperXOutputWriter.requiresLanguage(outputFormat)) {
+            spooled = Files.createTempFile("transcription", ".json");
+            try {
+                Files.copy(input, spooled, StandardCopyOption.REPLACE_EXISTING);
+                final JsonParser scan = WhisperXOutputWriter.parse(Files.newInputStream(spooled));
+                language = scan != null ? WhisperXOutputWriter.readLanguage(scan) : null;
+                parser = scan != null ? WhisperXOutputWriter.parse(Files.newInputStream(spooled)) : null;
+            } catch (JsonProcessingException e) {
+                deleteQuietly(spooled);
+                throw new BadRequestException("Invalid WhisperX JSON: " + e.getOriginalMessage(), e);
+            } catch (IOException | RuntimeException e) {
+                deleteQuietly(spooled);
+                throw e;
+            }
+        } else {
+            spooled = null;
+            language = null;
+            try {
+                parser = WhisperXOutputWriter.parse(input);
+            } catch (JsonProcessingException e) {
+                throw new BadRequestException("Invalid WhisperX JSON: " + e.getOriginalMessage(), e);
+            }
+        }
+        if (parser == null) {
+            if (spooled != null) {
+                deleteQuietly(spooled);
+            }
+            return Response.noContent().build();
+        }
+
+        final StreamingOutput converted = os -> {
+            try {
+                final Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+                final WhisperXOutputWriter writer = WhisperXOutputWriter.create(outputFormat, out);
+                writer.language(language);
+                WhisperXOutputWriter.convert(parser, writer);
+            } finally {
+                parser.close();
+                if (spooled != null) {
+                    deleteQuietly(spooled);
+                }
+            }
+        };
+        return Response.ok(converted, type).build();
     }
 
     /**
-     * Starts a transcription of a a given audio file
+     * Starts a transcription of a a given audio (or video) file. The request body
+     * is streamed into the work file of the job by the event loop, so no thread
+     * is blocked while the client uploads. The file is converted to the format
+     * required by WhisperX as part of the job (unless it is already a 16 kHz mono
+     * PCM wav file).
      * 
-     * @param content  Audio file content
      * @param language Language of the content
      * @param diarize  Add speaker diarization
+     * @param priority Priority class of the job (high, normal, low), only to
+     *                 lower the class of the client. Defaults to the class of
+     *                 the client.
+     * @param model    WhisperX model to use (one of the configured models), "auto"
+     *                 to select it by the expected latency. Defaults to the
+     *                 configured default model.
+     * @param tasks    WhisperX tasks (transcribe, translate), repeatable.
+     *                 Defaults to transcribe.
+     * @param formats  Output formats (srt, vtt, txt, tsv, json, aud), repeatable.
+     *                 Defaults to the format of the accept header. With more than
+     *                 one task or format, all results are created by the same job
+     *                 and listed by the status of the finished job.
+     * @param apiKey   API key of a configured client, see
+     *                 {@link ClientRegistry}. Without, the client is identified
+     *                 by its remote address.
      * @param accept   Output file format
-     * @return
-     * @throws UnsupportedAudioFileException
+     * @param request  Request to read the audio file content from
+     * @return 202 Accepted with the job status, 429 Too Many Requests if the job
+     *         queue is full, 400 Bad Request if the model, a task or a format is
+     *         not available, 401 Unauthorized if the API key is unknown
      * @throws IOException
-     * @throws InterruptedException
      */
     @POST
     @Path("transcribe")
-    @Consumes("audio/wav")
-    public Response transcribe(
-            byte[] content, //
+    @Consumes({ "audio/*", "video/*" })
+    public Uni<Response> transcribe(
             @QueryParam("language") String language, //
             @QueryParam("diarize") @DefaultValue("false") boolean diarize, //
-            @HeaderParam(HttpHeaders.ACCEPT) String accept)
-            throws UnsupportedAudioFileException, IOException, InterruptedException {
-        final String outputFormat = this.getOutputFormat(accept);
+            @QueryParam("priority") String priority, //
+            @QueryParam("model") String model, //
+            @QueryParam("task") List<String> tasks, //
+            @QueryParam("format") List<String> formats, //
+            @HeaderParam(API_KEY_HEADER) String apiKey, //
+            @HeaderParam(HttpHeaders.ACCEPT) String accept, //
+            @Context HttpServerRequest request) throws IOException {
+        final UploadManager.JobRequest jobRequest;
+        try {
+            jobRequest = this.buildJobRequest(language, diarize, priority, model, tasks, formats, apiKey, accept,
+                    request);
+        } catch (WebApplicationException e) {
+            return Uni.createFrom().item(e.getResponse());
+        }
+        final String client = jobRequest.client();
 
-        // Timeouts occur -> immediately send back a 202 Accepted and let the client
-        // poll the status
-        final String jobID = UUID.randomUUID().toString();
-        final ZonedDateTime start = ZonedDateTime.now();
-        JOBS.put(jobID, new Job(jobID, accept, JobStatus.ON_GOING, null, start, null));
-
-        final CompletableFuture<Void> process = whisperXService.transcribe(content, diarize, language, outputFormat) //
-                .thenApply(text -> {
-                    return new Job(jobID, accept, JobStatus.FINISHED, text, start, ZonedDateTime.now());
-                })
-                .exceptionally(e -> {
-                    logger.errorf(e, "Failed to invoke WhisperX");
-                    return new Job(jobID, accept, JobStatus.ERROR, e.getMessage(), start, ZonedDateTime.now());
-                })
-                .thenAccept(job -> {
-                    JOBS.put(jobID, job);
-                });
+        // The content is received once the job is admitted, the admission check and
+        // creating the work file might access a shared file system
+        request.pause();
+        return Uni.createFrom().<java.nio.file.Path>emitter(emitter -> {
+            try {
+                // Reject the job before receiving the content, if it would not be accepted
+                jobManager.checkCapacity(client, model);
+                emitter.complete(whisperXService.createWorkFile("upload"));
+            } catch (QueueFullException | IOException e) {
+                emitter.fail(e);
+            }
+        }).runSubscriptionOn(blockingExecutor) //
+                .onItem().transformToUni(workFile -> this.receiveAndSubmit(jobRequest, workFile, request)) //
+                // Without receiving the content, the connection could not be used for further requests
+                .onFailure().invoke(() -> discardBody(request)) //
+                .onFailure(QueueFullException.class)
+                .recoverWithItem(e -> this.buildQueueFullResponse((QueueFullException) e));
+    }
+
+    /**
+     * Reads and drops the rest of the body of a paused request, which is not
+     * received
+     */
+    private static void discardBody(HttpServerRequest request) {
+        if (!request.isEnded()) {
+            request.handler(buffer -> {
+            }).resume();
+        }
+    }
 
-        // Always clean up the job after some hours, to prevent memory leaks
-        this.scheduledExecutorService.schedule(() -> {
-            JOBS.remove(jobID);
-            if (!process.isDone()) {
-                process.cancel(true);
+    /**
+     * Streams the request body into the work file and submits the job once it is
+     * received
+     */
+    private Uni<Response> receiveAndSubmit(UploadManager.JobRequest jobRequest, java.nio.file.Path workFile,
+            HttpServerRequest request) {
+        return Uni.createFrom()
+                .completionStage(() -> vertx.fileSystem().open(workFile.toString(), new OpenOptions().setWrite(true))
+                        .compose(request::pipeTo).toCompletionStage())
+                // Submitting the job writes the job log
+                .emitOn(blockingExecutor) //
+                .map(received -> {
+                    logger.debugf("Received audio from client %s into %s", jobRequest.client(), workFile);
+                    // Timeouts occur -> immediately send back a 202 Accepted and let the client
+                    // poll the status
+                    try {
+                        final Job job = jobManager.submit(jobRequest.client(), jobRequest.priority(), workFile,
+                                jobRequest.language(), jobRequest.diarize(), jobRequest.tasks(), jobRequest.model(),
+                                jobRequest.accept(), jobRequest.formats());
+                        return Response.status(Status.ACCEPTED)
+                                .entity(this.buildStatusResponse(job))
+                                .type(MediaType.APPLICATION_JSON).build();
+                    } catch (QueueFullException e) {
+                        deleteQuietly(workFile);
+                        return this.buildQueueFullResponse(e);
+                    }
+                }) //
+                .onFailure().invoke(e -> deleteQuietly(workFile));
+    }
+
+    /**
+     * Starts a resumable upload of a (large) audio or video file. The content is
+     * sent in chunks with PATCH requests to the returned location. Once it is
+     * complete, the transcription job is started, with the parameters of this
+     * request (see {@link #transcribe}).
+     * 
+     * @param length Total length of the file in bytes (Upload-Length header)
+     * @return 201 Created with the location of the upload, 429 Too Many Requests
+     *         if the job queue is full, 400 Bad Request if the length, model, a
+     *         task or a format is not valid, 401 Unauthorized if the API key is
+     *         unknown
+     */
+    @POST
+    @Path("uploads")
+    @Blocking
+    public Response createUpload(
+            @HeaderParam(UPLOAD_LENGTH_HEADER) Long length, //
+            @QueryParam("language") String language, //
+            @QueryParam("diarize") @DefaultValue("false") boolean diarize, //
+            @QueryParam("priority") String priority, //
+            @QueryParam("model") String model, //
+            @QueryParam("task") List<String> tasks, //
+            @QueryParam("format") List<String> formats, //
+            @HeaderParam(API_KEY_HEADER) String apiKey, //
+            @HeaderParam(HttpHeaders.ACCEPT) String accept, //
+            @Context HttpServerRequest request) throws IOException {
+        if (length == null) {
+            return Response.status(Status.BAD_REQUEST).entity(UPLOAD_LENGTH_HEADER + " header missing").build();
+        }
+        final UploadManager.JobRequest jobRequest;
+        try {
+            jobRequest = this.buildJobRequest(language, diarize, priority, model, tasks, formats, apiKey, accept,
+                    request);
+            // Reject the job before receiving the content, if it would not be accepted
+            jobManager.checkCapacity(jobRequest.client(), model);
+        } catch (WebApplicationException e) {
+            return e.getResponse();
+        } catch (QueueFullException e) {
+            return this.buildQueueFullResponse(e);
+        }
+        final UploadManager.Upload upload;
+        try {
+            upload = uploadManager.create(length, jobRequest);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+        return Response.created(URI.create("/uploads/" + upload.getId()))
+                .header(UPLOAD_OFFSET_HEADER, upload.getOffset()).build();
+    }
+
+    /**
+     * Returns the offset to resume an upload from
+     * 
+     * @param id ID of the upload
+     * @return 200 OK with the Upload-Offset and Upload-Length headers (and the
+     *         location of the job status, once the job is started), 404 if the
+     *         upload is unknown
+     */
+    @HEAD
+    @Path("uploads/{id}")
+    public Response getUpload(@PathParam("id") String id) {
+        final UploadManager.Upload upload = uploadManager.get(id).orElse(null);
+        if (upload == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        final Response.ResponseBuilder response = Response.ok() //
+                .header(UPLOAD_OFFSET_HEADER, upload.getOffset()) //
+                .header(UPLOAD_LENGTH_HEADER, upload.getLength()) //
+                .header(HttpHeaders.CACHE_CONTROL, "no-store");
+        if (upload.getJobId() != null) {
+            response.location(URI.create(String.format("/transcription-status?job-id=%s", upload.getJobId())));
+        }
+        return response.build();
+    }
+
+    /**
+     * Writes the next chunk of an upload into the file of the upload. The chunk
+     * must start at the current offset of the upload. If the chunk completes the
+     * upload, the transcription job is started. If the job could not be started
+     * because the queue was full, send an empty chunk at the end of the upload
+     * to retry.
+     * 
+     * @param id       ID of the upload
+     * @param offset   Offset of the chunk (Upload-Offset header)
+     * @param checksum Optional checksum of the chunk (Upload-Checksum header,
+     *                 e.g. "sha1 [base64 digest]", md5, sha1 and sha256 are
+     *                 supported)
+     * @param content  Content of the chunk
+     * @return 204 No Content with the new Upload-Offset, 202 Accepted with the
+     *         job status if the upload is complete, 409 Conflict if the offset
+     *         does not match, 460 if the checksum does not match, 404 if the
+     *         upload is unknown
+     */
+    @PATCH
+    @Path("uploads/{id}")
+    @Consumes(UPLOAD_CONTENT_TYPE)
+    @Blocking
+    public Response writeUpload(@PathParam("id") String id, //
+            @HeaderParam(UPLOAD_OFFSET_HEADER) Long offset, //
+            @HeaderParam(UPLOAD_CHECKSUM_HEADER) String checksum, //
+            InputStream content) throws IOException {
+        final UploadManager.Upload upload = uploadManager.get(id).orElse(null);
+        if (upload == null) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        if (offset == null) {
+            return Response.status(Status.BAD_REQUEST).entity(UPLOAD_OFFSET_HEADER + " header missing").build();
+        }
+        final long current;
+        try {
+            current = uploadManager.write(upload, offset, content, checksum);
+        } catch (NoSuchFileException e) {
+            // Removed meanwhile
+            return Response.status(Status.NOT_FOUND).build();
+        } catch (UploadManager.OffsetMismatchException e) {
+            return Response.status(Status.CONFLICT).header(UPLOAD_OFFSET_HEADER, upload.getOffset())
+                    .entity(e.getMessage()).build();
+        } catch (UploadManager.ChecksumMismatchException e) {
+            return Response.status(CHECKSUM_MISMATCH).header(UPLOAD_OFFSET_HEADER, upload.getOffset())
+                    .entity(e.getMessage()).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).header(UPLOAD_OFFSET_HEADER, upload.getOffset())
+                    .entity(e.getMessage()).build();
+        }
+        if (!upload.isComplete()) {
+            return Response.noContent().header(UPLOAD_OFFSET_HEADER, current).build();
+        }
+        try {
+            final Optional<Job> job = uploadManager.submit(upload);
+            if (job.isEmpty()) {
+                return Response.status(Status.GONE).entity("Job of upload " + id + " was removed").build();
             }
-        }, 48, TimeUnit.HOURS);
+            return Response.status(Status.ACCEPTED).header(UPLOAD_OFFSET_HEADER, current)
+                    .entity(this.buildStatusResponse(job.get())).type(MediaType.APPLICATION_JSON).build();
+        } catch (QueueFullException e) {
+            return Response.fromResponse(this.buildQueueFullResponse(e)).header(UPLOAD_OFFSET_HEADER, current)
+                    .build();
+        }
+    }
 
-        return Response.status(Status.ACCEPTED)
-                .entity(this.buildStatusResponse(jobID, accept, start, null)).type(MediaType.APPLICATION_JSON).build();
+    /**
+     * Aborts an upload and deletes the received content
+     * 
+     * @param id ID of the upload
+     * @return 204 No Content, 404 if the upload is unknown, 409 Conflict if a
+     *         chunk is being written
+     */
+    @DELETE
+    @Path("uploads/{id}")
+    @Blocking
+    public Response deleteUpload(@PathParam("id") String id) {
+        if (uploadManager.get(id).isEmpty()) {
+            return Response.status(Status.NOT_FOUND).build();
+        }
+        if (!uploadManager.remove(id)) {
+            return Response.status(Status.CONFLICT).entity("A chunk of upload " + id + " is being written").build();
+        }
+        return Response.noContent().build();
     }
 
     /**
-     * Builds the JSON status response for an on-going transcription process
+     * Identifies the client and validates the parameters of a new job
      * 
-     * @param id
-     * @return
+     * @throws BadRequestException   with the response to send, if a parameter
+     *                               is not valid
+     * @throws NotAuthorizedException with the response to send, if the API key
+     *                               is unknown
      */
-    private TranscriptionStatus buildStatusResponse(String id, String accept, ZonedDateTime start, ZonedDateTime end) {
-        return new TranscriptionStatus(id, String.format("/transcription-status?job-id=%s", id), accept, start, end);
+    private UploadManager.JobRequest buildJobRequest(String language, boolean diarize, String priority,
+            String model, List<String> tasks, List<String> formats, String apiKey, String accept,
+            HttpServerRequest request) {
+        final List<String> jobTasks = tasks.isEmpty() ? List.of(WhisperXService.TASK_TRANSCRIBE) : tasks;
+        final List<String> jobFormats = formats.isEmpty() ? List.of(this.getOutputFormat(accept)) : formats;
+        final String jobAccept = formats.isEmpty() ? accept : this.getContentType(formats.get(0));
+        final ClientRegistry.Client client = clientRegistry
+                .identify(apiKey, String.valueOf(request.remoteAddress().hostAddress()))
+                .orElseThrow(() -> new NotAuthorizedException(
+                        Response.status(Status.UNAUTHORIZED).entity("Unknown API key").build()));
+        final Priority jobPriority;
+        try {
+            jobPriority = ClientRegistry.priority(client, priority);
+        } catch (IllegalArgumentException e) {
+            throw badRequest("Unknown priority " + priority);
+        }
+        if (!whisperXService.isModelAvailable(model)) {
+            throw badRequest("Unknown model " + model);
+        }
+        jobTasks.stream().filter(t -> !WhisperXService.TASKS.contains(t)).findFirst().ifPresent(t -> {
+            throw badRequest("Unknown task " + t);
+        });
+        jobFormats.stream().filter(f -> !WhisperXOutputWriter.FORMATS.contains(f)).findFirst().ifPresent(f -> {
+            throw badRequest("Unknown format " + f);
+        });
+        return new UploadManager.JobRequest(client.id(), jobPriority, language, diarize, jobTasks, model, jobAccept,
+                jobFormats);
+    }
+
+    private static BadRequestException badRequest(String message) {
+        return new BadRequestException(Response.status(Status.BAD_REQUEST).entity(message).build());
+    }
+
+    private void deleteQuietly(java.nio.file.Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warnf(e, "Failed to delete %s", file);
+        }
+    }
+
+    /**
+     * Builds the JSON status response for a transcription job
+     * 
+     * @param job Job to report the status of
+     * @return Status including the position in the queue, if the job is still
+     *         queued, or the progress, if it is running
+     */
+    private TranscriptionStatus buildStatusResponse(Job job) {
+        final Optional<QueueStatus> queueStatus = job.status() == JobStatus.ON_GOING
+                ? jobManager.getQueueStatus(job.id())
+                : Optional.empty();
+        final Integer queuePosition = queueStatus.map(QueueStatus::position).orElse(null);
+        final ZonedDateTime estimatedStart = queueStatus.map(QueueStatus::estimatedStart)
+                .map(wait -> ZonedDateTime.now().plus(wait)).orElse(null);
+        final TranscriptionStatus.Progress progress = job.status() == JobStatus.ON_GOING
+                ? whisperXService.getProgress(job.id()).map(this::buildProgress).orElse(null)
+                : null;
+        final List<TranscriptionStatus.Artifact> artifacts = job.status() == JobStatus.FINISHED
+                && job.hasArtifacts() ? this.buildArtifacts(job) : null;
+        return new TranscriptionStatus(new TranscriptionStatus.Task(job.id(),
+                String.format("/transcription-status?job-id=%s", job.id()), job.accept(), job.started(),
+                job.ended(), queuePosition, estimatedStart, job.status().name(), job.error(), progress,
+                job.model(), artifacts, job.skippedSilence()));
+    }
+
+    /**
+     * Lists the results of a finished job with several results
+     */
+    private List<TranscriptionStatus.Artifact> buildArtifacts(Job job) {
+        return job.artifacts().stream().map(artifact -> {
+            final String[] parts = artifact.split("\\.", 2);
+            return new TranscriptionStatus.Artifact(parts[0], parts[1], this.getContentType(parts[1]),
+                    String.format("/transcription-status?job-id=%s&task=%s&format=%s", job.id(), parts[0],
+                            parts[1]));
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Converts the progress of a running job for the status response
+     */
+    private TranscriptionStatus.Progress buildProgress(WhisperXProgress progress) {
+        final ZonedDateTime estimatedEnd = progress.getEstimatedRemaining()
+                .map(remaining -> ZonedDateTime.now().plus(remaining)).orElse(null);
+        return new TranscriptionStatus.Progress(progress.getStage().name(),
+                Math.round(progress.getStagePercent() * 10) / 10.0, Math.round(progress.getPercent() * 10) / 10.0,
+                estimatedEnd);
+    }
+
+    /**
+     * Builds the 429 Too Many Requests response for a rejected job
+     * 
+     * @param e Rejection
+     * @return Response with Retry-After header
+     */
+    private Response buildQueueFullResponse(QueueFullException e) {
+        final Duration retryAfter = e.getRetryAfter() != null ? e.getRetryAfter() : DEFAULT_RETRY_AFTER;
+        return Response.status(Status.TOO_MANY_REQUESTS) //
+                .header(HttpHeaders.RETRY_AFTER, Math.max(1, retryAfter.toSeconds())) //
+                .entity(e.getMessage()) //
+                .type(MediaType.TEXT_PLAIN) //
+                .build();
+    }
+
+    /**
+     * @param acceptEncoding Accept-Encoding header
+     * @return true if the client accepts gzip compressed responses
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                // Explicitly rejected with q=0
+                return !(parts.length > 1 && parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?"));
+            }
+        }
+        return false;
     }
 
     /**
@@ -201,6 +820,9 @@ public class WhisperXServer {
      * @return output file format
      */
     private String getOutputFormat(String accept) {
+        if (accept == null) {
+            return "txt";
+        }
         switch (accept) {
             case MediaType.APPLICATION_JSON:
                 return "json";
@@ -218,4 +840,21 @@ public class WhisperXServer {
                 return "txt";
         }
     }
+
+    /**
+     * Converts an output file format to its mime type
+     * 
+     * @param outputFormat Output file format
+     * @return mime type
+     */
+    private String getContentType(String outputFormat) {
+        switch (outputFormat) {
+            case "json":
+                return MediaType.APPLICATION_JSON;
+            case "txt":
+                return MediaType.TEXT_PLAIN;
+            default:
+                return "text/" + outputFormat;
+        }
+    }
 }
@@ -1,39 +1,122 @@
 package com.github.StefanRichterHuber.WhisperXServer;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import org.eclipse.microprofile.config.Config;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.jboss.logging.Logger;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueStatus;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import io.quarkus.runtime.Startup;
+import io.quarkus.runtime.configuration.MemorySize;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.inject.Inject;
 
 @ApplicationScoped
+@Startup
 public class WhisperXService {
 
 	@Inject
 	Logger logger;
 
-	private String workdir = "/tmp";
+	@Inject
+	AudioConverterService audioConverterService;
+
+	@Inject
+	TranscriptionCache transcriptionCache;
+
+	@Inject
+	ObjectMapper objectMapper;
+
+	@Inject
+	MeterRegistry registry;
+
 	private String computeType = "int8";
 
-	private static final String TASK_TRANSCRIBE = "transcribe";
-	private static final String TASK_TRANSLATE = "translate";
+	public static final String TASK_TRANSCRIBE = "transcribe";
+	public static final String TASK_TRANSLATE = "translate";
 
-	private Executor executor;
+	/**
+	 * Supported tasks, in the order they are run
+	 */
+	public static final List<String> TASKS = List.of(TASK_TRANSCRIBE, TASK_TRANSLATE);
+
+	private static final String FORMAT_JSON = "json";
+
+	/**
+	 * Results of a job
+	 * 
+	 * @param artifacts      Results by artifact name (see
+	 *                       {@link WhisperXService#artifact(String, String)}), in
+	 *                       the order of the tasks and formats
+	 * @param skippedSilence Seconds of silence cut out before transcription, null
+	 *                       if not trimmed
+	 */
+	public record Result(Map<String, String> artifacts, Double skippedSilence) {
+	}
+
+	/**
+	 * Time a whisperX process of a cancelled job gets to terminate before it is
+	 * killed
+	 */
+	private static final Duration PROCESS_DESTROY_GRACE = Duration.ofSeconds(5);
+
+	/**
+	 * Progress of the running jobs
+	 */
+	private final Map<String, WhisperXProgress> progress = new ConcurrentHashMap<>();
+
+	/**
+	 * Available models, the default model first
+	 */
+	private final Map<String, WhisperXModel> models = new LinkedHashMap<>();
+
+	/**
+	 * Directory for the audio files of the jobs and the WhisperX result files. To
+	 * resume queued jobs after a restart, it must be persistent.
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.workdir", defaultValue = "/tmp")
+	String workdir;
 
 	/**
 	 * WhisperX executable to use
@@ -43,19 +126,39 @@ public class WhisperXService {
 	String executable;
 
 	/**
-	 * Number of parallel whisperX instances to run. Further jobs get queued.
+	 * Number of parallel whisperX instances of the default model to run. Further
+	 * jobs get queued.
 	 */
 	@Inject
 	@ConfigProperty(name = "whisperx.parallel-instances", defaultValue = "1")
 	int numOfInstances;
 
 	/**
-	 * WhisperX model to use. (small, medium, large-v2)
+	 * Default WhisperX model to use. (small, medium, large-v2)
 	 */
 	@Inject
 	@ConfigProperty(name = "whisperx.model", defaultValue = "small")
 	String whisperXModel;
 
+	/**
+	 * Further models which can be requested per job, each with its own instances
+	 * (whisperx.models.[name].parallel-instances, memory-budget, memory and
+	 * realtime-factor)
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.models")
+	Optional<List<String>> additionalModels;
+
+	/**
+	 * Latency target of the model selection "auto"
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.auto-model.latency-target", defaultValue = "10m")
+	Duration autoModelLatencyTarget;
+
+	@Inject
+	Config config;
+
 	/**
 	 * Hugging Face Access Token to access PyAnnote gated models (default: None)
 	 * 
@@ -82,118 +185,960 @@ public class WhisperXService {
 	@ConfigProperty(name = "whisperx.diarize", defaultValue = "false")
 	boolean diarize;
 
+	/**
+	 * Maximum number of jobs waiting for a free WhisperX instance. Further jobs are
+	 * rejected with 429 Too Many Requests.
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.queue.capacity", defaultValue = "100")
+	int queueCapacity;
+
+	/**
+	 * Maximum number of queued jobs of a single client (0 = no limit besides the
+	 * queue capacity)
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.queue.max-per-client", defaultValue = "0")
+	int queueMaxPerClient;
+
+	/**
+	 * Order of queued jobs of the same priority: fifo (in order of submission) or
+	 * sjf (shortest audio first, see whisperx.queue.aging)
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.queue.order", defaultValue = "sjf")
+	JobScheduler.Order queueOrder;
+
+	/**
+	 * Seconds of audio a queued job is treated shorter for each second it waited,
+	 * so long jobs are not starved by short ones (only for sjf)
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.queue.aging", defaultValue = "10")
+	double queueAging;
+
+	/**
+	 * Jobs with audio up to this length are short jobs
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.queue.short-job", defaultValue = "5m")
+	Duration queueShortJob;
+
+	/**
+	 * Number of instances of each model reserved for short jobs (0 = none). At
+	 * least one instance is always left for long jobs.
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.queue.short-lane-instances", defaultValue = "0")
+	int queueShortLaneInstances;
+
+	/**
+	 * Command to start a long-lived WhisperX worker (see whisperx_worker.py), e.g.
+	 * "python3,/whisperX/whisperx_worker.py". If present, a pool of
+	 * whisperx.parallel-instances workers is kept running, each loading the model
+	 * only once. Otherwise whisperx is invoked once per job.
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.worker.command")
+	Optional<List<String>> workerCommand;
+
+	/**
+	 * Number of jobs after which a worker process is replaced by a fresh one
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.worker.max-jobs", defaultValue = "100")
+	int workerMaxJobs;
+
+	/**
+	 * Maximum time a worker may take to start and load the model
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.worker.startup-timeout", defaultValue = "10m")
+	Duration workerStartupTimeout;
+
+	/**
+	 * Interval of the health checks of idle workers
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.worker.health-check-interval", defaultValue = "30s")
+	Duration workerHealthCheckInterval;
+
+	/**
+	 * Split long recordings at silences into chunks, which are transcribed in
+	 * parallel by the available WhisperX instances
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.chunking.enabled", defaultValue = "false")
+	boolean chunkingEnabled;
+
+	/**
+	 * Minimum duration of a recording to be split into chunks
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.chunking.min-duration", defaultValue = "20m")
+	Duration chunkingMinDuration;
+
+	/**
+	 * Target duration of each chunk
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.chunking.chunk-duration", defaultValue = "10m")
+	Duration chunkDuration;
+
+	/**
+	 * Maximum distance of a chunk boundary from its target position, to find a
+	 * silence to split at
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.chunking.search-window", defaultValue = "30s")
+	Duration chunkSearchWindow;
+
+	/**
+	 * Cut long silences out of the audio before transcription. Timestamps are
+	 * mapped back to the original audio.
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.vad.enabled", defaultValue = "false")
+	boolean vadEnabled;
+
+	/**
+	 * Audio quieter than this (in dB relative to full scale) is silence
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.vad.threshold", defaultValue = "-45")
+	double vadThreshold;
+
+	/**
+	 * Minimum duration of silences to cut
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.vad.min-silence", defaultValue = "2s")
+	Duration vadMinSilence;
+
+	/**
+	 * Silence kept before and after speech
+	 */
+	@Inject
+	@ConfigProperty(name = "whisperx.vad.padding", defaultValue = "300ms")
+	Duration vadPadding;
+
 	@PostConstruct
-	void createExecutor() {
-		/**
-		 * Since whisperX uses a lot of compute power and memory, we limit the amount of
-		 * parallel executions.
-		 */
-		this.executor = Executors.newFixedThreadPool(numOfInstances > 0 ? numOfInstances : 1);
+	void createExecutor() throws IOException {
+		Files.createDirectories(Paths.get(workdir));
+
+		Gauge.builder("whisperx.cache.size", transcriptionCache, TranscriptionCache::getSize)
+				.description("Size of the cached results").baseUnit(BaseUnits.BYTES).register(registry);
+
+		createModel(whisperXModel, numOfInstances);
+		for (String name : additionalModels.orElse(List.of())) {
+			if (!name.isBlank() && !WhisperXModel.AUTO.equals(name.trim()) && !models.containsKey(name.trim())) {
+				createModel(name.trim(), 1);
+			}
+		}
 	}
 
 	/**
-	 * Transcribes the given audio content
+	 * Creates the instances of a model. Since whisperX uses a lot of compute power
+	 * and memory, we limit the amount of parallel executions per model, by the
+	 * configured number of instances and the memory budget.
 	 * 
-	 * @param content      Audio file in wav format, with 16.000 kHz and mono
-	 * @param language     language spoken in the audio, specify null to perform
-	 *                     language detection
-	 * @param outputFormat One of srt,vtt,txt,tsv,json,aud
-	 * @param diarize      Apply diarization to assign speaker labels to each
-	 *                     segment/word
-	 * @return String containing the result file
+	 * @param name             Name of the model
+	 * @param defaultInstances Number of instances, if not configured for the model
 	 */
+	private void createModel(String name, int defaultInstances) {
+		final String prefix = "whisperx.models." + name + ".";
+		int instances = config.getOptionalValue(prefix + "parallel-instances", Integer.class).orElse(defaultInstances);
+		final long memory = config.getOptionalValue(prefix + "memory", MemorySize.class)
+				.map(MemorySize::asLongValue).orElse(WhisperXModel.defaultMemory(name));
+		final Optional<MemorySize> memoryBudget = config.getOptionalValue(prefix + "memory-budget", MemorySize.class);
+		if (memoryBudget.isPresent() && memory > 0) {
+			final long fitting = memoryBudget.get().asLongValue() / memory;
+			if (fitting < 1) {
+				logger.warnf("Memory budget of model %s is less than one instance needs, running one instance", name);
+			}
+			instances = (int) Math.max(1, Math.min(instances, fitting));
+		}
+		final double realtimeFactor = config.getOptionalValue(prefix + "realtime-factor", Double.class)
+				.orElse(WhisperXModel.defaultRealtimeFactor(name));
 
-	public CompletableFuture<String> transcribe(byte[] content, boolean diarize, String language, String outputFormat) {
-		return invokeWisperX(content, diarize, language, outputFormat, TASK_TRANSCRIBE);
+		final JobScheduler scheduler = new JobScheduler(instances, queueCapacity, queueMaxPerClient,
+				new JobScheduler.Policy(queueOrder, queueAging, queueShortJob.toSeconds(), queueShortLaneInstances));
+		WhisperXWorkerPool workerPool = null;
+		if (workerCommand.isPresent() && !workerCommand.get().isEmpty()) {
+			final List<String> command = new ArrayList<>(workerCommand.get());
+			command.addAll(Arrays.asList("--model", name, "--compute_type", computeType));
+			if (this.whisperXThreads.isPresent()) {
+				command.add("--threads");
+				command.add(this.whisperXThreads.get().toString());
+			}
+			final Map<String, String> environment = new HashMap<>();
+			if (this.hfToken.isPresent() && !this.hfToken.get().isBlank()) {
+				environment.put("HF_TOKEN", this.hfToken.get());
+			}
+			workerPool = new WhisperXWorkerPool(command, environment, instances, workerMaxJobs,
+					workerStartupTimeout, Duration.ofSeconds(30));
+			workerPool.start(workerHealthCheckInterval);
+		}
+		final WhisperXModel model = new WhisperXModel(name, instances, realtimeFactor, scheduler, workerPool);
+		models.put(name, model);
+		logger.infof("Model %s with %d instances", name, instances);
+
+		Gauge.builder("whisperx.queue.size", scheduler, JobScheduler::getQueueSize)
+				.description("Jobs waiting for a free WhisperX instance").tag("model", name).register(registry);
+		Gauge.builder("whisperx.instances.active", scheduler, JobScheduler::getRunningJobs)
+				.description("WhisperX instances currently busy").tag("model", name).register(registry);
+		Gauge.builder("whisperx.instances", model::getInstances)
+				.description("WhisperX instances available").tag("model", name).register(registry);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		models.values().forEach(WhisperXModel::close);
 	}
 
 	/**
-	 * Translates the given audio content to English
+	 * Creates a new, empty work file for the audio content of a job. Pass it to
+	 * {@link #transcribe(String, String, Priority, String, Path, boolean, String, List, List)}
+	 * once filled.
 	 * 
-	 * @param content      Audio file in wav format, with 16.000 kHz and mono
-	 * @param language     language spoken in the audio, specify null to perform
-	 *                     language detection
-	 * @param outputFormat One of srt,vtt,txt,tsv,json,aud
-	 * @param diarize      Apply diarization to assign speaker labels to each
-	 *                     segment/word
+	 * @param extension File extension of the work file, e.g. "wav"
+	 * @return Path of the work file
+	 * @throws IOException
+	 */
+	public Path createWorkFile(String extension) throws IOException {
+		return Files.createFile(Paths.get(workdir, UUID.randomUUID().toString() + "." + extension));
+	}
+
+	/**
+	 * Transcribes and / or translates the given audio content into all requested
+	 * formats. The job is planned to do the expensive parts only once: the audio
+	 * is converted once, all tasks run on the same WhisperX instance one after
+	 * another (transcription first, so the detected language is reused) and each
+	 * WhisperX result is rendered into all formats.
 	 * 
-	 * @return String containing the result file
+	 * @param jobId         Unique ID of the job
+	 * @param client        Client which submitted the job, used to share the
+	 *                      workers fairly between clients
+	 * @param priority      Priority class of the job
+	 * @param model         Model to use (see {@link #selectModel(String, Path)}),
+	 *                      null for the default model
+	 * @param content       Audio or video file. It is converted to the format
+	 *                      required by WhisperX (if necessary), but not deleted.
+	 * @param diarize       Apply diarization to assign speaker labels to each
+	 *                      segment/word
+	 * @param language      language spoken in the audio, specify null to perform
+	 *                      language detection
+	 * @param tasks         WhisperX tasks (transcribe, translate)
+	 * @param outputFormats Formats of the results, each of srt,vtt,txt,tsv,json,aud
+	 * @return Results of the job
+	 * @throws QueueFullException       if the job queue is full
+	 * @throws IllegalArgumentException if the model is not available
 	 */
+	public CompletableFuture<Result> transcribe(String jobId, String client, Priority priority,
+			String model, Path content, boolean diarize, String language, List<String> tasks,
+			List<String> outputFormats) throws QueueFullException {
+		final List<String> plannedTasks = tasks.stream().distinct()
+				.sorted(Comparator.comparingInt(TASKS::indexOf)).collect(Collectors.toList());
+		return invokeWisperX(jobId, client, priority, getModel(model), content, diarize, language, plannedTasks,
+				outputFormats.stream().distinct().collect(Collectors.toList()));
+	}
+
+	/**
+	 * @param task         WhisperX task
+	 * @param outputFormat Output format
+	 * @return Name of the result of a task in a format, e.g. "translate.srt"
+	 */
+	public static String artifact(String task, String outputFormat) {
+		return task + "." + outputFormat;
+	}
 
-	public CompletableFuture<String> translate(byte[] content, boolean diarize, String language, String outputFormat) {
-		return invokeWisperX(content, diarize, language, outputFormat, TASK_TRANSLATE);
+	/**
+	 * @param model Requested model, null for the default model
+	 * @return true if the model (or "auto") can be requested
+	 */
+	public boolean isModelAvailable(String model) {
+		return model == null || model.isBlank() || WhisperXModel.AUTO.equals(model) || models.containsKey(model);
 	}
 
 	/**
-	 * Invokes whisperX
+	 * Resolves the requested model. For "auto", the most accurate model expected
+	 * to finish within the configured latency target is selected, considering
+	 * the duration of the audio and the queue of each model.
 	 * 
-	 * @param content      Audio file in wav format, with 16.000 kHz and mono
-	 * @param language     language spoken in the audio, specify null to perform
-	 *                     language detection
-	 * @param outputFormat One of srt,vtt,txt,tsv,json,aud
-	 * @param task         One of transcribe,translate
-	 * @param diarize      Apply diarization to assign speaker
-	 *                     labels to each segment/word
+	 * @param model   Requested model, null for the default model
+	 * @param content Uploaded audio
+	 * @return Name of the model to use
+	 * @throws IllegalArgumentException if the model is not available
+	 */
+	public String selectModel(String model, Path content) {
+		if (!WhisperXModel.AUTO.equals(model)) {
+			return getModel(model).getName();
+		}
+		final double duration = estimateDuration(content);
+		final WhisperXModel selected = WhisperXModel.select(models.values(), duration, autoModelLatencyTarget);
+		logger.infof("Selected model %s for %s (about %.0f s)", selected.getName(), content, duration);
+		return selected.getName();
+	}
+
+	/**
+	 * Checks if a job of the given client would currently be accepted
 	 * 
-	 * @return String containing the result file
+	 * @param client Client which wants to submit a job
+	 * @param model  Requested model, null for the default model. For "auto", any
+	 *               model must accept the job.
+	 * @throws QueueFullException       if the job queue is full
+	 * @throws IllegalArgumentException if the model is not available
+	 */
+	public void checkCapacity(String client, String model) throws QueueFullException {
+		if (!WhisperXModel.AUTO.equals(model)) {
+			getModel(model).getScheduler().checkCapacity(client);
+			return;
+		}
+		QueueFullException full = null;
+		for (WhisperXModel candidate : models.values()) {
+			try {
+				candidate.getScheduler().checkCapacity(client);
+				return;
+			} catch (QueueFullException e) {
+				full = e;
+			}
+		}
+		throw full;
+	}
+
+	/**
+	 * @return Number of jobs which would start right away, because WhisperX
+	 *         instances are idle
 	 */
+	public int getFreeSlots() {
+		return models.values().stream().mapToInt(WhisperXModel::getFreeSlots).sum();
+	}
+
+	/**
+	 * @param model Name of the model, null for the default model
+	 * @return Number of jobs of the model which would start right away, 0 if the
+	 *         model is not available
+	 */
+	public int getFreeSlots(String model) {
+		return isModelAvailable(model) && !WhisperXModel.AUTO.equals(model) ? getModel(model).getFreeSlots() : 0;
+	}
 
-	private CompletableFuture<String> invokeWisperX(byte[] content, boolean diarize, String language,
-			String outputFormat, String task) {
+	/**
+	 * Returns the position of a job in the queue
+	 * 
+	 * @param jobId ID of the job
+	 * @return Queue status or empty if the job is not queued (anymore)
+	 */
+	public Optional<QueueStatus> getQueueStatus(String jobId) {
+		for (WhisperXModel model : models.values()) {
+			final Optional<QueueStatus> status = model.getScheduler().getQueueStatus(jobId);
+			if (status.isPresent()) {
+				return status;
+			}
+		}
+		return Optional.empty();
+	}
 
-		final String filePrefix = UUID.randomUUID().toString();
-		final String sourceFile = workdir + "/" + filePrefix + ".wav";
-		final String resultFile = workdir + "/" + filePrefix + "." + outputFormat;
+	/**
+	 * @param jobId ID of the job
+	 * @return Progress of the job, if it is running
+	 */
+	public Optional<WhisperXProgress> getProgress(String jobId) {
+		return Optional.ofNullable(progress.get(jobId));
+	}
 
-		return CompletableFuture.supplyAsync(() -> {
-			logger.infof(
-					"Invoked whisperX service with task '%s' in language '%s' for input '%s' and output '%s' in the format '%s'",
-					task, language, sourceFile, resultFile, outputFormat);
-			// Write temporary file
+	/**
+	 * @param name Name of the model, null for the default model
+	 * @return Model
+	 * @throws IllegalArgumentException if the model is not available
+	 */
+	private WhisperXModel getModel(String name) {
+		if (name == null || name.isBlank()) {
+			return models.get(whisperXModel);
+		}
+		final WhisperXModel model = models.get(name);
+		if (model == null) {
+			throw new IllegalArgumentException("Model '" + name + "' not available");
+		}
+		return model;
+	}
+
+	/**
+	 * Estimates the duration of uploaded audio: exact for wav files, otherwise
+	 * from the file size, assuming a typical bitrate of compressed audio
+	 * (128 kbit/s).
+	 * 
+	 * @return Duration in seconds, 0 if the file can not be read
+	 */
+	static double estimateDuration(Path content) {
+		try {
+			final Optional<WavHeader> header = WavHeader.read(content);
+			if (header.isPresent()) {
+				return header.get().getDurationSeconds();
+			}
+			return Files.size(content) / 16000.0;
+		} catch (IOException e) {
+			// Unknown, treated as a short job
+			return 0;
+		}
+	}
+
+	/**
+	 * Queues a job to convert the audio content and invoke whisperX
+	 * 
+	 * @see #transcribe(String, String, Priority, WhisperXModel, Path, Future,
+	 *      boolean, String, List, List)
+	 */
+	private CompletableFuture<Result> invokeWisperX(String jobId, String client, Priority priority,
+			WhisperXModel model, Path content, boolean diarize, String language, List<String> tasks,
+			List<String> outputFormats) throws QueueFullException {
+		final long queued = System.nanoTime();
+		final JobScheduler scheduler = model.getScheduler();
+		// Convert while the job waits for a free WhisperX instance, so conversions
+		// do not block an instance. The exact duration of converted audio replaces
+		// the estimate the job was queued with.
+		final Future<Path> conversion = audioConverterService.prepareForTranscription(content,
+				duration -> scheduler.updateCost(jobId, duration));
+		final CompletableFuture<Result> job;
+		try {
+			job = scheduler.submit(jobId, client, priority, estimateDuration(content), () -> {
+				Timer.builder("whisperx.queue.wait").description("Time jobs waited for a free WhisperX instance")
+						.tag("priority", priority.name().toLowerCase()).tag("model", model.getName())
+						.register(registry).record(System.nanoTime() - queued, TimeUnit.NANOSECONDS);
+				return transcribe(jobId, client, priority, model, content, conversion, diarize, language, tasks,
+						outputFormats);
+			});
+		} catch (QueueFullException e) {
+			cancelConversion(content, conversion);
+			throw e;
+		}
+		job.whenComplete((result, e) -> {
+			if (job.isCancelled()) {
+				cancelConversion(content, conversion);
+			}
+		});
+		return job;
+	}
+
+	/**
+	 * Waits for the conversion of the audio content and transcribes it. Blocks
+	 * until whisperX has finished.
+	 */
+	private Result transcribe(String jobId, String client, Priority priority, WhisperXModel model,
+			Path content, Future<Path> conversion, boolean diarize, String language, List<String> tasks,
+			List<String> outputFormats) {
+		final WhisperXProgress jobProgress = new WhisperXProgress(isDiarize(diarize), tasks.size());
+		progress.put(jobId, jobProgress);
+		try {
+			final Path wav;
 			try {
-				Files.write(Paths.get(sourceFile), content);
-			} catch (IOException e) {
-				throw new RuntimeException("Failed to write source file " + sourceFile, e);
+				wav = conversion.get();
+			} catch (InterruptedException e) {
+				conversion.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while converting audio file", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Failed to convert audio file", e.getCause());
+			}
+			try {
+				jobProgress.setStage(WhisperXProgress.Stage.TRANSCRIBING);
+				return transcribe(jobId, client, priority, model, wav, isDiarize(diarize), language, tasks,
+						outputFormats, jobProgress);
+			} finally {
+				deleteConverted(content, wav);
 			}
+		} finally {
+			progress.remove(jobId);
+		}
+	}
 
-			// Invoke whisperX
+	/**
+	 * Stops the conversion of a job which will not be transcribed, deleting its
+	 * result if already converted
+	 */
+	private void cancelConversion(Path content, Future<Path> conversion) {
+		if (!conversion.cancel(true) && conversion.isDone()) {
 			try {
-				final Process process = new ProcessBuilder(
-						buildProcessInvocation(language, diarize, outputFormat, task, sourceFile)).start();
-
-				final int exitCode = process.waitFor();
-				logger.debugf("WhisperX final status %d", exitCode);
-
-				if (exitCode == 0) {
-					if (Files.exists(Paths.get(resultFile))) {
-						// Read result file
-						logger.infof(
-								"Finished whisperX call with task '%s' in language '%s' for input '%s' and output '%s' in the format '%s'",
-								task, language, sourceFile, resultFile, outputFormat);
-						return Files.readString(Paths.get(resultFile), StandardCharsets.UTF_8);
-					} else {
-						throw new IOException("Result file " + resultFile + " not found");
+				deleteConverted(content, conversion.get());
+			} catch (InterruptedException | ExecutionException e) {
+				// Conversion failed, nothing to delete
+			}
+		}
+	}
+
+	/**
+	 * Runs the tasks on the given audio file one after another, using the result
+	 * cache if possible. The language detected by the first task is used by the
+	 * following ones. If enabled, long silences are cut out once before the first
+	 * task invoking WhisperX. WhisperX always creates JSON, which is read into a
+	 * compact transcript and rendered into all requested formats, JSON included.
+	 * Blocks until whisperX has finished.
+	 * 
+	 * @param diarize Diarization is performed (see {@link #isDiarize(boolean)})
+	 * @return Results of the job
+	 * @see #transcribe(String, String, Priority, WhisperXModel, Path, boolean,
+	 *      String, String, WhisperXProgress)
+	 */
+	private Result transcribe(String jobId, String client, Priority priority, WhisperXModel model, Path wav,
+			boolean diarize, String language, List<String> tasks, List<String> outputFormats,
+			WhisperXProgress jobProgress) {
+		final MessageDigest audio;
+		try {
+			// Hashed once for the cache keys of all tasks
+			audio = transcriptionCache.isEnabled() ? transcriptionCache.digestAudio(wav) : null;
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to compute cache key for " + wav, e);
+		}
+
+		final Map<String, String> artifacts = new LinkedHashMap<>();
+		// Silences are cut out at most once, and only if a task is not cached
+		SilenceTrimmer.Trimmed trimmed = null;
+		boolean trimAttempted = false;
+		Double skippedSilence = null;
+		String taskLanguage = language;
+		try {
+			for (int i = 0; i < tasks.size(); i++) {
+				final String task = tasks.get(i);
+				if (i > 0) {
+					jobProgress.nextRun();
+				}
+				final String key = audio != null
+						? transcriptionCache.computeKey(audio, model.getName(), taskLanguage, task, diarize,
+								vadSettings())
+						: null;
+				final Optional<TranscriptionCache.Entry> cached = key != null ? transcriptionCache.get(key)
+						: Optional.empty();
+				final CompactTranscript transcript;
+				if (cached.isPresent()) {
+					logger.infof("Using cached whisperX result for input '%s' and task '%s'", wav, task);
+					transcript = cached.get().transcript();
+					if (skippedSilence == null) {
+						skippedSilence = cached.get().skippedSilence();
 					}
 				} else {
-					throw new IOException("Failed to invoke " + executable + " with code " + exitCode);
+					if (!trimAttempted) {
+						trimmed = trimSilence(jobId, wav).orElse(null);
+						trimAttempted = true;
+						skippedSilence = trimmed != null ? trimmed.skipped() : null;
+					}
+					if (trimmed != null) {
+						transcript = CompactTranscript.of(trimmed.toOriginal(parse(transcribe(jobId, client,
+								priority, model, trimmed.file(), diarize, taskLanguage, task, jobProgress))));
+					} else {
+						transcript = CompactTranscript.of(parse(transcribe(jobId, client, priority, model, wav,
+								diarize, taskLanguage, task, jobProgress)));
+					}
+					if (key != null) {
+						transcriptionCache.put(key, transcript, trimmed != null ? trimmed.skipped() : null);
+					}
 				}
-			} catch (IOException | InterruptedException e) {
-				throw new RuntimeException("Failed to invoke " + executable, e);
+				for (String outputFormat : outputFormats) {
+					// All formats are rendered from the transcript, so cached and fresh results are identical
+					artifacts.put(artifact(task, outputFormat), render(transcript, outputFormat));
+				}
+				if (taskLanguage == null || taskLanguage.isBlank()) {
+					// Detect the language only once
+					taskLanguage = transcript.getLanguage();
+				}
+			}
+		} finally {
+			if (trimmed != null) {
+				deleteConverted(wav, trimmed.file());
+			}
+		}
+		return new Result(artifacts, skippedSilence);
+	}
+
+	/**
+	 * @return Settings silences are cut out of the audio with, part of the cache
+	 *         keys. Null if disabled.
+	 */
+	private String vadSettings() {
+		return vadEnabled ? String.join("|", String.valueOf(vadThreshold), String.valueOf(vadMinSilence.toMillis()),
+				String.valueOf(vadPadding.toMillis())) : null;
+	}
+
+	/**
+	 * Cuts long silences out of the audio, if enabled
+	 * 
+	 * @return Trimmed audio or empty if not trimmed
+	 */
+	private Optional<SilenceTrimmer.Trimmed> trimSilence(String jobId, Path wav) {
+		if (!vadEnabled) {
+			return Optional.empty();
+		}
+		try {
+			final long start = System.nanoTime();
+			final Optional<SilenceTrimmer.Trimmed> trimmed = SilenceTrimmer.trim(wav, vadThreshold, vadMinSilence,
+					vadPadding);
+			Timer.builder("whisperx.vad").description("Duration of cutting silences out of the audio")
+					.register(registry).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			if (trimmed.isPresent()) {
+				logger.infof("Cut %.0f s of silence out of %.0f s of audio of job %s", trimmed.get().skipped(),
+						trimmed.get().originalDuration(), jobId);
+				Counter.builder("whisperx.vad.skipped").description("Seconds of silence not transcribed")
+						.baseUnit("seconds").register(registry).increment(trimmed.get().skipped());
+			}
+			return trimmed;
+		} catch (IOException e) {
+			logger.warnf(e, "Failed to cut silences out of %s, transcribing it as it is", wav);
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * Transcribes the given audio file, long recordings in parallel chunks if
+	 * enabled. Blocks until whisperX has finished.
+	 * 
+	 * @return JSON output of whisperX
+	 */
+	private String transcribe(String jobId, String client, Priority priority, WhisperXModel model, Path wav,
+			boolean diarize, String language, String task, WhisperXProgress jobProgress) {
+		final long start = System.nanoTime();
+		final List<WavSplitter.Chunk> chunks = splitForParallelTranscription(model, wav, diarize);
+		final String result;
+		if (chunks.size() < 2) {
+			WavSplitter.delete(chunks);
+			result = invokeWisperX(model, wav, diarize, language, task, jobProgress::onOutput);
+		} else {
+			try {
+				result = transcribeChunks(jobId, client, priority, model, wav, chunks, diarize, language, task,
+						jobProgress);
 			} finally {
-				// Clean up both temporary files
+				WavSplitter.delete(chunks);
+			}
+		}
+		recordRealTimeFactor(model, wav, language, System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Records seconds of audio transcribed per second of wall time, also to
+	 * refine the estimate of the model
+	 */
+	private void recordRealTimeFactor(WhisperXModel model, Path wav, String language, long nanos) {
+		try {
+			final Optional<WavHeader> header = WavHeader.read(wav);
+			if (header.isPresent() && nanos > 0) {
+				final double factor = header.get().getDurationSeconds() * TimeUnit.SECONDS.toNanos(1) / nanos;
+				DistributionSummary.builder("whisperx.realtime.factor")
+						.description("Seconds of audio transcribed per second of wall time")
+						.tag("model", model.getName()).tag("language", languageTag(language)).register(registry)
+						.record(factor);
+				model.recordRealtimeFactor(factor);
+			}
+		} catch (IOException e) {
+			logger.debugf(e, "Failed to read duration of %s", wav);
+		}
+	}
+
+	/**
+	 * Limits the language tag of metrics to language codes, since it is taken
+	 * from the request
+	 */
+	private static String languageTag(String language) {
+		if (language == null || language.isBlank()) {
+			return "auto";
+		}
+		final String code = language.trim().toLowerCase();
+		return code.matches("[a-z]{2,3}") ? code : "other";
+	}
+
+	/**
+	 * Splits long recordings into chunks at silences, if chunking is enabled and
+	 * there is more than one WhisperX instance to transcribe them
+	 * 
+	 * @return Chunks or an empty list, if the recording should be transcribed in
+	 *         one piece
+	 */
+	private List<WavSplitter.Chunk> splitForParallelTranscription(WhisperXModel model, Path wav, boolean diarize) {
+		if (!chunkingEnabled || model.getInstances() < 2) {
+			return List.of();
+		}
+		// Speakers are only consistent across chunks if the whole recording is
+		// diarized at once, which requires the worker pool
+		if (diarize && model.getWorkerPool() == null) {
+			logger.debugf("Not splitting %s, diarization of chunks requires the worker pool", wav);
+			return List.of();
+		}
+		try {
+			final Optional<WavHeader> header = WavHeader.read(wav);
+			if (header.isEmpty() || header.get().getDurationSeconds() < chunkingMinDuration.toSeconds()) {
+				return List.of();
+			}
+			return WavSplitter.split(wav, chunkDuration, chunkSearchWindow);
+		} catch (IOException e) {
+			logger.warnf(e, "Failed to split %s into chunks, transcribing it in one piece", wav);
+			return List.of();
+		}
+	}
+
+	/**
+	 * Transcribes the chunks of a recording in parallel and merges the results.
+	 * The job itself and helper tasks, queued with the same priority, take the
+	 * chunks one by one. Since the job does not wait for helpers which did not
+	 * start yet, this can not dead-lock if all instances are busy. If diarization
+	 * is requested, it is applied once to the whole recording afterwards, to get
+	 * consistent speaker labels.
+	 * 
+	 * @return Merged JSON output of whisperX
+	 */
+	private String transcribeChunks(String jobId, String client, Priority priority, WhisperXModel model, Path wav,
+			List<WavSplitter.Chunk> chunks, boolean diarize, String language, String task,
+			WhisperXProgress jobProgress) {
+		logger.infof("Transcribing %s in %d chunks", wav, chunks.size());
+		final String[] results = new String[chunks.size()];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger finished = new AtomicInteger();
+		final CountDownLatch completed = new CountDownLatch(chunks.size());
+		final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+		// The progress output of parallel chunks can not be combined
+		final Consumer<String> ignoreOutput = line -> {
+		};
+
+		String chunkLanguage = language;
+		if (chunkLanguage == null || chunkLanguage.isBlank()) {
+			// Detect the language once, all chunks must be transcribed in the same language
+			results[0] = invokeWisperX(model, chunks.get(0).file(), false, null, task, ignoreOutput);
+			chunkLanguage = parse(results[0]).getLanguage();
+			jobProgress.setStagePercent(100.0 * finished.incrementAndGet() / chunks.size());
+			next.set(1);
+			completed.countDown();
+		}
+		final String detectedLanguage = chunkLanguage;
+		final Runnable takeChunks = () -> {
+			int i;
+			while ((i = next.getAndIncrement()) < chunks.size()) {
 				try {
-					Files.deleteIfExists(Paths.get(sourceFile));
-					Files.deleteIfExists(Paths.get(resultFile));
-				} catch (IOException e) {
-					throw new RuntimeException("Failed to clean up files", e);
+					if (failure.get() == null) {
+						results[i] = invokeWisperX(model, chunks.get(i).file(), false, detectedLanguage, task,
+								ignoreOutput);
+						jobProgress.setStagePercent(100.0 * finished.incrementAndGet() / chunks.size());
+					}
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					completed.countDown();
 				}
 			}
-		}, executor);
+		};
+
+		final List<CompletableFuture<?>> helpers = new ArrayList<>();
+		try {
+			final int helperCount = Math.min(model.getInstances() - 1, chunks.size() - next.get() - 1);
+			for (int i = 1; i <= helperCount; i++) {
+				helpers.add(model.getScheduler().submitHelper(jobId + "#chunk-helper-" + i, client, priority, () -> {
+					takeChunks.run();
+					return null;
+				}));
+			}
+			takeChunks.run();
+			completed.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while transcribing the chunks of " + wav, e);
+		} finally {
+			helpers.forEach(helper -> helper.cancel(true));
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		final List<WhisperXOutput> parts = new ArrayList<>(chunks.size());
+		final List<Double> offsets = new ArrayList<>(chunks.size());
+		for (int i = 0; i < chunks.size(); i++) {
+			parts.add(parse(results[i]));
+			offsets.add(chunks.get(i).offset());
+		}
+		final String merged;
+		try {
+			merged = objectMapper.writeValueAsString(WhisperXOutput.merge(parts, offsets));
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to merge the chunks of " + wav, e);
+		}
+		if (!diarize) {
+			return merged;
+		}
+		jobProgress.setStage(WhisperXProgress.Stage.DIARIZING);
+		return diarize(model, wav, merged, jobProgress::onOutput);
+	}
+
+	/**
+	 * Assigns speaker labels to the transcript of the whole recording, using the
+	 * worker pool
+	 * 
+	 * @param wav        Recording
+	 * @param transcript JSON output of whisperX
+	 * @return JSON output of whisperX with speakers
+	 */
+	private String diarize(WhisperXModel model, Path wav, String transcript, Consumer<String> onOutput) {
+		final String fileName = wav.getFileName().toString();
+		final String filePrefix = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.'))
+				: fileName;
+		final Path transcriptFile = Paths.get(workdir, filePrefix + ".merged." + FORMAT_JSON);
+		final Path resultFile = Paths.get(workdir, filePrefix + "." + FORMAT_JSON);
+		try {
+			Files.writeString(transcriptFile, transcript, StandardCharsets.UTF_8);
+			model.getWorkerPool().diarize(wav, transcriptFile, Paths.get(workdir), onOutput);
+			return Files.readString(resultFile, StandardCharsets.UTF_8);
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException("Failed to diarize " + wav, e);
+		} finally {
+			try {
+				Files.deleteIfExists(transcriptFile);
+				Files.deleteIfExists(resultFile);
+			} catch (IOException e) {
+				logger.warnf(e, "Failed to clean up files of %s", wav);
+			}
+		}
+	}
+
+	/**
+	 * Renders a result into one of the output formats segment by segment, without
+	 * creating the objects of the whole transcript
+	 */
+	private String render(CompactTranscript transcript, String outputFormat) {
+		final StringWriter out = new StringWriter(transcript.getSegmentCount() * 128);
+		final WhisperXOutputWriter writer = WhisperXOutputWriter.create(outputFormat, out);
+		if (writer == null) {
+			throw new IllegalArgumentException("Output format '" + outputFormat + "' not supported");
+		}
+		try {
+			transcript.render(writer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	private WhisperXOutput parse(String json) {
+		try {
+			return objectMapper.readValue(json, WhisperXOutput.class);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to parse whisperX result", e);
+		}
+	}
+
+	/**
+	 * Deletes the converted audio file, if it is not the original content
+	 */
+	private void deleteConverted(Path content, Path wav) {
+		if (!wav.equals(content)) {
+			try {
+				Files.deleteIfExists(wav);
+			} catch (IOException e) {
+				logger.warnf(e, "Failed to delete %s", wav);
+			}
+		}
+	}
+
+	/**
+	 * @param diarize Diarization requested for the job
+	 * @return true if whisperX actually performs the speaker diarization
+	 */
+	private boolean isDiarize(boolean diarize) {
+		return (diarize || this.diarize) && this.hfToken.isPresent();
+	}
+
+	/**
+	 * Invokes whisperX. Blocks until whisperX has finished.
+	 * 
+	 * @param model    Model to use
+	 * @param content  Audio file in wav format, with 16.000 kHz and mono
+	 * @param language language spoken in the audio, specify null to perform
+	 *                 language detection
+	 * @param task     One of transcribe,translate
+	 * @param diarize  Apply diarization to assign speaker
+	 *                 labels to each segment/word (see
+	 *                 {@link #isDiarize(boolean)})
+	 * @param onOutput Receives each line printed by whisperX
+	 * 
+	 * @return JSON output of whisperX
+	 */
+
+	private String invokeWisperX(WhisperXModel model, Path content, boolean diarize, String language, String task,
+			Consumer<String> onOutput) {
+
+		final String sourceFile = content.toString();
+		final String fileName = content.getFileName().toString();
+		final String filePrefix = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf('.'))
+				: fileName;
+		final Path resultFile = Paths.get(workdir, filePrefix + "." + FORMAT_JSON);
+
+		logger.infof(
+				"Invoked whisperX service with task '%s' and model '%s' in language '%s' for input '%s' and output '%s'",
+				task, model.getName(), language, sourceFile, resultFile);
+
+		// Invoke whisperX
+		final long start = System.nanoTime();
+		final WhisperXWorkerPool workerPool = model.getWorkerPool();
+		String status = "error";
+		try {
+			if (workerPool != null) {
+				workerPool.transcribe(content, Paths.get(workdir), FORMAT_JSON, task, language, diarize,
+						onOutput);
+				status = "0";
+			} else {
+				final Process process = new ProcessBuilder(
+						buildProcessInvocation(model.getName(), language, diarize, FORMAT_JSON, task, sourceFile))
+						.start();
+				try {
+					// Always drain the output, otherwise whisperX blocks as soon as the pipe is full
+					ProcessUtils.handleProcessOutput(process, line -> {
+						logger.debug(line);
+						onOutput.accept(line);
+					});
+
+					final int exitCode = ProcessUtils.waitFor(process);
+					logger.debugf("WhisperX final status %d", exitCode);
+					status = String.valueOf(exitCode);
+
+					if (exitCode != 0) {
+						throw new IOException("Failed to invoke " + executable + " with code " + exitCode);
+					}
+				} finally {
+					if (process.isAlive()) {
+						// Job cancelled, whisperX (and the processes it started) would keep running
+						logger.infof("Terminating whisperX process %d for input '%s'", process.pid(), sourceFile);
+						ProcessUtils.destroyTree(process, PROCESS_DESTROY_GRACE);
+					}
+				}
+			}
+
+			// Read result file
+			if (!Files.exists(resultFile)) {
+				throw new IOException("Result file " + resultFile + " not found");
+			}
+			final String result = Files.readString(resultFile, StandardCharsets.UTF_8);
+			logger.infof(
+					"Finished whisperX call with task '%s' in language '%s' for input '%s' and output '%s'",
+					task, language, sourceFile, resultFile);
+			return result;
+		} catch (InterruptedException e) {
+			// Keep the job thread interrupted, so waiting callers (e.g. for chunks) stop too
+			Thread.currentThread().interrupt();
+			status = "cancelled";
+			throw new RuntimeException("Invocation of " + executable + " cancelled", e);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to invoke " + executable, e);
+		} finally {
+			Timer.builder("whisperx.process").description("Wall time of WhisperX invocations")
+					.tag("mode", workerPool != null ? "worker" : "process").tag("model", model.getName())
+					.tag("task", task).tag("exit.code", status).register(registry)
+					.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			// Clean up the temporary result file
+			try {
+				Files.deleteIfExists(resultFile);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to clean up files", e);
+			}
+		}
 	}
 
 	/**
 	 * Builds the process invocation command to start whisperX
 	 * 
+	 * @param model        Model to use
 	 * @param language     Language of the wave file
 	 * @param outputFormat Output format of the text file
 	 * @param task         Task to perform
@@ -201,16 +1146,17 @@ public class WhisperXService {
 	 * @param diarize      Perform speaker diarization
 	 * @return Command Array
 	 */
-	private String[] buildProcessInvocation(String language, boolean diarize, String outputFormat, String task,
-			final String sourceFile) {
+	private String[] buildProcessInvocation(String model, String language, boolean diarize, String outputFormat,
+			String task, final String sourceFile) {
 		// Prepare default parameters
 		final List<String> parameters = new ArrayList<>();
 		parameters.addAll(Arrays.asList(executable, sourceFile, //
 				"--compute_type", computeType, //
 				"--output_dir", workdir, //
 				"--task", task, //
-				"--model", this.whisperXModel, //
-				"--output_format", outputFormat //
+				"--model", model, //
+				"--output_format", outputFormat, //
+				"--print_progress", "True" //
 		));
 		// Add optional parameters
 		if (language != null && !language.isBlank()) {
@@ -228,7 +1174,7 @@ public class WhisperXService {
 			parameters.add(this.hfToken.get());
 		}
 
-		if ((diarize || this.diarize) && this.hfToken.isPresent()) {
+		if (diarize) {
 			parameters.add("--diarize");
 		}
 
@@ -0,0 +1,256 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A single long-lived WhisperX worker process (see whisperx_worker.py). The
+ * worker loads the model once and afterwards receives one JSON request per
+ * line on stdin and answers with one JSON line on stdout.
+ */
+class WhisperXWorker {
+	private static final Logger LOGGER = Logger.getLogger(WhisperXWorker.class);
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	/**
+	 * Marker put into the response queue if stdout of the worker was closed
+	 */
+	private static final String EOF = "\0EOF";
+
+	/**
+	 * Time the worker gets to terminate before it is killed
+	 */
+	private static final Duration DESTROY_GRACE = Duration.ofSeconds(5);
+
+	private final Process process;
+
+	private final BufferedWriter stdin;
+
+	private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+
+	private int jobCount;
+
+	/**
+	 * Set as soon as the worker closed its stdout or failed to answer in time
+	 */
+	private volatile boolean broken;
+
+	/**
+	 * Receives the output of the worker while a job is running
+	 */
+	private volatile Consumer<String> outputListener;
+
+	private WhisperXWorker(Process process, Executor ioExecutor) {
+		this.process = process;
+		this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+
+		ProcessUtils.handleProcessOutput(process.getInputStream(), line -> {
+			if (line.startsWith("{")) {
+				responses.add(line);
+			} else {
+				onOutput(line);
+			}
+		}, ioExecutor).whenComplete((v, e) -> responses.add(EOF));
+		ProcessUtils.handleProcessOutput(process.getErrorStream(), this::onOutput, ioExecutor);
+	}
+
+	private void onOutput(String line) {
+		LOGGER.debugf("[worker %d] %s", process.pid(), line);
+		final Consumer<String> listener = outputListener;
+		if (listener != null) {
+			listener.accept(line);
+		}
+	}
+
+	/**
+	 * Starts a new worker process and waits until it reports to be ready (model
+	 * loaded)
+	 *
+	 * @param command        Command to start the worker
+	 * @param environment    Additional environment variables for the worker
+	 * @param ioExecutor     Executor for the stdout / stderr readers
+	 * @param startupTimeout Maximum time to wait for the worker to get ready
+	 * @return Ready worker
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	static WhisperXWorker start(List<String> command, Map<String, String> environment, Executor ioExecutor,
+			Duration startupTimeout) throws IOException, InterruptedException {
+		final ProcessBuilder pb = new ProcessBuilder(command);
+		pb.environment().putAll(environment);
+		final WhisperXWorker worker = new WhisperXWorker(pb.start(), ioExecutor);
+		try {
+			final JsonNode ready = worker.receive(startupTimeout);
+			if (!"ready".equals(ready.path("type").asText())) {
+				throw new IOException("Unexpected startup message from WhisperX worker: " + ready);
+			}
+			LOGGER.infof("WhisperX worker %d ready", worker.pid());
+			return worker;
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			worker.destroy();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks if the worker is still responsive
+	 *
+	 * @param timeout Maximum time to wait for the answer
+	 * @return true if the worker answered in time
+	 */
+	boolean ping(Duration timeout) {
+		final ObjectNode request = MAPPER.createObjectNode().put("type", "ping");
+		try {
+			send(request);
+			return "pong".equals(receive(timeout).path("type").asText());
+		} catch (IOException e) {
+			LOGGER.warnf(e, "Health check of WhisperX worker %d failed", pid());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Transcribes the given audio file. Blocks until the worker has finished. The
+	 * result file is written to the output directory, named like the audio file
+	 * with the extension of the output format (just like the whisperx cli does).
+	 *
+	 * @param audio        Audio file in wav format, with 16.000 kHz and mono
+	 * @param outputDir    Directory to write the result to
+	 * @param outputFormat One of srt,vtt,txt,tsv,json,aud
+	 * @param task         One of transcribe,translate
+	 * @param language     language spoken in the audio, null to perform language
+	 *                     detection
+	 * @param diarize      Apply diarization to assign speaker labels to each
+	 *                     segment/word
+	 * @param onOutput     Receives the output (progress) of the worker during the
+	 *                     job
+	 * @throws IOException          if the worker failed or died
+	 * @throws InterruptedException if interrupted while waiting. The worker is
+	 *                              destroyed in this case, since it is still busy.
+	 */
+	void transcribe(Path audio, Path outputDir, String outputFormat, String task, String language, boolean diarize,
+			Consumer<String> onOutput) throws IOException, InterruptedException {
+		final String id = audio.getFileName().toString();
+		final ObjectNode request = MAPPER.createObjectNode() //
+				.put("type", "transcribe") //
+				.put("id", id) //
+				.put("audio", audio.toString()) //
+				.put("output_dir", outputDir.toString()) //
+				.put("output_format", outputFormat) //
+				.put("task", task) //
+				.put("language", language != null && !language.isBlank() ? language : null) //
+				.put("diarize", diarize);
+
+		execute(request, onOutput);
+	}
+
+	/**
+	 * Assigns speaker labels to an existing transcript of the given audio file
+	 * (e.g. merged from the transcripts of its chunks). Blocks until the worker
+	 * has finished. The result is written to the output directory in the JSON
+	 * format, named like the audio file.
+	 *
+	 * @param audio      Audio file in wav format, with 16.000 kHz and mono
+	 * @param transcript JSON output of WhisperX for the audio file
+	 * @param outputDir  Directory to write the result to
+	 * @param onOutput   Receives the output (progress) of the worker during the
+	 *                   job
+	 * @throws IOException          if the worker failed or died
+	 * @throws InterruptedException if interrupted while waiting. The worker is
+	 *                              destroyed in this case, since it is still busy.
+	 */
+	void diarize(Path audio, Path transcript, Path outputDir, Consumer<String> onOutput)
+			throws IOException, InterruptedException {
+		final ObjectNode request = MAPPER.createObjectNode() //
+				.put("type", "diarize") //
+				.put("id", audio.getFileName().toString()) //
+				.put("audio", audio.toString()) //
+				.put("transcript", transcript.toString()) //
+				.put("output_dir", outputDir.toString());
+		execute(request, onOutput);
+	}
+
+	private void execute(ObjectNode request, Consumer<String> onOutput) throws IOException, InterruptedException {
+		jobCount++;
+		final JsonNode response;
+		outputListener = onOutput;
+		try {
+			send(request);
+			response = receive(null);
+		} catch (InterruptedException e) {
+			// Worker is still busy with the job, there is no way to abort it gracefully
+			destroy();
+			throw e;
+		} finally {
+			outputListener = null;
+		}
+		if (!"ok".equals(response.path("status").asText())) {
+			throw new IOException("WhisperX worker " + pid() + " failed: " + response.path("message").asText());
+		}
+	}
+
+	private void send(ObjectNode request) throws IOException {
+		stdin.write(MAPPER.writeValueAsString(request));
+		stdin.newLine();
+		stdin.flush();
+	}
+
+	private JsonNode receive(Duration timeout) throws IOException, InterruptedException {
+		final String line = timeout != null ? responses.poll(timeout.toMillis(), TimeUnit.MILLISECONDS)
+				: responses.take();
+		if (line == null) {
+			broken = true;
+			throw new IOException("WhisperX worker " + pid() + " did not answer within " + timeout);
+		}
+		if (EOF.equals(line)) {
+			// Keep the marker for any further calls
+			responses.add(EOF);
+			broken = true;
+			throw new IOException("WhisperX worker " + pid() + " terminated unexpectedly");
+		}
+		return MAPPER.readTree(line);
+	}
+
+	/**
+	 * @return Number of jobs processed by this worker
+	 */
+	int jobCount() {
+		return jobCount;
+	}
+
+	long pid() {
+		return process.pid();
+	}
+
+	boolean isAlive() {
+		return !broken && process.isAlive();
+	}
+
+	/**
+	 * Terminates the worker process and all its descendants
+	 */
+	void destroy() {
+		ProcessUtils.destroyTree(process, DESTROY_GRACE);
+	}
+}
@@ -0,0 +1,232 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Pool of long-lived WhisperX worker processes. Each worker loads the model
+ * once and then processes jobs one after another. Crashed or unresponsive
+ * workers are replaced, and workers are recycled after a configured number of
+ * jobs to limit the impact of memory leaks in the python process.
+ */
+public class WhisperXWorkerPool implements AutoCloseable {
+	private static final Logger LOGGER = Logger.getLogger(WhisperXWorkerPool.class);
+
+	/**
+	 * Delay before trying to start a worker again after a failed start
+	 */
+	private static final Duration RESTART_DELAY = Duration.ofSeconds(10);
+
+	private final List<String> command;
+	private final Map<String, String> environment;
+	private final int size;
+	private final int maxJobsPerWorker;
+	private final Duration startupTimeout;
+	private final Duration healthCheckTimeout;
+
+	private final BlockingQueue<WhisperXWorker> idle = new LinkedBlockingQueue<>();
+
+	/**
+	 * Runs the blocking stdout / stderr readers of the workers and the worker
+	 * startups
+	 */
+	private final ExecutorService ioExecutor = VirtualThreads.newExecutor("whisperx-worker-io");
+
+	private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread t = new Thread(r, "whisperx-worker-maintenance");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new pool. Workers are only started on {@link #start(Duration)}.
+	 *
+	 * @param command            Command to start a single worker
+	 * @param environment        Additional environment variables for the workers
+	 * @param size               Number of workers
+	 * @param maxJobsPerWorker   Number of jobs after which a worker is replaced by
+	 *                           a fresh one
+	 * @param startupTimeout     Maximum time a worker may take to load the model
+	 * @param healthCheckTimeout Maximum time an idle worker may take to answer a
+	 *                           health check
+	 */
+	public WhisperXWorkerPool(List<String> command, Map<String, String> environment, int size, int maxJobsPerWorker,
+			Duration startupTimeout, Duration healthCheckTimeout) {
+		this.command = List.copyOf(command);
+		this.environment = Map.copyOf(environment);
+		this.size = size > 0 ? size : 1;
+		this.maxJobsPerWorker = maxJobsPerWorker;
+		this.startupTimeout = startupTimeout;
+		this.healthCheckTimeout = healthCheckTimeout;
+	}
+
+	/**
+	 * Starts all workers in the background and schedules the periodic health
+	 * checks
+	 *
+	 * @param healthCheckInterval Interval between two health checks of the idle
+	 *                            workers
+	 */
+	public void start(Duration healthCheckInterval) {
+		LOGGER.infof("Starting %d WhisperX workers: %s", size, String.join(" ", command));
+		for (int i = 0; i < size; i++) {
+			spawn();
+		}
+		maintenance.scheduleWithFixedDelay(this::checkHealth, healthCheckInterval.toMillis(),
+				healthCheckInterval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Transcribes the given audio file on the next free worker. Blocks until a
+	 * worker is available and the job is finished.
+	 *
+	 * @throws IOException if no worker becomes available within the startup
+	 *                     timeout
+	 *
+	 * @see WhisperXWorker#transcribe(Path, Path, String, String, String, boolean,
+	 *      Consumer)
+	 */
+	public void transcribe(Path audio, Path outputDir, String outputFormat, String task, String language,
+			boolean diarize, Consumer<String> onOutput) throws IOException, InterruptedException {
+		final WhisperXWorker worker = acquire();
+		try {
+			worker.transcribe(audio, outputDir, outputFormat, task, language, diarize, onOutput);
+		} finally {
+			release(worker);
+		}
+	}
+
+	/**
+	 * Assigns speaker labels to an existing transcript on the next free worker.
+	 * Blocks until a worker is available and has finished.
+	 *
+	 * @throws IOException if no worker becomes available within the startup
+	 *                     timeout
+	 *
+	 * @see WhisperXWorker#diarize(Path, Path, Path, Consumer)
+	 */
+	public void diarize(Path audio, Path transcript, Path outputDir, Consumer<String> onOutput)
+			throws IOException, InterruptedException {
+		final WhisperXWorker worker = acquire();
+		try {
+			worker.diarize(audio, transcript, outputDir, onOutput);
+		} finally {
+			release(worker);
+		}
+	}
+
+	/**
+	 * @return Number of workers currently waiting for a job
+	 */
+	public int idleWorkers() {
+		return idle.size();
+	}
+
+	/**
+	 * Waits for the next free worker, at most as long as a new worker may take to
+	 * start
+	 *
+	 * @throws IOException if no worker becomes available in time
+	 */
+	private WhisperXWorker acquire() throws IOException, InterruptedException {
+		final WhisperXWorker worker = idle.poll(startupTimeout.toMillis(), TimeUnit.MILLISECONDS);
+		if (worker == null) {
+			throw new IOException(String.format("No WhisperX worker became available within %s", startupTimeout));
+		}
+		return worker;
+	}
+
+	/**
+	 * Returns a worker to the pool after a job, replacing it if it crashed or
+	 * reached its maximum number of jobs
+	 */
+	private void release(WhisperXWorker worker) {
+		if (closed) {
+			worker.destroy();
+		} else if (!worker.isAlive()) {
+			LOGGER.warnf("WhisperX worker %d died, starting a new one", worker.pid());
+			// A worker which broke the protocol might still be running
+			worker.destroy();
+			spawn();
+		} else if (worker.jobCount() >= maxJobsPerWorker) {
+			LOGGER.infof("WhisperX worker %d processed %d jobs, recycling it", worker.pid(), worker.jobCount());
+			worker.destroy();
+			spawn();
+		} else {
+			idle.add(worker);
+		}
+	}
+
+	/**
+	 * Starts a new worker in the background and adds it to the idle workers as
+	 * soon as it is ready. Failed starts are retried after a delay.
+	 */
+	private void spawn() {
+		if (closed) {
+			return;
+		}
+		ioExecutor.execute(() -> {
+			try {
+				final WhisperXWorker worker = WhisperXWorker.start(command, environment, ioExecutor, startupTimeout);
+				if (closed) {
+					worker.destroy();
+				} else {
+					idle.add(worker);
+				}
+			} catch (IOException e) {
+				LOGGER.errorf(e, "Failed to start WhisperX worker, retrying in %s", RESTART_DELAY);
+				if (!closed) {
+					maintenance.schedule(this::spawn, RESTART_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+	}
+
+	/**
+	 * Pings the idle workers and replaces those not answering. Only one worker is
+	 * taken from the pool at a time, so jobs may use the others meanwhile. Busy
+	 * workers are checked when they are released.
+	 */
+	void checkHealth() {
+		for (int remaining = idle.size(); remaining > 0; remaining--) {
+			final WhisperXWorker worker = idle.poll();
+			if (worker == null) {
+				return;
+			}
+			if (worker.isAlive() && worker.ping(healthCheckTimeout)) {
+				idle.add(worker);
+			} else {
+				LOGGER.warnf("WhisperX worker %d failed the health check, starting a new one", worker.pid());
+				worker.destroy();
+				spawn();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		maintenance.shutdownNow();
+		final List<WhisperXWorker> workers = new ArrayList<>();
+		idle.drainTo(workers);
+		workers.forEach(WhisperXWorker::destroy);
+		ioExecutor.shutdownNow();
+	}
+}
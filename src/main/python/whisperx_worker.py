@@ -0,0 +1,106 @@
+#!/usr/bin/env python3
+"""
+Long-lived WhisperX worker used by the WhisperX server worker pool.
+
+The model is loaded once on startup. Afterwards the worker reads one JSON
+request per line from stdin and answers with one JSON line on stdout:
+
+  {"type": "ping"}                      -> {"type": "pong"}
+  {"type": "transcribe", "id": ..., "audio": ..., "output_dir": ...,
+   "output_format": ..., "task": ..., "language": ..., "diarize": ...}
+                                        -> {"type": "result", "id": ..., "status": "ok"}
+                                           {"type": "result", "id": ..., "status": "error", "message": ...}
+  {"type": "diarize", "id": ..., "audio": ..., "transcript": ..., "output_dir": ...}
+                                        -> same as transcribe, assigns speakers to an existing
+                                           JSON transcript of the audio and writes it as JSON
+
+As soon as the model is loaded, {"type": "ready"} is written. Everything
+whisperx itself prints is redirected to stderr, so stdout only carries the
+protocol.
+"""
+import argparse
+import json
+import os
+import sys
+import traceback
+
+# Keep the real stdout for the protocol, everything else goes to stderr
+protocol = sys.stdout
+sys.stdout = sys.stderr
+
+
+def send(message):
+    protocol.write(json.dumps(message) + "\n")
+    protocol.flush()
+
+
+def main():
+    parser = argparse.ArgumentParser()
+    parser.add_argument("--model", default="small")
+    parser.add_argument("--compute_type", default="int8")
+    parser.add_argument("--device", default="cpu")
+    parser.add_argument("--batch_size", type=int, default=8)
+    parser.add_argument("--threads", type=int, default=0)
+    args = parser.parse_args()
+
+    import torch
+    import whisperx
+    from whisperx.utils import get_writer
+
+    if args.threads > 0:
+        torch.set_num_threads(args.threads)
+
+    hf_token = os.environ.get("HF_TOKEN")
+    model = whisperx.load_model(args.model, args.device, compute_type=args.compute_type)
+    align_models = {}
+    diarize_model = None
+
+    send({"type": "ready", "pid": os.getpid()})
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        request = json.loads(line)
+        if request.get("type") == "ping":
+            send({"type": "pong"})
+            continue
+
+        job_id = request.get("id")
+        try:
+            audio = whisperx.load_audio(request["audio"])
+            if request.get("type") == "diarize":
+                with open(request["transcript"], encoding="utf-8") as f:
+                    result = json.load(f)
+            else:
+                # Same progress output as the whisperx cli with --print_progress True
+                print(">>Performing transcription...", flush=True)
+                result = model.transcribe(audio, batch_size=args.batch_size, language=request.get("language"),
+                                          task=request.get("task", "transcribe"), print_progress=True)
+                language = result["language"]
+
+                if language not in align_models:
+                    align_models[language] = whisperx.load_align_model(language_code=language, device=args.device)
+                align_model, metadata = align_models[language]
+                print(">>Performing alignment...", flush=True)
+                result = whisperx.align(result["segments"], align_model, metadata, audio, args.device,
+                                        return_char_alignments=False, print_progress=True)
+                result["language"] = language
+
+            if (request.get("type") == "diarize" or request.get("diarize")) and hf_token:
+                if diarize_model is None:
+                    diarize_model = whisperx.DiarizationPipeline(use_auth_token=hf_token, device=args.device)
+                print(">>Performing diarization...", flush=True)
+                result = whisperx.assign_word_speakers(diarize_model(audio), result)
+
+            writer = get_writer(request.get("output_format", "json"), request["output_dir"])
+            writer(result, request["audio"], {"highlight_words": False, "max_line_count": None,
+                                              "max_line_width": None})
+            send({"type": "result", "id": job_id, "status": "ok"})
+        except Exception as e:
+            traceback.print_exc()
+            send({"type": "result", "id": job_id, "status": "error", "message": str(e)})
+
+
+if __name__ == "__main__":
+    main()
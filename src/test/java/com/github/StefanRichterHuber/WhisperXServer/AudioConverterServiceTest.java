@@ -0,0 +1,64 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class AudioConverterServiceTest {
+
+    @TempDir
+    Path directory;
+
+    private AudioConverterService converter;
+
+    @BeforeEach
+    public void setup() {
+        converter = new AudioConverterService();
+        converter.logger = Logger.getLogger(AudioConverterService.class);
+        converter.registry = new SimpleMeterRegistry();
+        converter.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
+        converter.maxConcurrent = 1;
+        converter.timeout = Duration.ofMinutes(1);
+        converter.init();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        converter.shutdown();
+        converter.scheduledExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void convertWavInJava() throws Exception {
+        final Path source = Files.write(directory.resolve("audio.upload"),
+                PcmConverterTest.wav(PcmConverterTest.sine(440, 44100, 44100, 2, 0.5), 2, 44100));
+
+        final Path converted = converter.prepareForTranscription(source).get();
+        assertNotEquals(source, converted);
+        final WavHeader header = WavHeader.read(converted).orElseThrow();
+        assertTrue(header.isWhisperXCompatible());
+        assertEquals(1.0, header.getDurationSeconds(), 0.001);
+        assertEquals(1.0, converter.registry.get("whisperx.conversion.queue.wait").timer().count());
+    }
+
+    @Test
+    public void keepCompatibleWav() throws Exception {
+        final Path source = Files.write(directory.resolve("audio.upload"),
+                PcmConverterTest.wav(new short[16000], 1, 16000));
+
+        assertEquals(source, converter.prepareForTranscription(source).get());
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+
+/**
+ * Tests results of the transcription cache over HTTP
+ */
+@QuarkusTest
+@TestProfile(CachedResultTest.Profile.class)
+public class CachedResultTest {
+
+    public static class Profile extends EndpointTestProfile {
+        @Override
+        protected Map<String, String> overrides() {
+            return Map.of("whisperx.cache.max-size", "10M");
+        }
+    }
+
+    @Test
+    public void cachedJsonEqualsFreshJson() {
+        final String fresh = transcribe();
+        final String cached = transcribe();
+
+        assertTrue(fresh.contains("Hello world."), fresh);
+        assertEquals(fresh, cached);
+    }
+
+    private static String transcribe() {
+        final String id = given().contentType("audio/wav").queryParam("format", "json")
+                .body(EndpointTestProfile.wav(1)).post("/transcribe").then().statusCode(202).extract()
+                .path("task.id");
+        return given().queryParam("job-id", id).queryParam("wait", 30).get("/transcription-status").then()
+                .statusCode(200).extract().asString();
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+
+public class ClientRegistryTest {
+
+    private static ClientRegistry registry(String... clients) {
+        final ClientRegistry registry = new ClientRegistry();
+        registry.clients = Optional.of(List.of(clients));
+        registry.defaultPriority = Priority.NORMAL;
+        registry.init();
+        return registry;
+    }
+
+    @Test
+    public void identifyClientsByApiKey() {
+        final ClientRegistry registry = registry("web:high:secret1", "batch:low:secret2");
+
+        assertEquals(new ClientRegistry.Client("web", Priority.HIGH), registry.identify("secret1", "10.0.0.1").get());
+        assertEquals(new ClientRegistry.Client("batch", Priority.LOW), registry.identify("secret2", "10.0.0.1").get());
+        assertEquals(new ClientRegistry.Client("10.0.0.1", Priority.NORMAL), registry.identify(null, "10.0.0.1").get());
+        assertTrue(registry.identify("guessed", "10.0.0.1").isEmpty());
+    }
+
+    @Test
+    public void requestedPriorityOnlyLowersTheClass() {
+        final ClientRegistry.Client client = new ClientRegistry.Client("web", Priority.NORMAL);
+
+        assertEquals(Priority.NORMAL, ClientRegistry.priority(client, null));
+        assertEquals(Priority.LOW, ClientRegistry.priority(client, "low"));
+        assertEquals(Priority.NORMAL, ClientRegistry.priority(client, "high"));
+        assertThrows(IllegalArgumentException.class, () -> ClientRegistry.priority(client, "urgent"));
+    }
+
+    @Test
+    public void rejectInvalidClients() {
+        assertThrows(IllegalArgumentException.class, () -> registry("web:high"));
+        assertThrows(IllegalArgumentException.class, () -> registry("web:urgent:secret"));
+    }
+}
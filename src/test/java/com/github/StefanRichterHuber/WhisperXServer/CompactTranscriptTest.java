@@ -0,0 +1,72 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment;
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment.Word;
+
+public class CompactTranscriptTest {
+    private final ObjectMapper om = new ObjectMapper();
+
+    @ParameterizedTest
+    @ValueSource(strings = { "aligned", "unaligned", "chinese" })
+    public void convertBothWays(String name) throws IOException {
+        final WhisperXOutput output = om.readValue(read(name + ".json"), WhisperXOutput.class);
+        final CompactTranscript compact = CompactTranscript.fromBytes(CompactTranscript.of(output).toBytes());
+
+        assertEquals(om.valueToTree(output), om.valueToTree(compact.toOutput()));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "aligned, srt", "aligned, vtt", "unaligned, tsv", "chinese, srt", "chinese, aud" })
+    public void renderLikeWhisperX(String name, String format) throws IOException {
+        final CompactTranscript compact = CompactTranscript
+                .fromBytes(CompactTranscript.of(om.readValue(read(name + ".json"), WhisperXOutput.class)).toBytes());
+        final StringWriter out = new StringWriter();
+        compact.render(WhisperXOutputWriter.create(format, out));
+
+        assertEquals(read(name + "." + format), out.toString());
+    }
+
+    @Test
+    public void storeDifferentWordSegments() {
+        final Word hello = new Word("Hallo", 0.5, 1.0, 0.875, "SPEAKER_00");
+        final WhisperXOutput output = new WhisperXOutput(
+                List.of(new Segment(0.5, 1.0, " Hallo", List.of(hello), "SPEAKER_00"),
+                        new Segment(1.0, 2.0, " 42", List.of(), null)),
+                List.of(new Word("42", null, null, null, null), hello), null);
+        final CompactTranscript compact = CompactTranscript.fromBytes(CompactTranscript.of(output).toBytes());
+
+        assertEquals(3, compact.getWordCount());
+        assertEquals(om.valueToTree(output), om.valueToTree(compact.toOutput()));
+        assertNull(compact.getLanguage());
+    }
+
+    @Test
+    public void rejectCorruptData() {
+        final byte[] data = CompactTranscript.of(new WhisperXOutput()).toBytes();
+        data[0] = 'X';
+        assertThrows(IllegalArgumentException.class, () -> CompactTranscript.fromBytes(data));
+        assertThrows(IllegalArgumentException.class, () -> CompactTranscript.fromBytes(new byte[] { 0x57, 0x58 }));
+    }
+
+    static String read(String file) throws IOException {
+        try (InputStream is = CompactTranscriptTest.class.getResourceAsStream("/golden/" + file)) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
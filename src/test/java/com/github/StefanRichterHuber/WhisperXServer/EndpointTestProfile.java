@@ -0,0 +1,55 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.quarkus.test.junit.QuarkusTestProfile;
+
+/**
+ * Runs the server with a single fake WhisperX worker (see
+ * fake-whisperx-worker.py) and fresh directories below target, so no jobs of
+ * earlier runs are resumed
+ */
+public class EndpointTestProfile implements QuarkusTestProfile {
+
+    @Override
+    public Map<String, String> getConfigOverrides() {
+        final Path directory;
+        try {
+            final Path target = Files.createDirectories(Paths.get("target"));
+            directory = Files.createTempDirectory(target, "whisperx-test");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final Map<String, String> config = new HashMap<>();
+        config.put("whisperx.worker.command",
+                "python3," + Paths.get("src/test/resources/fake-whisperx-worker.py").toAbsolutePath());
+        config.put("whisperx.parallel-instances", "1");
+        config.put("whisperx.workdir", directory.toString());
+        config.put("whisperx.job-store.directory", directory.resolve("jobs").toString());
+        config.put("whisperx.cache.directory", directory.resolve("cache").toString());
+        config.put("whisperx.cache.max-size", "0");
+        config.putAll(overrides());
+        return config;
+    }
+
+    /**
+     * @return Additional configuration of a test
+     */
+    protected Map<String, String> overrides() {
+        return Map.of();
+    }
+
+    /**
+     * @param seconds Duration of the audio
+     * @return Wav file in the format required by WhisperX, with silence
+     */
+    static byte[] wav(int seconds) {
+        return WavHeaderTest.wav(1, 1, 16000, 16, seconds * 16000 * 2);
+    }
+}
@@ -0,0 +1,280 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.StefanRichterHuber.WhisperXServer.Job.JobStatus;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+
+import io.quarkus.runtime.configuration.MemorySize;
+
+public class FileJobQueueTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void everyJobIsClaimedByOneNode() throws QueueFullException {
+        final SharedJobStore store = store();
+        final Runner first = new Runner(2);
+        final Runner second = new Runner(2);
+        final FileJobQueue firstQueue = queue("first", store, first);
+        final FileJobQueue secondQueue = queue("second", store, second);
+
+        for (int i = 0; i < 3; i++) {
+            final Job job = job("job-" + i, Priority.NORMAL);
+            store.save(job);
+            firstQueue.offer(job);
+        }
+        final Job urgent = job("urgent", Priority.HIGH);
+        store.save(urgent);
+        secondQueue.offer(urgent);
+        assertEquals(0, secondQueue.getQueueStatus("urgent").orElseThrow().position());
+
+        firstQueue.dispatch();
+        secondQueue.dispatch();
+
+        // High priority first, then in order of submission
+        assertEquals(List.of("urgent", "job-0"), first.started);
+        assertEquals(List.of("job-1", "job-2"), second.started);
+        assertTrue(firstQueue.getQueueStatus("job-2").isEmpty());
+    }
+
+    @Test
+    public void removedJobsAreSkipped() throws QueueFullException {
+        final SharedJobStore store = store();
+        final Runner runner = new Runner(1);
+        final FileJobQueue queue = queue("node", store, runner);
+        final Job removed = job("removed", Priority.NORMAL);
+        final Job kept = job("kept", Priority.NORMAL);
+        store.save(removed);
+        queue.offer(removed);
+        store.save(kept);
+        queue.offer(kept);
+        store.remove("removed");
+
+        queue.dispatch();
+        assertEquals(List.of("kept"), runner.started);
+    }
+
+    @Test
+    public void expiredLeasesAreTakenOver() throws QueueFullException, IOException {
+        final SharedJobStore store = store();
+        final Runner failing = new Runner(1);
+        final Runner other = new Runner(1);
+        final FileJobQueue failingQueue = queue("failing", store, failing);
+        final FileJobQueue otherQueue = queue("other", store, other);
+        final Job job = job("job", Priority.NORMAL);
+        store.save(job);
+        failingQueue.offer(job);
+        failingQueue.dispatch();
+        assertEquals(List.of("job"), failing.started);
+
+        // Lease still valid
+        otherQueue.dispatch();
+        assertTrue(other.started.isEmpty());
+
+        // Failing node stopped renewing its lease
+        Files.setLastModifiedTime(directory.resolve(FileJobQueue.LEASE_DIR).resolve("job"),
+                FileTime.from(Instant.now().minus(Duration.ofMinutes(5))));
+        otherQueue.dispatch();
+        assertEquals(List.of("job"), other.started);
+
+        // The failing node notices it lost the job
+        failingQueue.renewLeases();
+        assertEquals(List.of("job"), failing.cancelled);
+
+        // Finished jobs are not taken over again
+        store.save(job.finished());
+        otherQueue.release("job");
+        otherQueue.dispatch();
+        assertEquals(1, other.started.size());
+        assertTrue(Files.notExists(directory.resolve(FileJobQueue.LEASE_DIR).resolve("job")));
+    }
+
+    @Test
+    public void rejectJobsIfFull() throws QueueFullException {
+        final SharedJobStore store = store();
+        final FileJobQueue queue = queue("node", store, new Runner(0));
+        queue.capacity = 2;
+        queue.offer(job("first", Priority.NORMAL));
+        queue.offer(job("second", Priority.NORMAL));
+        assertThrows(QueueFullException.class, () -> queue.checkCapacity("client", null));
+        assertThrows(QueueFullException.class, () -> queue.offer(job("third", Priority.NORMAL)));
+    }
+
+    @Test
+    public void shortJobsFirst() throws QueueFullException, IOException {
+        final SharedJobStore store = store();
+        final Runner runner = new Runner(1);
+        final FileJobQueue queue = queue("node", store, runner);
+        final Job minute = job("minute", Priority.NORMAL, audio("minute", 60));
+        final Job seconds = job("seconds", Priority.NORMAL, audio("seconds", 5));
+        store.save(minute);
+        queue.offer(minute);
+        store.save(seconds);
+        queue.offer(seconds);
+        assertEquals(0, queue.getQueueStatus("seconds").orElseThrow().position());
+
+        // A job waiting long enough is ranked before shorter ones
+        final Job waited = new Job("waited", JobStatus.ON_GOING, "client", Priority.NORMAL, null, "de", false,
+                WhisperXService.TASK_TRANSCRIBE, null, "text/plain", "txt", null, null, null,
+                seconds.started().minusSeconds(10), null);
+        assertTrue(FileJobQueue.entryName(waited, 60, JobScheduler.Order.SJF, 10)
+                .compareTo(FileJobQueue.entryName(seconds, 5, JobScheduler.Order.SJF, 10)) < 0);
+
+        queue.dispatch();
+        assertEquals(List.of("seconds"), runner.started);
+    }
+
+    @Test
+    public void limitQueuedJobsPerClient() throws QueueFullException {
+        final SharedJobStore store = store();
+        final Runner runner = new Runner(0);
+        final FileJobQueue queue = queue("node", store, runner);
+        queue.maxPerClient = 1;
+        queue.offer(job("first", Priority.NORMAL));
+        final QueueFullException full = assertThrows(QueueFullException.class,
+                () -> queue.checkCapacity("client", null));
+        assertNull(full.getRetryAfter());
+        queue.checkCapacity("other", null);
+    }
+
+    @Test
+    public void estimateRetryAfterFromSharedDurations() throws QueueFullException {
+        final SharedJobStore store = store();
+        final Runner runner = new Runner(1);
+        final FileJobQueue first = queue("first", store, runner);
+        final FileJobQueue second = queue("second", store, new Runner(0));
+        second.capacity = 1;
+        final Job finished = job("finished", Priority.NORMAL);
+        store.save(finished);
+        first.offer(finished);
+        first.dispatch();
+        store.save(finished.finished());
+        first.release("finished");
+
+        // The duration recorded by the first node is used by the second one
+        second.offer(job("queued", Priority.NORMAL));
+        final QueueFullException full = assertThrows(QueueFullException.class,
+                () -> second.checkCapacity("client", null));
+        assertNotNull(full.getRetryAfter());
+    }
+
+    @Test
+    public void evictOldestSharedResults() throws IOException {
+        final SharedJobStore store = store();
+        store.maxResultSize = new MemorySize(BigInteger.valueOf(25));
+        final Path results = directory.resolve(SharedJobStore.RESULT_DIR);
+        store.saveResult("first", "0123456789");
+        Files.setLastModifiedTime(results.resolve("first"), FileTime.from(Instant.now().minusSeconds(20)));
+        store.saveResult("second", "0123456789");
+        Files.setLastModifiedTime(results.resolve("second"), FileTime.from(Instant.now().minusSeconds(10)));
+        store.saveResult("third", "0123456789");
+
+        assertTrue(store.getResult("first").isEmpty());
+        assertTrue(store.getResult("second").isPresent());
+        assertTrue(store.getResult("third").isPresent());
+    }
+
+    private Path audio(String name, int seconds) throws IOException {
+        final Path file = directory.resolve(name + ".wav");
+        final ByteBuffer header = WavHeader.createPcmHeader(1, 16000, 16, seconds * 32000L);
+        final byte[] content = Arrays.copyOf(header.array(), header.remaining() + seconds * 32000);
+        Files.write(file, content);
+        return file;
+    }
+
+    private SharedJobStore store() {
+        final SharedJobStore store = new SharedJobStore();
+        store.logger = Logger.getLogger(SharedJobStore.class);
+        store.objectMapper = new ObjectMapper().findAndRegisterModules();
+        store.directory = directory.toString();
+        store.maxResultSize = new MemorySize(BigInteger.valueOf(0));
+        store.init();
+        return store;
+    }
+
+    private FileJobQueue queue(String node, JobStore store, Runner runner) {
+        final FileJobQueue queue = new FileJobQueue();
+        queue.logger = Logger.getLogger(FileJobQueue.class);
+        queue.jobStore = store;
+        queue.directory = directory.toString();
+        queue.nodeId = Optional.of(node);
+        queue.capacity = 100;
+        queue.order = JobScheduler.Order.SJF;
+        queue.aging = 10;
+        queue.leaseTimeout = Duration.ofMinutes(1);
+        queue.init();
+        // Dispatched manually by the tests instead of the scheduled executor
+        queue.runner = runner;
+        return queue;
+    }
+
+    private static Job job(String id, Priority priority) {
+        return job(id, priority, Path.of("/tmp/" + id + ".upload"));
+    }
+
+    private static Job job(String id, Priority priority, Path audio) {
+        return new Job(id, JobStatus.ON_GOING, "client", priority, audio.toString(), "de", false,
+                WhisperXService.TASK_TRANSCRIBE, null, "text/plain", "txt", null, null, null, ZonedDateTime.now(),
+                null);
+    }
+
+    /**
+     * Runner of a node with a fixed number of instances, which never finishes
+     * its jobs
+     */
+    private static class Runner implements JobQueue.JobRunner {
+        private final int instances;
+        final List<String> started = new ArrayList<>();
+        final List<String> cancelled = new ArrayList<>();
+
+        Runner(int instances) {
+            this.instances = instances;
+        }
+
+        @Override
+        public void run(Job job) {
+            started.add(job.id());
+        }
+
+        @Override
+        public int freeSlots() {
+            return instances - started.size() + cancelled.size();
+        }
+
+        @Override
+        public boolean canStart(Job job) {
+            return freeSlots() > 0;
+        }
+
+        @Override
+        public void cancel(String id) {
+            cancelled.add(id);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.StefanRichterHuber.WhisperXServer.Job.JobStatus;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+
+import io.quarkus.runtime.configuration.MemorySize;
+
+public class FileJobStoreTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void jobsSurviveRestart() throws IOException {
+        final FileJobStore store = open(1000);
+        final Job queued = job("queued");
+        final Job finished = job("finished");
+        store.save(queued);
+        store.save(finished);
+        store.save(job("removed"));
+        store.saveResult("finished", "Hello world");
+        store.save(finished.finished());
+        store.remove("removed");
+        store.close();
+
+        final FileJobStore reopened = open(1000);
+        assertEquals(2, reopened.getAll().size());
+        assertEquals(JobStatus.ON_GOING, reopened.get("queued").orElseThrow().status());
+        assertEquals(JobStatus.FINISHED, reopened.get("finished").orElseThrow().status());
+        assertEquals("Hello world",
+                Files.readString(reopened.getResult("finished").orElseThrow(), StandardCharsets.UTF_8));
+        assertTrue(reopened.get("removed").isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    public void updateDoesNotRestoreRemovedJobs() throws IOException {
+        FileJobStore store = open(1000);
+        final Job job = job("job");
+        store.save(job);
+        assertTrue(store.update(job.finished()));
+        assertEquals(JobStatus.FINISHED, store.get("job").orElseThrow().status());
+        store.remove("job");
+        assertFalse(store.update(job.failed("Too late")));
+        assertTrue(store.get("job").isEmpty());
+        store.close();
+
+        store = open(1000);
+        assertTrue(store.get("job").isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void compactLog() throws IOException {
+        final FileJobStore store = open(3);
+        for (int i = 0; i < 10; i++) {
+            store.save(job("job-" + i));
+        }
+        store.remove("job-0");
+        store.close();
+
+        // Log was truncated by the compactions
+        assertTrue(Files.readAllLines(directory.resolve("jobs.log")).size() < 3);
+
+        final FileJobStore reopened = open(3);
+        assertEquals(9, reopened.getAll().size());
+        reopened.close();
+    }
+
+    @Test
+    public void ignoreIncompleteLogEntry() throws IOException {
+        final FileJobStore store = open(1000);
+        store.save(job("complete"));
+        store.close();
+        Files.writeString(directory.resolve("jobs.log"), "{\"op\":\"save\",\"id\":\"broken\",\"jo",
+                java.nio.file.StandardOpenOption.APPEND);
+
+        final FileJobStore reopened = open(1000);
+        assertEquals(1, reopened.getAll().size());
+        reopened.close();
+    }
+
+    @Test
+    public void concurrentSaves() throws Exception {
+        final FileJobStore store = open(100);
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        final List<Future<?>> saves = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final Job job = job("job-" + i);
+            saves.add(executor.submit(() -> store.save(job)));
+        }
+        for (Future<?> save : saves) {
+            save.get();
+        }
+        executor.shutdown();
+        assertEquals(500, store.getAll().size());
+        store.close();
+
+        final FileJobStore reopened = open(100);
+        assertEquals(500, reopened.getAll().size());
+        reopened.close();
+    }
+
+    @Test
+    public void compressLargeResults() throws IOException {
+        final FileJobStore store = open(1000);
+        final String result = "Hello world. ".repeat(1000);
+        store.saveResult("large", result);
+        store.saveResult("small", "Hello world");
+
+        final Path compressed = store.getCompressedResult("large").orElseThrow();
+        assertTrue(Files.size(compressed) < result.length() / 10);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed))) {
+            assertEquals(result, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertTrue(store.getCompressedResult("small").isEmpty());
+
+        store.remove("large");
+        assertTrue(store.getResult("large").isEmpty());
+        assertTrue(store.getCompressedResult("large").isEmpty());
+        assertEquals(11, store.getResultSize());
+        store.close();
+    }
+
+    @Test
+    public void evictOldestResults() throws IOException {
+        FileJobStore store = open(1000);
+        store.maxResultSize = new MemorySize(BigInteger.valueOf(25));
+        store.save(job("first"));
+        store.saveResult("first", "0123456789");
+        store.saveResult("second", "0123456789");
+        store.saveResult("third", "0123456789");
+
+        // Only the result is evicted, the job is kept
+        assertTrue(store.getResult("first").isEmpty());
+        assertTrue(store.get("first").isPresent());
+        assertTrue(store.getResult("second").isPresent());
+        assertEquals(20, store.getResultSize());
+        store.close();
+
+        store = open(1000);
+        assertEquals(20, store.getResultSize());
+        store.close();
+    }
+
+    @Test
+    public void storeSeveralResultsOfAJob() throws IOException {
+        FileJobStore store = open(1000);
+        store.saveResult("job", "transcribe.txt", "Hallo Welt");
+        store.saveResult("job", "translate.txt", "Hello world");
+        assertEquals("Hello world",
+                Files.readString(store.getResult("job", "translate.txt").orElseThrow(), StandardCharsets.UTF_8));
+        assertTrue(store.getResult("job").isEmpty());
+        assertEquals(21, store.getResultSize());
+        store.close();
+
+        // All results are accounted to the job and removed with it
+        store = open(1000);
+        assertEquals(21, store.getResultSize());
+        store.remove("job");
+        assertTrue(store.getResult("job", "transcribe.txt").isEmpty());
+        assertEquals(0, store.getResultSize());
+        try (Stream<Path> files = Files.list(directory.resolve("results"))) {
+            assertEquals(0, files.count());
+        }
+        store.close();
+    }
+
+    private FileJobStore open(int compactAfter) {
+        final FileJobStore store = new FileJobStore();
+        store.logger = Logger.getLogger(FileJobStore.class);
+        store.objectMapper = new ObjectMapper().findAndRegisterModules();
+        store.directory = directory.toString();
+        store.compactAfter = compactAfter;
+        store.maxResultSize = new MemorySize(BigInteger.valueOf(1024 * 1024));
+        store.init();
+        return store;
+    }
+
+    private static Job job(String id) {
+        return new Job(id, JobStatus.ON_GOING, "client", Priority.NORMAL, "/tmp/" + id + ".upload", "de", false,
+                WhisperXService.TASK_TRANSCRIBE, null, "text/plain", "txt", null, null, null, ZonedDateTime.now(),
+                null);
+    }
+}
@@ -0,0 +1,251 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Order;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Policy;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+
+public class JobSchedulerTest {
+
+    private JobScheduler scheduler;
+
+    private final CountDownLatch blocker = new CountDownLatch(1);
+
+    private final List<String> executed = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    public void close() {
+        blocker.countDown();
+        scheduler.close();
+    }
+
+    @Test
+    public void higherPriorityFirst() throws Exception {
+        scheduler = new JobScheduler(1, 10, 0);
+        blockWorker();
+
+        final CompletableFuture<String> low = submit("low", "a", Priority.LOW);
+        final CompletableFuture<String> high = submit("high", "a", Priority.HIGH);
+        assertEquals(1, scheduler.getQueueStatus("low").orElseThrow().position());
+        assertEquals(0, scheduler.getQueueStatus("high").orElseThrow().position());
+
+        blocker.countDown();
+        CompletableFuture.allOf(low, high).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("blocker", "high", "low"), executed);
+    }
+
+    @Test
+    public void fairShareBetweenClients() throws Exception {
+        scheduler = new JobScheduler(1, 10, 0);
+        blockWorker();
+
+        final CompletableFuture<String> a1 = submit("a1", "a", Priority.NORMAL);
+        final CompletableFuture<String> a2 = submit("a2", "a", Priority.NORMAL);
+        final CompletableFuture<String> b1 = submit("b1", "b", Priority.NORMAL);
+
+        blocker.countDown();
+        CompletableFuture.allOf(a1, a2, b1).get(5, TimeUnit.SECONDS);
+        // Client a was served last by the blocker job, so b goes first
+        assertEquals(List.of("blocker", "b1", "a1", "a2"), executed);
+    }
+
+    @Test
+    public void rejectWhenFull() throws Exception {
+        scheduler = new JobScheduler(1, 2, 1);
+        blockWorker();
+
+        submit("a1", "a", Priority.NORMAL);
+        assertThrows(QueueFullException.class, () -> submit("a2", "a", Priority.NORMAL));
+        submit("b1", "b", Priority.NORMAL);
+        assertThrows(QueueFullException.class, () -> submit("c1", "c", Priority.NORMAL));
+    }
+
+    @Test
+    public void helpersBypassLimits() throws Exception {
+        scheduler = new JobScheduler(1, 1, 1);
+        blockWorker();
+
+        final CompletableFuture<Object> h1 = scheduler.submitHelper("h1", "a", Priority.NORMAL, () -> null);
+        final CompletableFuture<Object> h2 = scheduler.submitHelper("h2", "a", Priority.NORMAL, () -> null);
+        submit("b1", "b", Priority.NORMAL);
+        assertThrows(QueueFullException.class, () -> submit("c1", "c", Priority.NORMAL));
+
+        Thread.sleep(400);
+        blocker.countDown();
+        CompletableFuture.allOf(h1, h2).get(5, TimeUnit.SECONDS);
+        while (scheduler.getRunningJobs() > 0 || scheduler.getQueueSize() > 0) {
+            Thread.sleep(10);
+        }
+
+        // The durations of the helpers are not used for the estimate: half of the
+        // average of the blocker (>= 400 ms) and b1
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit("long", "a", Priority.NORMAL, () -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        assertTrue(scheduler.estimateWait().toMillis() >= 100, scheduler.estimateWait().toString());
+        release.countDown();
+    }
+
+    @Test
+    public void cancelQueuedJob() throws Exception {
+        scheduler = new JobScheduler(1, 1, 0);
+        blockWorker();
+
+        final CompletableFuture<String> cancelled = submit("a1", "a", Priority.NORMAL);
+        cancelled.cancel(true);
+        assertEquals(0, scheduler.getQueueSize());
+
+        // Slot is free again
+        final CompletableFuture<String> next = submit("a2", "a", Priority.NORMAL);
+        blocker.countDown();
+        next.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("blocker", "a2"), executed);
+    }
+
+    @Test
+    public void cancelRunningJobInterrupts() throws Exception {
+        scheduler = new JobScheduler(1, 1, 0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final CompletableFuture<Object> running = scheduler.submit("running", "a", Priority.NORMAL, () -> {
+            started.countDown();
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        running.cancel(true);
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shortestJobFirst() throws Exception {
+        scheduler = new JobScheduler(1, 10, 0, new Policy(Order.SJF, 0, 0, 0));
+        blockWorker();
+
+        final CompletableFuture<String> meeting = submit("meeting", "a", Priority.NORMAL, 3 * 3600);
+        final CompletableFuture<String> memo = submit("memo", "b", Priority.NORMAL, 5);
+        final CompletableFuture<String> call = submit("call", "c", Priority.NORMAL, 600);
+        assertEquals(0, scheduler.getQueueStatus("memo").orElseThrow().position());
+        assertEquals(2, scheduler.getQueueStatus("meeting").orElseThrow().position());
+
+        blocker.countDown();
+        CompletableFuture.allOf(meeting, memo, call).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("blocker", "memo", "call", "meeting"), executed);
+    }
+
+    @Test
+    public void longJobsAgeWhileWaiting() throws Exception {
+        // Each millisecond of waiting counts as 1000 seconds of audio
+        scheduler = new JobScheduler(1, 10, 0, new Policy(Order.SJF, 1_000_000, 0, 0));
+        blockWorker();
+
+        final CompletableFuture<String> meeting = submit("meeting", "a", Priority.NORMAL, 3 * 3600);
+        Thread.sleep(50);
+        final CompletableFuture<String> memo = submit("memo", "b", Priority.NORMAL, 5);
+
+        blocker.countDown();
+        CompletableFuture.allOf(meeting, memo).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("blocker", "meeting", "memo"), executed);
+    }
+
+    @Test
+    public void updateCostOfQueuedJob() throws Exception {
+        scheduler = new JobScheduler(1, 10, 0, new Policy(Order.SJF, 0, 0, 0));
+        blockWorker();
+
+        // Overestimated from the size of a video file
+        final CompletableFuture<String> video = submit("video", "a", Priority.NORMAL, 3600);
+        final CompletableFuture<String> memo = submit("memo", "b", Priority.NORMAL, 60);
+        scheduler.updateCost("video", 30);
+
+        blocker.countDown();
+        CompletableFuture.allOf(video, memo).get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("blocker", "video", "memo"), executed);
+    }
+
+    @Test
+    public void reserveWorkersForShortJobs() throws Exception {
+        scheduler = new JobScheduler(2, 10, 0, new Policy(Order.FIFO, 0, 300, 1));
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit("meeting", "a", Priority.NORMAL, 3600, () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executed.add("meeting");
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The second worker is reserved for short jobs
+        final CompletableFuture<String> lecture = submit("lecture", "b", Priority.NORMAL, 3600);
+        final CompletableFuture<String> memo = submit("memo", "c", Priority.NORMAL, 5);
+        memo.get(5, TimeUnit.SECONDS);
+        assertEquals(1, scheduler.getQueueSize());
+        assertFalse(lecture.isDone());
+
+        blocker.countDown();
+        lecture.get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("memo", "meeting", "lecture"), executed);
+    }
+
+    /**
+     * Occupies the single worker until the blocker latch is released
+     */
+    private void blockWorker() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit("blocker", "a", Priority.NORMAL, () -> {
+            started.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executed.add("blocker");
+            return null;
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+
+    private CompletableFuture<String> submit(String id, String client, Priority priority)
+            throws QueueFullException {
+        return submit(id, client, priority, 0);
+    }
+
+    private CompletableFuture<String> submit(String id, String client, Priority priority, double cost)
+            throws QueueFullException {
+        return scheduler.submit(id, client, priority, cost, () -> {
+            executed.add(id);
+            return id;
+        });
+    }
+}
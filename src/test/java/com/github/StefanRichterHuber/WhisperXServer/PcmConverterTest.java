@@ -0,0 +1,97 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.junit.jupiter.api.Test;
+
+public class PcmConverterTest {
+
+    @Test
+    public void resampleStereo() throws IOException {
+        // 1 kHz on both channels, 44.1 kHz, one second
+        final short[] input = sine(1000, 44100, 44100, 2, 0.5);
+        final short[] output = convert(wav(input, 2, 44100));
+
+        assertEquals((44100 * 160 + 440) / 441, output.length);
+        // Same tone at 16 kHz, ignoring the edges
+        final short[] expected = sine(1000, 16000, output.length, 1, 0.5);
+        for (int i = 100; i < output.length - 100; i++) {
+            assertEquals(expected[i], output[i], 100, "Sample " + i);
+        }
+    }
+
+    @Test
+    public void removeFrequenciesAboveNyquist() throws IOException {
+        // 10 kHz can not be represented at 16 kHz and must not alias to 6 kHz
+        final short[] output = convert(wav(sine(10000, 48000, 48000, 1, 0.5), 1, 48000));
+
+        assertEquals(16000, output.length);
+        assertTrue(rms(output, 100, output.length - 100) < 0.005 * 32768, "RMS " + rms(output, 0, output.length));
+    }
+
+    @Test
+    public void mixDownWithoutResampling() throws IOException {
+        final short[] input = { 1000, 3000, -1000, -3000, 32767, 32767 };
+        final short[] output = convert(wav(input, 2, 16000));
+
+        assertEquals(3, output.length);
+        assertEquals(2000, output[0]);
+        assertEquals(-2000, output[1]);
+        assertEquals(32767, output[2]);
+    }
+
+    private static short[] convert(byte[] wav) throws IOException {
+        final ByteBuffer prefix = ByteBuffer.wrap(wav);
+        final WavHeader header = WavHeader.read(prefix).orElseThrow();
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (ReadableByteChannel source = Channels.newChannel(
+                new ByteArrayInputStream(wav, prefix.position(), prefix.remaining()))) {
+            assertEquals(PcmConverter.convert(source, header, Channels.newChannel(result)), result.size());
+        }
+
+        final ByteBuffer converted = ByteBuffer.wrap(result.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        final WavHeader convertedHeader = WavHeader.read(converted).orElseThrow();
+        assertTrue(convertedHeader.isWhisperXCompatible());
+        assertEquals(converted.remaining(), convertedHeader.getDataSize());
+        final short[] samples = new short[converted.remaining() / 2];
+        converted.asShortBuffer().get(samples);
+        return samples;
+    }
+
+    static byte[] wav(short[] samples, int channels, int sampleRate) {
+        final ByteBuffer header = WavHeader.createPcmHeader(channels, sampleRate, 16, samples.length * 2L);
+        final ByteBuffer buffer = ByteBuffer.allocate(header.remaining() + samples.length * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(header);
+        buffer.asShortBuffer().put(samples);
+        return buffer.array();
+    }
+
+    static short[] sine(double frequency, int sampleRate, int frames, int channels, double amplitude) {
+        final short[] samples = new short[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            final short value = (short) Math.round(Math.sin(2 * Math.PI * frequency * i / sampleRate) * amplitude * 32768);
+            for (int c = 0; c < channels; c++) {
+                samples[i * channels + c] = value;
+            }
+        }
+        return samples;
+    }
+
+    private static double rms(short[] samples, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (double) samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / (to - from));
+    }
+}
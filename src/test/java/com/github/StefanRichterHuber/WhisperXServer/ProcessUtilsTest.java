@@ -0,0 +1,85 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ProcessUtilsTest {
+
+    @Test
+    public void splitLines() throws IOException {
+        assertEquals(List.of("first", "", "second", "Progress: 10.00%...", "Progress: 20.00%...", "last"),
+                pump("first\n\nsecond\r\nProgress: 10.00%...\rProgress: 20.00%...\rlast"));
+    }
+
+    @Test
+    public void splitLongLines() throws IOException {
+        final List<String> lines = pump("x".repeat(ProcessUtils.MAX_LINE_LENGTH + 10) + "\n");
+        assertEquals(2, lines.size());
+        assertEquals(ProcessUtils.MAX_LINE_LENGTH, lines.get(0).length());
+        assertEquals(10, lines.get(1).length());
+    }
+
+    @Test
+    public void destroyProcessTree() throws IOException, InterruptedException {
+        // Ignores SIGTERM, like a process busy in native code
+        final Process process = new ProcessBuilder("sh", "-c", "trap '' TERM; sleep 60 & wait").start();
+        while (process.descendants().count() == 0) {
+            Thread.sleep(10);
+        }
+        final ProcessHandle child = process.descendants().findFirst().orElseThrow();
+
+        ProcessUtils.destroyTree(process, Duration.ofMillis(200));
+        process.waitFor();
+        child.onExit().join();
+        assertFalse(child.isAlive());
+    }
+
+    @Test
+    public void keepReadingIfHandlerFails() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        ProcessUtils.pump(input("fail\nok\n"), line -> {
+            if (line.equals("fail")) {
+                throw new IllegalStateException();
+            }
+            lines.add(line);
+        });
+        assertEquals(List.of("ok"), lines);
+    }
+
+    @Test
+    public void drainProcessOutput() throws Exception {
+        final Process process = new ProcessBuilder("sh", "-c", "echo out; echo err >&2").start();
+        final List<String> lines = new ArrayList<>();
+        ProcessUtils.handleProcessOutput(process, line -> {
+            synchronized (lines) {
+                lines.add(line);
+            }
+        }).get();
+        assertEquals(0, process.waitFor());
+        assertEquals(List.of("err", "out"), lines.stream().sorted().toList());
+    }
+
+    @Test
+    public void waitForExitCode() throws Exception {
+        assertEquals(3, ProcessUtils.waitFor(new ProcessBuilder("sh", "-c", "exit 3").start()));
+    }
+
+    private static List<String> pump(String content) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        ProcessUtils.pump(input(content), lines::add);
+        return lines;
+    }
+
+    private static ByteArrayInputStream input(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static io.restassured.RestAssured.given;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.common.http.TestHTTPResource;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+
+/**
+ * Tests rejecting jobs while the job queue is full
+ */
+@QuarkusTest
+@TestProfile(QueueFullTest.Profile.class)
+public class QueueFullTest {
+
+    public static class Profile extends EndpointTestProfile {
+        @Override
+        protected Map<String, String> overrides() {
+            return Map.of("whisperx.queue.capacity", "1");
+        }
+    }
+
+    @TestHTTPResource("/")
+    URL url;
+
+    @Test
+    public void rejectLargeUploadBeforeReceivingIt() throws IOException {
+        // One running and one queued job
+        for (int i = 0; i < 2; i++) {
+            given().contentType("audio/wav").queryParam("language", "slow").body(EndpointTestProfile.wav(1))
+                    .post("/transcribe").then().statusCode(202);
+        }
+
+        final int length = 64 * 1024 * 1024;
+        final byte[] chunk = new byte[64 * 1024];
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+            try (Socket socket = new Socket(url.getHost(), url.getPort())) {
+                socket.setSoTimeout(10_000);
+                final OutputStream out = socket.getOutputStream();
+                final InputStream in = socket.getInputStream();
+                out.write(("POST /transcribe HTTP/1.1\r\nHost: localhost\r\nContent-Type: audio/wav\r\n"
+                        + "Content-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.write(chunk);
+                out.flush();
+
+                // Answered before the content is sent
+                final String rejected = readResponse(in);
+                assertTrue(rejected.startsWith("HTTP/1.1 429"), rejected);
+                assertTrue(rejected.toLowerCase(Locale.ROOT).contains("retry-after:"), rejected);
+
+                // The rest of the content is accepted and dropped, the connection stays usable
+                for (int written = chunk.length; written < length; written += chunk.length) {
+                    out.write(chunk);
+                }
+                out.write("GET /transcription-status?job-id=unknown HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                final String next = readResponse(in);
+                assertTrue(next.startsWith("HTTP/1.1 404"), next);
+            }
+        });
+    }
+
+    /**
+     * Reads a single response with a Content-Length
+     *
+     * @return Head of the response
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString(StandardCharsets.US_ASCII).endsWith("\r\n\r\n")) {
+            final int b = in.read();
+            assertTrue(b >= 0, "Connection closed");
+            head.write(b);
+        }
+        final String result = head.toString(StandardCharsets.US_ASCII);
+        long length = 0;
+        for (String line : result.split("\r\n")) {
+            if (line.toLowerCase(Locale.ROOT).startsWith("content-length:")) {
+                length = Long.parseLong(line.substring("content-length:".length()).trim());
+            }
+        }
+        in.skipNBytes(length);
+        return result;
+    }
+}
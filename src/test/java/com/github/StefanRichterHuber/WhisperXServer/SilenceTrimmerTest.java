@@ -0,0 +1,126 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment;
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXOutput.Segment.Word;
+
+public class SilenceTrimmerTest {
+    private static final int SAMPLE_RATE = 16000;
+
+    private static final Duration MIN_SILENCE = Duration.ofSeconds(2);
+
+    private static final Duration PADDING = Duration.ofMillis(300);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void cutLongSilences() throws IOException {
+        // Speech with a long pause at 5-15s, a short pause at 20-21s and silence at the end
+        final Path wav = directory.resolve("audio.wav");
+        Files.write(wav, audio(30, new double[][] { { 0, 5 }, { 15, 20 }, { 21, 25 } }, new double[0][]));
+
+        final SilenceTrimmer.Trimmed trimmed = SilenceTrimmer.trim(wav, -45, MIN_SILENCE, PADDING).orElseThrow();
+        assertEquals(2, trimmed.spans().size());
+        assertSpan(0, 0, 5.3, trimmed.spans().get(0));
+        assertSpan(5.3, 14.7, 10.6, trimmed.spans().get(1));
+        assertEquals(30, trimmed.originalDuration(), 0.001);
+        assertEquals(14.1, trimmed.skipped(), 0.001);
+
+        final WavHeader header = WavHeader.read(trimmed.file()).orElseThrow();
+        assertEquals(15.9, header.getDurationSeconds(), 0.001);
+        assertEquals(Files.size(trimmed.file()), header.getDataOffset() + header.getDataSize());
+
+        assertEquals(1.0, trimmed.toOriginal(1.0), 0.001);
+        assertEquals(15.4, trimmed.toOriginal(6.0), 0.001);
+    }
+
+    @Test
+    public void keepQuietUnvoicedSounds() throws IOException {
+        // Too quiet for voiced speech, but lots of zero crossings
+        final Path wav = directory.resolve("audio.wav");
+        Files.write(wav, audio(10, new double[][] { { 0, 3 } }, new double[][] { { 6, 6.5 } }));
+
+        final SilenceTrimmer.Trimmed trimmed = SilenceTrimmer.trim(wav, -45, MIN_SILENCE, PADDING).orElseThrow();
+        assertEquals(2, trimmed.spans().size());
+        assertSpan(0, 0, 3.3, trimmed.spans().get(0));
+        assertSpan(3.3, 5.7, 1.1, trimmed.spans().get(1));
+    }
+
+    @Test
+    public void nothingToCut() throws IOException {
+        final Path wav = directory.resolve("audio.wav");
+        Files.write(wav, audio(10, new double[][] { { 0, 4 }, { 5, 10 } }, new double[0][]));
+        assertEquals(Optional.empty(), SilenceTrimmer.trim(wav, -45, MIN_SILENCE, PADDING));
+
+        // Neither without any speech
+        assertEquals(List.of(), SilenceTrimmer.findSpeech(new boolean[500], 100, 15));
+        final boolean[] speech = new boolean[500];
+        speech[0] = true;
+        assertArrayEquals(new int[] { 0, 16 }, SilenceTrimmer.findSpeech(speech, 100, 15).get(0));
+    }
+
+    @Test
+    public void mapTranscriptToOriginalAudio() {
+        final SilenceTrimmer.Trimmed trimmed = new SilenceTrimmer.Trimmed(directory.resolve("audio.trimmed.wav"),
+                List.of(new SilenceTrimmer.Span(0, 0, 5.3), new SilenceTrimmer.Span(5.3, 14.7, 10.6)), 30);
+        final Word word = new Word("Hallo", 6.0, 6.5, 0.9, null);
+        final WhisperXOutput output = new WhisperXOutput(
+                List.of(new Segment(4.5, 7.25, "Hallo", List.of(word), null)), List.of(word), "de");
+
+        final WhisperXOutput original = trimmed.toOriginal(output);
+        assertEquals(4.5, original.getSegments().get(0).getStart());
+        assertEquals(16.65, original.getSegments().get(0).getEnd());
+        assertEquals(15.4, original.getSegments().get(0).getWords().get(0).getStart());
+        assertEquals(15.9, original.getWordSegments().get(0).getEnd());
+        assertEquals("de", original.getLanguage());
+    }
+
+    private static void assertSpan(double start, double originalStart, double duration, SilenceTrimmer.Span span) {
+        assertEquals(start, span.start(), 0.001);
+        assertEquals(originalStart, span.originalStart(), 0.001);
+        assertEquals(duration, span.duration(), 0.001);
+    }
+
+    /**
+     * Loud tones for speech, quiet high frequency noise for unvoiced sounds and
+     * a quiet hum everywhere else
+     */
+    private static byte[] audio(int seconds, double[][] speech, double[][] unvoiced) {
+        final int samples = seconds * SAMPLE_RATE;
+        final ByteBuffer header = WavHeader.createPcmHeader(1, SAMPLE_RATE, 16, samples * 2L);
+        final ByteBuffer buffer = ByteBuffer.allocate(header.remaining() + samples * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(header);
+        for (int i = 0; i < samples; i++) {
+            final double time = (double) i / SAMPLE_RATE;
+            short sample = (short) (Math.sin(2 * Math.PI * 50 * time) * 40);
+            for (double[] range : speech) {
+                if (time >= range[0] && time < range[1]) {
+                    sample = (short) (Math.sin(2 * Math.PI * 200 * time) * 8000);
+                }
+            }
+            for (double[] range : unvoiced) {
+                if (time >= range[0] && time < range[1]) {
+                    sample = (short) (i % 2 == 0 ? 100 : -100);
+                }
+            }
+            buffer.putShort(sample);
+        }
+        return buffer.array();
+    }
+}
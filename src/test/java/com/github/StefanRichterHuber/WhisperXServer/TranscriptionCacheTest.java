@@ -0,0 +1,120 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.quarkus.runtime.configuration.MemorySize;
+
+public class TranscriptionCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void keyDependsOnAudioDataAndParameters() throws IOException {
+        final TranscriptionCache cache = open(1024);
+        final byte[] data = new byte[] { 1, 2, 3, 4 };
+        final Path a = directory.resolve("a.wav");
+        final Path b = directory.resolve("b.wav");
+        Files.write(a, withData(WavHeaderTest.wav(1, 1, 16000, 16, data.length), data));
+        // Same audio data, but different file name and content of the LIST chunk
+        final byte[] other = withData(WavHeaderTest.wav(1, 1, 16000, 16, data.length), data);
+        other[48] = 'X';
+        Files.write(b, other);
+
+        final String key = cache.computeKey(a, "large-v2", null, "transcribe", false, null);
+        assertEquals(key, cache.computeKey(b, "large-v2", "", "transcribe", false, null));
+        assertNotEquals(key, cache.computeKey(a, "large-v2", "de", "transcribe", false, null));
+        assertNotEquals(key, cache.computeKey(a, "large-v2", null, "translate", false, null));
+        assertNotEquals(key, cache.computeKey(a, "large-v2", null, "transcribe", true, null));
+        assertNotEquals(key, cache.computeKey(a, "medium", null, "transcribe", false, null));
+        assertNotEquals(key, cache.computeKey(a, "large-v2", null, "transcribe", false, "-45.0|2000|300"));
+        assertNotEquals(cache.computeKey(a, "large-v2", null, "transcribe", false, "-45.0|2000|300"),
+                cache.computeKey(a, "large-v2", null, "transcribe", false, "-40.0|2000|300"));
+
+        // The audio is hashed once for the keys of all tasks of a job
+        final MessageDigest audio = cache.digestAudio(a);
+        assertEquals(key, cache.computeKey(audio, "large-v2", null, "transcribe", false, null));
+        assertEquals(cache.computeKey(a, "large-v2", null, "translate", false, null),
+                cache.computeKey(audio, "large-v2", null, "translate", false, null));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws IOException {
+        final CompactTranscript transcript = CompactTranscript.of(new WhisperXOutput(
+                List.of(new WhisperXOutput.Segment(0.5, 1.25, " Hallo", null, null)), List.of(), "de"));
+        final int size = Double.BYTES + transcript.toBytes().length;
+        final TranscriptionCache cache = open(2 * size + size / 2);
+        cache.put("a", transcript, null);
+        cache.put("b", transcript, 12.5);
+        assertEquals(" Hallo", cache.get("a").orElseThrow().transcript().getSegment(0).getText());
+        assertEquals(null, cache.get("a").orElseThrow().skippedSilence());
+        cache.put("c", transcript, 12.5);
+
+        assertTrue(cache.get("b").isEmpty());
+        assertTrue(cache.get("a").isPresent());
+        assertTrue(cache.get("c").isPresent());
+        assertEquals(2 * size, cache.getSize());
+
+        // Entries survive a restart, entries of older versions and partially written entries are dropped
+        Files.writeString(directory.resolve("cache").resolve("d.json"), "{}");
+        Files.writeString(directory.resolve("cache").resolve("e123.tmp"), "{");
+        final TranscriptionCache reopened = open(2 * size + size / 2);
+        assertEquals(2 * size, reopened.getSize());
+        assertEquals("de", reopened.get("a").orElseThrow().transcript().getLanguage());
+        assertEquals(12.5, reopened.get("c").orElseThrow().skippedSilence());
+        assertTrue(Files.notExists(directory.resolve("cache").resolve("d.json")));
+        assertTrue(Files.notExists(directory.resolve("cache").resolve("e123.tmp")));
+    }
+
+    @Test
+    public void deleteTemporaryFileOnFailure() throws IOException {
+        final TranscriptionCache cache = open(1024);
+        // The entry can not replace a non-empty directory
+        Files.createFile(Files.createDirectory(directory.resolve("cache").resolve("a.wxc")).resolve("x"));
+        cache.put("a", CompactTranscript.of(new WhisperXOutput()), null);
+
+        assertEquals(0, cache.getSize());
+        try (Stream<Path> files = Files.list(directory.resolve("cache"))) {
+            assertEquals(List.of("a.wxc"), files.map(p -> p.getFileName().toString()).collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    public void dropCorruptEntries() throws IOException {
+        final TranscriptionCache cache = open(1024);
+        cache.put("a", CompactTranscript.of(new WhisperXOutput()), null);
+        Files.write(directory.resolve("cache").resolve("a.wxc"), new byte[] { 1, 2, 3 });
+
+        assertTrue(cache.get("a").isEmpty());
+        assertEquals(0, cache.getSize());
+    }
+
+    private TranscriptionCache open(long maxSize) {
+        final TranscriptionCache cache = new TranscriptionCache();
+        cache.logger = Logger.getLogger(TranscriptionCache.class);
+        cache.directory = directory.resolve("cache").toString();
+        cache.maxSize = new MemorySize(BigInteger.valueOf(maxSize));
+        cache.init();
+        return cache;
+    }
+
+    private static byte[] withData(byte[] wav, byte[] data) {
+        System.arraycopy(data, 0, wav, wav.length - data.length, data.length);
+        return wav;
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.restassured.path.json.JsonPath;
+import io.restassured.specification.RequestSpecification;
+
+/**
+ * Tests waiting for and observing transcription jobs over HTTP
+ */
+@QuarkusTest
+@TestProfile(TranscriptionStatusEndpointTest.Profile.class)
+public class TranscriptionStatusEndpointTest {
+
+    public static class Profile extends EndpointTestProfile {
+        @Override
+        protected Map<String, String> overrides() {
+            return Map.of("whisperx.status.event-interval", "1s");
+        }
+    }
+
+    @Test
+    public void longPollReturnsWhenJobCompletes() {
+        final String id = submit(null);
+
+        final long start = System.nanoTime();
+        given().queryParam("job-id", id).queryParam("wait", 30).get("/transcription-status").then()
+                .statusCode(200).body(containsString("Hello world."));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toSeconds() < 30);
+    }
+
+    @Test
+    public void longPollReturnsWhenWaitExpires() {
+        final String id = submit("slow");
+        try {
+            final long start = System.nanoTime();
+            given().queryParam("job-id", id).queryParam("wait", 1).get("/transcription-status").then()
+                    .statusCode(202).body("task.status", equalTo("ON_GOING"));
+            final Duration waited = Duration.ofNanos(System.nanoTime() - start);
+            assertTrue(waited.toMillis() >= 900, waited.toString());
+        } finally {
+            given().queryParam("job-id", id).delete("/transcription-status");
+        }
+    }
+
+    @Test
+    public void eventsFollowJobUntilFinished() {
+        final String id = submit("slow");
+
+        final String events = given().accept("text/event-stream").queryParam("job-id", id)
+                .get("/transcription-status/events").then().statusCode(200).extract().asString();
+        final List<String> states = events.lines().filter(line -> line.startsWith("data:"))
+                .map(line -> JsonPath.from(line.substring("data:".length())).getString("task.status"))
+                .collect(Collectors.toList());
+        assertTrue(states.size() >= 2, events);
+        assertTrue(states.subList(0, states.size() - 1).stream().allMatch("ON_GOING"::equals), events);
+        assertEquals("FINISHED", states.get(states.size() - 1), events);
+    }
+
+    @Test
+    public void unknownJob() {
+        given().queryParam("job-id", "unknown").get("/transcription-status").then().statusCode(404);
+        given().queryParam("job-id", "unknown").queryParam("wait", 5).get("/transcription-status").then()
+                .statusCode(404);
+        given().accept("text/event-stream").queryParam("job-id", "unknown").get("/transcription-status/events")
+                .then().statusCode(404);
+        given().queryParam("job-id", "unknown").delete("/transcription-status").then().statusCode(404);
+    }
+
+    @Test
+    public void cancelQueuedJob() {
+        final String running = submit("slow");
+        final String queued = submit("slow");
+        try {
+            given().queryParam("job-id", queued).get("/transcription-status").then().statusCode(202)
+                    .body("task.queuePosition", notNullValue());
+
+            given().queryParam("job-id", queued).delete("/transcription-status").then().statusCode(204);
+            given().queryParam("job-id", queued).get("/transcription-status").then().statusCode(404);
+            // The running job is not affected
+            given().queryParam("job-id", running).get("/transcription-status").then().statusCode(202)
+                    .body("task.status", equalTo("ON_GOING"));
+        } finally {
+            given().queryParam("job-id", running).delete("/transcription-status");
+        }
+    }
+
+    /**
+     * @param language Language of the job, selects a mode of the fake worker
+     * @return ID of the job
+     */
+    private static String submit(String language) {
+        final RequestSpecification request = given().contentType("audio/wav").queryParam("format", "json");
+        if (language != null) {
+            request.queryParam("language", language);
+        }
+        return request.body(EndpointTestProfile.wav(1)).post("/transcribe").then().statusCode(202).extract()
+                .path("task.id");
+    }
+}
@@ -0,0 +1,88 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.junit.jupiter.api.Test;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import io.restassured.response.Response;
+import io.restassured.specification.RequestSpecification;
+
+/**
+ * Tests the resumable uploads over HTTP
+ */
+@QuarkusTest
+@TestProfile(EndpointTestProfile.class)
+public class UploadEndpointTest {
+
+    @Test
+    public void uploadInChunks() throws NoSuchAlgorithmException {
+        final byte[] content = EndpointTestProfile.wav(1);
+        final int half = content.length / 2;
+        final String location = create(content.length);
+
+        patch(location, 0, content, 0, half).then().statusCode(204).header("Upload-Offset", String.valueOf(half));
+        // Chunks must continue at the offset
+        patch(location, 0, content, 0, half).then().statusCode(409).header("Upload-Offset", String.valueOf(half));
+        // Corrupted chunks are rejected
+        final byte[] corrupted = Arrays.copyOf(content, content.length);
+        corrupted[half + 1] ^= 1;
+        chunk(half, corrupted, half, content.length).header("Upload-Checksum", checksum(content, half))
+                .patch(location).then().statusCode(460).header("Upload-Offset", String.valueOf(half));
+        given().head(location).then().statusCode(200).header("Upload-Offset", String.valueOf(half))
+                .header("Upload-Length", String.valueOf(content.length));
+
+        // The last chunk starts the job
+        chunk(half, content, half, content.length).header("Upload-Checksum", checksum(content, half))
+                .patch(location).then().statusCode(202).header("Upload-Offset", String.valueOf(content.length))
+                .body("task.id", notNullValue());
+        given().head(location).then().statusCode(200).header("Location", containsString("job-id="));
+    }
+
+    @Test
+    public void abortUpload() {
+        final String location = create(100);
+
+        given().delete(location).then().statusCode(204);
+        given().head(location).then().statusCode(404);
+        patch(location, 0, new byte[100], 0, 100).then().statusCode(404);
+        given().delete(location).then().statusCode(404);
+    }
+
+    @Test
+    public void rejectInvalidUploads() {
+        given().post("/uploads").then().statusCode(400);
+        given().header("Upload-Length", 0).post("/uploads").then().statusCode(400);
+        given().head("/uploads/unknown").then().statusCode(404);
+    }
+
+    private static String create(long length) {
+        return given().header("Upload-Length", length).post("/uploads").then().statusCode(201)
+                .header("Upload-Offset", equalTo("0")).header("Location", containsString("/uploads/")).extract()
+                .header("Location");
+    }
+
+    private static Response patch(String location, long offset, byte[] content, int from, int to) {
+        return chunk(offset, content, from, to).patch(location);
+    }
+
+    private static RequestSpecification chunk(long offset, byte[] content, int from, int to) {
+        return given().contentType("application/offset+octet-stream").header("Upload-Offset", offset)
+                .body(Arrays.copyOfRange(content, from, to));
+    }
+
+    private static String checksum(byte[] content, int from) throws NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(content, from, content.length - from);
+        return "sha256 " + Base64.getEncoder().encodeToString(digest.digest());
+    }
+}
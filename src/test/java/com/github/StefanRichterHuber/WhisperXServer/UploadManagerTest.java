@@ -0,0 +1,187 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+
+import io.quarkus.runtime.configuration.MemorySize;
+
+public class UploadManagerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void resumeAfterFailedChunk() throws IOException, NoSuchAlgorithmException {
+        final UploadManager manager = manager();
+        final byte[] content = new byte[100_000];
+        Arrays.fill(content, 0, 50_000, (byte) 1);
+        Arrays.fill(content, 50_000, content.length, (byte) 2);
+        final UploadManager.Upload upload = manager.create(content.length, request());
+        assertEquals(content.length, Files.size(upload.getFile()));
+
+        assertEquals(50_000, manager.write(upload, 0, chunk(content, 0, 50_000), checksum(content, 0, 50_000)));
+        // Corrupted chunk is rejected, the offset stays
+        final byte[] corrupted = Arrays.copyOfRange(content, 50_000, content.length);
+        corrupted[10] = 3;
+        assertThrows(UploadManager.ChecksumMismatchException.class, () -> manager.write(upload, 50_000,
+                new ByteArrayInputStream(corrupted), checksum(content, 50_000, content.length)));
+        assertEquals(50_000, upload.getOffset());
+        // Chunks must continue at the offset
+        assertThrows(UploadManager.OffsetMismatchException.class,
+                () -> manager.write(upload, 0, chunk(content, 0, 50_000), null));
+
+        assertEquals(content.length, manager.write(upload, 50_000, chunk(content, 50_000, content.length),
+                checksum(content, 50_000, content.length)));
+        assertTrue(upload.isComplete());
+        assertArrayEquals(content, Files.readAllBytes(upload.getFile()));
+    }
+
+    @Test
+    public void rejectChunksBeyondLength() throws IOException {
+        final UploadManager manager = manager();
+        final UploadManager.Upload upload = manager.create(10, request());
+        assertThrows(IllegalArgumentException.class,
+                () -> manager.write(upload, 0, new ByteArrayInputStream(new byte[11]), null));
+        assertEquals(0, upload.getOffset());
+        assertThrows(IllegalArgumentException.class, () -> manager.create(1024 * 1024 + 1, request()));
+    }
+
+    @Test
+    public void removeUpload() throws IOException {
+        final UploadManager manager = manager();
+        final UploadManager.Upload upload = manager.create(10, request());
+        manager.remove(upload.getId());
+        assertTrue(manager.get(upload.getId()).isEmpty());
+        assertFalse(Files.exists(upload.getFile()));
+    }
+
+    @Test
+    public void resumeAfterRestart() throws IOException {
+        final UploadManager manager = manager();
+        final byte[] content = new byte[1000];
+        Arrays.fill(content, (byte) 1);
+        final UploadManager.Upload upload = manager.create(content.length, request());
+        manager.write(upload, 0, chunk(content, 0, 400), null);
+
+        // Orphaned files of uploads are deleted once they are expired
+        final Path orphan = Files.write(directory.resolve("orphan.upload"), new byte[10]);
+        Files.setLastModifiedTime(orphan, FileTime.from(Instant.now().minus(Duration.ofHours(2))));
+        final Path receiving = Files.write(directory.resolve("receiving.upload"), new byte[10]);
+
+        final UploadManager restarted = manager();
+        restarted.loadUploads();
+        final UploadManager.Upload restored = restarted.get(upload.getId()).orElseThrow();
+        assertEquals(400, restored.getOffset());
+        assertEquals(content.length, restored.getLength());
+        assertEquals(request(), restored.getRequest());
+        assertFalse(Files.exists(orphan));
+        assertTrue(Files.exists(receiving));
+
+        assertEquals(content.length, restarted.write(restored, 400, chunk(content, 400, content.length), null));
+        assertArrayEquals(content, Files.readAllBytes(restored.getFile()));
+    }
+
+    @Test
+    public void doNotRemoveUploadWhileWriting() throws Exception {
+        final UploadManager manager = manager();
+        final UploadManager.Upload upload = manager.create(10, request());
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final InputStream blocking = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        };
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Long> write = executor.submit(() -> manager.write(upload, 0, blocking, null));
+            reading.await();
+            assertFalse(manager.remove(upload.getId()));
+            assertTrue(Files.exists(upload.getFile()));
+            release.countDown();
+            write.get();
+
+            assertTrue(manager.remove(upload.getId()));
+            assertFalse(Files.exists(upload.getFile()));
+            // Chunks of removed uploads are rejected
+            assertThrows(NoSuchFileException.class,
+                    () -> manager.write(upload, 0, new ByteArrayInputStream(new byte[1]), null));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private UploadManager manager() {
+        final UploadManager manager = new UploadManager();
+        manager.logger = Logger.getLogger(UploadManager.class);
+        manager.workdir = directory.toString();
+        manager.maxLength = new MemorySize(BigInteger.valueOf(1024 * 1024));
+        manager.expiry = Duration.ofHours(1);
+        manager.objectMapper = new ObjectMapper();
+        manager.jobStore = jobStore();
+        return manager;
+    }
+
+    private FileJobStore jobStore() {
+        final FileJobStore store = new FileJobStore();
+        store.logger = Logger.getLogger(FileJobStore.class);
+        store.objectMapper = new ObjectMapper().findAndRegisterModules();
+        store.directory = directory.resolve("jobs").toString();
+        store.compactAfter = 1000;
+        store.maxResultSize = new MemorySize(BigInteger.valueOf(1024 * 1024));
+        store.init();
+        return store;
+    }
+
+    private static UploadManager.JobRequest request() {
+        return new UploadManager.JobRequest("client", Priority.NORMAL, null, false,
+                List.of(WhisperXService.TASK_TRANSCRIBE), null, "text/plain", List.of("txt"));
+    }
+
+    private static InputStream chunk(byte[] content, int from, int to) {
+        return new ByteArrayInputStream(content, from, to - from);
+    }
+
+    private static String checksum(byte[] content, int from, int to) throws NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(content, from, to - from);
+        return "sha1 " + Base64.getEncoder().encodeToString(digest.digest());
+    }
+}
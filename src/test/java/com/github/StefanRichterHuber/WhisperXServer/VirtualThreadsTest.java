@@ -0,0 +1,30 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void availableOnJava21() {
+        assertEquals(Runtime.version().feature() >= 21, VirtualThreads.isAvailable());
+    }
+
+    @Test
+    public void runTasks() throws Exception {
+        final ExecutorService executor = VirtualThreads.newExecutor("test");
+        try {
+            final String name = executor.submit(() -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS);
+            assertTrue(name.startsWith("test-"), name);
+            assertTrue(VirtualThreads.factory("test").newThread(() -> {
+            }).isDaemon());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
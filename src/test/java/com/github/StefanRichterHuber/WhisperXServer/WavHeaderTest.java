@@ -0,0 +1,96 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WavHeaderTest {
+
+    @TempDir
+    Path workdir;
+
+    @Test
+    public void compatibleWav() throws IOException {
+        final Path file = write(wav(1, 1, 16000, 16, 32000));
+        final WavHeader header = WavHeader.read(file).orElseThrow();
+
+        assertTrue(header.isWhisperXCompatible());
+        assertEquals(60, header.getDataOffset());
+        assertEquals(32000, header.getDataSize());
+        assertEquals(1.0d, header.getDurationSeconds(), 0.0001d);
+    }
+
+    @Test
+    public void stereoWavRequiresConversion() throws IOException {
+        final WavHeader header = WavHeader.read(write(wav(1, 2, 44100, 16, 44100 * 4))).orElseThrow();
+
+        assertFalse(header.isWhisperXCompatible());
+        assertTrue(header.isPcm());
+        assertEquals(1.0d, header.getDurationSeconds(), 0.0001d);
+    }
+
+    @Test
+    public void floatWavRequiresConversion() throws IOException {
+        final WavHeader header = WavHeader.read(write(wav(3, 1, 16000, 32, 64000))).orElseThrow();
+
+        assertFalse(header.isWhisperXCompatible());
+    }
+
+    @Test
+    public void headerFromStream() throws IOException {
+        final byte[] content = wav(1, 2, 44100, 16, 400);
+        // Written to a pipe, without a valid size
+        ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN).putInt(56, 0xFFFFFFFF);
+        final ByteBuffer prefix = ByteBuffer.wrap(content, 0, 100);
+        final WavHeader header = WavHeader.read(prefix).orElseThrow();
+
+        assertEquals(60, prefix.position());
+        assertEquals(-1, header.getDataSize());
+        assertEquals(2, header.getChannels());
+        // Header not contained in the prefix
+        assertTrue(WavHeader.read(ByteBuffer.wrap(content, 0, 50)).isEmpty());
+    }
+
+    @Test
+    public void notAWav() throws IOException {
+        final Path file = write("ID3 this is an mp3 file".getBytes(StandardCharsets.US_ASCII));
+
+        assertTrue(WavHeader.read(file).isEmpty());
+    }
+
+    private Path write(byte[] content) throws IOException {
+        return Files.write(Files.createTempFile(workdir, "audio", ".upload"), content);
+    }
+
+    /**
+     * Creates a minimal wav file with an additional LIST chunk between fmt and
+     * data
+     */
+    static byte[] wav(int format, int channels, int sampleRate, int bits, int dataSize) {
+        final byte[] list = "INFOtest".getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer buffer = ByteBuffer.allocate(12 + 24 + 8 + list.length + 8 + dataSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(buffer.capacity() - 8)
+                .put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        buffer.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16) //
+                .putShort((short) format) //
+                .putShort((short) channels) //
+                .putInt(sampleRate) //
+                .putInt(sampleRate * channels * bits / 8) //
+                .putShort((short) (channels * bits / 8)) //
+                .putShort((short) bits);
+        buffer.put("LIST".getBytes(StandardCharsets.US_ASCII)).putInt(list.length).put(list);
+        buffer.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(dataSize);
+        return buffer.array();
+    }
+}
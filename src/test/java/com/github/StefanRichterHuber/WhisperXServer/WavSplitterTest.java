@@ -0,0 +1,72 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WavSplitterTest {
+    private static final int SAMPLE_RATE = 8000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void splitAtSilences() throws IOException {
+        // 60s of noise with pauses at 18.0-19.0s and 41.5-42.5s
+        final Path wav = directory.resolve("audio.wav");
+        Files.write(wav, audio(60, new double[][] { { 18.0, 19.0 }, { 41.5, 42.5 } }));
+
+        final List<WavSplitter.Chunk> chunks = WavSplitter.split(wav, Duration.ofSeconds(20), Duration.ofSeconds(5));
+        assertEquals(3, chunks.size());
+        assertEquals(0.0, chunks.get(0).offset());
+        assertTrue(chunks.get(1).offset() > 18.0 && chunks.get(1).offset() < 19.0, "" + chunks.get(1).offset());
+        assertTrue(chunks.get(2).offset() > 41.5 && chunks.get(2).offset() < 42.5, "" + chunks.get(2).offset());
+
+        // All audio data is contained exactly once
+        long dataSize = 0;
+        for (WavSplitter.Chunk chunk : chunks) {
+            final WavHeader header = WavHeader.read(chunk.file()).orElseThrow();
+            assertEquals(SAMPLE_RATE, header.getSampleRate());
+            assertEquals(Files.size(chunk.file()), header.getDataOffset() + header.getDataSize());
+            dataSize += header.getDataSize();
+        }
+        assertEquals(60L * SAMPLE_RATE * 2, dataSize);
+
+        WavSplitter.delete(chunks);
+        assertTrue(chunks.stream().noneMatch(c -> Files.exists(c.file())));
+    }
+
+    @Test
+    public void shortAudioIsNotSplit() {
+        assertEquals(List.of(), WavSplitter.findBoundaries(new double[250], 200, 50));
+        // Without silence, the boundary is placed at the target length
+        assertEquals(List.of(200), WavSplitter.findBoundaries(new double[400], 200, 50));
+    }
+
+    private static byte[] audio(int seconds, double[][] pauses) {
+        final int samples = seconds * SAMPLE_RATE;
+        final ByteBuffer header = WavHeader.createPcmHeader(1, SAMPLE_RATE, 16, samples * 2L);
+        final ByteBuffer buffer = ByteBuffer.allocate(header.remaining() + samples * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(header);
+        for (int i = 0; i < samples; i++) {
+            final double time = (double) i / SAMPLE_RATE;
+            boolean silent = false;
+            for (double[] pause : pauses) {
+                silent |= time >= pause[0] && time < pause[1];
+            }
+            buffer.putShort(silent ? 0 : (short) (Math.sin(i * 0.3) * 8000));
+        }
+        return buffer.array();
+    }
+}
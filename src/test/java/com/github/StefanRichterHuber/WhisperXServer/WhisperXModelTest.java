@@ -0,0 +1,85 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.Priority;
+import com.github.StefanRichterHuber.WhisperXServer.JobScheduler.QueueFullException;
+
+public class WhisperXModelTest {
+    private static final Duration TARGET = Duration.ofMinutes(10);
+
+    private WhisperXModel small;
+    private WhisperXModel large;
+    private List<WhisperXModel> models;
+
+    @BeforeEach
+    public void createModels() {
+        small = model("small");
+        large = model("large-v2");
+        models = List.of(small, large);
+    }
+
+    @AfterEach
+    public void closeModels() {
+        models.forEach(WhisperXModel::close);
+    }
+
+    @Test
+    public void preferAccurateModelWithinTarget() {
+        // 5 minutes take 5 minutes with the large model
+        assertEquals(large, WhisperXModel.select(models, 300, TARGET));
+        // 30 minutes only fit with the small model
+        assertEquals(small, WhisperXModel.select(models, 1800, TARGET));
+        // Fastest model, if none meets the target
+        assertEquals(small, WhisperXModel.select(models, 7200, TARGET));
+    }
+
+    @Test
+    public void considerQueueDepth() throws QueueFullException, InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 2; i++) {
+                large.getScheduler().submit("busy-" + i, "client", Priority.NORMAL, () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return null;
+                });
+            }
+            while (large.getScheduler().getRunningJobs() < 1) {
+                Thread.sleep(10);
+            }
+            // Two jobs ahead, assumed to be as long as this one
+            assertEquals(Duration.ofMinutes(15), large.estimateLatency(300));
+            assertEquals(small, WhisperXModel.select(models, 300, TARGET));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void refineRealtimeFactor() {
+        for (int i = 0; i < 20; i++) {
+            large.recordRealtimeFactor(4);
+        }
+        assertTrue(Math.abs(large.getRealtimeFactor() - 4) < 0.01);
+        // Still preferred for its accuracy, now that it is faster
+        assertEquals(large, WhisperXModel.select(models, 1800, TARGET));
+    }
+
+    private static WhisperXModel model(String name) {
+        return new WhisperXModel(name, 1, WhisperXModel.defaultRealtimeFactor(name), new JobScheduler(1, 10, 0),
+                null);
+    }
+}
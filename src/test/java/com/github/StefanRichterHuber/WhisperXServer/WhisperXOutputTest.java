@@ -0,0 +1,112 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares the renderers of {@link WhisperXOutput} with the files written by
+ * WhisperX for the same JSON output (src/test/resources/golden)
+ */
+public class WhisperXOutputTest {
+
+    @ParameterizedTest
+    @CsvSource({
+            "aligned, srt", "aligned, vtt", "aligned, tsv", "aligned, aud",
+            "unaligned, srt", "unaligned, vtt", "unaligned, tsv", "unaligned, aud",
+            "chinese, srt", "chinese, vtt", "chinese, tsv", "chinese, aud" })
+    public void matchesWhisperXOutput(String name, String format) throws IOException {
+        final WhisperXOutput output = new ObjectMapper().readValue(read(name + ".json"), WhisperXOutput.class);
+        assertEquals(read(name + "." + format), output.toFormat(format));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "aligned, srt", "aligned, vtt", "aligned, tsv", "aligned, aud",
+            "unaligned, srt", "unaligned, vtt", "unaligned, tsv", "unaligned, aud",
+            "chinese, srt", "chinese, vtt", "chinese, tsv", "chinese, aud" })
+    public void streamingMatchesWhisperXOutput(String name, String format) throws IOException {
+        assertEquals(read(name + "." + format), stream(name + ".json", format));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "aligned, json", "aligned, txt", "unaligned, json", "chinese, json" })
+    public void streamingMatchesBoundOutput(String name, String format) throws IOException {
+        final ObjectMapper om = new ObjectMapper();
+        final WhisperXOutput output = om.readValue(read(name + ".json"), WhisperXOutput.class);
+        if ("json".equals(format)) {
+            // Same content, but in the field order of WhisperX (language last)
+            final JsonNode expected = om.valueToTree(output);
+            assertEquals(expected, om.readTree(stream(name + ".json", format)));
+            assertEquals(expected, om.readTree(output.toFormat(format)));
+        } else {
+            assertEquals(output.toFormat(format), stream(name + ".json", format));
+        }
+    }
+
+    @Test
+    public void rejectInvalidJson() {
+        assertThrows(JsonParseException.class, () -> WhisperXOutputWriter
+                .parse(new ByteArrayInputStream("[1, 2]".getBytes(StandardCharsets.UTF_8))));
+        assertNull(WhisperXOutputWriter.create("pdf", new StringWriter()));
+    }
+
+    @Test
+    public void mergeChunks() {
+        final WhisperXOutput first = new WhisperXOutput(List.of(new WhisperXOutput.Segment(0.5, 2.0, " Hallo",
+                List.of(new WhisperXOutput.Segment.Word("Hallo", 0.5, 2.0, 0.9, null)), null)),
+                List.of(new WhisperXOutput.Segment.Word("Hallo", 0.5, 2.0, 0.9, null)), "de");
+        final WhisperXOutput second = new WhisperXOutput(List.of(new WhisperXOutput.Segment(0.25, 1.0, " 42",
+                List.of(new WhisperXOutput.Segment.Word("42", null, null, null, null)), null)),
+                List.of(new WhisperXOutput.Segment.Word("42", null, null, null, null)), "en");
+
+        final WhisperXOutput merged = WhisperXOutput.merge(List.of(first, second), List.of(0.0, 600.1));
+        assertEquals("de", merged.getLanguage());
+        assertEquals(2, merged.getSegments().size());
+        assertEquals(0.5, merged.getSegments().get(0).getStart());
+        assertEquals(600.35, merged.getSegments().get(1).getStart());
+        assertEquals(601.1, merged.getSegments().get(1).getEnd());
+        // Words without timestamps can not be shifted
+        assertNull(merged.getWordSegments().get(1).getStart());
+    }
+
+    /**
+     * Converts a golden JSON file with the streaming parser, reading it twice if
+     * the language is needed upfront
+     */
+    private static String stream(String file, String format) throws IOException {
+        final String language = WhisperXOutputWriter.requiresLanguage(format)
+                ? WhisperXOutputWriter.readLanguage(WhisperXOutputWriter.parse(open(file)))
+                : null;
+        final StringWriter out = new StringWriter();
+        final WhisperXOutputWriter writer = WhisperXOutputWriter.create(format, out);
+        writer.language(language);
+        WhisperXOutputWriter.convert(WhisperXOutputWriter.parse(open(file)), writer);
+        return out.toString();
+    }
+
+    private static InputStream open(String file) {
+        return WhisperXOutputTest.class.getResourceAsStream("/golden/" + file);
+    }
+
+    private static String read(String file) throws IOException {
+        try (InputStream is = WhisperXOutputTest.class.getResourceAsStream("/golden/" + file)) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
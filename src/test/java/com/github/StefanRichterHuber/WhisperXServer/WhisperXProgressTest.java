@@ -0,0 +1,87 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.StefanRichterHuber.WhisperXServer.WhisperXProgress.Stage;
+
+public class WhisperXProgressTest {
+
+    @Test
+    public void parseStagesAndPercent() {
+        final WhisperXProgress progress = new WhisperXProgress(false);
+        assertEquals(Stage.CONVERTING, progress.getStage());
+        assertEquals(0.0, progress.getPercent());
+
+        progress.onOutput(">>Performing transcription...");
+        progress.onOutput("Progress: 50.00%...");
+        assertEquals(Stage.TRANSCRIBING, progress.getStage());
+        assertEquals(50.0, progress.getStagePercent());
+        // Converting (5) + half of transcribing (65) of 85
+        assertEquals(100.0 * (5 + 32.5) / 85, progress.getPercent(), 0.001);
+
+        progress.onOutput(">>Performing alignment...");
+        progress.onOutput("Progress: 100.00%...");
+        assertEquals(Stage.ALIGNING, progress.getStage());
+        assertEquals(100.0, progress.getPercent(), 0.001);
+
+        // Unrelated output and stages going back are ignored
+        progress.onOutput("Lightning automatically upgraded your loaded checkpoint");
+        progress.setStage(Stage.TRANSCRIBING);
+        assertEquals(Stage.ALIGNING, progress.getStage());
+    }
+
+    @Test
+    public void shareProgressBetweenRuns() {
+        final WhisperXProgress progress = new WhisperXProgress(false, 2);
+        progress.onOutput(">>Performing alignment...");
+        progress.onOutput("Progress: 100.00%...");
+        assertEquals(50.0, progress.getPercent(), 0.001);
+
+        // Second run starts with the transcription again
+        progress.nextRun();
+        assertEquals(Stage.TRANSCRIBING, progress.getStage());
+        assertEquals(50.0 + 5.0 / 85 * 50, progress.getPercent(), 0.001);
+        progress.onOutput(">>Performing alignment...");
+        progress.onOutput("Progress: 100.00%...");
+        assertEquals(100.0, progress.getPercent(), 0.001);
+    }
+
+    @Test
+    public void estimateRemaining() {
+        final MutableClock clock = new MutableClock();
+        final WhisperXProgress progress = new WhisperXProgress(true, 1, clock);
+        assertTrue(progress.getEstimatedRemaining().isEmpty());
+
+        progress.onOutput(">>Performing alignment...");
+        // Converting and transcribing (70 of 100) take 70 seconds
+        clock.now = clock.now.plusSeconds(70);
+        assertEquals(Duration.ofSeconds(30), progress.getEstimatedRemaining().orElseThrow());
+    }
+
+    private static class MutableClock extends Clock {
+        Instant now = Instant.parse("2023-08-02T20:00:00Z");
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
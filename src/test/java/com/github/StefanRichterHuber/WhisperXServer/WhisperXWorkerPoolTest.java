@@ -0,0 +1,170 @@
+package com.github.StefanRichterHuber.WhisperXServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests the worker pool against a fake worker script, which implements the
+ * worker protocol without loading any model
+ */
+public class WhisperXWorkerPoolTest {
+
+    @TempDir
+    Path workdir;
+
+    private WhisperXWorkerPool pool;
+
+    private List<String> command;
+
+    @BeforeEach
+    public void findWorker() throws URISyntaxException {
+        assumeTrue(pythonAvailable(), "python3 is required to run the fake worker");
+        final Path script = Paths.get(getClass().getResource("/fake-whisperx-worker.py").toURI());
+        command = List.of("python3", script.toString());
+    }
+
+    @AfterEach
+    public void closePool() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void transcribe() throws IOException, InterruptedException {
+        pool = startPool(1, 10);
+
+        final JsonNode result = transcribe("en");
+        assertEquals("transcribe", result.get("task").asText());
+        assertEquals("en", result.get("language").asText());
+    }
+
+    @Test
+    public void forwardOutputDuringJob() throws IOException, InterruptedException {
+        pool = startPool(1, 10);
+
+        final WhisperXProgress progress = new WhisperXProgress(false);
+        final Path audio = Files.createTempFile(workdir, "audio", ".wav");
+        pool.transcribe(audio, workdir, "json", "transcribe", "en", false, progress::onOutput);
+        assertEquals(WhisperXProgress.Stage.TRANSCRIBING, progress.getStage());
+        assertEquals(100.0, progress.getStagePercent());
+    }
+
+    @Test
+    public void recycleAfterMaxJobs() throws IOException, InterruptedException {
+        pool = startPool(1, 2);
+
+        final long first = transcribe("en").get("pid").asLong();
+        assertEquals(first, transcribe("en").get("pid").asLong());
+        assertNotEquals(first, transcribe("en").get("pid").asLong());
+    }
+
+    @Test
+    public void restartCrashedWorker() throws IOException, InterruptedException {
+        pool = startPool(1, 10);
+
+        final long first = transcribe("en").get("pid").asLong();
+        assertThrows(IOException.class, () -> transcribe("crash"));
+        assertNotEquals(first, transcribe("en").get("pid").asLong());
+    }
+
+    @Test
+    public void keepWorkerOnFailedJob() throws IOException, InterruptedException {
+        pool = startPool(1, 10);
+
+        final long first = transcribe("en").get("pid").asLong();
+        assertThrows(IOException.class, () -> transcribe("fail"));
+        assertEquals(first, transcribe("en").get("pid").asLong());
+    }
+
+    @Test
+    public void healthCheckReplacesDeadWorker() throws IOException, InterruptedException {
+        pool = startPool(1, 10);
+
+        final long first = transcribe("en").get("pid").asLong();
+        final ProcessHandle worker = ProcessHandle.of(first).orElseThrow();
+        worker.destroyForcibly();
+        worker.onExit().join();
+
+        pool.checkHealth();
+        assertNotEquals(first, transcribe("en").get("pid").asLong());
+    }
+
+    @Test
+    public void healthCheckKeepsOtherWorkersAvailable() throws Exception {
+        pool = startPool(2, 10);
+        final long used = transcribe("en").get("pid").asLong();
+        while (pool.idleWorkers() < 2) {
+            Thread.sleep(50);
+        }
+        // The worker first in line stops answering
+        final long stopped = ProcessHandle.current().children()
+                .filter(p -> p.info().commandLine().orElse("").endsWith(command.get(1)))
+                .mapToLong(ProcessHandle::pid).filter(pid -> pid != used).findFirst().orElseThrow();
+        assertEquals(0, new ProcessBuilder("kill", "-STOP", String.valueOf(stopped)).start().waitFor());
+
+        final Thread healthCheck = new Thread(pool::checkHealth);
+        healthCheck.start();
+        while (pool.idleWorkers() > 1) {
+            Thread.sleep(10);
+        }
+        final long start = System.nanoTime();
+        assertEquals(used, transcribe("en").get("pid").asLong());
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).compareTo(Duration.ofSeconds(3)) < 0);
+        healthCheck.join();
+    }
+
+    @Test
+    public void failJobWithoutWorker() {
+        // The worker never reports to be ready
+        pool = new WhisperXWorkerPool(List.of("sleep", "60"), Map.of(), 1, 10, Duration.ofSeconds(1),
+                Duration.ofSeconds(5));
+        pool.start(Duration.ofHours(1));
+
+        final IOException e = assertThrows(IOException.class, () -> transcribe("en"));
+        assertTrue(e.getMessage().startsWith("No WhisperX worker became available"));
+    }
+
+    private WhisperXWorkerPool startPool(int size, int maxJobs) {
+        final WhisperXWorkerPool result = new WhisperXWorkerPool(command, Map.of(), size, maxJobs,
+                Duration.ofSeconds(30), Duration.ofSeconds(5));
+        result.start(Duration.ofHours(1));
+        return result;
+    }
+
+    private JsonNode transcribe(String language) throws IOException, InterruptedException {
+        final Path audio = Files.createTempFile(workdir, "audio", ".wav");
+        pool.transcribe(audio, workdir, "json", "transcribe", language, false, line -> {
+        });
+        final Path result = workdir.resolve(audio.getFileName().toString().replace(".wav", ".json"));
+        return new ObjectMapper().readTree(result.toFile());
+    }
+
+    private static boolean pythonAvailable() {
+        try {
+            return new ProcessBuilder("python3", "--version").start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+}
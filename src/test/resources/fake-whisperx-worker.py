@@ -0,0 +1,52 @@
+#!/usr/bin/env python3
+# Fake WhisperX worker implementing the protocol of whisperx_worker.py without
+# loading any model. Used to test the worker pool without a GPU.
+#
+# Special languages trigger failure modes:
+#   "crash" -> the worker exits while processing the job
+#   "fail"  -> the worker reports an error for the job
+#   "hang"  -> the worker stops answering (also to health checks)
+#   "slow"  -> the job takes a few seconds
+import json
+import os
+import sys
+import time
+
+
+def send(message):
+    sys.stdout.write(json.dumps(message) + "\n")
+    sys.stdout.flush()
+
+
+send({"type": "ready", "pid": os.getpid()})
+
+for line in sys.stdin:
+    request = json.loads(line)
+    if request.get("type") == "ping":
+        send({"type": "pong"})
+        continue
+
+    language = request.get("language")
+    if language == "crash":
+        sys.exit(3)
+    if language == "hang":
+        time.sleep(3600)
+    if language == "slow":
+        time.sleep(3)
+    if language == "fail":
+        send({"type": "result", "id": request["id"], "status": "error", "message": "failed on purpose"})
+        continue
+
+    print("fake transcription of " + request["audio"], file=sys.stderr)
+    print(">>Performing transcription...", file=sys.stderr, flush=True)
+    print("Progress: 100.00%...", file=sys.stderr, flush=True)
+    # Give the reader of stderr time to forward the progress during the job
+    time.sleep(0.2)
+    stem = os.path.splitext(os.path.basename(request["audio"]))[0]
+    with open(os.path.join(request["output_dir"], stem + "." + request["output_format"]), "w") as f:
+        json.dump({"pid": os.getpid(), "task": request["task"], "language": language or "en",
+                   "diarize": request["diarize"],
+                   "segments": [{"start": 0.0, "end": 1.5, "text": " Hello world.",
+                                 "words": [{"word": "Hello", "start": 0.0, "end": 0.5, "score": 0.9},
+                                           {"word": "world.", "start": 0.6, "end": 1.5, "score": 0.8}]}]}, f)
+    send({"type": "result", "id": request["id"], "status": "ok"})